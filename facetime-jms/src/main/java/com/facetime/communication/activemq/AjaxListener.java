@@ -29,6 +29,7 @@ public class AjaxListener implements MessageAvailableListener {
 	private AjaxWebClient client;
 	private long lastAccess;
 	private Continuation continuation;
+	private MessageStream stream;
 
 	AjaxListener(AjaxWebClient client, long maximumReadTimeout) {
 		this.client = client;
@@ -44,7 +45,34 @@ public class AjaxListener implements MessageAvailableListener {
 		this.continuation = continuation;
 	}
 
+	/**
+	 * 设置推送连接, 同一client原来的推送连接被关闭
+	 */
+	public void setStream(MessageStream stream) {
+		MessageStream old;
+		synchronized (this) {
+			old = this.stream;
+			this.stream = stream;
+		}
+		if (old != null && old != stream) {
+			old.close();
+		}
+	}
+
+	public synchronized void removeStream(MessageStream stream) {
+		if (this.stream == stream) {
+			this.stream = null;
+		}
+	}
+
+	public synchronized MessageStream getStream() {
+		return stream;
+	}
+
 	public synchronized void onMessageAvailable(MessageConsumer consumer) {
+		if (stream != null) {
+			stream.wake();
+		}
 		if (continuation != null) {
 			/**
 			 * 不要在这里接收消息，因为在Firefox浏览器下刷新页面时会继续之前的get请求，将导致混乱，从而导致部分些消息接收不到，
@@ -18,24 +18,21 @@ package com.facetime.communication.activemq;
 
 import static com.facetime.core.conf.SysLogger.facetimeLogger;
 
-import com.facetime.communication.bean.MessageDTO;
-import com.facetime.communication.bean.MessageType;
-import com.facetime.communication.bean.SimpleUserInfoDTO;
-import com.facetime.communication.bean.SimpleUserInfosDTO;
 import com.facetime.communication.utils.CookieConstants;
 import com.facetime.core.bean.UserToken;
+import com.facetime.core.conf.ConfigUtils;
 import com.facetime.core.http.HttpConstants;
 import com.facetime.core.http.HttpSender;
-import com.facetime.core.http.PojoMapper;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.jms.Destination;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.activemq.MessageAvailableConsumer;
@@ -46,7 +43,7 @@ import org.apache.activemq.MessageAvailableConsumer;
 public class AjaxWebClient extends AmqConsumer {
 	private final static String serverId = UUID.randomUUID().toString();
 
-	private static long index = 0;
+	private static final AtomicLong index = new AtomicLong();
 
 	// an instance which has not been accessed in this many milliseconds can be
 	// removed.
@@ -55,12 +52,18 @@ public class AjaxWebClient extends AmqConsumer {
 	Map<MessageAvailableConsumer, String> idMap;
 	Map<MessageAvailableConsumer, String> destinationNameMap;
 	AjaxListener listener;
-	Long lastAccessed;
+	volatile long lastAccessed;
+	/** 多路复用订阅时的信箱, 第一次订阅时创建 */
+	private volatile Mailbox mailbox;
+	/** 订阅的用户topic: 用户id -> 订阅id, 离线消息按此投递 */
+	private final Map<Long, String> userIdMap = new HashMap<Long, String>();
+	/** 订阅的用户topic: 用户id -> 订阅时的目的地名 */
+	private final Map<Long, String> userDestinationNameMap = new HashMap<Long, String>();
 
 	// client token
 	private String token;
 
-	private String serverProxyId = serverId + "-" + (index++);
+	private String serverProxyId = serverId + "-" + index.getAndIncrement();
 
 	public AjaxWebClient(HttpServletRequest request, long maximumReadTimeout) {
 		// 'id' meaning the first argument to the JavaScript addListener()
@@ -138,6 +141,87 @@ public class AjaxWebClient extends AmqConsumer {
 		return this.listener;
 	}
 
+	/**
+	 * 返回本client的信箱, 不存在时按capacity创建
+	 */
+	synchronized Mailbox getMailbox(int capacity) {
+		if (mailbox == null) {
+			mailbox = new Mailbox(this, capacity);
+		}
+		return mailbox;
+	}
+
+	/**
+	 * 返回本client的信箱, 没有订阅过共享目的地时为<tt>null</tt>
+	 */
+	public Mailbox peekMailbox() {
+		return mailbox;
+	}
+
+	/**
+	 * 订阅目的地后调用, 目的地是用户topic时登记该用户在本节点在线, 并由PresenceProcessor通知联系人
+	 */
+	synchronized void listenUser(Destination destination, String id, String destinationName) {
+		long userId = OfflineMessageStore.receiverOf(destination);
+		if (userId < 0) {
+			return;
+		}
+		OfflineMessageStore store = OfflineMessageStore.get();
+		if (userIdMap.put(userId, id) == null) {
+			PresenceProcessor.get().signIn(token);
+			if (store != null) {
+				store.online(userId);
+			}
+		}
+		userDestinationNameMap.put(userId, destinationName);
+		// 已挂起的长轮询或推送连接立即取走离线消息
+		if (store != null && store.hasMessages(userId)) {
+			listener.onMessageAvailable(null);
+		}
+	}
+
+	/**
+	 * 取消订阅目的地后调用
+	 */
+	synchronized void unlistenUser(Destination destination) {
+		long userId = OfflineMessageStore.receiverOf(destination);
+		if (userId >= 0 && userIdMap.remove(userId) != null) {
+			userDestinationNameMap.remove(userId);
+			OfflineMessageStore store = OfflineMessageStore.get();
+			if (store != null) {
+				store.offline(userId);
+			}
+		}
+	}
+
+	/**
+	 * 订阅的用户topic, 用户id -> 订阅id
+	 */
+	public Map<Long, String> getUserIdMap() {
+		return userIdMap;
+	}
+
+	public Map<Long, String> getUserDestinationNameMap() {
+		return userDestinationNameMap;
+	}
+
+	@Override
+	public synchronized void close() {
+		MailboxDispatcher dispatcher = MailboxDispatcher.get();
+		if (dispatcher != null) {
+			dispatcher.unsubscribeAll(this);
+		}
+		OfflineMessageStore store = OfflineMessageStore.get();
+		if (store != null) {
+			for (Long userId : userIdMap.keySet()) {
+				store.offline(userId);
+			}
+		}
+		userIdMap.clear();
+		userDestinationNameMap.clear();
+		super.close();
+	}
+
 	public long getMillisSinceLastAccessed() {
 		return this.getNow() - this.lastAccessed;
 	}
@@ -150,15 +234,8 @@ public class AjaxWebClient extends AmqConsumer {
 	public boolean closeIfExpired() {
 		boolean returnVal = false;
 		if (this.getMillisSinceLastAccessed() > this.expireAfter) {
-			// 退出系统，发送消息通知
-			if (token != null) {
-				try {
-					synchronized (this) {
-						new SignOutThread(new UserToken(token)).start();
-					}
-				} catch (Exception e) {
-				}
-			}
+			// 退出系统，由PresenceProcessor批量校验并发送消息通知
+			PresenceProcessor.get().signOut(token);
 
 			this.close();
 			returnVal = true;
@@ -176,6 +253,24 @@ public class AjaxWebClient extends AmqConsumer {
 
 	private static HttpSender proxy = HttpSender.get();
 
+	/** 用户服务地址(校验token, 查询联系人), 不含路径 */
+	private static final String CLOUD_SERVICE_URL = ConfigUtils.getProperty("cloud_service_url",
+			"http://127.0.0.1:8080");
+
+	/**
+	 * 用户服务上某个接口的完整url
+	 */
+	static String cloudServiceUrl(String path) {
+		return CLOUD_SERVICE_URL + path;
+	}
+
+	/**
+	 * 校验token的完整url, token只放在请求头和请求体里
+	 */
+	static String checkTokenUrl() {
+		return cloudServiceUrl(HttpConstants.checkToken);
+	}
+
 	/**
 	 * 检查token是否最后有效token
 	 * 
@@ -184,7 +279,7 @@ public class AjaxWebClient extends AmqConsumer {
 	 */
 	public static boolean checkToken(UserToken token) {
 		// TODO
-		String result = proxy.postToUrl(HttpConstants.checkToken, token.getUserTokenStr(), token.getUserTokenStr());
+		String result = proxy.postToUrl(token.getUserTokenStr(), checkTokenUrl(), token.getUserTokenStr());
 		return Boolean.valueOf(result);
 	}
 
@@ -204,59 +299,17 @@ public class AjaxWebClient extends AmqConsumer {
 	}
 
 	/**
-	 * 用户退出系统线程
+	 * 异步检查token是否最后有效token, 响应内容为"true"时有效
+	 *
+	 * @return token无法解析时返回<tt>null</tt>
 	 */
-	private static class SignOutThread extends Thread {
-		private UserToken clientToken;
-
-		public SignOutThread(UserToken clientToken) {
-			this.clientToken = clientToken;
-		}
-
-		@Override
-		public void run() {
-			super.run();
-
-			boolean isTheLastEffective = checkToken(clientToken);
-
-			facetimeLogger.info("client token=" + (clientToken != null ? clientToken : "null")
-					+ " try logout, isTheLastEffective=" + isTheLastEffective);
-
-			if (isTheLastEffective) {
-				/**
-				 * sign out
-				 */
-				//				proxy.postToUrl(cloudServiceUrl(HttpConstants.logout), clientToken.getUserIdAndToken(),
-				//						clientToken.getUserIdAsString());
-				final long logOutUserId = clientToken.getUserId();
-				try {
-					//					String usersJson = proxy.postToUrl(cloudServiceUrl(HttpConstants.getOnlineBuddyAndColleague),
-					//							clientToken.getUserIdAndToken(), String.valueOf(logOutUserId));
-					String usersJson = null;
-					SimpleUserInfosDTO userInfosDTO = PojoMapper.getObject(usersJson, SimpleUserInfosDTO.class);
-					if (userInfosDTO != null) {
-						List<SimpleUserInfoDTO> userInfos = userInfosDTO.getUserList();
-						if (userInfos != null) {
-							/**
-							 * send message(type : UserLeave) inform user's
-							 * buddies and colleagues
-							 */
-							// setup message
-							MessageDTO messageDTO = new MessageDTO();
-							messageDTO.setSender(logOutUserId);
-							messageDTO.setMessageType(MessageType.UserLeave);
-							messageDTO.setSendDate(new Date());
-							for (SimpleUserInfoDTO userInfo : userInfos) {
-								messageDTO.setReceiver(userInfo.getUserId());
-								// send message
-								AmqProducer.getInstance().sendMessage(messageDTO);
-							}
-						}
-					}
-				} catch (Exception e) {
-					facetimeLogger.warn(e);
-				}
-			}
+	public static Future<String> checkTokenAsync(String token, HttpSender.Callback callback) {
+		UserToken clientToken;
+		try {
+			clientToken = new UserToken(token);
+		} catch (Exception e) {
+			return null;
 		}
+		return proxy.postAsync(clientToken.getUserTokenStr(), checkTokenUrl(), clientToken.getUserTokenStr(), callback);
 	}
 }
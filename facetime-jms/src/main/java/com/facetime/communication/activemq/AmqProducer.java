@@ -4,32 +4,42 @@ import static com.facetime.core.conf.SysLogger.facetimeLogger;
 
 import com.facetime.communication.bean.MessageDTO;
 import com.facetime.communication.bean.MessageType;
-import com.facetime.communication.bean.MessagesDTO;
+import com.facetime.core.conf.ConfigUtils;
 import com.facetime.core.http.ErrorType;
-import com.facetime.core.http.HttpSender;
 import com.facetime.core.http.PojoMapper;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.jms.DeliveryMode;
 import javax.jms.Destination;
 import javax.jms.JMSException;
-import javax.jms.MessageProducer;
-import javax.jms.Session;
 import javax.jms.TextMessage;
 
 import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.command.ActiveMQTopic;
 import org.apache.activemq.transport.DefaultTransportListener;
 import org.apache.commons.lang.StringEscapeUtils;
 
 /**
  * 发送MQ消息到MQ服务器
- * 
- * FIXME 等待优化, 其中的getInstance()方法存在重大性能问题
+ * <p>
+ * 发送线程从Session池借用独占的Session和MessageProducer, 目的地按接收者缓存.
+ * 配置amq_async_send=true时消息先进入有界的发送队列由后台线程发送, 队列满时由调用线程直接发送,
+ * 以此限制积压. 消息历史交给{@link MessageHistoryWriter}在后台合并保存, 不占用发送线程.
+ * 启用{@link OfflineMessageStore}时, 接收者不在本节点在线的消息同时写入离线存储, 仍然发送到topic, 接收者可能在其他节点在线.
+ * 消息带有messageId, 客户端从topic和离线存储各收到一次时按messageId去重.
  */
 public class AmqProducer {
 
@@ -37,25 +47,55 @@ public class AmqProducer {
 	private static final String msgEnd = "</message>";
 
 	/**
-	 * 远程服务请求代理
+	 * 消息属性, 为true时&lt;message&gt;中是不需要XML转义的单个JSON对象, JSON格式的响应直接写出
 	 */
-	private static final HttpSender proxy = HttpSender.get();
-
-	private boolean connected = false;
+	public static final String JSON_BODY_PROPERTY = "facetimeJsonBody";
+	/** 消息属性, 消息同时写入的离线存储的id */
+	public static final String OFFLINE_STORE_PROPERTY = "facetimeOfflineStore";
+	/** 消息属性, 消息在离线存储中的序号 */
+	public static final String OFFLINE_SEQUENCE_PROPERTY = "facetimeOfflineSequence";
+
+	/** Session池大小 */
+	private static final int PRODUCER_SESSIONS = Integer.parseInt(ConfigUtils.getProperty("amq_producer_sessions", 8));
+	/** 等待空闲Session的最长时间 */
+	private static final long SESSION_WAIT_MILLIS = Long.parseLong(ConfigUtils.getProperty("amq_session_wait_millis",
+			5000));
+	/** 是否异步发送 */
+	private static final boolean ASYNC_SEND = Boolean.parseBoolean(ConfigUtils.getProperty("amq_async_send", false));
+	/** 异步发送队列容量 */
+	private static final int SEND_QUEUE_SIZE = Integer.parseInt(ConfigUtils.getProperty("amq_send_queue_size", 1000));
+	/** 异步发送线程数 */
+	private static final int SEND_THREADS = Integer.parseInt(ConfigUtils.getProperty("amq_send_threads", 2));
+	/** 缓存的目的地数量上限, 超过后清空重建 */
+	private static final int MAX_CACHED_DESTINATIONS = 10000;
+
+	private volatile boolean connected = false;
 
 	private ActiveMQConnectionFactory factory;
 
-	private ActiveMQConnection connection;
-	private Session session;
-	private MessageProducer producer;
+	private volatile ActiveMQConnection connection;
 
-	private static AmqProducer instance;
+	private final ProducerSessionPool sessionPool = new ProducerSessionPool(PRODUCER_SESSIONS);
+	private final ConcurrentMap<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+	private final ThreadPoolExecutor sendExecutor;
+	private final MessageHistoryWriter historyWriter = MessageHistoryWriter.isEnabled() ? new MessageHistoryWriter()
+			: null;
 
-	public synchronized static AmqProducer getInstance() {
-		if (instance == null) {
-			instance = new AmqProducer();
-		}
-		return instance;
+	private final AtomicLong sendCount = new AtomicLong();
+	private final AtomicLong sendNanos = new AtomicLong();
+	private final AtomicLong maxSendNanos = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong backPressureCount = new AtomicLong();
+
+	/**
+	 * 第一次使用时才创建实例和连接
+	 */
+	private static class InstanceHolder {
+		static final AmqProducer instance = new AmqProducer();
+	}
+
+	public static AmqProducer getInstance() {
+		return InstanceHolder.instance;
 	}
 
 	private AmqProducer() {
@@ -65,6 +105,29 @@ public class AmqProducer {
 		} catch (JMSException ex) {
 			facetimeLogger.error("", ex);
 		}
+		sendExecutor = ASYNC_SEND ? createSendExecutor() : null;
+	}
+
+	private ThreadPoolExecutor createSendExecutor() {
+		final AtomicInteger threadIndex = new AtomicInteger();
+		return new ThreadPoolExecutor(SEND_THREADS, SEND_THREADS, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(SEND_QUEUE_SIZE), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "amq-producer-" + threadIndex.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						// 队列已满, 由调用线程同步发送, 让上游慢下来
+						backPressureCount.incrementAndGet();
+						if (!executor.isShutdown()) {
+							r.run();
+						}
+					}
+				});
 	}
 
 	/**
@@ -86,17 +149,32 @@ public class AmqProducer {
 	 *            try to save message to app server or database
 	 * @return
 	 */
-	public String sendMessage(String token, MessageDTO messageDTO, boolean trySave) {
+	public String sendMessage(final String token, MessageDTO messageDTO, final boolean trySave) {
 		String result = ErrorType.OK;
 		try {
 			if (connected) {
 				messageDTO.setSendDate(new Date());
-				String messageJson = PojoMapper.toJson(messageDTO);
-				// send message to MQ
-				sendMessageToMQ(messageDTO.getReceiver(), messageDTO.getMessageType(), messageJson);
-				if (trySave && token != null) {
-					// save message history
-					saveMessage(token, messageDTO.getMessageType(), messageJson);
+				if (messageDTO.getMessageId() == null) {// 实时和离线各收到一次时, 客户端按messageId去重
+					messageDTO.setMessageId(UUID.randomUUID().toString());
+				}
+				final String messageJson = PojoMapper.toXmlSafeJson(messageDTO);
+				final long receiver = messageDTO.getReceiver();
+				final String type = messageDTO.getMessageType();
+				// 调用者可能在发送后继续修改messageDTO, 历史记录保存一份副本
+				final MessageDTO history = trySave && token != null && isSaveMessage(type) ? copyOf(messageDTO) : null;
+				if (sendExecutor != null) {
+					sendExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								deliver(token, receiver, type, messageJson, history);
+							} catch (Exception ex) {
+								facetimeLogger.error("async send message to " + receiver, ex);
+							}
+						}
+					});
+				} else {
+					deliver(token, receiver, type, messageJson, history);
 				}
 			} else {
 				result = ErrorType.ERR_MQ_DISCONNTECTED;
@@ -126,27 +204,11 @@ public class AmqProducer {
 
 		if (trySave && ErrorType.OK.equals(result) && token != null) {
 			// save message history
-			List<MessageDTO> saveMsgs = new ArrayList<MessageDTO>();
 			for (MessageDTO msg : messageDTOs) {
 				if (isSaveMessage(msg.getMessageType())) {
-					MessageDTO m = new MessageDTO();
-					m.setSender(msg.getSender());
-					m.setFromUser(msg.getFromUser());
-					m.setReceiver(msg.getReceiver());
-					m.setReceiverName(msg.getReceiverName());
-					m.setMessageType(msg.getMessageType());
-					m.setMessageBody(msg.getMessageBody());
-					m.setStatus(msg.getStatus());
-					m.setSendDate(msg.getSendDate());
-					saveMsgs.add(m);
+					saveMessage(token, copyOf(msg));
 				}
 			}
-			if (saveMsgs.size() > 0) {
-				MessagesDTO messagesDTO = new MessagesDTO();
-				messagesDTO.setMessageDTOList(saveMsgs);
-				String postData = PojoMapper.toJson(messagesDTO);
-				proxy.postToUrl("", token, postData);
-			}
 		}
 
 		return result;
@@ -164,6 +226,16 @@ public class AmqProducer {
 
 	String DEFAULT_DOMAIN_NAME = "conlect.oatOS.";
 
+	private void deliver(String token, long receiver, String type, String messageJson, MessageDTO history)
+			throws Exception {
+		// send message to MQ
+		sendMessageToMQ(receiver, type, messageJson);
+		if (history != null) {
+			// save message history
+			saveMessage(token, history);
+		}
+	}
+
 	/**
 	 * send message to MQ
 	 * 
@@ -173,25 +245,120 @@ public class AmqProducer {
 	 * @throws Exception
 	 */
 	private void sendMessageToMQ(long receiver, String type, String messageJson) throws Exception {
-		Destination destination = null;
-		String destinationName = DEFAULT_DOMAIN_NAME + String.valueOf(receiver);
-		if (MessageType.ChatMessage.equals(type)) {
-			// topic
-			destination = getSession().createTopic(destinationName);
-		} else {
-			// TODO
-			// queue
-			// destination = getSession().createQueue(destinationName);
-			destination = getSession().createTopic(destinationName);
-		}
+		// 目前所有类型的消息都发送到接收者的topic, 以后可按类型改为queue
+		Destination destination = getDestination(receiver);
 		// build message
 		StringBuilder msg = new StringBuilder();
 		msg.append(msgStart);
-		msg.append(StringEscapeUtils.escapeXml(messageJson));
+		// messageJson中没有<>&, 不需要XML转义
+		msg.append(messageJson);
 		msg.append(msgEnd);
-		TextMessage txtMessage = getSession().createTextMessage(msg.toString());
-		// send message to mq
-		getProducer().send(destination, txtMessage);
+		String text = msg.toString();
+		// 接收者不在本节点时topic消息可能没人收到, 需要保存的消息同时写入离线存储, 接收者可能在其他节点在线, 仍然发送到topic
+		OfflineMessageStore offlineStore = OfflineMessageStore.get();
+		long offlineSequence = 0;
+		if (offlineStore != null && isSaveMessage(type)) {
+			offlineSequence = offlineStore.appendIfOffline(receiver, text);
+		}
+		long start = System.nanoTime();
+		ProducerSessionPool.PooledSession pooled = sessionPool.borrow(getConnection(), SESSION_WAIT_MILLIS);
+		boolean sent = false;
+		try {
+			TextMessage txtMessage = pooled.session.createTextMessage(text);
+			txtMessage.setBooleanProperty(JSON_BODY_PROPERTY, true);
+			if (offlineSequence > 0) {
+				txtMessage.setStringProperty(OFFLINE_STORE_PROPERTY, offlineStore.getStoreId());
+				txtMessage.setLongProperty(OFFLINE_SEQUENCE_PROPERTY, offlineSequence);
+			}
+			// send message to mq
+			pooled.producer.send(destination, txtMessage);
+			sent = true;
+		} finally {
+			// 任何异常之后Session的状态都不确定, 丢弃而不是还回池中, 否则池中的名额永远少一个
+			if (sent) {
+				sessionPool.release(pooled);
+			} else {
+				failedCount.incrementAndGet();
+				sessionPool.discard(pooled);
+			}
+		}
+		recordSend(System.nanoTime() - start);
+	}
+
+	/**
+	 * 返回接收者的目的地, ActiveMQTopic只是名称的封装, 与Session无关, 可以在线程间共享
+	 */
+	private Destination getDestination(long receiver) {
+		String destinationName = DEFAULT_DOMAIN_NAME + String.valueOf(receiver);
+		Destination destination = destinations.get(destinationName);
+		if (destination == null) {
+			if (destinations.size() >= MAX_CACHED_DESTINATIONS) {
+				destinations.clear();
+			}
+			destination = new ActiveMQTopic(destinationName);
+			destinations.put(destinationName, destination);
+		}
+		return destination;
+	}
+
+	private void recordSend(long nanos) {
+		sendCount.incrementAndGet();
+		sendNanos.addAndGet(nanos);
+		long max = maxSendNanos.get();
+		while (nanos > max && !maxSendNanos.compareAndSet(max, nanos)) {
+			max = maxSendNanos.get();
+		}
+	}
+
+	/**
+	 * 已发送的消息数
+	 */
+	public long getSendCount() {
+		return sendCount.get();
+	}
+
+	/**
+	 * 平均发送耗时(毫秒), 包括等待Session的时间
+	 */
+	public double getAverageSendMillis() {
+		long count = sendCount.get();
+		return count == 0 ? 0 : sendNanos.get() / 1000000.0 / count;
+	}
+
+	/**
+	 * 最长发送耗时(毫秒)
+	 */
+	public double getMaxSendMillis() {
+		return maxSendNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * 发送失败的消息数
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * 异步发送队列中等待的消息数, 同步发送时为0
+	 */
+	public int getSendQueueDepth() {
+		return sendExecutor == null ? 0 : sendExecutor.getQueue().size();
+	}
+
+	/**
+	 * 因队列已满由调用线程直接发送的次数
+	 */
+	public long getBackPressureCount() {
+		return backPressureCount.get();
+	}
+
+	/**
+	 * 当前创建的Session数和空闲的Session数
+	 */
+	public String getSessionPoolStatus() {
+		return sessionPool.getCreatedCount() + "/" + sessionPool.getMaxSessions() + " created, "
+				+ sessionPool.getIdleCount() + " idle";
 	}
 
 	/**
@@ -204,97 +371,103 @@ public class AmqProducer {
 	public void saveMessage(String token, String type, String messageJson) {
 		if (token != null) {
 			if (isSaveMessage(type)) {
-				proxy.postToUrl(null, token, messageJson);
+				MessageDTO messageDTO = PojoMapper.getObject(messageJson, MessageDTO.class);
+				if (messageDTO != null) {
+					saveMessage(token, messageDTO);
+				}
 			}
 		}
 	}
 
 	/**
-	 * get connection
-	 * 
-	 * @return
-	 * @throws JMSException
+	 * 放入后台保存队列, 由{@link MessageHistoryWriter}合并后批量提交, 未配置保存地址时忽略
 	 */
-	private ActiveMQConnection getConnection() throws JMSException {
-		if (connection == null) {
-			connection = (ActiveMQConnection) factory.createConnection();
-			connection.start();
-			connected = true;
-			connection.addTransportListener(new DefaultTransportListener() {
-
-				@Override
-				public void onException(IOException error) {
-					connected = false;
-					facetimeLogger.error("", error);
-					// destroy();
-				}
-
-				@Override
-				public void transportInterupted() {
-					connected = false;
-					facetimeLogger.error("mq connection interupted");
-					// destroy();
-				}
-
-				@Override
-				public void transportResumed() {
-					connected = true;
-					facetimeLogger.info("mq connection resumed");
-				}
-
-			});
+	private void saveMessage(String token, MessageDTO messageDTO) {
+		if (historyWriter != null) {
+			historyWriter.enqueue(token, messageDTO);
 		}
-		return connection;
 	}
 
 	/**
-	 * get session
-	 * 
-	 * @return
-	 * @throws JMSException
+	 * 等待保存的消息历史数
 	 */
-	private Session getSession() throws JMSException {
-		if (session == null) {
-			session = getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
-		}
-		return session;
+	public int getHistoryQueueDepth() {
+		return historyWriter == null ? 0 : historyWriter.getQueueDepth();
+	}
+
+	private static MessageDTO copyOf(MessageDTO msg) {
+		MessageDTO m = new MessageDTO();
+		m.setSender(msg.getSender());
+		m.setFromUser(msg.getFromUser());
+		m.setReceiver(msg.getReceiver());
+		m.setReceiverName(msg.getReceiverName());
+		m.setMessageType(msg.getMessageType());
+		m.setMessageBody(msg.getMessageBody());
+		m.setStatus(msg.getStatus());
+		m.setSendDate(msg.getSendDate());
+		return m;
 	}
 
 	/**
-	 * get message producer
+	 * get connection
 	 * 
 	 * @return
 	 * @throws JMSException
 	 */
-	private MessageProducer getProducer() throws JMSException {
-		if (producer == null) {
-			producer = getSession().createProducer(null);
-			producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+	private ActiveMQConnection getConnection() throws JMSException {
+		ActiveMQConnection current = connection;
+		if (current != null) {
+			return current;
+		}
+		// 只有第一次创建连接时加锁, 发送线程之后直接读volatile字段
+		synchronized (this) {
+			if (connection == null) {
+				ActiveMQConnection created = (ActiveMQConnection) factory.createConnection();
+				created.start();
+				connected = true;
+				created.addTransportListener(new DefaultTransportListener() {
+
+					@Override
+					public void onException(IOException error) {
+						connected = false;
+						facetimeLogger.error("", error);
+						// destroy();
+					}
+
+					@Override
+					public void transportInterupted() {
+						connected = false;
+						facetimeLogger.error("mq connection interupted");
+						// destroy();
+					}
+
+					@Override
+					public void transportResumed() {
+						connected = true;
+						facetimeLogger.info("mq connection resumed");
+					}
+
+				});
+				connection = created;
+			}
+			return connection;
 		}
-		return producer;
 	}
 
 	/**
 	 * close
 	 */
-	public void destroy() {
+	public synchronized void destroy() {
 		try {
+			sessionPool.clear();
 			if (connection != null) {
 				connection.close();
 			}
-			if (session != null) {
-				session.close();
-			}
-			if (producer != null) {
-				producer.close();
-			}
 		} catch (Exception ex) {
 			facetimeLogger.error("", ex);
 		} finally {
 			connected = false;
 			connection = null;
-			session = null;
-			producer = null;
 		}
 	}
 
@@ -0,0 +1,193 @@
+package com.facetime.communication.activemq;
+
+import static com.facetime.core.conf.SysLogger.facetimeLogger;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * 按sessionKey分片保存的AjaxWebClient注册表. 查找和注册不使用全局锁, 过期清理每次只扫描一个分片,
+ * 统计页面读取的是快照, 不会阻塞长轮询请求.
+ * <p>
+ * 注册和清理都在client自身的锁内确认client仍在注册表中, 因此请求不会拿到已经被清理关闭的client.
+ *
+ * @author jinkerjiang
+ *
+ */
+public class ClientRegistry {
+
+	public static final int DEFAULT_SHARDS = 16;
+
+	private final ConcurrentMap<String, AjaxWebClient>[] shards;
+	private final int mask;
+	private final AtomicInteger nextSweepShard = new AtomicInteger();
+
+	private final AtomicLong registered = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+	private final AtomicLong contended = new AtomicLong();
+	private final AtomicLong sweeps = new AtomicLong();
+
+	public ClientRegistry() {
+		this(DEFAULT_SHARDS);
+	}
+
+	/**
+	 * @param shardCount
+	 *            分片数, 向上取整为2的幂
+	 */
+	@SuppressWarnings("unchecked")
+	public ClientRegistry(int shardCount) {
+		int size = 1;
+		while (size < shardCount) {
+			size <<= 1;
+		}
+		this.shards = new ConcurrentMap[size];
+		for (int i = 0; i < size; i++) {
+			shards[i] = new ConcurrentHashMap<String, AjaxWebClient>();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * 返回sessionKey对应的client, 不存在时为该请求创建一个, 并更新最后访问时间
+	 */
+	public AjaxWebClient getOrCreate(String sessionKey, HttpServletRequest request) {
+		ConcurrentMap<String, AjaxWebClient> shard = shardOf(sessionKey);
+		while (true) {
+			AjaxWebClient client = shard.get(sessionKey);
+			if (client == null) {
+				AjaxWebClient created = new AjaxWebClient(request, MessageListenerServlet.maximumReadTimeout);
+				client = shard.putIfAbsent(sessionKey, created);
+				if (client == null) {
+					client = created;
+					registered.incrementAndGet();
+				} else {// 同一个客户端的并发请求抢先注册了, 丢弃自己创建的
+					contended.incrementAndGet();
+					created.close();
+				}
+			}
+			synchronized (client) {
+				// 清理线程在client锁内关闭并移除过期client, 这里确认client仍然有效
+				if (shard.get(sessionKey) == client) {
+					client.updateLastAccessed();
+					return client;
+				}
+			}
+			contended.incrementAndGet();
+		}
+	}
+
+	public AjaxWebClient get(String sessionKey) {
+		return shardOf(sessionKey).get(sessionKey);
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * 清理下一个分片中过期的client, 由定时任务轮流调用
+	 *
+	 * @return 本次清理的client数
+	 */
+	public int sweepNext() {
+		return sweep((nextSweepShard.getAndIncrement() & Integer.MAX_VALUE) & mask);
+	}
+
+	/**
+	 * 清理所有分片中过期的client
+	 */
+	public int sweepAll() {
+		int removed = 0;
+		for (int i = 0; i < shards.length; i++) {
+			removed += sweep(i);
+		}
+		return removed;
+	}
+
+	private int sweep(int index) {
+		int removed = 0;
+		ConcurrentMap<String, AjaxWebClient> shard = shards[index];
+		for (Entry<String, AjaxWebClient> entry : shard.entrySet()) {
+			AjaxWebClient client = entry.getValue();
+			synchronized (client) {
+				// close an expired client and remove it from the registry.
+				if (client.closeIfExpired() && shard.remove(entry.getKey(), client)) {
+					facetimeLogger.debug("Removing expired AjaxWebClient " + entry.getKey());
+					removed++;
+				}
+			}
+		}
+		sweeps.incrementAndGet();
+		evicted.addAndGet(removed);
+		return removed;
+	}
+
+	/**
+	 * 返回当前所有client的快照, 遍历期间不阻塞注册和清理
+	 */
+	public List<Map.Entry<String, AjaxWebClient>> snapshot() {
+		List<Map.Entry<String, AjaxWebClient>> result = new ArrayList<Map.Entry<String, AjaxWebClient>>();
+		for (ConcurrentMap<String, AjaxWebClient> shard : shards) {
+			for (Entry<String, AjaxWebClient> entry : shard.entrySet()) {
+				result.add(new SimpleImmutableEntry<String, AjaxWebClient>(entry));
+			}
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * 当前在线的client数
+	 */
+	public int getActiveCount() {
+		int count = 0;
+		for (ConcurrentMap<String, AjaxWebClient> shard : shards) {
+			count += shard.size();
+		}
+		return count;
+	}
+
+	/**
+	 * 累计注册的client数
+	 */
+	public long getRegisteredCount() {
+		return registered.get();
+	}
+
+	/**
+	 * 累计因过期被清理的client数
+	 */
+	public long getEvictedCount() {
+		return evicted.get();
+	}
+
+	/**
+	 * 注册时与并发请求或清理线程发生竞争的次数
+	 */
+	public long getContendedCount() {
+		return contended.get();
+	}
+
+	/**
+	 * 已执行的分片清理次数
+	 */
+	public long getSweepCount() {
+		return sweeps.get();
+	}
+
+	private ConcurrentMap<String, AjaxWebClient> shardOf(String sessionKey) {
+		int h = sessionKey.hashCode();
+		h ^= (h >>> 16);
+		return shards[h & mask];
+	}
+}
@@ -2,8 +2,6 @@ package com.facetime.communication.activemq;
 
 import com.facetime.core.http.HttpConstants;
 
-import java.util.HashMap;
-
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
@@ -13,7 +11,7 @@ import javax.servlet.http.HttpSession;
  * 
  */
 public class ClientSource {
-	private static HashMap<String, AjaxWebClient> ajaxWebClients = new HashMap<String, AjaxWebClient>();
+	private static final ClientRegistry registry = new ClientRegistry();
 
 	public static AjaxWebClient getAjaxWebClient(HttpServletRequest request) {
 		HttpSession session = request.getSession(true);
@@ -36,21 +34,13 @@ public class ClientSource {
 
 		String sessionKey = session.getId() + '-' + clientId;
 
-		AjaxWebClient client = ajaxWebClients.get(sessionKey);
-		synchronized (ajaxWebClients) {
-			// create a new AjaxWebClient if one does not already exist for this
-			// sessionKey.
-			if (client == null) {
-				client = new AjaxWebClient(request, MessageListenerServlet.maximumReadTimeout);
-				ajaxWebClients.put(sessionKey, client);
-			}
-			client.updateLastAccessed();
-		}
-		return client;
+		// create a new AjaxWebClient if one does not already exist for this
+		// sessionKey.
+		return registry.getOrCreate(sessionKey, request);
 	}
 
-	public static HashMap<String, AjaxWebClient> getAjaxWebClients() {
-		return ajaxWebClients;
+	public static ClientRegistry getRegistry() {
+		return registry;
 	}
 
 }
@@ -0,0 +1,110 @@
+package com.facetime.communication.activemq;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.ObjectMessage;
+import javax.jms.TextMessage;
+
+/**
+ * 紧凑的JSON批量格式, 请求参数format=json时使用:
+ * <p>
+ * <tt>{"messages":[{"id":"..","destination":"..","data":{..}}, ..]}</tt>
+ * <p>
+ * AmqProducer发送的消息带有{@link AmqProducer#JSON_BODY_PROPERTY}属性, &lt;message&gt;中是未经XML转义的单个JSON对象,
+ * 去掉包装后直接作为data输出, 不再解析; 其他消息体转义后作为字符串放在text中, 不能向响应中注入任意内容.
+ */
+public class JsonResponseEncoder implements ResponseEncoder {
+
+	public static final JsonResponseEncoder INSTANCE = new JsonResponseEncoder();
+
+	private static final String MESSAGE_START = "<message>";
+	private static final String MESSAGE_END = "</message>";
+
+	@Override
+	public String getContentType() {
+		return "application/json;charset=UTF-8";
+	}
+
+	@Override
+	public void begin(Writer out) throws IOException {
+		out.write("{\"messages\":[");
+	}
+
+	@Override
+	public void encode(Writer out, int index, Message message, String id, String destinationName)
+			throws JMSException, IOException {
+		if (index > 0) {
+			out.write(',');
+		}
+		out.write("{\"id\":");
+		writeString(out, id);
+		if (destinationName != null) {
+			out.write(",\"destination\":");
+			writeString(out, destinationName);
+		}
+		String txt = null;
+		if (message instanceof TextMessage) {
+			txt = ((TextMessage) message).getText();
+		} else if (message instanceof ObjectMessage) {
+			txt = String.valueOf(((ObjectMessage) message).getObject());
+		}
+		if (txt != null && message.getBooleanProperty(AmqProducer.JSON_BODY_PROPERTY) && txt.startsWith(MESSAGE_START)
+				&& txt.endsWith(MESSAGE_END)) {
+			out.write(",\"data\":");
+			out.write(txt, MESSAGE_START.length(), txt.length() - MESSAGE_START.length() - MESSAGE_END.length());
+		} else if (txt != null) {
+			out.write(",\"text\":");
+			writeString(out, txt);
+		}
+		out.write('}');
+	}
+
+	@Override
+	public void end(Writer out) throws IOException {
+		out.write("]}");
+	}
+
+	static void writeString(Writer out, String value) throws IOException {
+		if (value == null) {
+			out.write("null");
+			return;
+		}
+		out.write('"');
+		int start = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			String escaped;
+			switch (c) {
+			case '"':
+				escaped = "\\\"";
+				break;
+			case '\\':
+				escaped = "\\\\";
+				break;
+			case '\n':
+				escaped = "\\n";
+				break;
+			case '\r':
+				escaped = "\\r";
+				break;
+			case '\t':
+				escaped = "\\t";
+				break;
+			default:
+				if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+					escaped = String.format("\\u%04x", (int) c);
+				} else {
+					continue;
+				}
+			}
+			out.write(value, start, i - start);
+			out.write(escaped);
+			start = i + 1;
+		}
+		out.write(value, start, value.length() - start);
+		out.write('"');
+	}
+}
@@ -0,0 +1,116 @@
+package com.facetime.communication.activemq;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Message;
+
+/**
+ * 一个AjaxWebClient在本节点的消息信箱. {@link MailboxDispatcher}把共享订阅收到的消息按目的地投递到订阅者的信箱,
+ * 长轮询请求只从信箱取消息, 不再访问broker.
+ * <p>
+ * 信箱容量有限, 满了以后丢弃最早的消息.
+ */
+public class Mailbox {
+
+	/**
+	 * 信箱中的一条消息和它的订阅信息
+	 */
+	public static class Delivery {
+		private final String id;
+		private final String destinationName;
+		private final Message message;
+
+		Delivery(String id, String destinationName, Message message) {
+			this.id = id;
+			this.destinationName = destinationName;
+			this.message = message;
+		}
+
+		/**
+		 * 订阅时客户端指定的id, 即JavaScript addListener()的第一个参数
+		 */
+		public String getId() {
+			return id;
+		}
+
+		public String getDestinationName() {
+			return destinationName;
+		}
+
+		public Message getMessage() {
+			return message;
+		}
+	}
+
+	private final AjaxWebClient client;
+	private final BlockingQueue<Delivery> deliveries;
+	/** 目的地名 -> 订阅id */
+	private final Map<String, String> subscriptions = new ConcurrentHashMap<String, String>();
+	private final AtomicLong dropped = new AtomicLong();
+
+	Mailbox(AjaxWebClient client, int capacity) {
+		this.client = client;
+		this.deliveries = new ArrayBlockingQueue<Delivery>(Math.max(1, capacity));
+	}
+
+	/**
+	 * 投递一条消息并唤醒等待中的长轮询请求, 未订阅该目的地时忽略
+	 */
+	void deliver(String destinationName, Message message) {
+		String id = subscriptions.get(destinationName);
+		if (id == null) {
+			return;
+		}
+		Delivery delivery = new Delivery(id, destinationName, message);
+		while (!deliveries.offer(delivery)) {
+			if (deliveries.poll() != null) {
+				dropped.incrementAndGet();
+			}
+		}
+		client.getListener().onMessageAvailable(null);
+	}
+
+	/**
+	 * 取出一条消息, 没有时返回<tt>null</tt>
+	 */
+	public Delivery poll() {
+		return deliveries.poll();
+	}
+
+	public boolean isEmpty() {
+		return deliveries.isEmpty();
+	}
+
+	public int size() {
+		return deliveries.size();
+	}
+
+	void addSubscription(String destinationName, String id) {
+		subscriptions.put(destinationName, id);
+	}
+
+	boolean removeSubscription(String destinationName) {
+		return subscriptions.remove(destinationName) != null;
+	}
+
+	public Set<String> getSubscriptions() {
+		return Collections.unmodifiableSet(subscriptions.keySet());
+	}
+
+	/**
+	 * 因信箱已满被丢弃的消息数
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	AjaxWebClient getClient() {
+		return client;
+	}
+}
@@ -0,0 +1,217 @@
+package com.facetime.communication.activemq;
+
+import static com.facetime.core.conf.SysLogger.facetimeLogger;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+import org.apache.activemq.command.ActiveMQTopic;
+
+/**
+ * 多路复用的订阅. 每个节点只在broker上建立一个通配符订阅(如<tt>conlect.oatOS.&gt;</tt>),
+ * 收到的消息按目的地分发到本节点在线用户的{@link Mailbox}, broker上的消费者数量不再随在线用户数增长.
+ * <p>
+ * 只接管名称以通配符前缀开头的topic, 其他目的地仍由AjaxWebClient自己的consumer订阅.
+ * <p>
+ * 分发不加锁; 登记和取消登记锁住目的地的信箱列表, 保证不会加入一个已从routes移除的列表.
+ */
+public class MailboxDispatcher implements MessageListener {
+
+	public static final String DEFAULT_DESTINATION = "conlect.oatOS.>";
+	public static final int DEFAULT_MAILBOX_CAPACITY = 200;
+
+	private static volatile MailboxDispatcher instance;
+
+	private final String prefix;
+	private final int mailboxCapacity;
+	private final Connection connection;
+	private final Session session;
+	private final MessageConsumer consumer;
+	/** 目的地名 -> 订阅了该目的地的信箱 */
+	private final ConcurrentMap<String, List<Mailbox>> routes = new ConcurrentHashMap<String, List<Mailbox>>();
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong dispatched = new AtomicLong();
+	private final AtomicLong unrouted = new AtomicLong();
+
+	private MailboxDispatcher(ConnectionFactory factory, String wildcard, int mailboxCapacity) throws JMSException {
+		this.prefix = wildcard.endsWith(">") || wildcard.endsWith("*") ? wildcard.substring(0, wildcard.length() - 1)
+				: wildcard;
+		this.mailboxCapacity = mailboxCapacity;
+		this.connection = factory.createConnection();
+		this.session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		this.consumer = session.createConsumer(new ActiveMQTopic(wildcard));
+		consumer.setMessageListener(this);
+		connection.start();
+	}
+
+	/**
+	 * 启动本节点的共享订阅, 重复调用时忽略
+	 *
+	 * @param wildcard
+	 *            通配符目的地, 如<tt>conlect.oatOS.&gt;</tt>
+	 * @param mailboxCapacity
+	 *            每个信箱最多保存的消息数
+	 */
+	public static synchronized void start(ConnectionFactory factory, String wildcard, int mailboxCapacity)
+			throws JMSException {
+		if (instance == null) {
+			instance = new MailboxDispatcher(factory, wildcard, mailboxCapacity);
+			facetimeLogger.info("multiplexed subscription started on " + wildcard);
+		}
+	}
+
+	/**
+	 * 返回已启动的分发器, 未启用多路复用时返回<tt>null</tt>
+	 */
+	public static MailboxDispatcher get() {
+		return instance;
+	}
+
+	public static synchronized void stop() {
+		if (instance != null) {
+			try {
+				instance.consumer.close();
+				instance.session.close();
+				instance.connection.close();
+			} catch (JMSException e) {
+				facetimeLogger.warn("close multiplexed subscription", e);
+			}
+			instance = null;
+		}
+	}
+
+	/**
+	 * 目的地是否由共享订阅接管
+	 */
+	public boolean accepts(Destination destination) throws JMSException {
+		return destination instanceof Topic && ((Topic) destination).getTopicName().startsWith(prefix);
+	}
+
+	/**
+	 * 把client的信箱登记到目的地, 替代为client创建consumer
+	 */
+	public void subscribe(AjaxWebClient client, Destination destination, String id) throws JMSException {
+		String name = ((Topic) destination).getTopicName();
+		Mailbox mailbox = client.getMailbox(mailboxCapacity);
+		mailbox.addSubscription(name, id);
+		while (true) {
+			List<Mailbox> mailboxes = routes.get(name);
+			if (mailboxes == null) {
+				List<Mailbox> created = new CopyOnWriteArrayList<Mailbox>();
+				mailboxes = routes.putIfAbsent(name, created);
+				if (mailboxes == null) {
+					mailboxes = created;
+				}
+			}
+			// 空列表只在它自己的锁内从routes移除, 加入前确认列表仍在routes中, 否则重新取
+			synchronized (mailboxes) {
+				if (routes.get(name) != mailboxes) {
+					continue;
+				}
+				if (!mailboxes.contains(mailbox)) {
+					mailboxes.add(mailbox);
+				}
+				return;
+			}
+		}
+	}
+
+	public void unsubscribe(AjaxWebClient client, Destination destination) throws JMSException {
+		unsubscribe(client, ((Topic) destination).getTopicName());
+	}
+
+	/**
+	 * client关闭时取消它的全部登记
+	 */
+	public void unsubscribeAll(AjaxWebClient client) {
+		Mailbox mailbox = client.peekMailbox();
+		if (mailbox == null) {
+			return;
+		}
+		for (String name : mailbox.getSubscriptions()) {
+			unsubscribe(client, name);
+		}
+	}
+
+	private void unsubscribe(AjaxWebClient client, String name) {
+		Mailbox mailbox = client.peekMailbox();
+		if (mailbox == null) {
+			return;
+		}
+		mailbox.removeSubscription(name);
+		List<Mailbox> mailboxes = routes.get(name);
+		if (mailboxes != null) {
+			synchronized (mailboxes) {
+				mailboxes.remove(mailbox);
+				if (mailboxes.isEmpty()) {
+					routes.remove(name, mailboxes);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void onMessage(Message message) {
+		received.incrementAndGet();
+		try {
+			Destination destination = message.getJMSDestination();
+			if (!(destination instanceof Topic)) {
+				return;
+			}
+			List<Mailbox> mailboxes = routes.get(((Topic) destination).getTopicName());
+			if (mailboxes == null || mailboxes.isEmpty()) {// 接收者不在本节点
+				unrouted.incrementAndGet();
+				return;
+			}
+			String name = ((Topic) destination).getTopicName();
+			for (Mailbox mailbox : mailboxes) {
+				mailbox.deliver(name, message);
+				dispatched.incrementAndGet();
+			}
+		} catch (JMSException e) {
+			facetimeLogger.warn("dispatch message failed", e);
+		}
+	}
+
+	/**
+	 * 共享订阅收到的消息数
+	 */
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	/**
+	 * 投递到信箱的消息数, 一条消息投递给多个信箱时分别计数
+	 */
+	public long getDispatchedCount() {
+		return dispatched.get();
+	}
+
+	/**
+	 * 接收者不在本节点而被忽略的消息数
+	 */
+	public long getUnroutedCount() {
+		return unrouted.get();
+	}
+
+	/**
+	 * 当前登记的目的地数
+	 */
+	public int getRouteCount() {
+		return routes.size();
+	}
+}
@@ -0,0 +1,370 @@
+package com.facetime.communication.activemq;
+
+import static com.facetime.core.conf.SysLogger.facetimeLogger;
+
+import com.facetime.communication.bean.MessageDTO;
+import com.facetime.communication.bean.MessagesDTO;
+import com.facetime.core.conf.ConfigUtils;
+import com.facetime.core.http.ErrorType;
+import com.facetime.core.http.HttpSender;
+import com.facetime.core.http.PojoMapper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 消息历史的后台批量保存. 发送线程只把消息放入有界队列, 后台线程按数量或时间窗口把同一token的消息
+ * 合并成{@link MessagesDTO}一次提交, 失败时按退避间隔重试.
+ * <p>
+ * 配置了message_history_spill_file时, 队列已满, 重试耗尽以及停止时未提交的消息追加写入该文件,
+ * 下次启动时读回队列重新提交.
+ *
+ * @author yang
+ */
+public class MessageHistoryWriter {
+
+	/** 保存消息历史的服务地址, 未配置时不保存 */
+	private static final String HISTORY_URL = ConfigUtils.getProperty("message_history_url", "");
+	private static final int QUEUE_SIZE = Integer.parseInt(ConfigUtils.getProperty("message_history_queue_size",
+			10000));
+	/** 每批最多合并的消息数 */
+	private static final int BATCH_SIZE = Integer.parseInt(ConfigUtils.getProperty("message_history_batch_size", 100));
+	/** 一批消息最长等待时间 */
+	private static final long BATCH_WINDOW_MILLIS = Long.parseLong(ConfigUtils.getProperty(
+			"message_history_batch_millis", 1000));
+	private static final int MAX_RETRIES = Integer.parseInt(ConfigUtils.getProperty("message_history_retries", 3));
+	private static final long RETRY_BACKOFF_MILLIS = 500;
+	private static final String SPILL_FILE = ConfigUtils.getProperty("message_history_spill_file", "");
+
+	/**
+	 * 队列中的一条待保存消息
+	 */
+	private static class Entry {
+		final String token;
+		final MessageDTO message;
+
+		Entry(String token, MessageDTO message) {
+			this.token = token;
+			this.message = message;
+		}
+	}
+
+	private static final HttpSender proxy = HttpSender.get();
+
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+	private final File spillFile = SPILL_FILE.length() == 0 ? null : new File(SPILL_FILE);
+	private final Thread worker;
+	private volatile boolean running = true;
+
+	private final AtomicLong savedCount = new AtomicLong();
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong retryCount = new AtomicLong();
+	private final AtomicLong spilledCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	MessageHistoryWriter() {
+		replaySpillFile();
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "message-history-writer");
+		worker.setDaemon(true);
+		worker.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("message-history-shutdown") {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		});
+	}
+
+	/**
+	 * 保存服务地址是否已配置
+	 */
+	public static boolean isEnabled() {
+		return HISTORY_URL.length() > 0;
+	}
+
+	/**
+	 * 放入保存队列, 不等待提交. 队列已满时写入溢出文件, 没有溢出文件时丢弃
+	 */
+	public void enqueue(String token, MessageDTO message) {
+		Entry entry = new Entry(token, message);
+		if (!running || !queue.offer(entry)) {
+			List<Entry> overflow = new ArrayList<Entry>(1);
+			overflow.add(entry);
+			spillOrDrop(overflow, "history queue is full");
+		}
+	}
+
+	private void flushLoop() {
+		List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+		while (running || !queue.isEmpty()) {
+			try {
+				Entry first = queue.poll(BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				// 在时间窗口内凑满一批
+				long deadline = System.currentTimeMillis() + BATCH_WINDOW_MILLIS;
+				while (batch.size() < BATCH_SIZE) {
+					long wait = deadline - System.currentTimeMillis();
+					Entry next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				flushOrSpill(batch);
+			} catch (InterruptedException e) {
+				// shutdown()中断等待, 已取出的消息照常提交, 再继续处理队列中剩余的消息
+				flushOrSpill(batch);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * 提交一批消息, 提交过程中出现异常时整批写入溢出文件, 不丢弃已从队列中取出的消息
+	 */
+	private void flushOrSpill(List<Entry> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			flush(batch);
+		} catch (RuntimeException e) {
+			facetimeLogger.error("flush message history", e);
+			spillOrDrop(batch, "flush message history failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * 按token分组提交, 同一token的消息合并为一个MessagesDTO
+	 */
+	private void flush(List<Entry> batch) {
+		Map<String, List<Entry>> byToken = new LinkedHashMap<String, List<Entry>>();
+		for (Entry entry : batch) {
+			List<Entry> entries = byToken.get(entry.token);
+			if (entries == null) {
+				entries = new ArrayList<Entry>();
+				byToken.put(entry.token, entries);
+			}
+			entries.add(entry);
+		}
+		for (Map.Entry<String, List<Entry>> group : byToken.entrySet()) {
+			List<MessageDTO> messages = new ArrayList<MessageDTO>(group.getValue().size());
+			for (Entry entry : group.getValue()) {
+				messages.add(entry.message);
+			}
+			String postData = PojoMapper.toJson(new MessagesDTO(messages));
+			if (post(group.getKey(), postData)) {
+				savedCount.addAndGet(messages.size());
+				batchCount.incrementAndGet();
+			} else {
+				spillOrDrop(group.getValue(), "save message history failed after " + MAX_RETRIES + " retries");
+			}
+		}
+	}
+
+	private boolean post(String token, String postData) {
+		for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+			if (attempt > 0) {
+				retryCount.incrementAndGet();
+				try {
+					Thread.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
+				} catch (InterruptedException e) {// 正在停止, 未提交的消息写入溢出文件
+					return false;
+				}
+			}
+			String result = proxy.postToUrl(token, HISTORY_URL, postData);
+			if (result != null && !ErrorType.ERR_404.equals(result) && !ErrorType.ERR_500.equals(result)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void spillOrDrop(List<Entry> entries, String reason) {
+		if (spillFile != null && spill(entries)) {
+			spilledCount.addAndGet(entries.size());
+			return;
+		}
+		droppedCount.addAndGet(entries.size());
+		facetimeLogger.warn(reason + ", dropped " + entries.size() + " message(s)");
+	}
+
+	/**
+	 * 每行一条消息: token, 制表符, 消息JSON
+	 */
+	private synchronized boolean spill(List<Entry> entries) {
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile, true), "UTF-8"));
+			for (Entry entry : entries) {
+				writer.write(entry.token);
+				writer.write('\t');
+				writer.write(PojoMapper.toJson(entry.message));
+				writer.newLine();
+			}
+			writer.flush();
+			return true;
+		} catch (IOException e) {
+			facetimeLogger.error("write message history spill file " + spillFile, e);
+			return false;
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * 启动时把上次溢出的消息重新放回队列, 文件先改名再读取, 读取过程中新的溢出写入新文件.
+	 * 上次读取失败留下的.replay文件先重放一次
+	 */
+	private void replaySpillFile() {
+		if (spillFile == null) {
+			return;
+		}
+		File replaying = new File(spillFile.getPath() + ".replay");
+		if (replaying.exists() && !replay(replaying)) {
+			return;
+		}
+		if (!spillFile.exists()) {
+			return;
+		}
+		if (!spillFile.renameTo(replaying)) {
+			facetimeLogger.warn("can't rename message history spill file " + spillFile);
+			return;
+		}
+		replay(replaying);
+	}
+
+	/**
+	 * 读取整个文件且放不下的消息重新溢出成功后才删除文件, 否则保留到下次启动重放, 已经放回队列的消息届时会重复保存
+	 *
+	 * @return 文件是否已重放并删除
+	 */
+	private boolean replay(File replaying) {
+		BufferedReader reader = null;
+		int replayed = 0;
+		boolean complete = false;
+		List<Entry> overflow = new ArrayList<Entry>();
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(replaying), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab < 0) {
+					continue;
+				}
+				MessageDTO message = PojoMapper.getObject(line.substring(tab + 1), MessageDTO.class);
+				if (message == null) {
+					continue;
+				}
+				Entry entry = new Entry(line.substring(0, tab), message);
+				if (queue.offer(entry)) {
+					replayed++;
+				} else {
+					overflow.add(entry);
+				}
+			}
+			complete = true;
+		} catch (IOException e) {
+			facetimeLogger.error("read message history spill file " + replaying + ", kept for the next replay", e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		if (complete && !overflow.isEmpty() && !spill(overflow)) {
+			facetimeLogger.warn("can't spill " + overflow.size() + " replayed message(s), " + replaying
+					+ " kept for the next replay");
+			complete = false;
+		}
+		facetimeLogger.info("replayed " + replayed + " message(s) from " + replaying);
+		if (!complete) {
+			return false;
+		}
+		if (!replaying.delete()) {
+			facetimeLogger.warn("can't delete replayed spill file " + replaying);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 停止接收新消息, 等待后台线程提交队列中的消息, 超时未提交的写入溢出文件
+	 */
+	public void shutdown() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		worker.interrupt();
+		try {
+			worker.join(BATCH_WINDOW_MILLIS * 5);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		List<Entry> remaining = new ArrayList<Entry>();
+		queue.drainTo(remaining);
+		if (!remaining.isEmpty()) {
+			spillOrDrop(remaining, "message history writer stopped");
+		}
+	}
+
+	/**
+	 * 等待保存的消息数
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public long getSavedCount() {
+		return savedCount.get();
+	}
+
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	public long getSpilledCount() {
+		return spilledCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+}
@@ -25,20 +25,26 @@ import com.facetime.communication.utils.Result;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
-import javax.jms.ObjectMessage;
 import javax.jms.TextMessage;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -46,7 +52,9 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.activemq.MessageAvailableConsumer;
+import org.apache.activemq.command.ActiveMQTextMessage;
 import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
 import org.eclipse.jetty.continuation.ContinuationSupport;
 
 /**
@@ -67,6 +75,16 @@ import org.eclipse.jetty.continuation.ContinuationSupport;
  * <dd>The maximum value a request may specify for the 'timeout' parameter</dd>
  * <dt>maximumMessages</dt>
  * <dd>maximum messages to send per response</dd>
+ * <dt>multiplexSubscriptions</dt>
+ * <dd>true时本节点只用一个通配符订阅接收用户消息, 再分发到各client的信箱, 默认false</dd>
+ * <dt>multiplexDestination</dt>
+ * <dd>共享订阅的通配符目的地, 默认conlect.oatOS.&gt;</dd>
+ * <dt>mailboxCapacity</dt>
+ * <dd>每个client信箱最多保存的消息数, 默认200</dd>
+ * <dt>streamThreads</dt>
+ * <dd>Server-Sent Events推送线程数, 默认4</dd>
+ * <dt>maximumStreamTime</dt>
+ * <dd>一个推送连接最长保持的时间(ms), 到期后客户端重新连接, 默认300000</dd>
  * <dt></dt>
  * <dd></dd>
  * </dl>
@@ -82,6 +100,13 @@ public class MessageListenerServlet extends MessageServletSupport {
 	private int maximumMessages = 100;
 	private Timer clientCleanupTimer = new Timer();
 
+	/** 推送连接每隔这么久写一次心跳, 同时刷新client的访问时间 */
+	private static final long STREAM_HEARTBEAT_MILLIS = 15000;
+	private long maximumStreamTime = 300000;
+	private ThreadPoolExecutor streamExecutor;
+	private final Set<MessageStream> streams = Collections
+			.newSetFromMap(new ConcurrentHashMap<MessageStream, Boolean>());
+
 	public void init() throws ServletException {
 		ServletConfig servletConfig = getServletConfig();
 		String name = servletConfig.getInitParameter("defaultReadTimeout");
@@ -96,7 +121,54 @@ public class MessageListenerServlet extends MessageServletSupport {
 		if (name != null) {
 			maximumMessages = (int) asLong(name);
 		}
-		clientCleanupTimer.schedule(new ClientCleaner(), 5000, 120000);
+		// 每轮清理间隔内依次清理所有分片, 每次只扫描一个分片
+		long sweepPeriod = Math.max(1000, 120000 / ClientSource.getRegistry().getShardCount());
+		clientCleanupTimer.schedule(new ClientCleaner(), 5000, sweepPeriod);
+
+		name = servletConfig.getInitParameter("maximumStreamTime");
+		if (name != null) {
+			maximumStreamTime = asLong(name);
+		}
+		name = servletConfig.getInitParameter("streamThreads");
+		int streamThreads = name != null ? (int) asLong(name) : 4;
+		final AtomicInteger threadIndex = new AtomicInteger();
+		streamExecutor = new ThreadPoolExecutor(streamThreads, streamThreads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "amq-stream-" + threadIndex.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		clientCleanupTimer.schedule(new StreamHeartbeat(), STREAM_HEARTBEAT_MILLIS, STREAM_HEARTBEAT_MILLIS);
+	}
+
+	public void init(ServletConfig servletConfig) throws ServletException {
+		super.init(servletConfig);
+		// 连接工厂在父类init中创建, 共享订阅只能在这之后启动
+		if (asBoolean(servletConfig.getInitParameter("multiplexSubscriptions"))) {
+			String wildcard = servletConfig.getInitParameter("multiplexDestination");
+			String capacity = servletConfig.getInitParameter("mailboxCapacity");
+			try {
+				MailboxDispatcher.start(
+						(ConnectionFactory) getServletContext().getAttribute(AmqConsumer.CONNECTION_FACTORY_ATTRIBUTE),
+						wildcard != null ? wildcard : MailboxDispatcher.DEFAULT_DESTINATION,
+						capacity != null ? (int) asLong(capacity) : MailboxDispatcher.DEFAULT_MAILBOX_CAPACITY);
+			} catch (JMSException e) {
+				throw new ServletException("start multiplexed subscription failed", e);
+			}
+		}
+	}
+
+	public void destroy() {
+		clientCleanupTimer.cancel();
+		for (MessageStream stream : streams) {
+			stream.close();
+		}
+		streamExecutor.shutdown();
+		MailboxDispatcher.stop();
+		super.destroy();
 	}
 
 	/**
@@ -194,7 +266,23 @@ public class MessageListenerServlet extends MessageServletSupport {
 
 					messages++;
 
-					if (AmqMsgType.LISTEN.equals(type)) {
+					MailboxDispatcher dispatcher = MailboxDispatcher.get();
+					boolean multiplexed = dispatcher != null && dispatcher.accepts(destination);
+
+					if (AmqMsgType.LISTEN.equals(type) && multiplexed) {
+						client.closeConsumer(destination);
+						dispatcher.subscribe(client, destination, message);
+						// 订阅成功后才算在线, 否则发给该用户的消息既不进离线存储也收不到
+						client.listenUser(destination, message, destinationName);
+						facetimeLogger.info("Subscribed mailbox to " + destination + " id=" + message + " client="
+								+ client);
+					} else if (AmqMsgType.UNLISTEN.equals(type) && multiplexed) {
+						client.unlistenUser(destination);
+						dispatcher.unsubscribe(client, destination);
+						if (facetimeLogger.isDebugEnabled()) {
+							facetimeLogger.debug("Unsubscribed mailbox from " + destination);
+						}
+					} else if (AmqMsgType.LISTEN.equals(type)) {
 						AjaxListener listener = client.getListener();
 						Map<MessageAvailableConsumer, String> consumerIdMap = client.getIdMap();
 						Map<MessageAvailableConsumer, String> consumerDestinationNameMap = client
@@ -207,9 +295,12 @@ public class MessageListenerServlet extends MessageServletSupport {
 						consumer.setAvailableListener(listener);
 						consumerIdMap.put(consumer, message);
 						consumerDestinationNameMap.put(consumer, destinationName);
+						client.listenUser(destination, message, destinationName);
 						facetimeLogger.info("Subscribed: " + consumer + " to " + destination + " id=" + message
 								+ " client=" + client);
 					} else if (AmqMsgType.UNLISTEN.equals(type)) {
+						// 先标记离线, 关闭consumer后到达的消息进离线存储
+						client.unlistenUser(destination);
 						Map<MessageAvailableConsumer, String> consumerIdMap = client.getIdMap();
 						Map<MessageAvailableConsumer, String> consumerDestinationNameMap = client
 								.getDestinationNameMap();
@@ -265,13 +356,69 @@ public class MessageListenerServlet extends MessageServletSupport {
 
 			client.extractToken(request);
 
-			doMessages(client, request, response);
+			if (isStreamRequest(request)) {
+				doStream(client, request, response);
+			} else {
+				doMessages(client, request, response);
+			}
 		} catch (JMSException e) {
 			response.getWriter().write("JMS problem: " + e);
 			throw new ServletException("JMS problem: " + e, e);
 		}
 	}
 
+	/**
+	 * 客户端通过Accept: text/event-stream或transport=sse参数请求推送连接, 其他请求仍走长轮询
+	 */
+	protected boolean isStreamRequest(HttpServletRequest request) {
+		String accept = request.getHeader("Accept");
+		return (accept != null && accept.indexOf("text/event-stream") >= 0)
+				|| "sse".equals(request.getParameter("transport"));
+	}
+
+	/**
+	 * 打开Server-Sent Events推送连接. 响应挂起后不再重新分派请求, 消息到达时由推送线程直接写入,
+	 * 连接在maximumStreamTime后结束, 客户端重新连接
+	 */
+	protected void doStream(AjaxWebClient client, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		Continuation continuation = ContinuationSupport.getContinuation(request);
+		if (continuation.isExpired()) {// 推送连接已到期
+			return;
+		}
+
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("text/event-stream;charset=UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.setHeader(ParamKey.SERVER_ID, client.getServerProxyId());
+		PrintWriter writer = response.getWriter();
+		// 浏览器断开后按这个间隔(ms)重连
+		writer.write("retry: 3000\n\n");
+		writer.flush();
+
+		continuation.setTimeout(maximumStreamTime);
+		continuation.suspend(response);
+
+		final MessageStream stream = new MessageStream(this, client, getEncoder(request), continuation, writer,
+				streamExecutor);
+		streams.add(stream);
+		continuation.addContinuationListener(new ContinuationListener() {
+			@Override
+			public void onComplete(Continuation continuation) {
+				streams.remove(stream);
+			}
+
+			@Override
+			public void onTimeout(Continuation continuation) {
+				streams.remove(stream);
+			}
+		});
+		client.getListener().setStream(stream);
+
+		// 连接建立前已到达的消息
+		stream.wake();
+	}
+
 	/**
 	 * Reads a message from a destination up to some specific timeout period
 	 * 
@@ -297,12 +444,21 @@ public class MessageListenerServlet extends MessageServletSupport {
 
 			MessageAvailableConsumer consumer = (MessageAvailableConsumer) request.getAttribute("consumer");
 
+			// 多路复用订阅的消息已在信箱中, 先取信箱, 不访问broker
+			Mailbox mailbox = client.peekMailbox();
+			Mailbox.Delivery delivery = null;
+			if (message == null && mailbox != null) {
+				delivery = mailbox.poll();
+			}
+			// 离线期间保存的消息在重新订阅后的第一次请求中返回
+			boolean offline = message == null && delivery == null && hasOfflineMessages(client);
+
 			/**
 			 * message 为空代表请求第一次发起或continuation 超时发起，不为空代表这一请求为
 			 * {@link Continuation#suspend()}之后 {@link Continuation#resume()}
 			 * 发起并且有新消息到达
 			 */
-			if (message == null) {
+			if (message == null && delivery == null && !offline) {
 				// Look for a message that is ready to go
 				for (int i = 0; message == null && i < consumers.size(); i++) {
 					consumer = (MessageAvailableConsumer) consumers.get(i);
@@ -317,24 +473,19 @@ public class MessageListenerServlet extends MessageServletSupport {
 			}
 
 			// prepare the response
-			response.setContentType("text/xml;charset=UTF-8");
+			ResponseEncoder encoder = getEncoder(request);
+			response.setContentType(encoder.getContentType());
 			response.setHeader("Cache-Control", "no-cache");
 			response.setHeader(ParamKey.SERVER_ID, client.getServerProxyId());
 
-			if (message == null) {
+			if (message == null && delivery == null && !offline) {
 				Continuation continuation = ContinuationSupport.getContinuation(request);
 
 				if (continuation.isExpired() || timeout == 0) {
 					response.setStatus(HttpServletResponse.SC_OK);
-					StringWriter swriter = new StringWriter();
-					PrintWriter writer = new PrintWriter(swriter);
-					writer.println("<ajax-response>");
-					writer.print("</ajax-response>");
-
-					writer.flush();
-					String m = swriter.toString();
-					response.getWriter().println(m);
-
+					Writer writer = response.getWriter();
+					encoder.begin(writer);
+					encoder.end(writer);
 					return;
 				}
 
@@ -347,76 +498,167 @@ public class MessageListenerServlet extends MessageServletSupport {
 				// register this continuation with our listener.
 				listener.setContinuation(continuation);
 
+				// 挂起前到达信箱的消息不会再触发listener
+				if (mailbox != null && !mailbox.isEmpty()) {
+					continuation.resume();
+				}
+
 				return;
 			}
 
-			StringWriter swriter = new StringWriter();
-			PrintWriter writer = new PrintWriter(swriter);
-
-			Map<MessageAvailableConsumer, String> consumerIdMap = client.getIdMap();
-			Map<MessageAvailableConsumer, String> consumerDestinationNameMap = client.getDestinationNameMap();
+			// 直接写入响应缓冲区, 不再先拼成字符串
+			Writer writer = response.getWriter();
 			response.setStatus(HttpServletResponse.SC_OK);
-			writer.println("<ajax-response>");
+			encoder.begin(writer);
 
 			// Send any message we already have
 			if (message != null) {
-				String id = consumerIdMap.get(consumer);
-				String destinationName = consumerDestinationNameMap.get(consumer);
-				writeMessageResponse(writer, message, id, destinationName);
+				String id = client.getIdMap().get(consumer);
+				String destinationName = client.getDestinationNameMap().get(consumer);
+				messages = encodeLive(encoder, writer, messages, message, id, destinationName);
+			}
 
-				messages++;
+			// Send the message already taken from the mailbox
+			if (delivery != null) {
+				messages = encodeLive(encoder, writer, messages, delivery.getMessage(), delivery.getId(),
+						delivery.getDestinationName());
 			}
 
 			// Send the rest of the messages
+			Map<Long, Long> offlineSequences = new HashMap<Long, Long>(4);
+			writePendingMessages(client, encoder, writer, messages, offlineSequences);
+
+			encoder.end(writer);
+			// 响应写出后才取走离线消息, flush失败时下次请求重新返回
+			response.flushBuffer();
+			commitOfflineMessages(offlineSequences);
+		}
+	}
+
+	/**
+	 * 请求参数format=json时使用JSON批量格式, 否则使用原有的XML格式
+	 */
+	protected ResponseEncoder getEncoder(HttpServletRequest request) {
+		return "json".equals(request.getParameter("format")) ? JsonResponseEncoder.INSTANCE
+				: XmlResponseEncoder.INSTANCE;
+	}
+
+	/**
+	 * 写出client信箱和consumer中已到达的消息, 直到本次响应的消息数达到maximumMessages
+	 *
+	 * @param messages
+	 *            本次响应已写出的消息数
+	 * @param offlineSequences
+	 *            写出的离线消息, 用户id -> 最后一条的序号, 响应送出后交给{@link #commitOfflineMessages(Map)}
+	 * @return 写出后的消息总数
+	 */
+	protected int writePendingMessages(AjaxWebClient client, ResponseEncoder encoder, Writer writer, int messages,
+			Map<Long, Long> offlineSequences) throws JMSException, IOException {
+		synchronized (client) {
+			messages = writeOfflineMessages(client, encoder, writer, messages, offlineSequences);
+
+			Mailbox mailbox = client.peekMailbox();
+			while (mailbox != null && messages < maximumMessages) {
+				Mailbox.Delivery delivery = mailbox.poll();
+				if (delivery == null) {
+					break;
+				}
+				messages = encodeLive(encoder, writer, messages, delivery.getMessage(), delivery.getId(),
+						delivery.getDestinationName());
+			}
+
+			List<MessageConsumer> consumers = client.getConsumers();
+			Map<MessageAvailableConsumer, String> consumerIdMap = client.getIdMap();
+			Map<MessageAvailableConsumer, String> consumerDestinationNameMap = client.getDestinationNameMap();
 			for (int i = 0; i < consumers.size() && messages < maximumMessages; i++) {
-				consumer = (MessageAvailableConsumer) consumers.get(i);
+				MessageAvailableConsumer consumer = (MessageAvailableConsumer) consumers.get(i);
 				if (consumer.getAvailableListener() == null) {
 					continue;
 				}
 
 				// Look for any available messages
 				while (messages < maximumMessages) {
-					message = consumer.receiveNoWait();
+					Message message = consumer.receiveNoWait();
 					if (message == null) {
 						break;
 					}
-					messages++;
 					String id = consumerIdMap.get(consumer);
 					String destinationName = consumerDestinationNameMap.get(consumer);
-					writeMessageResponse(writer, message, id, destinationName);
+					messages = encodeLive(encoder, writer, messages, message, id, destinationName);
 				}
 			}
+			return messages;
+		}
+	}
 
-			writer.print("</ajax-response>");
+	/**
+	 * 写出一条从topic实时收到的消息. 消息同时保存在本节点的离线存储中, 且已经从离线存储写出过时不再写出
+	 *
+	 * @return 写出后的消息总数
+	 */
+	private int encodeLive(ResponseEncoder encoder, Writer writer, int messages, Message message, String id,
+			String destinationName) throws JMSException, IOException {
+		OfflineMessageStore store = OfflineMessageStore.get();
+		if (store != null && store.getStoreId().equals(message.getStringProperty(AmqProducer.OFFLINE_STORE_PROPERTY))) {
+			long receiver = OfflineMessageStore.receiverOf(message.getJMSDestination());
+			if (receiver >= 0
+					&& !store.deliverLive(receiver, message.getLongProperty(AmqProducer.OFFLINE_SEQUENCE_PROPERTY))) {
+				return messages;
+			}
+		}
+		encoder.encode(writer, messages, message, id, destinationName);
+		return messages + 1;
+	}
 
-			writer.flush();
-			String m = swriter.toString();
-			response.getWriter().println(m);
+	private boolean hasOfflineMessages(AjaxWebClient client) {
+		OfflineMessageStore store = OfflineMessageStore.get();
+		if (store == null) {
+			return false;
 		}
+		for (Long userId : client.getUserIdMap().keySet()) {
+			if (store.hasMessages(userId)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
-	protected void writeMessageResponse(PrintWriter writer, Message message, String id, String destinationName)
-			throws JMSException, IOException {
-		writer.print("<response id='");
-		writer.print(id);
-		writer.print("'");
-		if (destinationName != null) {
-			writer.print(" destination='" + destinationName + "' ");
+	/**
+	 * 写出client订阅的用户在离线期间保存的消息, 按原来的订阅id和目的地写出. 消息此时还没有取走
+	 */
+	private int writeOfflineMessages(AjaxWebClient client, ResponseEncoder encoder, Writer writer, int messages,
+			Map<Long, Long> offlineSequences) throws JMSException, IOException {
+		OfflineMessageStore store = OfflineMessageStore.get();
+		if (store == null) {
+			return messages;
 		}
-		writer.print(">");
-		if (message instanceof TextMessage) {
-			TextMessage textMsg = (TextMessage) message;
-			String txt = textMsg.getText();
-			if (txt.startsWith("<?")) {
-				txt = txt.substring(txt.indexOf("?>") + 2);
+		for (Map.Entry<Long, String> user : client.getUserIdMap().entrySet()) {
+			if (messages >= maximumMessages) {
+				break;
+			}
+			String destinationName = client.getUserDestinationNameMap().get(user.getKey());
+			for (OfflineMessageStore.Pending pending : store.peek(user.getKey(), maximumMessages - messages)) {
+				ActiveMQTextMessage message = new ActiveMQTextMessage();
+				message.setText(pending.getText());
+				message.setBooleanProperty(AmqProducer.JSON_BODY_PROPERTY, true);
+				encoder.encode(writer, messages++, message, user.getValue(), destinationName);
+				offlineSequences.put(user.getKey(), pending.getSequence());
 			}
-			writer.print(txt);
-		} else if (message instanceof ObjectMessage) {
-			ObjectMessage objectMsg = (ObjectMessage) message;
-			Object object = objectMsg.getObject();
-			writer.print(object.toString());
 		}
-		writer.println("</response>");
+		return messages;
+	}
+
+	/**
+	 * 响应已送出后取走其中的离线消息
+	 */
+	void commitOfflineMessages(Map<Long, Long> offlineSequences) {
+		if (offlineSequences.isEmpty()) {
+			return;
+		}
+		OfflineMessageStore store = OfflineMessageStore.get();
+		for (Map.Entry<Long, Long> sequence : offlineSequences.entrySet()) {
+			store.commit(sequence.getKey(), sequence.getValue());
+		}
 	}
 
 	/**
@@ -437,30 +679,32 @@ public class MessageListenerServlet extends MessageServletSupport {
 	}
 
 	/*
-	 * an instance of this class runs every minute (started in init), to clean
-	 * up old web clients & free resources.
+	 * keeps open streams alive and closes the ones whose client has gone.
+	 * the writes run on streamExecutor, a stalled client never delays this timer or the ClientCleaner.
 	 */
-	private class ClientCleaner extends TimerTask {
+	private class StreamHeartbeat extends TimerTask {
 		public void run() {
-			HashMap<String, AjaxWebClient> ajaxWebClients = ClientSource.getAjaxWebClients();
-
-			synchronized (ajaxWebClients) {
-				Iterator<Entry<String, AjaxWebClient>> it = ajaxWebClients.entrySet().iterator();
-				while (it.hasNext()) {
-					Map.Entry<String, AjaxWebClient> e = (Map.Entry<String, AjaxWebClient>) it.next();
-					String key = e.getKey();
-					AjaxWebClient client = e.getValue();
-
-					synchronized (client) {
-						// close an expired client and remove it from the
-						// ajaxWebClients hash.
-						if (client.closeIfExpired()) {
-							facetimeLogger.debug("Removing expired AjaxWebClient " + key);
-							it.remove();
-						}
-					}
+			for (MessageStream stream : streams) {
+				if (stream.isClosed()) {
+					streams.remove(stream);
+				} else {
+					stream.scheduleHeartbeat();
 				}
 			}
 		}
 	}
+
+	/*
+	 * an instance of this class runs periodically (started in init), to clean
+	 * up old web clients & free resources, one registry shard per run.
+	 */
+	private class ClientCleaner extends TimerTask {
+		public void run() {
+			try {
+				ClientSource.getRegistry().sweepNext();
+			} catch (RuntimeException e) {
+				facetimeLogger.warn("clean up expired AjaxWebClient failed", e);
+			}
+		}
+	}
 }
@@ -133,7 +133,8 @@ public abstract class MessageServletSupport extends HttpServlet {
 			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) iter.next();
 			String name = (String) entry.getKey();
 			if (!destinationParameter.equals(name) && !typeParameter.equals(name) && !bodyParameter.equals(name)
-					&& !"JMSDeliveryMode".equals(name) && !"JMSPriority".equals(name) && !"JMSTimeToLive".equals(name)) {
+					&& !"JMSDeliveryMode".equals(name) && !"JMSPriority".equals(name) && !"JMSTimeToLive".equals(name)
+					&& !name.startsWith("facetime")) {// 客户端不能设置AmqProducer的内部属性, 例如把任意消息体标记为JSON原样输出
 				Object value = entry.getValue();
 				if (value instanceof Object[]) {
 					Object[] array = (Object[]) value;
@@ -0,0 +1,191 @@
+package com.facetime.communication.activemq;
+
+import static com.facetime.core.conf.SysLogger.facetimeLogger;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jms.JMSException;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+
+/**
+ * 一个client的Server-Sent Events推送连接. 连接在挂起的continuation上一直保持打开,
+ * {@link AjaxListener}收到新消息时唤醒本对象, 由推送线程把消息写成事件后立即flush, 客户端不需要重新发起请求.
+ * <p>
+ * 每条事件的data是与长轮询格式相同的一次完整响应, 客户端可以复用原来的解析代码.
+ */
+public class MessageStream implements Runnable {
+
+	private final MessageListenerServlet servlet;
+	private final AjaxWebClient client;
+	private final ResponseEncoder encoder;
+	private final Continuation continuation;
+	private final PrintWriter out;
+	private final Executor executor;
+	/** 已提交推送任务尚未执行, 多次唤醒合并为一次推送 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	/** 已提交心跳任务尚未执行, 客户端卡住时心跳不会在线程池中堆积 */
+	private final AtomicBoolean heartbeatScheduled = new AtomicBoolean();
+	private volatile boolean closed;
+
+	MessageStream(MessageListenerServlet servlet, AjaxWebClient client, ResponseEncoder encoder,
+			Continuation continuation, PrintWriter out, Executor executor) {
+		this.servlet = servlet;
+		this.client = client;
+		this.encoder = encoder;
+		this.continuation = continuation;
+		this.out = out;
+		this.executor = executor;
+		continuation.addContinuationListener(new ContinuationListener() {
+			@Override
+			public void onComplete(Continuation continuation) {
+				closed = true;
+			}
+
+			@Override
+			public void onTimeout(Continuation continuation) {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * 有新消息时调用, 不在调用线程中写响应
+	 */
+	public void wake() {
+		if (closed || !scheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException e) {
+			scheduled.set(false);
+			facetimeLogger.warn("message stream push rejected, client=" + client);
+		}
+	}
+
+	@Override
+	public void run() {
+		scheduled.set(false);
+		if (closed) {
+			return;
+		}
+		StringWriter buffer = new StringWriter();
+		Map<Long, Long> offlineSequences = new HashMap<Long, Long>(4);
+		try {
+			// 同一连接的推送依次执行, 避免两次推送读出同样的离线消息. writePendingMessages只在读消息时锁住client,
+			// 写socket时不持有client的锁, 客户端卡住不会阻塞注册表和清理线程
+			synchronized (this) {
+				encoder.begin(buffer);
+				int count = servlet.writePendingMessages(client, encoder, buffer, 0, offlineSequences);
+				encoder.end(buffer);
+				if (count > 0 && write(toEvent(buffer.toString()))) {
+					servlet.commitOfflineMessages(offlineSequences);
+				}
+			}
+		} catch (JMSException e) {
+			facetimeLogger.warn("read messages for stream failed, client=" + client, e);
+		} catch (IOException e) {
+			facetimeLogger.warn("write message stream failed, client=" + client, e);
+		}
+	}
+
+	/**
+	 * 定时器线程调用, 心跳在推送线程池中写出, 定时器线程不做阻塞的socket写
+	 */
+	void scheduleHeartbeat() {
+		if (closed || !heartbeatScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					heartbeatScheduled.set(false);
+					heartbeat();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			heartbeatScheduled.set(false);
+			facetimeLogger.warn("message stream heartbeat rejected, client=" + client);
+		}
+	}
+
+	/**
+	 * 写一行注释保持连接, 写失败说明客户端已断开
+	 */
+	private void heartbeat() {
+		client.updateLastAccessed();
+		write(": ping\n\n");
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return 写入并flush成功时返回true
+	 */
+	private boolean write(String event) {
+		synchronized (out) {
+			if (closed) {
+				return false;
+			}
+			out.write(event);
+			out.flush();
+			if (out.checkError()) {
+				close();
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 结束推送连接并从listener上注销, 客户端收到连接结束后重新连接或退回长轮询
+	 */
+	void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		client.getListener().removeStream(this);
+		try {
+			continuation.complete();
+		} catch (IllegalStateException e) {
+			// continuation已结束
+		}
+	}
+
+	/**
+	 * 把一次响应转换为一个message事件, data中不能有换行, 每行单独加前缀
+	 */
+	static String toEvent(String responses) {
+		StringBuilder event = new StringBuilder(responses.length() + 32);
+		event.append("event: message\n");
+		int start = 0;
+		while (start < responses.length()) {
+			int end = responses.indexOf('\n', start);
+			if (end < 0) {
+				end = responses.length();
+			}
+			String line = responses.substring(start, end);
+			if (line.endsWith("\r")) {
+				line = line.substring(0, line.length() - 1);
+			}
+			if (line.length() > 0) {
+				event.append("data: ").append(line).append('\n');
+			}
+			start = end + 1;
+		}
+		return event.append('\n').toString();
+	}
+}
@@ -0,0 +1,688 @@
+package com.facetime.communication.activemq;
+
+import static com.facetime.core.conf.SysLogger.facetimeLogger;
+
+import com.facetime.core.conf.ConfigUtils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Destination;
+
+import org.apache.activemq.command.ActiveMQTopic;
+
+/**
+ * 本节点的离线消息存储. 接收者在本节点没有订阅自己的topic时, 发给他的消息追加到磁盘日志, 他重新订阅后第一次取消息时一并返回.
+ * <p>
+ * 日志由固定大小的内存映射文件段组成, 只追加不修改. 内存中只保存每个接收者未取走消息的位置, 取走后追加一条确认记录.
+ * 后台线程定期把映射内容刷到磁盘, 并压缩最老的段: 仍有效的消息复制到当前段后删除整个段.
+ * <p>
+ * 记录格式: 记录总长度(int), 类型(byte), 接收者(long), 序号(long), 内容(UTF-8). 确认记录没有内容, 序号表示该接收者已取走到哪条消息.
+ * 长度为0表示段中后面没有记录. 压缩复制的消息保留原序号, 确认记录只会引用同一段或更老段中的消息,
+ * 因此只压缩最老的段就不会让已取走的消息在重启后重新出现.
+ * <p>
+ * 在线状态只看本节点的订阅. 保存的消息仍然发送到topic, 带上本存储的id和序号, 本节点的client实时收到时取走对应的离线消息,
+ * 已经从离线存储收到的不再写出; 在其他节点实时收到, 之后又从本节点重放的, 由客户端按messageId去重. 未配置offline_store_dir时不启用.
+ *
+ * @author yang
+ */
+public class OfflineMessageStore {
+
+	/** 用户topic的前缀, 与{@link AmqProducer}发送的目的地一致 */
+	public static final String USER_DESTINATION_PREFIX = "conlect.oatOS.";
+
+	private static final String STORE_DIR = ConfigUtils.getProperty("offline_store_dir", "");
+	/** 每个段文件的大小 */
+	private static final int SEGMENT_SIZE = Integer.parseInt(ConfigUtils.getProperty("offline_segment_size",
+			16 * 1024 * 1024));
+	/** 每个接收者最多保存的离线消息数, 超过后丢弃最早的 */
+	private static final int MAX_PER_RECEIVER = Integer.parseInt(ConfigUtils.getProperty("offline_max_per_receiver",
+			1000));
+	/** 把映射内容刷到磁盘的间隔 */
+	private static final long FORCE_MILLIS = Long.parseLong(ConfigUtils.getProperty("offline_force_millis", 1000));
+	private static final long COMPACT_MILLIS = 30000;
+	/** 最老的段中有效内容低于这个比例, 或除当前段外超过COMPACT_SEGMENTS个段时压缩 */
+	private static final double COMPACT_RATIO = 0.5;
+	private static final int COMPACT_SEGMENTS = 4;
+
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final byte TYPE_MESSAGE = 1;
+	private static final byte TYPE_ACK = 2;
+	/** 长度 + 类型 + 接收者 + 序号 */
+	private static final int HEADER_SIZE = 4 + 1 + 8 + 8;
+
+	/**
+	 * 一个段文件
+	 */
+	private static class Segment {
+		final int id;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		/** 下一条记录的写入位置 */
+		int writePosition;
+		/** 未取走消息占用的字节数 */
+		int liveBytes;
+
+		Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		}
+
+		void close() {
+			try {
+				// 映射在buffer被回收时才释放, Linux下不影响删除文件
+				raf.close();
+			} catch (IOException e) {
+				facetimeLogger.warn("close offline segment " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * 一条未取走的消息在日志中的位置
+	 */
+	private static class Entry {
+		final long sequence;
+		Segment segment;
+		int offset;
+		final int length;
+		/** 已经实时送达, 重放时跳过, 前面的消息取走后一起确认 */
+		boolean delivered;
+
+		Entry(long sequence, Segment segment, int offset, int length) {
+			this.sequence = sequence;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * 读出但还没取走的一条离线消息
+	 */
+	public static class Pending {
+		private final long sequence;
+		private final String text;
+
+		Pending(long sequence, String text) {
+			this.sequence = sequence;
+			this.text = text;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public String getText() {
+			return text;
+		}
+	}
+
+	private static class InstanceHolder {
+		static final OfflineMessageStore INSTANCE = open();
+	}
+
+	/**
+	 * @return 未配置offline_store_dir或打开失败时为<tt>null</tt>
+	 */
+	public static OfflineMessageStore get() {
+		return InstanceHolder.INSTANCE;
+	}
+
+	private static OfflineMessageStore open() {
+		if (STORE_DIR.length() == 0) {
+			return null;
+		}
+		try {
+			OfflineMessageStore store = new OfflineMessageStore(new File(STORE_DIR));
+			store.startMaintenance();
+			return store;
+		} catch (IOException e) {
+			facetimeLogger.error("open offline message store " + STORE_DIR + " failed, offline messages disabled", e);
+			return null;
+		}
+	}
+
+	/**
+	 * 目的地是用户topic时返回用户id, 否则返回-1
+	 */
+	public static long receiverOf(Destination destination) {
+		if (!(destination instanceof ActiveMQTopic)) {
+			return -1;
+		}
+		String name = ((ActiveMQTopic) destination).getPhysicalName();
+		if (!name.startsWith(USER_DESTINATION_PREFIX)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(USER_DESTINATION_PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** 每次打开时生成, 标识消息的序号属于哪个存储 */
+	private final String storeId = UUID.randomUUID().toString();
+	private final File directory;
+	/** 段id -> 段, 按id从老到新排列 */
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private Segment active;
+	/** 接收者 -> 未取走的消息, 按序号排列 */
+	private final Map<Long, LinkedList<Entry>> index = new HashMap<Long, LinkedList<Entry>>();
+	private long nextSequence = 1;
+	/** 接收者 -> 从离线存储写出并取走的最大序号 */
+	private final Map<Long, Long> replayed = new HashMap<Long, Long>();
+	private int pendingCount;
+	/** 接收者 -> 本节点订阅其topic的client数, 修改时锁住自身 */
+	private final Map<Long, Integer> listeners = new ConcurrentHashMap<Long, Integer>();
+	private Timer timer;
+
+	private final AtomicLong appended = new AtomicLong();
+	private final AtomicLong drained = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong compactions = new AtomicLong();
+
+	OfflineMessageStore(File directory) throws IOException {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("can not create directory " + directory);
+		}
+		recover();
+	}
+
+	private void startMaintenance() {
+		timer = new Timer("offline-store", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				force();
+			}
+		}, FORCE_MILLIS, FORCE_MILLIS);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (IOException e) {
+					facetimeLogger.error("compact offline message store", e);
+				}
+			}
+		}, COMPACT_MILLIS, COMPACT_MILLIS);
+	}
+
+	/**
+	 * 本节点有client订阅了接收者的topic
+	 */
+	public void online(long receiver) {
+		synchronized (listeners) {
+			Integer count = listeners.get(receiver);
+			listeners.put(receiver, count == null ? 1 : count + 1);
+		}
+	}
+
+	/**
+	 * 订阅接收者topic的client取消订阅或关闭
+	 */
+	public void offline(long receiver) {
+		synchronized (listeners) {
+			Integer count = listeners.get(receiver);
+			if (count == null || count <= 1) {
+				listeners.remove(receiver);
+			} else {
+				listeners.put(receiver, count - 1);
+			}
+		}
+	}
+
+	/**
+	 * 发送时调用, 不加锁
+	 */
+	public boolean isOnline(long receiver) {
+		return listeners.containsKey(receiver);
+	}
+
+	/**
+	 * 接收者在本节点不在线时保存消息. 与{@link #online(long)}互斥, 接收者同时上线时上线后{@link #hasMessages(long)}能看到这条消息.
+	 * 调用者仍然要把消息发送到topic, 并带上{@link #getStoreId()}和返回的序号, 以便{@link #deliverLive(long, long)}去重
+	 *
+	 * @return 保存的序号, 在线或没有保存时返回0
+	 */
+	public long appendIfOffline(long receiver, String text) {
+		synchronized (listeners) {
+			return listeners.containsKey(receiver) ? 0 : append(receiver, text);
+		}
+	}
+
+	/**
+	 * 保存发给接收者的一条消息
+	 *
+	 * @param text
+	 *            与发送到MQ的TextMessage相同的内容
+	 * @return 保存的序号, 消息超过段大小或写入失败时返回0
+	 */
+	public synchronized long append(long receiver, String text) {
+		byte[] bytes;
+		try {
+			bytes = text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		int length = HEADER_SIZE + bytes.length;
+		if (length > SEGMENT_SIZE) {
+			facetimeLogger.warn("offline message to " + receiver + " is too large, length=" + length);
+			return 0;
+		}
+		try {
+			long sequence = nextSequence++;
+			Segment segment = ensureSpace(length);
+			int offset = write(segment, TYPE_MESSAGE, receiver, sequence, bytes);
+			segment.liveBytes += length;
+
+			LinkedList<Entry> entries = index.get(receiver);
+			if (entries == null) {
+				entries = new LinkedList<Entry>();
+				index.put(receiver, entries);
+			}
+			entries.add(new Entry(sequence, segment, offset, length));
+			pendingCount++;
+			appended.incrementAndGet();
+
+			if (entries.size() > MAX_PER_RECEIVER) {
+				Entry oldest = entries.getFirst();
+				acknowledge(receiver, entries, 1);
+				dropped.incrementAndGet();
+				facetimeLogger.warn("too many offline messages to " + receiver + ", drop sequence " + oldest.sequence);
+				acknowledgeDelivered(receiver, entries);
+			}
+			return sequence;
+		} catch (IOException e) {
+			facetimeLogger.error("append offline message to " + receiver, e);
+			return 0;
+		}
+	}
+
+	/**
+	 * 本节点的client实时收到一条已保存的消息时调用. 消息还没从离线存储取走时标记为已送达, 不再重放
+	 *
+	 * @return 应该实时写出时返回true; 已经从离线存储写出过时返回false
+	 */
+	public synchronized boolean deliverLive(long receiver, long sequence) {
+		LinkedList<Entry> entries = index.get(receiver);
+		if (entries == null) {
+			return !isReplayed(receiver, sequence);
+		}
+		for (Entry entry : entries) {
+			if (entry.sequence == sequence) {
+				if (entry.delivered) {
+					return false;
+				}
+				entry.delivered = true;
+				try {
+					acknowledgeDelivered(receiver, entries);
+				} catch (IOException e) {
+					facetimeLogger.error("acknowledge offline messages to " + receiver, e);
+				}
+				return true;
+			}
+			if (entry.sequence > sequence) {
+				break;
+			}
+		}
+		// 不在索引中: 已经从离线存储取走, 或者超过每个接收者的上限被丢弃
+		return !isReplayed(receiver, sequence);
+	}
+
+	private boolean isReplayed(long receiver, long sequence) {
+		Long replayedSequence = replayed.get(receiver);
+		return replayedSequence != null && sequence <= replayedSequence.longValue();
+	}
+
+	/**
+	 * 存储的id, 与序号一起放在发送到topic的消息中
+	 */
+	public String getStoreId() {
+		return storeId;
+	}
+
+	public synchronized boolean hasMessages(long receiver) {
+		return index.containsKey(receiver);
+	}
+
+	/**
+	 * 按发送顺序读出接收者最多max条离线消息, 不取走. 消息写给客户端后再调用{@link #commit(long, long)}
+	 */
+	public synchronized List<Pending> peek(long receiver, int max) {
+		LinkedList<Entry> entries = index.get(receiver);
+		if (entries == null || max <= 0) {
+			return Collections.emptyList();
+		}
+		List<Pending> pendings = new ArrayList<Pending>(Math.min(max, entries.size()));
+		for (Iterator<Entry> it = entries.iterator(); it.hasNext() && pendings.size() < max;) {
+			Entry entry = it.next();
+			if (!entry.delivered) {
+				pendings.add(new Pending(entry.sequence, read(entry)));
+			}
+		}
+		return pendings;
+	}
+
+	/**
+	 * 取走接收者序号不大于sequence的消息. 同一接收者的多个client可能读出了相同的消息, 已取走的不再重复确认
+	 */
+	public synchronized void commit(long receiver, long sequence) {
+		if (!isReplayed(receiver, sequence)) {
+			replayed.put(receiver, sequence);
+		}
+		LinkedList<Entry> entries = index.get(receiver);
+		if (entries == null) {
+			return;
+		}
+		int count = 0;
+		for (Iterator<Entry> it = entries.iterator(); it.hasNext() && it.next().sequence <= sequence;) {
+			count++;
+		}
+		if (count == 0) {
+			return;
+		}
+		try {
+			acknowledge(receiver, entries, count);
+			drained.addAndGet(count);
+			acknowledgeDelivered(receiver, entries);
+		} catch (IOException e) {
+			// 确认记录没写入, 重启后这些消息会再投递一次
+			facetimeLogger.error("acknowledge offline messages to " + receiver, e);
+		}
+	}
+
+	/**
+	 * 取走排在最前面的已实时送达的消息, 否则它们会让{@link #hasMessages(long)}一直为true
+	 */
+	private void acknowledgeDelivered(long receiver, LinkedList<Entry> entries) throws IOException {
+		int count = 0;
+		for (Iterator<Entry> it = entries.iterator(); it.hasNext() && it.next().delivered;) {
+			count++;
+		}
+		if (count > 0) {
+			acknowledge(receiver, entries, count);
+			drained.addAndGet(count);
+		}
+	}
+
+	/**
+	 * 从索引中移除最早的count条消息, 并写一条确认记录
+	 */
+	private void acknowledge(long receiver, LinkedList<Entry> entries, int count) throws IOException {
+		long sequence = 0;
+		for (int i = 0; i < count; i++) {
+			Entry entry = entries.removeFirst();
+			entry.segment.liveBytes -= entry.length;
+			sequence = entry.sequence;
+			pendingCount--;
+		}
+		if (entries.isEmpty()) {
+			index.remove(receiver);
+		}
+		write(ensureSpace(HEADER_SIZE), TYPE_ACK, receiver, sequence, null);
+	}
+
+	private String read(Entry entry) {
+		try {
+			return new String(readContent(entry), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private byte[] readContent(Entry entry) {
+		byte[] bytes = new byte[entry.length - HEADER_SIZE];
+		// 读写都用绝对位置或副本, 不改变共享buffer的position
+		ByteBuffer buffer = entry.segment.buffer.duplicate();
+		buffer.position(entry.offset + HEADER_SIZE);
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * 写入一条记录, 长度最后写入, 写了一半的记录在恢复时被当作段的结尾
+	 *
+	 * @return 记录在段中的位置
+	 */
+	private int write(Segment segment, byte type, long receiver, long sequence, byte[] content) {
+		int offset = segment.writePosition;
+		int length = HEADER_SIZE + (content == null ? 0 : content.length);
+		MappedByteBuffer buffer = segment.buffer;
+		buffer.put(offset + 4, type);
+		buffer.putLong(offset + 5, receiver);
+		buffer.putLong(offset + 13, sequence);
+		if (content != null) {
+			ByteBuffer body = buffer.duplicate();
+			body.position(offset + HEADER_SIZE);
+			body.put(content);
+		}
+		buffer.putInt(offset, length);
+		segment.writePosition = offset + length;
+		return offset;
+	}
+
+	/**
+	 * 当前段放不下时开始一个新段
+	 */
+	private Segment ensureSpace(int length) throws IOException {
+		// 段尾至少留4个字节的0作为结束标记
+		if (active == null || active.writePosition + length + 4 > SEGMENT_SIZE) {
+			if (active != null) {
+				active.buffer.force();
+			}
+			int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+			active = new Segment(id, segmentFile(id));
+			segments.put(id, active);
+		}
+		return active;
+	}
+
+	private File segmentFile(int id) {
+		return new File(directory, String.format("%08d", id) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * 把当前段刷到磁盘, 写满的段在切换时已刷过
+	 */
+	public synchronized void force() {
+		if (active != null) {
+			active.buffer.force();
+		}
+	}
+
+	/**
+	 * 压缩最老的段, 直到最老的段的有效内容足够多. 每次只处理开始时已写满的段, 复制产生的新段留到下一次
+	 */
+	synchronized void compact() throws IOException {
+		if (active == null) {
+			return;
+		}
+		int sealed = active.id;
+		while (segments.firstKey() < sealed) {
+			Segment oldest = segments.firstEntry().getValue();
+			boolean tooMany = segments.size() - 1 > COMPACT_SEGMENTS;
+			if (oldest.liveBytes > 0 && !tooMany && oldest.liveBytes >= oldest.writePosition * COMPACT_RATIO) {
+				return;
+			}
+			int moved = 0;
+			for (Map.Entry<Long, LinkedList<Entry>> receiver : index.entrySet()) {
+				for (Entry entry : receiver.getValue()) {
+					if (entry.segment != oldest) {
+						continue;
+					}
+					byte[] content = readContent(entry);
+					Segment segment = ensureSpace(entry.length);
+					entry.offset = write(segment, TYPE_MESSAGE, receiver.getKey(), entry.sequence, content);
+					entry.segment = segment;
+					segment.liveBytes += entry.length;
+					moved++;
+				}
+			}
+			// 复制的消息落盘后才能删除旧段, 中途崩溃时重启会多出重复消息, 不会丢失
+			segments.remove(oldest.id);
+			for (Segment segment : segments.values()) {
+				segment.buffer.force();
+			}
+			oldest.close();
+			if (!oldest.file.delete()) {
+				facetimeLogger.warn("can not delete offline segment " + oldest.file);
+			}
+			compactions.incrementAndGet();
+			facetimeLogger.info("compacted offline segment " + oldest.id + ", moved " + moved + " message(s)");
+		}
+	}
+
+	/**
+	 * 启动时按顺序扫描所有段, 重建索引
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+
+		Map<Long, Long> acknowledged = new HashMap<Long, Long>();
+		Map<Long, List<Entry>> messages = new HashMap<Long, List<Entry>>();
+		for (File file : files) {
+			int id;
+			try {
+				id = Integer.parseInt(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			Segment segment = new Segment(id, file);
+			segments.put(id, segment);
+			MappedByteBuffer buffer = segment.buffer;
+			int offset = 0;
+			while (offset + HEADER_SIZE <= SEGMENT_SIZE) {
+				int length = buffer.getInt(offset);
+				if (length < HEADER_SIZE || offset + length > SEGMENT_SIZE) {
+					break;
+				}
+				byte type = buffer.get(offset + 4);
+				long receiver = buffer.getLong(offset + 5);
+				long sequence = buffer.getLong(offset + 13);
+				if (type == TYPE_MESSAGE) {
+					List<Entry> entries = messages.get(receiver);
+					if (entries == null) {
+						entries = new ArrayList<Entry>();
+						messages.put(receiver, entries);
+					}
+					entries.add(new Entry(sequence, segment, offset, length));
+				} else if (type == TYPE_ACK) {
+					Long last = acknowledged.get(receiver);
+					if (last == null || last < sequence) {
+						acknowledged.put(receiver, sequence);
+					}
+				}
+				nextSequence = Math.max(nextSequence, sequence + 1);
+				offset += length;
+			}
+			segment.writePosition = offset;
+		}
+		active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+
+		Comparator<Entry> bySequence = new Comparator<Entry>() {
+			@Override
+			public int compare(Entry o1, Entry o2) {
+				return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+			}
+		};
+		for (Map.Entry<Long, List<Entry>> receiver : messages.entrySet()) {
+			Long last = acknowledged.get(receiver.getKey());
+			LinkedList<Entry> live = new LinkedList<Entry>();
+			long previous = -1;
+			Collections.sort(receiver.getValue(), bySequence);
+			for (Entry entry : receiver.getValue()) {
+				// 压缩中途崩溃时同一序号可能出现两次
+				if ((last == null || entry.sequence > last) && entry.sequence != previous) {
+					live.add(entry);
+					entry.segment.liveBytes += entry.length;
+				}
+				previous = entry.sequence;
+			}
+			if (!live.isEmpty()) {
+				index.put(receiver.getKey(), live);
+				pendingCount += live.size();
+			}
+		}
+		facetimeLogger.info("offline message store " + directory + " recovered, segments=" + segments.size()
+				+ " pending=" + pendingCount);
+	}
+
+	/**
+	 * 停止后台任务并关闭所有段
+	 */
+	public synchronized void close() {
+		if (timer != null) {
+			timer.cancel();
+		}
+		force();
+		for (Segment segment : segments.values()) {
+			segment.close();
+		}
+		segments.clear();
+		index.clear();
+		active = null;
+	}
+
+	/**
+	 * 未取走的离线消息数
+	 */
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	public long getAppendedCount() {
+		return appended.get();
+	}
+
+	public long getDrainedCount() {
+		return drained.get();
+	}
+
+	/**
+	 * 超过每个接收者上限被丢弃的消息数
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getCompactionCount() {
+		return compactions.get();
+	}
+}
@@ -0,0 +1,451 @@
+package com.facetime.communication.activemq;
+
+import static com.facetime.core.conf.SysLogger.facetimeLogger;
+
+import com.facetime.communication.bean.MessageDTO;
+import com.facetime.communication.bean.MessageType;
+import com.facetime.communication.bean.SimpleUserInfoDTO;
+import com.facetime.communication.bean.SimpleUserInfosDTO;
+import com.facetime.core.bean.UserToken;
+import com.facetime.core.collection.LongObjectMap;
+import com.facetime.core.collection.LongSet;
+import com.facetime.core.conf.ConfigUtils;
+import com.facetime.core.http.ErrorType;
+import com.facetime.core.http.HttpConstants;
+import com.facetime.core.http.HttpSender;
+import com.facetime.core.http.PojoMapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 用户上下线处理. 订阅了自己topic的client和过期的client只把token放入有界队列, 由一个后台线程按批处理: 同一token
+ * 在等待处理期间只保留最后一次事件, 一批事件按最后一次到达的顺序处理, 每个用户以最后一次事件为准.
+ * 一批下线token并发校验是否最后有效, 上线和确认下线的用户并发查询在线的好友和同事,
+ * 再按接收者合并, 每个接收者每批只收到一条{@link MessageType#PresenceChange}消息, 列出这一批中上线和下线的联系人.
+ * <p>
+ * 网络抖动导致大量client同时过期时, 不再为每个client启动一个线程.
+ *
+ * @author yang
+ */
+public class PresenceProcessor {
+
+	private static final int QUEUE_SIZE = Integer.parseInt(ConfigUtils.getProperty("presence_queue_size", 20000));
+	/** 每批最多处理的token数 */
+	private static final int BATCH_SIZE = Integer.parseInt(ConfigUtils.getProperty("presence_batch_size", 200));
+	/** 凑一批的最长等待时间 */
+	private static final long BATCH_WINDOW_MILLIS = Long.parseLong(ConfigUtils.getProperty("presence_batch_millis",
+			500));
+	/** 同时进行的token校验请求数, 应小于HttpSender每个地址的并发上限 */
+	private static final int CHECK_PARALLELISM = Integer.parseInt(ConfigUtils.getProperty("presence_check_parallelism",
+			32));
+	private static final long CHECK_TIMEOUT_SECONDS = 15;
+
+	/**
+	 * 一次上线或下线, sequence为到达顺序
+	 */
+	private static final class PresenceEvent {
+		final String token;
+		final boolean online;
+		final long sequence;
+
+		PresenceEvent(String token, boolean online, long sequence) {
+			this.token = token;
+			this.online = online;
+			this.sequence = sequence;
+		}
+	}
+
+	private static final Comparator<PresenceEvent> ARRIVAL_ORDER = new Comparator<PresenceEvent>() {
+		@Override
+		public int compare(PresenceEvent o1, PresenceEvent o2) {
+			return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+		}
+	};
+
+	/**
+	 * 一个接收者在一批中收到的上线和下线的联系人
+	 */
+	private static final class PresenceChanges {
+		final LongSet online = new LongSet();
+		final LongSet offline = new LongSet();
+
+		void add(long userId, boolean isOnline) {
+			if (isOnline) {
+				offline.remove(userId);
+				online.add(userId);
+			} else {
+				online.remove(userId);
+				offline.add(userId);
+			}
+		}
+	}
+
+	private static class InstanceHolder {
+		static final PresenceProcessor INSTANCE = new PresenceProcessor();
+	}
+
+	public static PresenceProcessor get() {
+		return InstanceHolder.INSTANCE;
+	}
+
+	/** 等待处理的token, 每个token在队列中最多出现一次 */
+	private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>(QUEUE_SIZE);
+	/** 等待处理的token -> 该token最后一次事件 */
+	private final ConcurrentMap<String, PresenceEvent> pending = new ConcurrentHashMap<String, PresenceEvent>();
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong deduplicated = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong signedIn = new AtomicLong();
+	private final AtomicLong signedOut = new AtomicLong();
+	private final AtomicLong checkFailed = new AtomicLong();
+	private final AtomicLong lookupFailed = new AtomicLong();
+	private final AtomicLong notified = new AtomicLong();
+
+	private final HttpSender proxy = HttpSender.get();
+
+	private PresenceProcessor() {
+		Thread worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				processLoop();
+			}
+		}, "presence-processor");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * client订阅了用户topic时调用, 不阻塞调用线程. 同一token已在等待处理时替换为本次事件
+	 */
+	public void signIn(String token) {
+		submit(token, true);
+	}
+
+	/**
+	 * client过期时调用, 不阻塞调用线程. 同一token已在等待处理时替换为本次事件
+	 */
+	public void signOut(String token) {
+		submit(token, false);
+	}
+
+	private void submit(String token, boolean online) {
+		if (token == null) {
+			return;
+		}
+		submitted.incrementAndGet();
+		PresenceEvent event = new PresenceEvent(token, online, sequence.incrementAndGet());
+		// token已在队列中, 处理时取最后一次事件
+		if (pending.put(token, event) != null) {
+			deduplicated.incrementAndGet();
+			return;
+		}
+		if (!queue.offer(token)) {
+			// 期间被替换的事件一起丢弃, 否则token不在队列中却一直留在pending里
+			pending.remove(token);
+			dropped.incrementAndGet();
+			facetimeLogger.warn("presence backlog is full, drop " + (online ? "sign-in" : "sign-out") + " token "
+					+ token);
+		}
+	}
+
+	private void processLoop() {
+		List<String> batch = new ArrayList<String>(BATCH_SIZE);
+		List<PresenceEvent> events = new ArrayList<PresenceEvent>(BATCH_SIZE);
+		while (true) {
+			try {
+				String first = queue.take();
+				batch.add(first);
+				long deadline = System.currentTimeMillis() + BATCH_WINDOW_MILLIS;
+				while (batch.size() < BATCH_SIZE) {
+					long wait = deadline - System.currentTimeMillis();
+					String next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				// 取出后处理期间同一token再次上线或过期时重新排队
+				for (String token : batch) {
+					PresenceEvent event = pending.remove(token);
+					if (event != null) {
+						events.add(event);
+					}
+				}
+				Collections.sort(events, ARRIVAL_ORDER);
+				process(events);
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				facetimeLogger.error("process presence batch", e);
+			} finally {
+				processed.addAndGet(batch.size());
+				batch.clear();
+				events.clear();
+			}
+		}
+	}
+
+	/**
+	 * events按到达顺序排列. 用户最后一次是上线时通知上线; 最后是下线时校验之后的下线token,
+	 * 确认下线时通知下线, 否则(用户还有其他有效token)同一批中上线过的仍通知上线
+	 */
+	private void process(List<PresenceEvent> events) throws InterruptedException {
+		// 上线的用户 -> token, 同一用户只查一次联系人
+		LongObjectMap<UserToken> signIns = new LongObjectMap<UserToken>();
+		// 用户 -> 最后一次上线之后的下线token
+		LongObjectMap<List<String>> userSignOuts = new LongObjectMap<List<String>>();
+		for (PresenceEvent event : events) {
+			UserToken clientToken;
+			try {
+				clientToken = new UserToken(event.token);
+			} catch (Exception e) {
+				continue;
+			}
+			long userId = clientToken.getUserId();
+			if (event.online) {
+				signIns.put(userId, clientToken);
+				userSignOuts.remove(userId);
+				continue;
+			}
+			List<String> tokens = userSignOuts.get(userId);
+			if (tokens == null) {
+				tokens = new ArrayList<String>(1);
+				userSignOuts.put(userId, tokens);
+			}
+			tokens.add(event.token);
+		}
+		List<String> signOuts = new ArrayList<String>();
+		for (List<String> tokens : userSignOuts.values()) {
+			signOuts.addAll(tokens);
+		}
+
+		// 下线的用户 -> token, 校验为最后有效token的才算下线
+		LongObjectMap<UserToken> leaves = new LongObjectMap<UserToken>();
+		for (int from = 0; from < signOuts.size(); from += CHECK_PARALLELISM) {
+			collectLeaves(signOuts.subList(from, Math.min(signOuts.size(), from + CHECK_PARALLELISM)), leaves);
+		}
+		for (LongObjectMap.Entry<UserToken> leave : leaves.entries()) {
+			signIns.remove(leave.key);
+		}
+		signedIn.addAndGet(signIns.size());
+
+		// 接收者 -> 同一批内上线和下线的联系人
+		LongObjectMap<PresenceChanges> changes = new LongObjectMap<PresenceChanges>();
+		collectChanges(signIns, true, changes);
+		collectChanges(leaves, false, changes);
+
+		Date now = new Date();
+		for (LongObjectMap.Entry<PresenceChanges> change : changes.entries()) {
+			Map<String, List<Long>> body = new LinkedHashMap<String, List<Long>>();
+			body.put("online", toList(change.value.online));
+			body.put("offline", toList(change.value.offline));
+			// send message(type : PresenceChange) inform user's buddies and colleagues
+			MessageDTO messageDTO = new MessageDTO();
+			messageDTO.setReceiver(change.key);
+			messageDTO.setMessageType(MessageType.PresenceChange);
+			messageDTO.setMessageBody(PojoMapper.toJson(body));
+			messageDTO.setSendDate(now);
+			AmqProducer.getInstance().sendMessage(messageDTO);
+			notified.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 并发校验一组下线token, 确认下线的用户加入leaves
+	 */
+	private void collectLeaves(List<String> tokens, LongObjectMap<UserToken> leaves) throws InterruptedException {
+		Map<String, Future<String>> checks = new LinkedHashMap<String, Future<String>>();
+		for (String token : tokens) {
+			Future<String> check = AjaxWebClient.checkTokenAsync(token, null);
+			if (check != null) {
+				checks.put(token, check);
+			}
+		}
+
+		for (Map.Entry<String, Future<String>> check : checks.entrySet()) {
+			if (!Boolean.valueOf(await(check.getValue(), "check token, token=" + check.getKey(), checkFailed))) {
+				continue;
+			}
+			UserToken clientToken;
+			try {
+				clientToken = new UserToken(check.getKey());
+			} catch (Exception e) {
+				continue;
+			}
+			signedOut.incrementAndGet();
+			facetimeLogger.info("client token=" + clientToken + " signed out");
+			leaves.put(clientToken.getUserId(), clientToken);
+		}
+	}
+
+	/**
+	 * 每次并发查询CHECK_PARALLELISM个上线或下线的用户的在线联系人, 把变化加入changes
+	 */
+	private void collectChanges(LongObjectMap<UserToken> users, boolean online, LongObjectMap<PresenceChanges> changes)
+			throws InterruptedException {
+		List<UserToken> tokens = new ArrayList<UserToken>(users.size());
+		for (UserToken token : users.values()) {
+			tokens.add(token);
+		}
+		for (int from = 0; from < tokens.size(); from += CHECK_PARALLELISM) {
+			collectChanges(tokens.subList(from, Math.min(tokens.size(), from + CHECK_PARALLELISM)), online, changes);
+		}
+	}
+
+	private void collectChanges(List<UserToken> users, boolean online, LongObjectMap<PresenceChanges> changes)
+			throws InterruptedException {
+		LongObjectMap<Future<String>> lookups = new LongObjectMap<Future<String>>();
+		for (UserToken user : users) {
+			lookups.put(user.getUserId(), proxy.postAsync(user.getUserTokenStr(),
+					AjaxWebClient.cloudServiceUrl(HttpConstants.getOnlineBuddyAndColleague), user.getUserIdStr(),
+					null));
+		}
+
+		for (LongObjectMap.Entry<Future<String>> lookup : lookups.entries()) {
+			long userId = lookup.key;
+			String usersJson = await(lookup.value, "find contacts, user=" + userId, lookupFailed);
+			List<SimpleUserInfoDTO> contacts;
+			try {
+				contacts = parseContacts(usersJson);
+			} catch (RuntimeException e) {// 一个用户查不到联系人不影响同一批的其他用户
+				lookupFailed.incrementAndGet();
+				facetimeLogger.error("find contacts failed, user=" + userId, e);
+				continue;
+			}
+			for (SimpleUserInfoDTO userInfo : contacts) {
+				PresenceChanges received = changes.get(userInfo.getUserId());
+				if (received == null) {
+					received = new PresenceChanges();
+					changes.put(userInfo.getUserId(), received);
+				}
+				received.add(userId, online);
+			}
+		}
+	}
+
+	private static List<Long> toList(LongSet set) {
+		List<Long> list = new ArrayList<Long>(set.size());
+		LongSet.LongSetIterator keys = set.iterator();
+		while (keys.hasNext()) {
+			list.add(keys.next());
+		}
+		return list;
+	}
+
+	/**
+	 * 等待一个异步请求, 失败或超时时计入failures并返回<tt>null</tt>
+	 */
+	private String await(Future<String> request, String description, AtomicLong failures)
+			throws InterruptedException {
+		try {
+			return request.get(CHECK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			failures.incrementAndGet();
+			facetimeLogger.warn(description + " failed", e.getCause());
+		} catch (TimeoutException e) {
+			request.cancel(true);
+			failures.incrementAndGet();
+			facetimeLogger.warn(description + " timeout");
+		}
+		return null;
+	}
+
+	/**
+	 * 下线用户的在线好友和同事, 请求已失败时为空
+	 *
+	 * @throws IllegalArgumentException
+	 *             响应不是联系人列表
+	 */
+	private List<SimpleUserInfoDTO> parseContacts(String usersJson) {
+		if (usersJson == null) {
+			return Collections.emptyList();
+		}
+		if (ErrorType.ERR_404.equals(usersJson) || ErrorType.ERR_500.equals(usersJson)) {
+			throw new IllegalArgumentException(usersJson);
+		}
+		SimpleUserInfosDTO userInfosDTO = PojoMapper.getObject(usersJson, SimpleUserInfosDTO.class);
+		if (userInfosDTO == null || userInfosDTO.getUserList() == null) {
+			return Collections.emptyList();
+		}
+		return userInfosDTO.getUserList();
+	}
+
+	/**
+	 * 等待处理的token数
+	 */
+	public int getBacklog() {
+		return queue.size();
+	}
+
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	/**
+	 * 因同一token已在等待处理而合并的次数
+	 */
+	public long getDeduplicatedCount() {
+		return deduplicated.get();
+	}
+
+	/**
+	 * 队列已满被丢弃的token数
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getProcessedCount() {
+		return processed.get();
+	}
+
+	/**
+	 * 通知了上线的用户数, 同一批中又确认下线的不算
+	 */
+	public long getSignedInCount() {
+		return signedIn.get();
+	}
+
+	/**
+	 * 校验为最后有效token, 确认下线的用户数
+	 */
+	public long getSignedOutCount() {
+		return signedOut.get();
+	}
+
+	public long getCheckFailedCount() {
+		return checkFailed.get();
+	}
+
+	/**
+	 * 查询联系人失败的用户数
+	 */
+	public long getLookupFailedCount() {
+		return lookupFailed.get();
+	}
+
+	/**
+	 * 已发送的上下线通知数, 每个接收者每批一条
+	 */
+	public long getNotifiedCount() {
+		return notified.get();
+	}
+}
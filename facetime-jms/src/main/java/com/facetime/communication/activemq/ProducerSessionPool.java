@@ -0,0 +1,205 @@
+package com.facetime.communication.activemq;
+
+import static com.facetime.core.conf.SysLogger.facetimeLogger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * 发送消息用的JMS Session池. JMS的Session和MessageProducer不是线程安全的,
+ * 每个发送线程从池中借出一组独占使用, 用完归还.
+ * <p>
+ * 池中最多创建maxSessions组, 全部借出时等待其他线程归还或丢弃.
+ */
+class ProducerSessionPool {
+
+	/**
+	 * 一个Session和在其上创建的匿名MessageProducer
+	 */
+	static class PooledSession {
+		final Connection connection;
+		final Session session;
+		final MessageProducer producer;
+
+		PooledSession(Connection connection, Session session, MessageProducer producer) {
+			this.connection = connection;
+			this.session = session;
+			this.producer = producer;
+		}
+
+		void close() {
+			try {
+				producer.close();
+				session.close();
+			} catch (JMSException e) {
+				facetimeLogger.debug("close producer session failed", e);
+			}
+		}
+	}
+
+	private final int maxSessions;
+	/** 空闲的Session和已创建的数量由lock保护, 归还或丢弃时唤醒等待的线程 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final Deque<PooledSession> idle = new ArrayDeque<PooledSession>();
+	private int created;
+
+	ProducerSessionPool(int maxSessions) {
+		this.maxSessions = Math.max(1, maxSessions);
+	}
+
+	/**
+	 * 借出一组Session, 池中没有空闲且已达上限时最多等待waitMillis毫秒.
+	 * 等待期间有Session归还时取走, 有Session被丢弃空出名额时新建
+	 *
+	 * @throws JMSException
+	 *             创建Session失败或等待超时
+	 */
+	PooledSession borrow(Connection connection, long waitMillis) throws JMSException {
+		List<PooledSession> stale = new ArrayList<PooledSession>();
+		PooledSession pooled = null;
+		boolean create = false;
+		lock.lock();
+		try {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+			while (true) {
+				pooled = pollValid(connection, stale);
+				if (pooled != null) {
+					break;
+				}
+				if (created < maxSessions) {
+					created++;
+					create = true;
+					break;
+				}
+				if (remaining <= 0) {
+					break;
+				}
+				try {
+					remaining = available.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		} finally {
+			lock.unlock();
+			for (PooledSession session : stale) {
+				session.close();
+			}
+		}
+		if (pooled != null) {
+			return pooled;
+		}
+		if (!create) {
+			throw new JMSException("no idle producer session in " + waitMillis + "ms, pool size " + maxSessions);
+		}
+		try {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(null);
+			producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+			return new PooledSession(connection, session, producer);
+		} catch (JMSException e) {
+			freeSlot();
+			throw e;
+		}
+	}
+
+	/**
+	 * 取出一个当前连接上的空闲Session, 连接已重建时旧连接上的Session不能再用, 放入stale并空出名额. 调用时持有lock
+	 */
+	private PooledSession pollValid(Connection connection, List<PooledSession> stale) {
+		PooledSession pooled;
+		while ((pooled = idle.poll()) != null) {
+			if (pooled.connection == connection) {
+				return pooled;
+			}
+			created--;
+			stale.add(pooled);
+		}
+		return null;
+	}
+
+	/**
+	 * 归还正常使用的Session
+	 */
+	void release(PooledSession pooled) {
+		lock.lock();
+		try {
+			idle.offer(pooled);
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 发送出错的Session不再放回池中
+	 */
+	void discard(PooledSession pooled) {
+		freeSlot();
+		pooled.close();
+	}
+
+	private void freeSlot() {
+		lock.lock();
+		try {
+			created--;
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 关闭所有空闲的Session, 连接断开重建时调用
+	 */
+	void clear() {
+		List<PooledSession> closing = new ArrayList<PooledSession>();
+		lock.lock();
+		try {
+			closing.addAll(idle);
+			idle.clear();
+			created -= closing.size();
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (PooledSession pooled : closing) {
+			pooled.close();
+		}
+	}
+
+	int getIdleCount() {
+		lock.lock();
+		try {
+			return idle.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int getCreatedCount() {
+		lock.lock();
+		try {
+			return created;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int getMaxSessions() {
+		return maxSessions;
+	}
+}
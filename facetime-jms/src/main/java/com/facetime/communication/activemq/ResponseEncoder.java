@@ -0,0 +1,33 @@
+package com.facetime.communication.activemq;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * 把一批消息编码后直接写入响应, 不再先拼成字符串再复制.
+ * <p>
+ * 一次响应的调用顺序为{@link #begin}, 每条消息一次{@link #encode}, 最后{@link #end}. 实现必须是无状态的, 可被多个请求共用.
+ */
+public interface ResponseEncoder {
+
+	/**
+	 * 响应的Content-Type
+	 */
+	String getContentType();
+
+	void begin(Writer out) throws IOException;
+
+	/**
+	 * @param index
+	 *            本次响应中的消息序号, 从0开始
+	 * @param id
+	 *            订阅时客户端指定的id
+	 */
+	void encode(Writer out, int index, Message message, String id, String destinationName) throws JMSException,
+			IOException;
+
+	void end(Writer out) throws IOException;
+}
@@ -1,9 +1,20 @@
 package com.facetime.communication.activemq;
 
+import com.facetime.core.conf.ConfigUtils;
+import com.facetime.core.http.HttpSender;
+import com.facetime.core.http.RouteStats;
+
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.jms.MessageConsumer;
 import javax.servlet.ServletException;
@@ -11,12 +22,19 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.http.pool.PoolStats;
+
 /**
  * Servlet implementation class StatisticsServlet
  */
 public class StatisticsServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
 
+	private static final long TOKEN_CHECK_TIMEOUT_SECONDS = 10;
+	/** 同时校验的token数, 要小于http_async_max_per_route, 否则超出的请求会被直接拒绝 */
+	private static final int TOKEN_CHECK_PARALLELISM = Integer.parseInt(ConfigUtils.getProperty(
+			"statistics_token_check_parallelism", 32));
+
 	/**
 	 * @see HttpServlet#HttpServlet()
 	 */
@@ -36,6 +54,72 @@ public class StatisticsServlet extends HttpServlet {
 		writer.println("table td{border:1px solid gray;}");
 		writer.println("</style>");
 
+		ClientRegistry registry = ClientSource.getRegistry();
+		writer.println("<table>");
+		writer.println("<tbody>");
+		writer.println("<tr><td>active clients</td><td>" + registry.getActiveCount() + "</td></tr>");
+		writer.println("<tr><td>registered clients</td><td>" + registry.getRegisteredCount() + "</td></tr>");
+		writer.println("<tr><td>evicted clients</td><td>" + registry.getEvictedCount() + "</td></tr>");
+		writer.println("<tr><td>registry contention</td><td>" + registry.getContendedCount() + "</td></tr>");
+		writer.println("<tr><td>shard sweeps</td><td>" + registry.getSweepCount() + " (" + registry.getShardCount()
+				+ " shards)</td></tr>");
+		MailboxDispatcher dispatcher = MailboxDispatcher.get();
+		if (dispatcher != null) {
+			writer.println("<tr><td>multiplexed received</td><td>" + dispatcher.getReceivedCount() + "</td></tr>");
+			writer.println("<tr><td>multiplexed dispatched</td><td>" + dispatcher.getDispatchedCount() + "</td></tr>");
+			writer.println("<tr><td>multiplexed unrouted</td><td>" + dispatcher.getUnroutedCount() + "</td></tr>");
+			writer.println("<tr><td>mailbox destinations</td><td>" + dispatcher.getRouteCount() + "</td></tr>");
+		}
+		PresenceProcessor presence = PresenceProcessor.get();
+		writer.println("<tr><td>presence backlog</td><td>" + presence.getBacklog() + "</td></tr>");
+		writer.println("<tr><td>presence submitted/deduplicated/dropped</td><td>" + presence.getSubmittedCount() + "/"
+				+ presence.getDeduplicatedCount() + "/" + presence.getDroppedCount() + "</td></tr>");
+		writer.println("<tr><td>presence processed/signed in/signed out/check failed</td><td>"
+				+ presence.getProcessedCount() + "/" + presence.getSignedInCount() + "/" + presence.getSignedOutCount()
+				+ "/" + presence.getCheckFailedCount() + "</td></tr>");
+		writer.println("<tr><td>presence contact lookups failed/notifications</td><td>"
+				+ presence.getLookupFailedCount() + "/" + presence.getNotifiedCount() + "</td></tr>");
+		OfflineMessageStore offlineStore = OfflineMessageStore.get();
+		if (offlineStore != null) {
+			writer.println("<tr><td>offline pending/segments</td><td>" + offlineStore.getPendingCount() + "/"
+					+ offlineStore.getSegmentCount() + "</td></tr>");
+			writer.println("<tr><td>offline appended/drained/dropped</td><td>" + offlineStore.getAppendedCount() + "/"
+					+ offlineStore.getDrainedCount() + "/" + offlineStore.getDroppedCount() + "</td></tr>");
+			writer.println("<tr><td>offline compactions</td><td>" + offlineStore.getCompactionCount() + "</td></tr>");
+		}
+		writer.println("</tbody>");
+		writer.println("</table>");
+
+		HttpSender sender = HttpSender.get();
+		PoolStats pool = sender.getPoolStats();
+		writer.println("<table>");
+		writer.println("<tbody>");
+		writer.println("<tr><td>http pool leased/available/pending/max</td><td>" + pool.getLeased() + "/"
+				+ pool.getAvailable() + "/" + pool.getPending() + "/" + pool.getMax() + "</td></tr>");
+		writer.println("<tr><td>http async active/queued</td><td>" + sender.getAsyncActiveCount() + "/"
+				+ sender.getAsyncQueueDepth() + "</td></tr>");
+		for (RouteStats route : sender.getRouteStats()) {
+			writer.print("<tr><td>" + route.getRoute() + "</td><td>");
+			writer.print("in flight " + route.getInFlight() + "/" + route.getMaxInFlight() + ", ok "
+					+ route.getSucceededCount() + ", failed " + route.getFailedCount() + ", rejected "
+					+ route.getRejectedCount() + ", retried " + route.getRetriedCount()
+					+ (route.isOpen() ? ", circuit open" : "") + String.format(", avg %.1f ms", route.getAverageMillis())
+					+ "</br>");
+			long[] histogram = route.getHistogram();
+			for (int i = 0; i < histogram.length; i++) {
+				writer.print(i < RouteStats.LATENCY_BUCKETS.length ? "&lt;=" + RouteStats.LATENCY_BUCKETS[i] : "&gt;"
+						+ RouteStats.LATENCY_BUCKETS[i - 1]);
+				writer.print("ms: " + histogram[i] + " ");
+			}
+			writer.println("</td></tr>");
+		}
+		writer.println("</tbody>");
+		writer.println("</table>");
+
+		// 先分批并发校验所有token, 再逐行输出
+		List<Entry<String, AjaxWebClient>> clients = registry.snapshot();
+		Map<AjaxWebClient, String> tokenStates = checkTokens(clients);
+
 		writer.println("<table>");
 		writer.println("<tbody>");
 
@@ -43,53 +127,101 @@ public class StatisticsServlet extends HttpServlet {
 		writer.println("<td>clientId</td><td>token</td><td>token is the last effective</td><td>subscribe destination(s)</td><td>message consumer(s)</td>");
 		writer.println("</tr>");
 
-		Map<String, AjaxWebClient> clientsMap = ClientSource.getAjaxWebClients();
-		synchronized (clientsMap) {
-			for (Entry<String, AjaxWebClient> entry : clientsMap.entrySet()) {
-				writer.println("<tr>");
-
-				// clientId
-				writer.println("<td>");
-				writer.print(entry.getKey());
-				writer.println("</td>");
-
-				AjaxWebClient client = entry.getValue();
-				synchronized (client) {
-					// token
-					writer.println("<td>");
-					writer.print(client.getToken());
-					writer.println("</td>");
-
-					// token is the last effective
-					writer.println("<td>");
-					writer.print(AjaxWebClient.checkToken(client.getToken()));
-					writer.println("</td>");
-
-					// destinations
-					writer.println("<td>");
-					for (String destination : client.getDestinationNameMap().values()) {
-						writer.print(destination);
-						writer.print("</br>");
-					}
-					writer.println("</td>");
-
-					// consumers
-					writer.println("<td>");
-					for (MessageConsumer consumer : client.getConsumers()) {
-						writer.print(consumer);
-						writer.print("</br>");
-					}
-					writer.println("</td>");
-
-					writer.println("</tr>");
+		// 遍历注册表快照, 不阻塞客户端的注册和清理
+		for (Entry<String, AjaxWebClient> entry : clients) {
+			writer.println("<tr>");
+
+			// clientId
+			writer.println("<td>");
+			writer.print(entry.getKey());
+			writer.println("</td>");
+
+			AjaxWebClient client = entry.getValue();
+			String token;
+			List<String> destinations;
+			List<MessageConsumer> consumers;
+			synchronized (client) {// 只在复制client状态时持有锁, 校验token的远程调用在锁外进行
+				if (registry.get(entry.getKey()) != client) {// 取快照后已被清理关闭
+					writer.println("<td colspan=\"4\">expired</td></tr>");
+					continue;
 				}
+				token = client.getToken();
+				destinations = new ArrayList<String>(client.getDestinationNameMap().values());
+				consumers = new ArrayList<MessageConsumer>(client.getConsumers());
+			}
+
+			// token
+			writer.println("<td>");
+			writer.print(token);
+			writer.println("</td>");
+
+			// token is the last effective
+			writer.println("<td>");
+			writer.print(tokenStates.get(client));
+			writer.println("</td>");
+
+			// destinations
+			writer.println("<td>");
+			for (String destination : destinations) {
+				writer.print(destination);
+				writer.print("</br>");
+			}
+			writer.println("</td>");
+
+			// consumers
+			writer.println("<td>");
+			for (MessageConsumer consumer : consumers) {
+				writer.print(consumer);
+				writer.print("</br>");
 			}
+			writer.println("</td>");
+
+			writer.println("</tr>");
 		}
 
 		writer.println("</tbody>");
 		writer.println("</table>");
 	}
 
+	/**
+	 * 每次最多提交 TOKEN_CHECK_PARALLELISM 个校验, 等这一批结束再提交下一批
+	 *
+	 * @return client到"true"/"false"/"unknown"的映射
+	 */
+	private static Map<AjaxWebClient, String> checkTokens(List<Entry<String, AjaxWebClient>> clients) {
+		Map<AjaxWebClient, String> states = new HashMap<AjaxWebClient, String>();
+		for (int from = 0; from < clients.size(); from += TOKEN_CHECK_PARALLELISM) {
+			List<Entry<String, AjaxWebClient>> window = clients.subList(from,
+					Math.min(clients.size(), from + TOKEN_CHECK_PARALLELISM));
+			Map<AjaxWebClient, Future<String>> checks = new HashMap<AjaxWebClient, Future<String>>();
+			for (Entry<String, AjaxWebClient> entry : window) {
+				Future<String> check = AjaxWebClient.checkTokenAsync(entry.getValue().getToken(), null);
+				if (check == null) {// token格式不对
+					states.put(entry.getValue(), "false");
+				} else {
+					checks.put(entry.getValue(), check);
+				}
+			}
+			for (Entry<AjaxWebClient, Future<String>> check : checks.entrySet()) {
+				states.put(check.getKey(), tokenState(check.getValue()));
+			}
+		}
+		return states;
+	}
+
+	private static String tokenState(Future<String> check) {
+		try {
+			return String.valueOf(Boolean.valueOf(check.get(TOKEN_CHECK_TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// 被限流, 熔断或请求失败, 无法判断
+		} catch (TimeoutException e) {
+			check.cancel(true);
+		}
+		return "unknown";
+	}
+
 	/**
 	 * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse
 	 *      response)
@@ -0,0 +1,58 @@
+package com.facetime.communication.activemq;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.ObjectMessage;
+import javax.jms.TextMessage;
+
+/**
+ * 原有的&lt;ajax-response&gt; XML格式, 默认使用
+ */
+public class XmlResponseEncoder implements ResponseEncoder {
+
+	public static final XmlResponseEncoder INSTANCE = new XmlResponseEncoder();
+
+	@Override
+	public String getContentType() {
+		return "text/xml;charset=UTF-8";
+	}
+
+	@Override
+	public void begin(Writer out) throws IOException {
+		out.write("<ajax-response>\n");
+	}
+
+	@Override
+	public void encode(Writer out, int index, Message message, String id, String destinationName)
+			throws JMSException, IOException {
+		out.write("<response id='");
+		out.write(String.valueOf(id));
+		out.write("'");
+		if (destinationName != null) {
+			out.write(" destination='");
+			out.write(destinationName);
+			out.write("' ");
+		}
+		out.write(">");
+		if (message instanceof TextMessage) {
+			String txt = ((TextMessage) message).getText();
+			if (txt.startsWith("<?")) {
+				int end = txt.indexOf("?>") + 2;
+				out.write(txt, end, txt.length() - end);
+			} else {
+				out.write(txt);
+			}
+		} else if (message instanceof ObjectMessage) {
+			out.write(String.valueOf(((ObjectMessage) message).getObject()));
+		}
+		out.write("</response>\n");
+	}
+
+	@Override
+	public void end(Writer out) throws IOException {
+		out.write("</ajax-response>\n");
+	}
+}
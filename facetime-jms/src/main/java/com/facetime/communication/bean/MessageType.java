@@ -132,6 +132,10 @@ public class MessageType {
 	 * 用户离开
 	 */
 	public static final String UserLeave = "UserLea";
+	/**
+	 * 联系人上下线, 同一批的变化合并为一条消息, 消息体为JSON: {"online":[用户id, ..],"offline":[用户id, ..]}, 用户id是JSON数字
+	 */
+	public static final String PresenceChange = "PresCh";
 	/**
 	 * 用户信息更新
 	 */
@@ -1,10 +1,7 @@
 package com.facetime.communication.servlet;
 
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -20,18 +17,19 @@ import javax.servlet.http.HttpServletResponse;
 public class HTMLAsJSServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
 
-	private Map<String, String> pathToJsMap = new HashMap<String, String>();
+	private final StaticContentCache cache = new StaticContentCache("text/javascript;charset=utf-8",
+			new StaticContentCache.Renderer() {
+				@Override
+				public String render(File file) throws IOException {
+					return TextFileReader.buildJSString(file.getPath());
+				}
+			});
 
 	/**
 	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse
 	 *      response)
 	 */
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		response.setCharacterEncoding("utf-8");
-		response.setContentType("text/javascript");
-
-		PrintWriter writer = response.getWriter();
-
 		String servletPath = request.getServletPath();
 
 		servletPath = servletPath.substring(servletPath.indexOf(TextFileSource.HTML_AS_JS_SERVLET_PREFIX)
@@ -39,24 +37,7 @@ public class HTMLAsJSServlet extends HttpServlet {
 
 		String filePath = getServletContext().getRealPath(servletPath) + request.getPathInfo();
 
-		String content = pathToJsMap.get(filePath);
-
-		if (content == null) {
-			synchronized (pathToJsMap) {
-				try {
-					content = TextFileReader.buildJSString(filePath);
-					pathToJsMap.put(filePath, content);
-				} catch (FileNotFoundException e) {
-					e.printStackTrace();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-		}
-
-		writer.write(content);
-		writer.flush();
-		writer.close();
+		cache.serve(request, response, new File(filePath));
 	}
 
 	/**
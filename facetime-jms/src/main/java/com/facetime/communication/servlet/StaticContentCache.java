@@ -0,0 +1,197 @@
+package com.facetime.communication.servlet;
+
+import static com.facetime.core.conf.SysLogger.facetimeLogger;
+
+import com.facetime.core.resource.URLChangeTracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 由文件生成的静态内容缓存. 内容只生成一次, 保存编码好的UTF-8字节和gzip压缩后的字节, 响应时整块写出.
+ * <p>
+ * 响应带ETag和文件的Last-Modified, 客户端条件请求命中时返回304. 文件修改由{@link URLChangeTracker}检测,
+ * 发现修改时清空缓存重新生成.
+ *
+ * @author jinkerjiang
+ *
+ */
+public class StaticContentCache {
+
+	/**
+	 * 把文件转换为要输出的文本
+	 */
+	public interface Renderer {
+		String render(File file) throws IOException;
+	}
+
+	/**
+	 * 一个文件的缓存内容
+	 */
+	private static class Content {
+		final byte[] bytes;
+		/** 压缩后不比原文小时为<tt>null</tt> */
+		final byte[] gzipBytes;
+		final String etag;
+		/** gzip内容是另一个表示, 用不同的强ETag */
+		final String gzipEtag;
+		final long lastModified;
+
+		Content(byte[] bytes, byte[] gzipBytes, String etag, long lastModified) {
+			this.bytes = bytes;
+			this.gzipBytes = gzipBytes;
+			this.etag = etag;
+			this.gzipEtag = etag.substring(0, etag.length() - 1) + "-gz\"";
+			this.lastModified = lastModified;
+		}
+	}
+
+	/** 两次检查文件修改的最小间隔 */
+	private static final long CHECK_INTERVAL_MILLIS = 2000;
+
+	private final String contentType;
+	private final Renderer renderer;
+	private final ConcurrentMap<String, Content> contents = new ConcurrentHashMap<String, Content>();
+	// 浏览器的If-Modified-Since只精确到秒
+	private final URLChangeTracker tracker = new URLChangeTracker(URLChangeTracker.DEFAULT_CONVERTER, true, false);
+	private volatile long nextCheck;
+	/** 每次清空缓存加一, 在tracker锁内读写 */
+	private int generation;
+
+	public StaticContentCache(String contentType, Renderer renderer) {
+		this.contentType = contentType;
+		this.renderer = renderer;
+	}
+
+	/**
+	 * 输出文件对应的内容, 文件不存在时返回404
+	 */
+	public void serve(HttpServletRequest request, HttpServletResponse response, File file) throws IOException {
+		Content content = get(file);
+		if (content == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		boolean gzip = content.gzipBytes != null && acceptsGzip(request);
+		String etag = gzip ? content.gzipEtag : content.etag;
+		response.setHeader("ETag", etag);
+		response.setDateHeader("Last-Modified", content.lastModified);
+		// 允许缓存, 但每次都要验证
+		response.setHeader("Cache-Control", "no-cache");
+		response.setHeader("Vary", "Accept-Encoding");
+		if (isNotModified(request, etag, content.lastModified)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		response.setContentType(contentType);
+		byte[] body = content.bytes;
+		if (gzip) {
+			response.setHeader("Content-Encoding", "gzip");
+			body = content.gzipBytes;
+		}
+		response.setContentLength(body.length);
+		ServletOutputStream out = response.getOutputStream();
+		out.write(body);
+		out.flush();
+	}
+
+	private Content get(File file) throws IOException {
+		checkForChanges();
+		String path = file.getPath();
+		Content content = contents.get(path);
+		if (content != null) {
+			return content;
+		}
+		if (!file.isFile()) {
+			return null;
+		}
+		// 先登记时间戳再读取, 读取过程中文件被修改时下一次检查会发现
+		long lastModified;
+		int loadGeneration;
+		synchronized (tracker) {
+			lastModified = tracker.add(file.toURI().toURL());
+			loadGeneration = generation;
+		}
+		content = load(file, lastModified);
+		synchronized (tracker) {
+			// 读取期间缓存被清空过, 文件已不在tracker中, 这次的内容不能缓存
+			if (loadGeneration != generation) {
+				return content;
+			}
+			Content existing = contents.putIfAbsent(path, content);
+			return existing != null ? existing : content;
+		}
+	}
+
+	private void checkForChanges() {
+		long now = System.currentTimeMillis();
+		if (now < nextCheck) {
+			return;
+		}
+		synchronized (tracker) {
+			if (now < nextCheck) {
+				return;
+			}
+			nextCheck = now + CHECK_INTERVAL_MILLIS;
+			if (tracker.containsChanges()) {
+				facetimeLogger.info("static content changed, clear " + contents.size() + " cached file(s)");
+				contents.clear();
+				tracker.clear();
+				generation++;
+			}
+		}
+	}
+
+	private Content load(File file, long lastModified) throws IOException {
+		byte[] bytes = renderer.render(file).getBytes("UTF-8");
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 3 + 64);
+		GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+		gzip.write(bytes);
+		gzip.close();
+		byte[] gzipBytes = buffer.size() < bytes.length ? buffer.toByteArray() : null;
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		String etag = "\"" + Long.toHexString(bytes.length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+		return new Content(bytes, gzipBytes, etag, lastModified);
+	}
+
+	private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals(etag) || tag.equals("*")) {
+					return true;
+				}
+			}
+			return false;
+		}
+		try {
+			long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+			return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+		} catch (IllegalArgumentException e) {// 无法解析的日期
+			return false;
+		}
+	}
+
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		return acceptEncoding != null && acceptEncoding.indexOf("gzip") >= 0;
+	}
+}
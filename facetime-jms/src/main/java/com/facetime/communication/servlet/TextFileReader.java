@@ -3,8 +3,9 @@ package com.facetime.communication.servlet;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -41,16 +42,26 @@ public class TextFileReader {
 
 		BufferedReader bufferedReader = null;
 		try {
-			bufferedReader = new BufferedReader(new FileReader(textFile));
+			bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(textFile), "UTF-8"));
 
 			char[] frag = new char[fragSize];
 			int length = 0;
 			while ((length = bufferedReader.read(frag)) != -1) {
-				result.add(new String(frag).substring(0, length));
+				result.add(new String(frag, 0, length));
 			}
 
+		} catch (FileNotFoundException e) {
+			throw e;
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			if (bufferedReader != null) {
+				try {
+					bufferedReader.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
 		}
 
 		return result.toArray(new String[0]);
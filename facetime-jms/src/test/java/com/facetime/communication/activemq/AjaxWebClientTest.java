@@ -0,0 +1,33 @@
+package com.facetime.communication.activemq;
+
+import junit.framework.TestCase;
+
+import com.facetime.core.conf.ConfigUtils;
+import com.facetime.core.http.HttpConstants;
+import com.facetime.core.http.HttpSender;
+
+/**
+ * token校验请求的地址和统计路由
+ */
+public class AjaxWebClientTest extends TestCase {
+
+	public void testCheckTokenUrl() {
+		String base = ConfigUtils.getProperty("cloud_service_url", "http://127.0.0.1:8080");
+		assertEquals(base + HttpConstants.checkToken, AjaxWebClient.checkTokenUrl());
+		assertTrue(AjaxWebClient.checkTokenUrl().endsWith("/pub/checkToken"));
+	}
+
+	public void testCheckTokenRoute() {
+		String route = HttpSender.routeOf(AjaxWebClient.checkTokenUrl());
+		assertFalse(HttpSender.INVALID_ROUTE.equals(route));
+		assertTrue(AjaxWebClient.checkTokenUrl().startsWith(route + "/"));
+		assertEquals("http://127.0.0.1:8080", HttpSender.routeOf("http://127.0.0.1:8080" + HttpConstants.checkToken));
+	}
+
+	public void testTokenIsNotARoute() {
+		// 以前url和token参数位置颠倒, 每个token都成了一个路由
+		assertEquals(HttpSender.INVALID_ROUTE, HttpSender.routeOf("123@abc"));
+		assertEquals(HttpSender.INVALID_ROUTE, HttpSender.routeOf(HttpConstants.checkToken));
+		assertEquals(HttpSender.INVALID_ROUTE, HttpSender.routeOf("not a url"));
+	}
+}
@@ -0,0 +1,353 @@
+package com.facetime.communication.benchmark;
+
+import com.facetime.communication.activemq.ClientSource;
+import com.facetime.communication.activemq.MessageListenerServlet;
+import com.facetime.communication.bean.MessageDTO;
+import com.facetime.communication.bean.MessageType;
+import com.facetime.communication.servlet.SendMessageServlet;
+import com.facetime.core.http.PojoMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * 端到端消息压测. 在同一个JVM中启动内嵌broker(vm://)和Jetty, 部署MessageListenerServlet与SendMessageServlet,
+ * 模拟N个长轮询(或SSE推送)客户端和M个发送者, 输出投递延迟分位数, 每秒消息数, 每个客户端的内存和CPU开销.
+ * <p>
+ * 不是单元测试, 用于比较传输方式和注册表等改动, 运行方式:
+ *
+ * <pre>
+ * mvn -pl facetime-jms test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.facetime.communication.benchmark.MessagingBenchmark \
+ *     -Dbench.clients=200 -Dbench.senders=4 -Dbench.messages=2000
+ * </pre>
+ *
+ * 参数(系统属性):
+ * <dl>
+ * <dt>bench.clients</dt>
+ * <dd>在线客户端数, 默认100</dd>
+ * <dt>bench.senders</dt>
+ * <dd>发送线程数, 默认4</dd>
+ * <dt>bench.messages</dt>
+ * <dd>每个发送线程发送的消息数, 默认1000</dd>
+ * <dt>bench.transport</dt>
+ * <dd>poll或sse, 默认poll</dd>
+ * <dt>bench.format</dt>
+ * <dd>xml或json, 默认xml</dd>
+ * <dt>bench.multiplex</dt>
+ * <dd>是否启用共享订阅, 默认false</dd>
+ * <dt>bench.port</dt>
+ * <dd>Jetty端口, 默认18080</dd>
+ * <dt>bench.timeoutSeconds</dt>
+ * <dd>等待全部消息送达的最长时间, 默认120</dd>
+ * </dl>
+ * 服务端和客户端在同一个JVM中, 内存和CPU是两者之和, 适合做改动前后的相对比较.
+ */
+public class MessagingBenchmark {
+
+	private static final String BROKER_NAME = "bench";
+	private static final Pattern STAMP = Pattern.compile("bench-(\\d+)-");
+
+	private final int clients = Integer.getInteger("bench.clients", 100);
+	private final int senders = Integer.getInteger("bench.senders", 4);
+	private final int messagesPerSender = Integer.getInteger("bench.messages", 1000);
+	private final String transport = System.getProperty("bench.transport", "poll");
+	private final String format = System.getProperty("bench.format", "xml");
+	private final boolean multiplex = Boolean.getBoolean("bench.multiplex");
+	private final int port = Integer.getInteger("bench.port", 18080);
+	private final long timeoutSeconds = Long.getLong("bench.timeoutSeconds", 120);
+
+	private final String baseUrl = "http://127.0.0.1:" + port;
+	private final int expected = senders * messagesPerSender;
+	private final long[] latencies = new long[expected];
+	private final AtomicInteger received = new AtomicInteger();
+	private final AtomicLong failedRequests = new AtomicLong();
+	private volatile boolean running = true;
+
+	public static void main(String[] args) throws Exception {
+		new MessagingBenchmark().run();
+	}
+
+	public void run() throws Exception {
+		BrokerService broker = startBroker();
+		Server server = startServer();
+		List<Thread> clientThreads = new ArrayList<Thread>(clients);
+		try {
+			long heapBefore = usedHeap();
+
+			// 所有客户端订阅完成后再开始发送
+			CountDownLatch subscribed = new CountDownLatch(clients);
+			for (int i = 0; i < clients; i++) {
+				Thread thread = new Thread(new Receiver(i + 1, subscribed), "bench-client-" + i);
+				thread.setDaemon(true);
+				thread.start();
+				clientThreads.add(thread);
+			}
+			if (!subscribed.await(timeoutSeconds, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("clients not subscribed in " + timeoutSeconds + "s");
+			}
+			Thread.sleep(1000);
+			long heapAfter = usedHeap();
+
+			long cpuStart = processCpuNanos();
+			long start = System.nanoTime();
+			List<Thread> senderThreads = new ArrayList<Thread>(senders);
+			for (int i = 0; i < senders; i++) {
+				Thread thread = new Thread(new Sender(i), "bench-sender-" + i);
+				thread.start();
+				senderThreads.add(thread);
+			}
+			for (Thread thread : senderThreads) {
+				thread.join();
+			}
+			long sent = System.nanoTime();
+
+			long deadline = System.currentTimeMillis() + timeoutSeconds * 1000;
+			while (received.get() < expected && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			long elapsed = System.nanoTime() - start;
+			long cpu = processCpuNanos() - cpuStart;
+
+			report(elapsed, sent - start, cpu, heapAfter - heapBefore);
+		} finally {
+			running = false;
+			for (Thread thread : clientThreads) {
+				thread.interrupt();
+			}
+			server.stop();
+			broker.stop();
+		}
+	}
+
+	private BrokerService startBroker() throws Exception {
+		BrokerService broker = new BrokerService();
+		broker.setBrokerName(BROKER_NAME);
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.start();
+		return broker;
+	}
+
+	private Server startServer() throws Exception {
+		Server server = new Server(port);
+		ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+		context.setContextPath("/");
+		context.setInitParameter("org.apache.activemq.brokerURL", "vm://" + BROKER_NAME + "?create=false");
+
+		ServletHolder listener = new ServletHolder(new MessageListenerServlet());
+		listener.setInitParameter("multiplexSubscriptions", String.valueOf(multiplex));
+		listener.setInitOrder(1);
+		context.addServlet(listener, "/amq/*");
+		context.addServlet(new ServletHolder(new SendMessageServlet()), "/send");
+
+		server.setHandler(context);
+		server.start();
+		return server;
+	}
+
+	/**
+	 * 一个在线用户, 订阅自己的topic后循环长轮询或保持推送连接
+	 */
+	private class Receiver implements Runnable {
+		private final long userId;
+		private final CountDownLatch subscribed;
+		private final String clientId;
+
+		Receiver(long userId, CountDownLatch subscribed) {
+			this.userId = userId;
+			this.subscribed = subscribed;
+			this.clientId = "bench" + userId;
+		}
+
+		@Override
+		public void run() {
+			DefaultHttpClient http = new DefaultHttpClient();
+			HttpConnectionParams.setSoTimeout(http.getParams(), (int) MessageListenerServlet.maximumReadTimeout + 10000);
+			try {
+				listen(http);
+				subscribed.countDown();
+				if ("sse".equals(transport)) {
+					stream(http);
+				} else {
+					poll(http);
+				}
+			} catch (IOException e) {
+				if (running) {
+					failedRequests.incrementAndGet();
+					e.printStackTrace();
+				}
+			} finally {
+				http.getConnectionManager().shutdown();
+			}
+		}
+
+		private void listen(DefaultHttpClient http) throws IOException {
+			HttpPost post = new HttpPost(baseUrl + "/amq/?clientId=" + clientId);
+			List<NameValuePair> form = new ArrayList<NameValuePair>();
+			form.add(new BasicNameValuePair("destination", "topic://conlect.oatOS." + userId));
+			form.add(new BasicNameValuePair("message", "bench" + userId));
+			form.add(new BasicNameValuePair("type", "listen"));
+			post.setEntity(new UrlEncodedFormEntity(form, "UTF-8"));
+			EntityUtils.consume(http.execute(post).getEntity());
+		}
+
+		private void poll(DefaultHttpClient http) {
+			String url = baseUrl + "/amq/?clientId=" + clientId + "&format=" + format + "&timeout=5000";
+			while (running) {
+				try {
+					HttpResponse response = http.execute(new HttpGet(url));
+					record(EntityUtils.toString(response.getEntity(), "UTF-8"));
+				} catch (IOException e) {
+					if (running) {
+						failedRequests.incrementAndGet();
+					}
+				}
+			}
+		}
+
+		private void stream(DefaultHttpClient http) throws IOException {
+			String url = baseUrl + "/amq/?clientId=" + clientId + "&format=" + format + "&transport=sse";
+			while (running) {
+				// 服务端到期关闭推送连接后重新连接
+				HttpGet get = new HttpGet(url);
+				HttpResponse response = http.execute(get);
+				BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(),
+						"UTF-8"));
+				try {
+					String line;
+					while (running && (line = reader.readLine()) != null) {
+						if (line.startsWith("data:")) {
+							record(line);
+						}
+					}
+				} finally {
+					get.abort();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 通过SendMessageServlet发送消息, 消息体带发送时间
+	 */
+	private class Sender implements Runnable {
+		private final Random random;
+
+		Sender(int index) {
+			this.random = new Random(index);
+		}
+
+		@Override
+		public void run() {
+			DefaultHttpClient http = new DefaultHttpClient(new PoolingClientConnectionManager());
+			try {
+				for (int i = 0; i < messagesPerSender; i++) {
+					MessageDTO message = new MessageDTO();
+					message.setMessageType(MessageType.ChatMessage);
+					message.setSender(0L);
+					message.setReceiver(1L + random.nextInt(clients));
+					message.setMessageBody("bench-" + System.nanoTime() + "-");
+					HttpPost post = new HttpPost(baseUrl + "/send");
+					post.setEntity(new StringEntity(PojoMapper.toJson(message), "UTF-8"));
+					try {
+						EntityUtils.consume(http.execute(post).getEntity());
+					} catch (IOException e) {
+						failedRequests.incrementAndGet();
+					}
+				}
+			} finally {
+				http.getConnectionManager().shutdown();
+			}
+		}
+	}
+
+	private void record(String body) {
+		long now = System.nanoTime();
+		Matcher matcher = STAMP.matcher(body);
+		while (matcher.find()) {
+			int index = received.getAndIncrement();
+			if (index < latencies.length) {
+				latencies[index] = now - Long.parseLong(matcher.group(1));
+			}
+		}
+	}
+
+	private void report(long elapsedNanos, long sendNanos, long cpuNanos, long clientHeapBytes) {
+		int count = Math.min(received.get(), latencies.length);
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+
+		System.out.println("transport=" + transport + " format=" + format + " multiplex=" + multiplex + " clients="
+				+ clients + " senders=" + senders);
+		System.out.println("sent=" + expected + " received=" + count + " failedRequests=" + failedRequests.get()
+				+ " activeClients=" + ClientSource.getRegistry().getActiveCount());
+		System.out.printf("send rate=%.0f msg/s, delivery rate=%.0f msg/s%n", expected * 1e9 / sendNanos, count * 1e9
+				/ elapsedNanos);
+		System.out.printf("latency ms: p50=%.2f p90=%.2f p99=%.2f p999=%.2f max=%.2f%n", percentile(sorted, 0.5),
+				percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1));
+		System.out.printf("heap per client=%.1f KB%n", clientHeapBytes / 1024.0 / clients);
+		if (cpuNanos >= 0) {
+			System.out.printf("cpu=%.0f ms (%.1f us/msg, %.1f%% of %d cores)%n", cpuNanos / 1e6,
+					count == 0 ? 0 : cpuNanos / 1e3 / count, cpuNanos * 100.0 / elapsedNanos
+							/ Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors());
+		}
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * 进程CPU时间, JVM不支持时返回-1
+	 */
+	private static long processCpuNanos() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return -1;
+	}
+}
@@ -1,5 +1,6 @@
 package com.facetime.mgr.logic;
 
+import com.facetime.core.utils.Each;
 import com.facetime.mgr.bean.SysOperLogForm;
 import com.facetime.mgr.domain.SysOperLog;
 import com.facetime.spring.logic.Logic;
@@ -16,6 +17,12 @@ public interface SysOperLogManager extends Logic {
 
 	public void deleteItem(String operid);
 
+	/**
+	 * 按查询条件以游标逐条导出操作日志, 用于归档和Excel导出, 不会一次性加载全部日志
+	 * @return 导出的日志条数
+	 */
+	public int exportOperLog(SysOperLogForm sysOperLogForm, Each<SysOperLog> callback);
+
 	/**
 	 * 清除所选操作日志
 	 */
@@ -40,6 +40,7 @@ public class GrpRoleManagerImpl extends LogicImpl implements GrpRoleManager {
 
 	@Override
 	public int removeGrpRole(String grpcode) {
+		MenuGraph.invalidate();
 		return this.delete(UsrGrpRole.class, new QueryFilter("grpcode", grpcode));
 	}
 
@@ -24,11 +24,19 @@ import com.facetime.spring.support.Page;
 import com.facetime.spring.support.QueryFilter;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.apache.log4j.Logger;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.dao.DataAccessException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -40,20 +48,36 @@ import org.springframework.transaction.annotation.Transactional;
  */
 @Service
 @Transactional
-public class LoginManagerImpl extends LogicImpl implements LoginManager {
+public class LoginManagerImpl extends LogicImpl implements LoginManager,
+		ApplicationListener<ContextRefreshedEvent> {
+
+	private static final Logger log = Logger.getLogger(LoginManagerImpl.class);
+
+	/**
+	 * 容器启动后预先加载菜单快照, 第一个登录用户不必等待加载
+	 */
+	@Override
+	public void onApplicationEvent(ContextRefreshedEvent event) {
+		try {
+			MenuGraph.get(this);
+		} catch (DataAccessException e) {
+			log.warn("can't preload menu graph, it will be loaded on first use: " + e.getMessage());
+		}
+	}
 
 	@Override
 	public String createTree(String menuid, String[] grps, String surl) {
 		StringBuffer sbf = new StringBuffer();
 		// 第一级菜单节点
-		MenuInfo menuinfo = findById(MenuInfo.class, menuid);
+		MenuGraph graph = MenuGraph.get(this);
+		MenuInfo menuinfo = graph.getMenu(menuid);
 		String floors = "";
 		for (int j = 0; j < menuinfo.getFloor(); j++) {
 			floors += "-";
 		}
 		sbf.append("addtree(\"" + floors + menuinfo.getMenuitem() + "\");");
 		// 获取所有的子节点
-		createChildTree(menuinfo, grps, surl, sbf);
+		createChildTree(graph, graph.getAuthorizedMenuIds(grps), menuinfo, surl, sbf);
 		return sbf.toString();
 	}
 
@@ -102,27 +126,21 @@ public class LoginManagerImpl extends LogicImpl implements LoginManager {
 	@Override
 	public Map<String, List<MenuOperate>> findMenuFuncMap(String userid) {
 		Map<String, List<MenuOperate>> hp = new HashMap<String, List<MenuOperate>>();
-		List<MenuFunction> functions = findMenuFunction(userid);
-		for (MenuFunction function : functions) {
-			List<MenuOperate> result = new ArrayList<MenuOperate>();
-			for (int i = 0; i < functions.size(); i++) {
-				MenuFunction mf = functions.get(i);
-				if (mf.getMenuid().equals(function.getMenuid())) {
-					result.add(findById(MenuOperate.class, mf.getOperid()));
-				}
+		MenuGraph graph = MenuGraph.get(this);
+		for (MenuFunction function : graph.getFunctions(searchUsrGrp(userid))) {
+			List<MenuOperate> result = hp.get(function.getMenuid());
+			if (result == null) {
+				result = new ArrayList<MenuOperate>();
+				hp.put(function.getMenuid(), result);
 			}
-			hp.put(function.getMenuid(), result);
+			result.add(graph.getOperate(function.getOperid()));
 		}
 		return hp;
 	}
 
 	@Override
 	public List<MenuFunction> findMenuFunction(String userid) {
-		String hql = "from MenuFunction mf where mf.funcid in "
-				+ "( select rolefun.funcid from UsrRoleFunction rolefun where rolefun.rolecode in "
-				+ " ( select grprole.rolecode from UsrGrpRole grprole where grprole.grpcode in "
-				+ " ( select usrgrp.grpcode from UsrUsrGrp usrgrp where usrgrp.userid=?))) order by mf.funcid";
-		return findHQL(hql, new Object[] { userid });
+		return MenuGraph.get(this).getFunctions(searchUsrGrp(userid));
 	}
 
 	@Override
@@ -150,48 +168,48 @@ public class LoginManagerImpl extends LogicImpl implements LoginManager {
 	@Override
 	public void getleafmenu(String menuid, String[] grps,
 			List<MenuInfo> leafMenu) {
-		List<MenuInfo> mymenu = getMenuByAuth(menuid, grps);
-		if (mymenu.size() <= 0) {
+		MenuGraph graph = MenuGraph.get(this);
+		MenuInfo menu = graph.getMenu(menuid);
+		Set<String> authorized = graph.getAuthorizedMenuIds(grps);
+		if (menu == null || !MenuGraph.isVisible(menu, authorized)) {
 			return;
 		}
-		List<MenuInfo> mysonmenu = getMenuByParentAuth(menuid, grps);
-		for (MenuInfo menuinfoson : mysonmenu) {
-			if (menuinfoson.getChildnum() > 0) {
-				// 有子菜单
-				getleafmenu(menuinfoson.getMenuid(), grps, leafMenu);
-			} else {
-				leafMenu.add(menuinfoson);
-			}
-		}
+		collectLeafMenu(graph, authorized, menu, leafMenu);
 	}
 
 	@Override
 	public List<MenuInfo> getMenubyGrp(String[] grps) {
-		String parentid = "";
-		StringBuffer parentids = new StringBuffer();
-		List<MenuInfo> modelMenu = findMenubyGrp(grps);// 查询最底层子目录菜单
-		for (int i = 0; i < modelMenu.size(); i++) {
-			MenuInfo menuinfo = modelMenu.get(i);
-			if (!menuinfo.getParentid().equals(parentid)) {
-				getParentMenu(menuinfo, parentids);
-				parentid = menuinfo.getParentid();
+		MenuGraph graph = MenuGraph.get(this);
+		Set<MenuInfo> topMenus = new LinkedHashSet<MenuInfo>();
+		for (String menuid : graph.getAuthorizedMenuIds(grps)) {
+			MenuInfo menuinfo = graph.getMenu(menuid);
+			if (menuinfo == null || menuinfo.getChildnum() != 0) {// 只从最底层子目录菜单向上查找
+				continue;
+			}
+			for (MenuInfo menu : graph.getPath(menuid)) {
+				if (menu.getFloor() == 1) {
+					topMenus.add(menu);
+					break;
+				}
 			}
 		}
-		// 排序数组
-		parentid = parentids.toString();
-		if (!parentid.equals("")) {
-			List<MenuInfo> menulist = this.findHQL(
-					"From MenuInfo menu where menu.menuid in ("
-							+ parentid.substring(0, parentid.length() - 1)
-							+ ") order by menu.order", new Object[] {});
-			return menulist;
+		if (topMenus.isEmpty()) {
+			return null;
 		}
-		return null;
+		// 排序数组
+		List<MenuInfo> menulist = new ArrayList<MenuInfo>(topMenus);
+		Collections.sort(menulist, new Comparator<MenuInfo>() {
+			@Override
+			public int compare(MenuInfo o1, MenuInfo o2) {
+				return o1.getOrder() < o2.getOrder() ? -1 : (o1.getOrder() == o2.getOrder() ? 0 : 1);
+			}
+		});
+		return menulist;
 	}
 
 	@Override
 	public MenuInfo getMenuInfo(String menuid) {
-		return findById(MenuInfo.class, menuid);
+		return MenuGraph.get(this).getMenu(menuid);
 	}
 
 	@Override
@@ -382,11 +400,11 @@ public class LoginManagerImpl extends LogicImpl implements LoginManager {
 		return count > 0;
 	}
 
-	private void createChildTree(MenuInfo menuinfo, String[] grps, String surl,
-			StringBuffer tree) {
+	private void createChildTree(MenuGraph graph, Set<String> authorized,
+			MenuInfo menuinfo, String surl, StringBuffer tree) {
 		String floorsons = "";
-		List<MenuInfo> menuList = getMenuByParentAuth(menuinfo.getMenuid(),
-				grps); // 得到下一级子节点
+		List<MenuInfo> menuList = getVisibleChildren(graph, authorized,
+				menuinfo.getMenuid()); // 得到下一级子节点
 		if (menuList.isEmpty()) {
 			// 删除多余项(没有权限的最后一级节点，相应的父节点)
 			for (int j = 0; j < menuinfo.getFloor(); j++) {
@@ -421,7 +439,7 @@ public class LoginManagerImpl extends LogicImpl implements LoginManager {
 				// 如果还有子菜单
 				tree.append("addtree(\"" + floorsons + myson.getMenuitem()
 						+ "\");");
-				createChildTree(myson, grps, surl, tree);
+				createChildTree(graph, authorized, myson, surl, tree);
 			} else {
 				String actiontourl = myson.getActionto();
 				if (!(actiontourl == null || actiontourl.equals("#") || actiontourl
@@ -439,86 +457,31 @@ public class LoginManagerImpl extends LogicImpl implements LoginManager {
 		}
 	}
 
-	private List<MenuInfo> findMenubyGrp(String[] grps) {
-		StringBuilder sb = new StringBuilder();
-		List<Object> values = new ArrayList<Object>();
-		sb.append("FROM MenuInfo menuinfo WHERE menuinfo.menuid in ");
-		sb.append("(select menufun.menuid from MenuFunction menufun, UsrRoleFunction rolefun,UsrGrpRole grprole ");
-		sb.append(" where menufun.funcid = rolefun.funcid and rolefun.rolecode = grprole.rolecode ");
-		sb.append(" and grprole.grpcode in (");
-		for (String group : grps) {
-			sb.append("?,");
-			values.add(group);
-		}
-		sb.replace(sb.length() - 1, sb.length(), ")");
-		sb.append(") and menuinfo.childnum = 0 ");
-		sb.append(" ORDER BY menuinfo.parentid,menuinfo.order desc ");
-		return this.findHQL(sb.toString(), values.toArray());
-	}
-
-	/**
-	 * 查询符合menuid和grps的用户有可视权限的菜单记录
-	 */
-	private List<MenuInfo> getMenuByAuth(String menuid, String[] grps) {
-		StringBuilder sb = new StringBuilder();
-		List<Object> values = new ArrayList<Object>();
-		sb.append("FROM MenuInfo menuinfo ");
-		sb.append("WHERE (menuinfo.menuid in ");
-		sb.append(" (select menufun.menuid from MenuFunction menufun, UsrRoleFunction rolefun,UsrGrpRole grprole ");
-		sb.append(" where menufun.funcid = rolefun.funcid and rolefun.rolecode = grprole.rolecode ");
-		sb.append(" and grprole.grpcode in (");
-		for (String group : grps) {
-			sb.append("?,");
-			values.add(group);
+	private void collectLeafMenu(MenuGraph graph, Set<String> authorized,
+			MenuInfo menu, List<MenuInfo> leafMenu) {
+		for (MenuInfo menuinfoson : getVisibleChildren(graph, authorized,
+				menu.getMenuid())) {
+			if (menuinfoson.getChildnum() > 0) {
+				// 有子菜单
+				collectLeafMenu(graph, authorized, menuinfoson, leafMenu);
+			} else {
+				leafMenu.add(menuinfoson);
+			}
 		}
-		sb.replace(sb.length() - 1, sb.length(), ")");
-		sb.append(") or menuinfo.actionto='#')");
-		sb.append(" and menuinfo.menuid = ? ");
-		values.add(menuid);
-		sb.append(" order by menuinfo.order ");
-		return this.findHQL(sb.toString(), values.toArray());
 	}
 
 	/**
-	 * 查询符合父节点等于menuid和c_userid的用户有可视权限的菜单记录
+	 * 父节点等于menuid且用户有可视权限的菜单, 按order排序
 	 */
-	private List<MenuInfo> getMenuByParentAuth(String menuid, String[] grps) {
-		StringBuilder sb = new StringBuilder();
-		List<Object> values = new ArrayList<Object>();
-
-		sb.append(" FROM MenuInfo menuinfo WHERE (menuinfo.menuid in ");
-		sb.append(" (select menufun.menuid from MenuFunction menufun, UsrRoleFunction rolefun,UsrGrpRole grprole ");
-		sb.append(" where menufun.funcid = rolefun.funcid and rolefun.rolecode = grprole.rolecode ");
-		sb.append(" and grprole.grpcode in (");
-		for (String group : grps) {
-			sb.append("?,");
-			values.add(group);
-		}
-		sb.replace(sb.length() - 1, sb.length(), ")");
-		sb.append(") or menuinfo.actionto='#') and menuinfo.parentid = ? ");
-		values.add(menuid);
-		sb.append(" order by menuinfo.order ");
-		return this.findHQL(sb.toString(), values.toArray());
-	}
-
-	private void getParentMenu(MenuInfo menuinfo, StringBuffer parent) {
-		String tempParent = parent.toString();
-		if (menuinfo.getFloor() == 1
-				&& tempParent.indexOf("'" + menuinfo.getMenuid() + "'") == -1) {
-			parent.append("'" + menuinfo.getMenuid() + "',");
-		} else {
-			MenuInfo menuParent = this.findById(MenuInfo.class,
-					menuinfo.getParentid());
-			if (menuParent != null) {
-				if (menuParent.getFloor() == 1
-						&& tempParent.indexOf("'" + menuParent.getMenuid()
-								+ "'") == -1) {
-					parent.append("'" + menuParent.getMenuid() + "',");
-				} else {
-					getParentMenu(menuParent, parent);
-				}
+	private List<MenuInfo> getVisibleChildren(MenuGraph graph,
+			Set<String> authorized, String menuid) {
+		List<MenuInfo> result = new ArrayList<MenuInfo>();
+		for (MenuInfo child : graph.getChildren(menuid)) {
+			if (MenuGraph.isVisible(child, authorized)) {
+				result.add(child);
 			}
 		}
+		return result;
 	}
 
 	/**
@@ -0,0 +1,220 @@
+package com.facetime.mgr.logic.impl;
+
+import com.facetime.mgr.common.BusnDataDir;
+import com.facetime.mgr.domain.MenuFunction;
+import com.facetime.mgr.domain.MenuInfo;
+import com.facetime.mgr.domain.MenuOperate;
+import com.facetime.mgr.domain.UsrGrpRole;
+import com.facetime.mgr.domain.UsrRoleFunction;
+import com.facetime.spring.dao.Dao;
+import com.facetime.spring.support.LogicUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 菜单, 功能点, 角色和用户组关系的内存快照. 快照一次性批量加载, 加载后不再修改,
+ * 菜单树, 导航条和功能点映射都从快照计算, 不再逐级查询数据库.
+ * <p>
+ * 菜单或权限数据变化后调用{@link #invalidate()}, 下次访问时重新加载新的快照并整体替换.
+ * 快照中的实体对象被所有线程共享, 只能读取.
+ *
+ * @author arco
+ */
+final class MenuGraph {
+
+	private static final Logger log = Logger.getLogger(MenuGraph.class);
+
+	private static final AtomicReference<MenuGraph> CURRENT = new AtomicReference<MenuGraph>();
+
+	/** 每次失效时递增, 失效之前开始加载的快照不再放入CURRENT */
+	private static final AtomicInteger VERSION = new AtomicInteger();
+
+	private final Map<String, MenuInfo> menus;
+	private final Map<String, List<MenuInfo>> children;
+	private final Map<String, MenuOperate> operates;
+	private final List<MenuFunction> functions;
+	private final Map<String, List<String>> roleFunctions;
+	private final Map<String, List<String>> groupRoles;
+
+	private MenuGraph(List<MenuInfo> menuList, List<MenuOperate> operateList, List<MenuFunction> functionList,
+			List<UsrRoleFunction> roleFunctionList, List<UsrGrpRole> groupRoleList) {
+		Map<String, MenuInfo> menuMap = new HashMap<String, MenuInfo>();
+		Map<String, List<MenuInfo>> childMap = new HashMap<String, List<MenuInfo>>();
+		for (MenuInfo menu : menuList) {// 已按order排序, 子节点列表保持同样顺序
+			menuMap.put(menu.getMenuid(), menu);
+			multiPut(childMap, menu.getParentid(), menu);
+		}
+		Map<String, MenuOperate> operateMap = new HashMap<String, MenuOperate>();
+		for (MenuOperate operate : operateList) {
+			operateMap.put(operate.getOperid(), operate);
+		}
+		Map<String, List<String>> roleFunctionMap = new HashMap<String, List<String>>();
+		for (UsrRoleFunction roleFunction : roleFunctionList) {
+			multiPut(roleFunctionMap, roleFunction.getRolecode(), roleFunction.getFuncid());
+		}
+		Map<String, List<String>> groupRoleMap = new HashMap<String, List<String>>();
+		for (UsrGrpRole groupRole : groupRoleList) {
+			multiPut(groupRoleMap, groupRole.getGrpcode(), groupRole.getRolecode());
+		}
+		this.menus = Collections.unmodifiableMap(menuMap);
+		this.children = unmodifiable(childMap);
+		this.operates = Collections.unmodifiableMap(operateMap);
+		this.functions = Collections.unmodifiableList(functionList);
+		this.roleFunctions = unmodifiable(roleFunctionMap);
+		this.groupRoles = unmodifiable(groupRoleMap);
+	}
+
+	/**
+	 * 返回当前快照, 不存在时用五条查询批量加载
+	 */
+	static MenuGraph get(Dao dao) {
+		MenuGraph graph = CURRENT.get();
+		if (graph == null) {
+			int version = VERSION.get();
+			graph = load(dao);
+			if (VERSION.get() == version) {
+				CURRENT.compareAndSet(null, graph);
+			}
+		}
+		return graph;
+	}
+
+	/**
+	 * 丢弃当前快照. 在事务中调用时, 事务提交后再丢弃一次, 避免提交前被其他线程加载的旧数据留在缓存中
+	 */
+	static void invalidate() {
+		discard();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					discard();
+				}
+			});
+		}
+	}
+
+	private static void discard() {
+		VERSION.incrementAndGet();
+		CURRENT.set(null);
+	}
+
+	private static MenuGraph load(Dao dao) {
+		long start = System.currentTimeMillis();
+		MenuGraph graph = new MenuGraph(dao.findList(MenuInfo.class, LogicUtils.orderAsc("order")),
+				dao.findList(MenuOperate.class), dao.findList(MenuFunction.class, LogicUtils.orderAsc("funcid")),
+				dao.findList(UsrRoleFunction.class), dao.findList(UsrGrpRole.class));
+		log.debug("menu graph loaded: " + graph.menus.size() + " menus, " + graph.functions.size()
+				+ " functions in " + (System.currentTimeMillis() - start) + "ms");
+		return graph;
+	}
+
+	MenuInfo getMenu(String menuid) {
+		return menus.get(menuid);
+	}
+
+	MenuOperate getOperate(String operid) {
+		return operates.get(operid);
+	}
+
+	/**
+	 * 返回直属子菜单, 按order排序
+	 */
+	List<MenuInfo> getChildren(String parentid) {
+		List<MenuInfo> list = children.get(parentid);
+		return list == null ? Collections.<MenuInfo> emptyList() : list;
+	}
+
+	/**
+	 * 返回从顶级菜单到该菜单的路径, 菜单不存在时返回空列表
+	 */
+	List<MenuInfo> getPath(String menuid) {
+		List<MenuInfo> path = new ArrayList<MenuInfo>();
+		MenuInfo menu = menus.get(menuid);
+		while (menu != null && path.size() <= menus.size()) {// 数据有环时不会死循环
+			path.add(menu);
+			if (BusnDataDir.TOP_PARENT_ID.equals(menu.getParentid())) {
+				break;
+			}
+			menu = menus.get(menu.getParentid());
+		}
+		Collections.reverse(path);
+		return path;
+	}
+
+	/**
+	 * 用户组拥有的功能点, 按funcid排序
+	 */
+	List<MenuFunction> getFunctions(String[] grps) {
+		Set<String> funcids = new HashSet<String>();
+		for (String grp : grps) {
+			List<String> roles = groupRoles.get(grp);
+			if (roles == null) {
+				continue;
+			}
+			for (String role : roles) {
+				List<String> funcs = roleFunctions.get(role);
+				if (funcs != null) {
+					funcids.addAll(funcs);
+				}
+			}
+		}
+		List<MenuFunction> result = new ArrayList<MenuFunction>();
+		if (funcids.isEmpty()) {
+			return result;
+		}
+		for (MenuFunction function : functions) {
+			if (funcids.contains(function.getFuncid())) {
+				result.add(function);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 用户组拥有功能点的菜单ID
+	 */
+	Set<String> getAuthorizedMenuIds(String[] grps) {
+		Set<String> menuids = new LinkedHashSet<String>();
+		for (MenuFunction function : getFunctions(grps)) {
+			menuids.add(function.getMenuid());
+		}
+		return menuids;
+	}
+
+	/**
+	 * 用户组可见的菜单: 拥有功能点, 或者是目录节点(actionto为'#')
+	 */
+	static boolean isVisible(MenuInfo menu, Set<String> authorizedMenuIds) {
+		return authorizedMenuIds.contains(menu.getMenuid()) || "#".equals(menu.getActionto());
+	}
+
+	private static <V> void multiPut(Map<String, List<V>> map, String key, V value) {
+		List<V> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<V>();
+			map.put(key, list);
+		}
+		list.add(value);
+	}
+
+	private static <V> Map<String, List<V>> unmodifiable(Map<String, List<V>> map) {
+		for (Map.Entry<String, List<V>> entry : map.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		return Collections.unmodifiableMap(map);
+	}
+}
@@ -40,6 +40,7 @@ public class MenuInfoManagerImpl extends LogicImpl implements MenuInfoManager {
 
 		// 更新父节点的孩子数
 		refreshChildCount(menuInfo.getParentid());
+		MenuGraph.invalidate();
 		return 1;
 	}
 
@@ -69,6 +70,7 @@ public class MenuInfoManagerImpl extends LogicImpl implements MenuInfoManager {
 			this.delete(MenuFunction.class, new QueryFilter("menuid", PMLO.IN, chd));
 			this.deleteByIds(MenuInfo.class, chd);
 		}
+		MenuGraph.invalidate();
 		return delnum;
 	}
 
@@ -189,22 +191,16 @@ public class MenuInfoManagerImpl extends LogicImpl implements MenuInfoManager {
 	 */
 	@Override
 	public String getNavigation(String itemId) {
-		ArrayList<MenuInfo> aryPath = new ArrayList<MenuInfo>();
-		MenuInfo menuInfo = findById(itemId);
-		while (menuInfo != null) {
-			aryPath.add(menuInfo);
-			if (menuInfo.getParentid().equals(BusnDataDir.TOP_PARENT_ID)) {
-				break;
-			}
-			menuInfo = findById(menuInfo.getParentid());
-		}
+		// 从顶级菜单到该项目
+		List<MenuInfo> aryPath = MenuGraph.get(this).getPath(itemId);
 		int iSize = aryPath.size();
 		if (iSize == 0) {
 			return BusnDataDir.ROOT;
 		}
 
+		MenuInfo menuInfo;
 		StringBuilder sbfPath = new StringBuilder();
-		for (int i = iSize - 1; i > 0; i--) {
+		for (int i = 0; i < iSize - 1; i++) {
 			menuInfo = aryPath.get(i);
 			sbfPath.append("<a href=\"javascript:ComeIn('");
 			sbfPath.append(menuInfo.getMenuid());
@@ -212,7 +208,7 @@ public class MenuInfoManagerImpl extends LogicImpl implements MenuInfoManager {
 			sbfPath.append(StringEscapeUtils.escapeHtml(menuInfo.getMenuitem()));
 			sbfPath.append("</a><b>-&gt;</b>");
 		}
-		menuInfo = aryPath.get(0);
+		menuInfo = aryPath.get(iSize - 1);
 		sbfPath.append("<a href=\"javascript:ComeIn('");
 		sbfPath.append(menuInfo.getMenuid());
 		sbfPath.append("')\">");
@@ -244,27 +240,18 @@ public class MenuInfoManagerImpl extends LogicImpl implements MenuInfoManager {
 	 */
 	@Override
 	public String getPath(String itemId) {
-		ArrayList<String> aryPath = new ArrayList<String>();
-		MenuInfo menuInfo = findById(itemId);
-		while (menuInfo != null) {
-			aryPath.add(menuInfo.getMenuid());
-			if (menuInfo.getParentid().equals(BusnDataDir.TOP_PARENT_ID)) {
-				break;
-			}
-			menuInfo = findById(menuInfo.getParentid());
-		}
-
+		List<MenuInfo> aryPath = MenuGraph.get(this).getPath(itemId);
 		int iSize = aryPath.size();
 		if (iSize == 0) {
 			return "";
 		}
 
 		StringBuilder sbfPath = new StringBuilder();
-		for (int i = iSize - 1; i > 0; i--) {
-			sbfPath.append(aryPath.get(i));
+		for (int i = 0; i < iSize - 1; i++) {
+			sbfPath.append(aryPath.get(i).getMenuid());
 			sbfPath.append(BusnDataDir.ITEM_SEPARATOR);
 		}
-		sbfPath.append(aryPath.get(0));
+		sbfPath.append(aryPath.get(iSize - 1).getMenuid());
 		return sbfPath.toString();
 	}
 
@@ -337,6 +324,7 @@ public class MenuInfoManagerImpl extends LogicImpl implements MenuInfoManager {
 				menuinfo.setOrder(i + 1);
 				this.update(menuinfo);
 			}
+			MenuGraph.invalidate();
 			return childId.length;
 		} else {
 			return 0;
@@ -375,6 +363,7 @@ public class MenuInfoManagerImpl extends LogicImpl implements MenuInfoManager {
 		ordInfo.setOrder(ordInfo.getOrder());
 		ordInfo.setParentid(ordInfo.getParentid());
 		this.update(ordInfo);
+		MenuGraph.invalidate();
 
 		return 1;
 	}
@@ -386,6 +375,7 @@ public class MenuInfoManagerImpl extends LogicImpl implements MenuInfoManager {
 	public void updateMenuOper(String menuid, List<MenuFunction> functionList) {
 		this.delete(MenuFunction.class, new QueryFilter("menuid", menuid));
 		this.save(functionList);
+		MenuGraph.invalidate();
 	}
 
 	/**
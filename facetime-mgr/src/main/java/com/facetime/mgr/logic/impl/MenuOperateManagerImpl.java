@@ -3,6 +3,7 @@ package com.facetime.mgr.logic.impl;
 import com.facetime.mgr.domain.MenuFunction;
 import com.facetime.mgr.domain.MenuOperate;
 import com.facetime.mgr.domain.UsrRoleFunction;
+import com.facetime.core.bean.BusinessObject;
 import com.facetime.mgr.logic.MenuOperateManager;
 import com.facetime.spring.logic.LogicImpl;
 import com.facetime.spring.support.LogicUtils;
@@ -10,6 +11,7 @@ import com.facetime.spring.support.PMLO;
 import com.facetime.spring.support.Page;
 import com.facetime.spring.support.QueryFilter;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -39,6 +41,31 @@ public class MenuOperateManagerImpl extends LogicImpl implements MenuOperateMana
 			this.deleteByIds(MenuFunction.class, funcidList.toArray(new String[] {}));
 		}
 		deleteByIds(MenuOperate.class, aryIds);
+		MenuGraph.invalidate();
+	}
+
+	/**
+	 * 功能点名称等信息在菜单快照中, 修改后需要重新加载
+	 */
+	@Override
+	public <T extends BusinessObject> void update(T entity, String... attrNames) {
+		super.update(entity, attrNames);
+		MenuGraph.invalidate();
+	}
+
+	/**
+	 * 新增的功能点要出现在菜单快照中, 保存后需要重新加载
+	 */
+	@Override
+	public <T extends BusinessObject> void save(T... entitys) {
+		super.save(entitys);
+		MenuGraph.invalidate();
+	}
+
+	@Override
+	public <T extends BusinessObject> void save(Collection<T> entityList) {
+		super.save(entityList);
+		MenuGraph.invalidate();
 	}
 
 	@Override
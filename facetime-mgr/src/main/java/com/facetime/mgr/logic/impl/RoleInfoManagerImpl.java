@@ -25,6 +25,7 @@ public class RoleInfoManagerImpl extends LogicImpl implements RoleInfoManager {
 		this.delete(UsrRoleFunction.class, new QueryFilter("rolecode", rolecode));
 		this.delete(UsrGrpRole.class, new QueryFilter("rolecode", rolecode));
 		this.deleteById(UsrRole.class, rolecode);
+		MenuGraph.invalidate();
 	}
 
 	// 返回最底层菜单的功能点列表
@@ -99,6 +100,7 @@ public class RoleInfoManagerImpl extends LogicImpl implements RoleInfoManager {
 	@Override
 	public void updateRoleFunc(String rolecode, List<String> roleFuncids) {
 		this.delete(UsrRoleFunction.class, new QueryFilter("rolecode", rolecode));
+		MenuGraph.invalidate();
 		if (roleFuncids == null || roleFuncids.size() == 0) {
 			return;
 		}
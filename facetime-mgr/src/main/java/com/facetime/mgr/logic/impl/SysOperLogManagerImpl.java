@@ -1,6 +1,7 @@
 package com.facetime.mgr.logic.impl;
 
 import com.facetime.core.utils.DateUtil;
+import com.facetime.core.utils.Each;
 import com.facetime.core.utils.StringUtils;
 import com.facetime.mgr.bean.SysOperLogForm;
 import com.facetime.mgr.domain.SysOperLog;
@@ -36,6 +37,12 @@ public class SysOperLogManagerImpl extends LogicImpl implements SysOperLogManage
 		return this.deleteByIds(SysOperLog.class, ids);
 	}
 
+	@Override
+	@Transactional(readOnly = true)
+	public int exportOperLog(SysOperLogForm form, Each<SysOperLog> callback) {
+		return this.stream(SysOperLog.class, buildFilters(form), callback, LogicUtils.orderDesc("logtime"));
+	}
+
 	@Override
 	public SysOperLog getFristSysOperLog() {
 		Page<SysOperLog> result = this.findPage(SysOperLog.class, LogicUtils.orderDesc("logtime"), LogicUtils.pageby(1, 1));
@@ -50,16 +57,7 @@ public class SysOperLogManagerImpl extends LogicImpl implements SysOperLogManage
 
 	@Override
 	public Page<SysOperLog> getPage(SysOperLogForm form) {
-		List<QueryFilter> filters = new ArrayList<QueryFilter>();
-		filters.add(new QueryFilter("note", PMLO.LIKE, StringUtils.likeOf(form.getNote()), StringUtils.isValid(form
-				.getNote())));
-		filters.add(new QueryFilter("username", PMLO.LIKE, StringUtils.likeOf(form.getUserid()), StringUtils
-				.isValid(form.getUserid())));
-		filters.add(new QueryFilter("logtime", PMLO.GE, DateUtil.str2timestamp(form.getLogbegintime()), StringUtils
-				.isValid(form.getLogbegintime())));
-		filters.add(new QueryFilter("logtime", PMLO.LE, DateUtil.str2timestamp(form.getLogendtime()), StringUtils
-				.isValid(form.getLogendtime())));
-		Page<SysOperLog> result = this.findPage(SysOperLog.class, filters.toArray(new QueryFilter[] {}),
+		Page<SysOperLog> result = this.findPage(SysOperLog.class, buildFilters(form),
 				LogicUtils.orderDesc("logtime"), LogicUtils.pageby(form.getToPage(), form.getPageSize()));
 		return result;
 	}
@@ -71,4 +69,17 @@ public class SysOperLogManagerImpl extends LogicImpl implements SysOperLogManage
 		List<SysOperLog> list = result.getQueryResult();
 		return list.size() > 0 ? list.get(0) : null;
 	}
+
+	private QueryFilter[] buildFilters(SysOperLogForm form) {
+		List<QueryFilter> filters = new ArrayList<QueryFilter>();
+		filters.add(new QueryFilter("note", PMLO.LIKE, StringUtils.likeOf(form.getNote()), StringUtils.isValid(form
+				.getNote())));
+		filters.add(new QueryFilter("username", PMLO.LIKE, StringUtils.likeOf(form.getUserid()), StringUtils
+				.isValid(form.getUserid())));
+		filters.add(new QueryFilter("logtime", PMLO.GE, DateUtil.str2timestamp(form.getLogbegintime()), StringUtils
+				.isValid(form.getLogbegintime())));
+		filters.add(new QueryFilter("logtime", PMLO.LE, DateUtil.str2timestamp(form.getLogendtime()), StringUtils
+				.isValid(form.getLogendtime())));
+		return filters.toArray(new QueryFilter[] {});
+	}
 }
@@ -0,0 +1,60 @@
+package com.facetime.spring.dao;
+
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+
+import com.facetime.core.bean.BusinessObject;
+
+/**
+ * 批量操作类型, 取代原先以字符串区分的save/update/delete
+ *
+ * @author YUFEI
+ */
+public enum BatchOperation {
+
+	SAVE {
+		@Override
+		void execute(Session session, BusinessObject entity) {
+			session.save(entity);
+		}
+
+		@Override
+		void execute(StatelessSession session, BusinessObject entity) {
+			session.insert(entity);
+		}
+	},
+
+	UPDATE {
+		@Override
+		void execute(Session session, BusinessObject entity) {
+			session.update(entity);
+		}
+
+		@Override
+		void execute(StatelessSession session, BusinessObject entity) {
+			session.update(entity);
+		}
+	},
+
+	DELETE {
+		@Override
+		void execute(Session session, BusinessObject entity) {
+			session.delete(entity);
+		}
+
+		@Override
+		void execute(StatelessSession session, BusinessObject entity) {
+			session.delete(entity);
+		}
+	};
+
+	/**
+	 * 在普通Session中执行, 实体会进入一级缓存, 需要定期flush/clear
+	 */
+	abstract void execute(Session session, BusinessObject entity);
+
+	/**
+	 * 在StatelessSession中执行, 绕过一级缓存和级联
+	 */
+	abstract void execute(StatelessSession session, BusinessObject entity);
+}
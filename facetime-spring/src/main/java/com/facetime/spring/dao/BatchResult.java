@@ -0,0 +1,95 @@
+package com.facetime.spring.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 批量操作的执行结果, 记录每一批次的行数和耗时
+ *
+ * @author YUFEI
+ */
+public class BatchResult {
+
+	/**
+	 * 单个批次的统计信息
+	 */
+	public static class Batch {
+
+		private final int index;
+		private final int rowCount;
+		private final long elapsedMillis;
+
+		public Batch(int index, int rowCount, long elapsedMillis) {
+			this.index = index;
+			this.rowCount = rowCount;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public int getRowCount() {
+			return rowCount;
+		}
+
+		@Override
+		public String toString() {
+			return "Batch[" + index + "] rows=" + rowCount + ", elapsed=" + elapsedMillis + "ms";
+		}
+	}
+
+	private final BatchOperation operation;
+	private final int batchSize;
+	private final boolean stateless;
+	private final List<Batch> batches = new ArrayList<Batch>();
+	private int rowCount = 0;
+	private long elapsedMillis = 0;
+
+	public BatchResult(BatchOperation operation, int batchSize, boolean stateless) {
+		this.operation = operation;
+		this.batchSize = batchSize;
+		this.stateless = stateless;
+	}
+
+	void addBatch(int rows, long elapsed) {
+		batches.add(new Batch(batches.size(), rows, elapsed));
+		rowCount += rows;
+		elapsedMillis += elapsed;
+	}
+
+	public List<Batch> getBatches() {
+		return Collections.unmodifiableList(batches);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public BatchOperation getOperation() {
+		return operation;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public boolean isStateless() {
+		return stateless;
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResult[" + operation + (stateless ? ", stateless" : "") + "] rows=" + rowCount + ", batches="
+				+ batches.size() + ", batchSize=" + batchSize + ", elapsed=" + elapsedMillis + "ms";
+	}
+}
@@ -0,0 +1,64 @@
+package com.facetime.spring.dao;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 分页count结果的缓存, 以count HQL和参数值作为查询条件签名.
+ * 缓存的结果在有效期内可能与数据库不一致, 因此命中时只能作为估计值.
+ *
+ * @author YUFEI
+ */
+final class CountCache {
+
+	private static final class Entry {
+		private final long count;
+		private final long expireTime;
+
+		Entry(long count, long expireTime) {
+			this.count = count;
+			this.expireTime = expireTime;
+		}
+	}
+
+	private final ConcurrentMap<String, Entry> counts = new ConcurrentHashMap<String, Entry>();
+	private final int maxEntries;
+	private final long ttlMillis;
+
+	CountCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+	}
+
+	static String signature(String countHql, Object[] values) {
+		StringBuilder key = new StringBuilder(countHql);
+		if (values != null) {
+			for (Object value : values) {
+				key.append('|').append(value);
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * 返回未过期的count结果, 不存在或已过期时返回<tt>null</tt>
+	 */
+	Long get(String signature) {
+		Entry entry = counts.get(signature);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expireTime < System.currentTimeMillis()) {
+			counts.remove(signature, entry);
+			return null;
+		}
+		return entry.count;
+	}
+
+	void put(String signature, long count) {
+		if (counts.size() >= maxEntries) {
+			counts.clear();
+		}
+		counts.put(signature, new Entry(count, System.currentTimeMillis() + ttlMillis));
+	}
+}
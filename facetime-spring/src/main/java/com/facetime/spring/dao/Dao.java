@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.List;
 
 import com.facetime.core.bean.BusinessObject;
+import com.facetime.core.utils.Each;
 import com.facetime.spring.support.Limitable;
 import com.facetime.spring.support.Page;
 import com.facetime.spring.support.QueryFilter;
@@ -17,6 +18,19 @@ import com.facetime.spring.support.Limitable.PageBy;
  */
 public abstract interface Dao {
 
+	/**
+	 * 批量执行保存/更新/删除, 每满一个批次执行一次JDBC批处理并清空一级缓存
+	 *
+	 * @param operation
+	 *            批量操作类型
+	 * @param entityList
+	 *            实体对象集合
+	 * @param stateless
+	 *            是否使用StatelessSession, 为<tt>true</tt>时绕过一级缓存和级联
+	 * @return 每一批次的行数和耗时
+	 */
+	<T extends BusinessObject> BatchResult batch(BatchOperation operation, Collection<T> entityList, boolean stateless);
+
 	/**
 	 * 统计指定类型实体数量
 	 *
@@ -220,6 +234,42 @@ public abstract interface Dao {
 	 */
 	<T extends BusinessObject> T findUnique(Class<T> entityClass, QueryFilter... filters);
 
+	/**
+	 * 以只读游标遍历指定类型和条件的实体, 每处理完一个实体即从Session中移除, 内存占用与结果集大小无关.
+	 * 回调的length参数为-1, 回调中抛出ExitLoop可提前结束遍历, 游标总会被关闭, 抛出ExitLoop的记录不计入返回值.
+	 * MySQL上游标逐行读取, 遍历结束前同一连接不能执行其他语句, 回调中不能调用Dao的其他方法.
+	 *
+	 * @param entityClass
+	 *            实体类型
+	 * @param filters
+	 *            条件
+	 * @param callback
+	 *            逐条处理实体的回调
+	 * @param limitbys
+	 *            排序或分页限制
+	 * @return 已处理的实体数量
+	 */
+	<T extends BusinessObject> int stream(Class<T> entityClass, QueryFilter[] filters, Each<? super T> callback,
+			Limitable... limitbys);
+
+	/**
+	 * 以只读游标遍历指定类型/条件的实体的属性值, 多个属性时回调的元素为Object[], 限制同{@link #stream}
+	 *
+	 * @param entityClass
+	 *            实体类型
+	 * @param filters
+	 *            条件
+	 * @param attrNames
+	 *            属性名数组
+	 * @param callback
+	 *            逐条处理属性值的回调
+	 * @param limitbys
+	 *            排序或分页限制
+	 * @return 已处理的记录数量
+	 */
+	<T extends BusinessObject, E> int streamPart(Class<T> entityClass, QueryFilter[] filters, String[] attrNames,
+			Each<? super E> callback, Limitable... limitbys);
+
 	/**
 	 * 获取指定类型的实体ID属性名
 	 *
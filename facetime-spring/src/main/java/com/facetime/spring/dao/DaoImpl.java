@@ -5,27 +5,55 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.beanutils.BeanUtils;
-import org.apache.commons.beanutils.PropertyUtils;
 import org.hibernate.HibernateException;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
-import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.SQLServerDialect;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
 import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.util.Assert;
 
 import com.facetime.core.bean.BusinessObject;
+import com.facetime.core.conf.ConfigUtils;
 import com.facetime.core.utils.CheckUtil;
+import com.facetime.core.utils.Each;
+import com.facetime.core.utils.ExitLoop;
+import com.facetime.core.utils.LoopException;
 import com.facetime.core.utils.StringUtils;
 import com.facetime.spring.support.Limitable;
 import com.facetime.spring.support.PMLO;
 import com.facetime.spring.support.Page;
 import com.facetime.spring.support.QueryFilter;
+import com.facetime.spring.support.Limitable.CountMode;
+import com.facetime.spring.support.Limitable.KeysetPageBy;
+import com.facetime.spring.support.Limitable.Order;
 import com.facetime.spring.support.Limitable.OrderBy;
 import com.facetime.spring.support.Limitable.PageBy;
+import com.facetime.spring.support.QueryInfo.RecordCountType;
 
 /**
  * 数据访问层的默认实现类
@@ -33,6 +61,107 @@ import com.facetime.spring.support.Limitable.PageBy;
  */
 public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 
+	/** 未配置hibernate.jdbc.batch_size时的默认批次大小 */
+	public static final int DEFAULT_BATCH_SIZE = 50;
+
+	/** CountMode.CACHED分页时count结果的缓存, 有效期由count_cache_seconds配置 */
+	private static final CountCache COUNT_CACHE = new CountCache(Integer.parseInt(ConfigUtils.getProperty(
+			"count_cache_size", 1024)), Long.parseLong(ConfigUtils.getProperty("count_cache_seconds", 60)) * 1000);
+
+	/** 并行执行IN子查询的线程数, 由in_chunk_threads配置, 0表示在调用线程中顺序执行 */
+	private static final int IN_CHUNK_THREADS = Integer.parseInt(ConfigUtils.getProperty("in_chunk_threads", 0));
+
+	private static volatile ExecutorService defaultInChunkExecutor;
+
+	/** 批量操作的批次大小, 小于等于0时取hibernate.jdbc.batch_size */
+	private int batchSize = 0;
+
+	/** SQL Server方言上一条语句的默认最大绑定参数个数(驱动上限为2100) */
+	public static final int SQL_SERVER_MAX_QUERY_PARAMS = 2000;
+
+	/** 非MySQL数据库上游标遍历的默认fetch size */
+	public static final int DEFAULT_STREAM_FETCH_SIZE = 500;
+
+	/**
+	 * 游标遍历时的JDBC fetch size, 由stream_fetch_size配置. 未配置(0)时按方言选择: MySQL Connector/J
+	 * 只有fetch size为Integer.MIN_VALUE时才逐行读取, 其他值仍会把整个结果集读入内存, 所以MySQL方言取Integer.MIN_VALUE,
+	 * 其他数据库(Oracle, H2)取DEFAULT_STREAM_FETCH_SIZE
+	 */
+	private int streamFetchSize = Integer.parseInt(ConfigUtils.getProperty("stream_fetch_size", 0));
+
+	/** 当前线程是否正在以Integer.MIN_VALUE的fetch size逐行读取, 此时连接上不能再执行其他语句 */
+	private static final ThreadLocal<Boolean> rowStreaming = new ThreadLocal<Boolean>();
+
+	/**
+	 * 单个IN条件的最大参数个数, 超过时不分页不排序的查询, 计数, 条件删除和条件更新拆分为多条语句执行.
+	 * 分页或排序的查询只在参数总数超过{@link #getMaxQueryParams()}时拆分
+	 */
+	private int inChunkSize = HQLBuilder.MAX_IN_NUMBERS;
+
+	/** 执行拆分后子查询的线程池, 为null时使用in_chunk_threads配置的共享线程池 */
+	private ExecutorService inChunkExecutor;
+
+	/** 实体元数据, 按本Dao的SessionFactory解析 */
+	private volatile EntityMetadata.Registry metadataRegistry;
+
+	/**
+	 * 在独立的只读Session中执行一个IN子查询, 供线程池并行调用
+	 */
+	private static class ChunkQuery<E> implements Callable<List<E>> {
+
+		private final SessionFactory sessionFactory;
+		private final String hql;
+		private final Object[] values;
+
+		ChunkQuery(SessionFactory sessionFactory, String hql, Object[] values) {
+			this.sessionFactory = sessionFactory;
+			this.hql = hql;
+			this.values = values;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public List<E> call() throws Exception {
+			Session session = sessionFactory.openSession();
+			try {
+				Query query = session.createQuery(hql);
+				query.setReadOnly(true);
+				for (int i = 0; i < values.length; i++) {
+					query.setParameter(i, values[i]);
+				}
+				return query.list();
+			} finally {
+				session.close();
+			}
+		}
+	}
+
+	private static ExecutorService getDefaultInChunkExecutor() {
+		if (IN_CHUNK_THREADS <= 0) {
+			return null;
+		}
+		if (defaultInChunkExecutor == null) {
+			synchronized (DaoImpl.class) {
+				if (defaultInChunkExecutor == null) {
+					// 有界队列, 队列满时由调用线程执行, 防止大批量查询压垮连接池
+					defaultInChunkExecutor = new ThreadPoolExecutor(IN_CHUNK_THREADS, IN_CHUNK_THREADS, 60L,
+							TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(IN_CHUNK_THREADS * 16),
+							new ThreadFactory() {
+								private final AtomicInteger count = new AtomicInteger();
+
+								@Override
+								public Thread newThread(Runnable r) {
+									Thread thread = new Thread(r, "dao-in-chunk-" + count.incrementAndGet());
+									thread.setDaemon(true);
+									return thread;
+								}
+							}, new ThreadPoolExecutor.CallerRunsPolicy());
+				}
+			}
+		}
+		return defaultInChunkExecutor;
+	}
+
 	private static int computedPageCount(int recordCount, int pageSize) {
 		int div = recordCount / pageSize;
 		int mod = recordCount % pageSize;
@@ -40,6 +169,14 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 		return pageCount;
 	}
 
+	@Override
+	public <T extends BusinessObject> BatchResult batch(BatchOperation operation, Collection<T> entityList,
+			boolean stateless) {
+		Assert.notNull(operation);
+		Assert.notNull(entityList);
+		return getHibernateTemplate().execute(this.batchOperate(entityList, operation, stateless));
+	}
+
 	@Override
 	public <T extends BusinessObject> long count(Class<T> entityClass) {
 		return this.executeCount(entityClass, null);
@@ -70,8 +207,7 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 
 	@Override
 	public <T extends BusinessObject> int delete(Collection<T> entityList) {
-		getHibernateTemplate().execute(this.batchOperate(entityList, "delete"));
-		return entityList.size();
+		return batch(BatchOperation.DELETE, entityList, false).getRowCount();
 	}
 
 	@Override
@@ -95,8 +231,8 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 
 	@Override
 	public <T extends BusinessObject> int deleteByIds(Class<T> entityClass, Serializable[] ids) {
-		return executeDelete(entityClass, new QueryFilter[] { new QueryFilter(getIdentifierName(entityClass), PMLO.IN,
-				ids) });
+		return executeDelete(entityClass, new QueryFilter[] { new QueryFilter(getIdentifierName(entityClass),
+				PMLO.IN, ids) });
 	}
 
 	@Override
@@ -106,8 +242,13 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 
 	@Override
 	public <T extends BusinessObject> T findById(Class<T> entityClass, Serializable id) {
+		EntityMetadata metadata = getEntityMetadata(entityClass);
+		if (metadata.isCacheable() && metadata.getIdentifierType().isInstance(id)) {
+			// 配置了二级缓存的实体通过Session.get读取, 命中缓存时不访问数据库
+			return getHibernateTemplate().get(entityClass, id);
+		}
 		List<T> result = this.executeFind(entityClass, new QueryFilter[] { new QueryFilter(
-				getIdentifierName(entityClass), id) });
+				metadata.getIdentifierName(), id) });
 		return result != null && result.size() == 1 ? result.get(0) : null;
 	}
 
@@ -115,7 +256,23 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 	public <T extends BusinessObject> List<T> findByIds(Class<T> entityClass, Serializable[] ids) {
 		List<T> result = this.executeFind(entityClass, new QueryFilter[] { new QueryFilter(
 				getIdentifierName(entityClass), PMLO.IN, ids) });
-		return result;
+		if (result.size() <= 1) {
+			return result;
+		}
+		// 按调用者传入的ID顺序返回, 拆分的子查询和数据库都不保证顺序
+		EntityMetadata metadata = getEntityMetadata(entityClass);
+		Map<String, T> entityMap = new HashMap<String, T>(result.size() * 4 / 3 + 1);
+		for (T entity : result) {
+			entityMap.put(String.valueOf(metadata.getIdentifierValue(entity)), entity);
+		}
+		List<T> orderedResult = new ArrayList<T>(result.size());
+		for (Serializable id : ids) {
+			T entity = entityMap.remove(String.valueOf(id));
+			if (entity != null) {
+				orderedResult.add(entity);
+			}
+		}
+		return orderedResult;
 	}
 
 	@Override
@@ -136,15 +293,13 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 	@Override
 	public String[] findIdArray(Class<? extends BusinessObject> entityClass, QueryFilter... filters) {
 		List<? extends BusinessObject> entityList = this.executeFind(entityClass, filters, new Limitable[] {});
-		List<String> idList = new ArrayList<String>();
-		for (BusinessObject entity : entityList) {
-			try {
-				idList.add(BeanUtils.getProperty(entity, getIdentifierName(entityClass)));
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+		EntityMetadata metadata = getEntityMetadata(entityClass);
+		String[] ids = new String[entityList.size()];
+		for (int i = 0; i < ids.length; i++) {
+			Object idValue = metadata.getIdentifierValue(entityList.get(i));
+			ids[i] = idValue == null ? null : idValue.toString();
 		}
-		return idList.toArray(new String[] {});
+		return ids;
 	}
 
 	@Override
@@ -209,21 +364,13 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 	}
 
 	@Override
-	@SuppressWarnings("unchecked")
 	public String getIdentifierName(Class<? extends BusinessObject> entityClass) {
-		ClassMetadata meta = getSessionFactory().getClassMetadata(entityClass.getName());
-		if (meta != null) {
-			return meta.getIdentifierPropertyName();
-		}
-		if (entityClass.getSuperclass() != null && BusinessObject.class.isAssignableFrom(entityClass.getSuperclass())) {
-			return getIdentifierName((Class<? extends BusinessObject>) entityClass.getSuperclass());
-		}
-		return null;
+		return getEntityMetadata(entityClass).getIdentifierName();
 	}
 
 	@Override
 	public <T extends BusinessObject> void save(Collection<T> entityList) {
-		getHibernateTemplate().execute(this.batchOperate(entityList, "save"));
+		batch(BatchOperation.SAVE, entityList, false);
 	}
 
 	@Override
@@ -231,10 +378,31 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 		if (entitys.length == 1) {
 			getHibernateTemplate().save(entitys[0]);
 		} else {
-			getHibernateTemplate().execute(this.batchOperate(Arrays.asList(entitys), "save"));
+			batch(BatchOperation.SAVE, Arrays.asList(entitys), false);
 		}
 	}
 
+	@Override
+	public <T extends BusinessObject> int stream(Class<T> entityClass, QueryFilter[] filters,
+			Each<? super T> callback, Limitable... limitbys) {
+		Assert.notNull(callback);
+		String findHQL = HQLBuilder.buildFindSubHQL(entityClass, filters, getOrderBys(limitbys));
+		Object[] values = CheckUtil.isValid(filters) ? HQLBuilder.getParamterValues(null, filters) : null;
+		return getHibernateTemplate().execute(
+				this.<T> executeScroll(findHQL, values, getPageby(limitbys), true, callback));
+	}
+
+	@Override
+	public <T extends BusinessObject, E> int streamPart(Class<T> entityClass, QueryFilter[] filters,
+			String[] attrNames, Each<? super E> callback, Limitable... limitbys) {
+		Assert.notNull(callback);
+		Assert.notEmpty(attrNames);
+		String findHQL = HQLBuilder.buildRetAttrSubHQL(entityClass, attrNames, filters, getOrderBys(limitbys));
+		Object[] values = CheckUtil.isValid(filters) ? HQLBuilder.getParamterValues(null, filters) : null;
+		return getHibernateTemplate().execute(
+				this.<E> executeScroll(findHQL, values, getPageby(limitbys), false, callback));
+	}
+
 	@Override
 	public <T extends BusinessObject> void update(Class<T> entityClass, QueryFilter[] filters, String[] attrNames,
 			Object[] attrValues) {
@@ -243,7 +411,7 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 
 	@Override
 	public <T extends BusinessObject> void update(Collection<T> entityList) {
-		getHibernateTemplate().execute(this.batchOperate(entityList, "update"));
+		batch(BatchOperation.UPDATE, entityList, false);
 	}
 
 	@Override
@@ -256,9 +424,10 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 		if (attrNames == null || attrNames.length == 0) {
 			this.getHibernateTemplate().update(entity);
 		} else {
-			executeUpdate(entity.getClass(), attrNames, getPropertyValues(entity, attrNames),
-					new QueryFilter[] { new QueryFilter(getIdentifierName(entity.getClass()),
-							getIdentifierValue(entity)) });
+			EntityMetadata metadata = getMetadataRegistry().of(entity);
+			executeUpdate(metadata.getEntityClass().asSubclass(BusinessObject.class), attrNames,
+					metadata.getPropertyValues(entity, attrNames), new QueryFilter[] { new QueryFilter(
+							metadata.getIdentifierName(), metadata.getIdentifierValue(entity)) });
 		}
 	}
 
@@ -267,81 +436,283 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 		if (entitys.length == 1) {
 			getHibernateTemplate().update(entitys[0]);
 		} else {
-			getHibernateTemplate().execute(this.batchOperate(Arrays.asList(entitys), "update"));
+			batch(BatchOperation.UPDATE, Arrays.asList(entitys), false);
+		}
+	}
+
+	/**
+	 * 返回批量操作的批次大小, 未显式设置时与hibernate.jdbc.batch_size保持一致
+	 */
+	public int getBatchSize() {
+		if (batchSize > 0) {
+			return batchSize;
+		}
+		int jdbcBatchSize = ((SessionFactoryImplementor) getSessionFactory()).getSettings().getJdbcBatchSize();
+		return jdbcBatchSize > 0 ? jdbcBatchSize : DEFAULT_BATCH_SIZE;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * 返回游标遍历的fetch size, 未显式设置时按当前方言选择
+	 */
+	public int getStreamFetchSize() {
+		if (streamFetchSize != 0) {
+			return streamFetchSize;
 		}
+		Dialect dialect = ((SessionFactoryImplementor) getSessionFactory()).getDialect();
+		return dialect instanceof MySQLDialect ? Integer.MIN_VALUE : DEFAULT_STREAM_FETCH_SIZE;
+	}
+
+	/**
+	 * 设置游标遍历的fetch size, 0表示按方言选择; MySQL驱动需要设置为Integer.MIN_VALUE才会逐行读取
+	 */
+	public void setStreamFetchSize(int streamFetchSize) {
+		this.streamFetchSize = streamFetchSize;
+	}
+
+	/**
+	 * 返回一条语句最多的绑定参数个数, 0表示不限制. 配置了max_query_params时取配置值,
+	 * 否则SQL Server方言取SQL_SERVER_MAX_QUERY_PARAMS, 其他方言不限制
+	 */
+	public int getMaxQueryParams() {
+		if (HQLBuilder.MAX_QUERY_PARAMS > 0) {
+			return HQLBuilder.MAX_QUERY_PARAMS;
+		}
+		Dialect dialect = ((SessionFactoryImplementor) getSessionFactory()).getDialect();
+		return dialect instanceof SQLServerDialect ? SQL_SERVER_MAX_QUERY_PARAMS : 0;
+	}
+
+	public int getInChunkSize() {
+		return inChunkSize;
+	}
+
+	public void setInChunkSize(int inChunkSize) {
+		Assert.isTrue(inChunkSize > 0, "inChunkSize must be positive.");
+		this.inChunkSize = inChunkSize;
+	}
+
+	public void setInChunkExecutor(ExecutorService inChunkExecutor) {
+		this.inChunkExecutor = inChunkExecutor;
+	}
+
+	private ExecutorService getInChunkExecutor() {
+		return inChunkExecutor != null ? inChunkExecutor : getDefaultInChunkExecutor();
 	}
 
 	/**
 	 * 批量操作公共方法
 	 * @param entityList 实体集合
-	 * @param operateName 操作名称, 只能是save/update/delete
+	 * @param operation 操作类型
+	 * @param stateless 是否使用StatelessSession
 	 * @return
 	 */
-	private <T extends BusinessObject> HibernateCallback<T> batchOperate(final Collection<T> entityList,
-			final String operateName) {
-		return new HibernateCallback<T>() {
+	private <T extends BusinessObject> HibernateCallback<BatchResult> batchOperate(final Collection<T> entityList,
+			final BatchOperation operation, final boolean stateless) {
+		final int size = getBatchSize();
+		return new HibernateCallback<BatchResult>() {
 
 			@Override
-			public T doInHibernate(Session session) throws HibernateException, SQLException {
-				Iterator<? extends BusinessObject> iterator = entityList.iterator();
-				for (int i = 0; iterator.hasNext(); i++) {
-					BusinessObject entity = iterator.next();
-					if ("save".equals(operateName)) {
-						session.save(entity);
-					} else if ("update".equals(operateName)) {
-						session.update(entity);
-					} else if ("delete".equals(operateName)) {
-						session.delete(entity);
-					}
-					if (i % 50 == 0) {
-						session.flush();
-						session.clear();
+			public BatchResult doInHibernate(Session session) throws HibernateException, SQLException {
+				BatchResult result = new BatchResult(operation, size, stateless);
+				if (stateless) {
+					// 共用当前事务的连接, 关闭StatelessSession时不会关闭该连接
+					@SuppressWarnings("deprecation")
+					StatelessSession statelessSession = session.getSessionFactory().openStatelessSession(
+							session.connection());
+					try {
+						executeBatch(statelessSession, entityList, operation, size, result);
+					} finally {
+						statelessSession.close();
 					}
+					evictCaches(entityList);
+				} else {
+					executeBatch(session, entityList, operation, size, result);
 				}
-				return null;
+				return result;
 			}
 		};
 	}
 
+	/**
+	 * StatelessSession不经过二级缓存, 批量写入后清除涉及实体的缓存区域和全部查询缓存
+	 */
+	private void evictCaches(Collection<? extends BusinessObject> entityList) {
+		boolean evicted = false;
+		Set<Class<?>> entityClasses = new HashSet<Class<?>>();
+		for (BusinessObject entity : entityList) {
+			EntityMetadata metadata = getMetadataRegistry().of(entity);
+			if (metadata.isCacheable() && entityClasses.add(metadata.getEntityClass())) {
+				getSessionFactory().getCache().evictEntityRegion(metadata.getEntityClass());
+				evicted = true;
+			}
+		}
+		if (evicted) {
+			getSessionFactory().getCache().evictQueryRegions();
+		}
+	}
+
+	private void executeBatch(Session session, Collection<? extends BusinessObject> entityList,
+			BatchOperation operation, int size, BatchResult result) {
+		session.flush();
+		int rows = 0;
+		long start = System.currentTimeMillis();
+		for (BusinessObject entity : entityList) {
+			operation.execute(session, entity);
+			if (++rows == size) {
+				session.flush();
+				session.clear();
+				result.addBatch(rows, System.currentTimeMillis() - start);
+				rows = 0;
+				start = System.currentTimeMillis();
+			}
+		}
+		if (rows > 0) {
+			session.flush();
+			session.clear();
+			result.addBatch(rows, System.currentTimeMillis() - start);
+		}
+	}
+
+	private void executeBatch(StatelessSession session, Collection<? extends BusinessObject> entityList,
+			BatchOperation operation, int size, BatchResult result) {
+		SessionImplementor implementor = (SessionImplementor) session;
+		int rows = 0;
+		long start = System.currentTimeMillis();
+		for (BusinessObject entity : entityList) {
+			operation.execute(session, entity);
+			if (++rows == size) {
+				implementor.getBatcher().executeBatch();
+				result.addBatch(rows, System.currentTimeMillis() - start);
+				rows = 0;
+				start = System.currentTimeMillis();
+			}
+		}
+		if (rows > 0) {
+			implementor.getBatcher().executeBatch();
+			result.addBatch(rows, System.currentTimeMillis() - start);
+		}
+	}
+
 	private <T> Page<T> createPage(PageBy pageby, List<T> resultList, int recordCount) {
+		return createPage(pageby, resultList, recordCount, RecordCountType.EXACT);
+	}
+
+	private <T> Page<T> createPage(PageBy pageby, List<T> resultList, int recordCount, RecordCountType countType) {
 		Page<T> page = new Page<T>();
 		page.setCurrentPageNo(pageby.getPageNum());
 		page.setRecordCount(recordCount);
+		page.setRecordCountType(countType);
 		page.setPageCount(computedPageCount(recordCount, pageby.getPageSize()));
 		page.setPageSize(pageby.getPageSize());
+		page.setHasNextPage(pageby.getPageNum() < page.getPageCount());
 		if (recordCount > 0) {
 			page.setQueryResult(resultList);
 		}
 		return page;
 	}
 
+	/**
+	 * 根据分页的CountMode统计总数并创建分页. resultList是多取一条记录的查询结果, 用于判断是否有下一页
+	 */
+	private <T> Page<T> createPage(PageBy pageby, List<T> resultList, String countHql, Object[] countValues) {
+		boolean hasNextPage = resultList.size() > pageby.getPageSize();
+		if (hasNextPage) {
+			resultList = new ArrayList<T>(resultList.subList(0, pageby.getPageSize()));
+		}
+		Page<T> page = null;
+		if (pageby.getCountMode() == CountMode.NONE) {
+			// 总数未知, 记录数只是已知的下限
+			int knownCount = (pageby.getPageNum() - 1) * pageby.getPageSize() + resultList.size();
+			page = createPage(pageby, resultList, hasNextPage ? knownCount + 1 : knownCount, RecordCountType.UNKNOWN);
+			page.setQueryResult(resultList);
+		} else if (pageby.getCountMode() == CountMode.CACHED) {
+			// 缓存的总数小于本页已知的记录数时已经过期(包括缓存为0后新增了记录), 重新统计
+			int knownCount = (pageby.getPageNum() - 1) * pageby.getPageSize() + resultList.size()
+					+ (hasNextPage ? 1 : 0);
+			String signature = CountCache.signature(countHql, countValues);
+			Long cached = COUNT_CACHE.get(signature);
+			if (cached != null && cached.longValue() >= knownCount) {
+				page = createPage(pageby, resultList, cached.intValue(), RecordCountType.ESTIMATED);
+			} else {
+				long recordCount = this.executeCountHQL(countHql, countValues);
+				COUNT_CACHE.put(signature, recordCount);
+				page = createPage(pageby, resultList, (int) recordCount);
+			}
+			page.setQueryResult(resultList);
+		} else {
+			page = createPage(pageby, resultList, (int) this.executeCountHQL(countHql, countValues));
+		}
+		page.setHasNextPage(hasNextPage);
+		return page;
+	}
+
+	private <T extends BusinessObject> String buildCountHQL(Class<T> entityClass, QueryFilter[] filters) {
+		return HQLBuilder.buildCountHQL(entityClass, getIdentifierName(entityClass), filters);
+	}
+
 	private <T extends BusinessObject> long executeCount(Class<T> entityClass, QueryFilter[] filters) {
-		String idName = getIdentifierName(entityClass);
-		StringBuilder hql = new StringBuilder();
+		int inIndex = HQLBuilder.indexOfLargeInFilter(filters, inChunkSize);
+		if (inIndex >= 0) {
+			long total = 0;
+			for (QueryFilter[] chunk : HQLBuilder.splitInFilter(filters, inIndex, inChunkSize)) {
+				total += executeCount(entityClass, chunk);
+			}
+			return total;
+		}
 		Object[] values = new Object[] {};
-
-		hql.append("select count(obj.").append(idName).append(")");
-		hql.append(" from ").append(entityClass.getName()).append(" as obj ");
 		if (filters != null && filters.length > 0) {
-			hql.append(HQLBuilder.buildQueryFilterSubHQL(filters));
 			values = HQLBuilder.getParamterValues(null, filters);
 		}
-		List<Object> total = this.findHQL(hql.toString(), values);
+		String cacheRegion = getQueryCacheRegion(entityClass);
+		if (cacheRegion == null) {
+			return executeCountHQL(buildCountHQL(entityClass, filters), values);
+		}
+		List<Object> total = getHibernateTemplate().executeFind(
+				executeLimitQuery(buildCountHQL(entityClass, filters), values, 0, 0, cacheRegion));
+		return total.get(0) instanceof Long ? ((Long) total.get(0)).intValue() : (Integer) total.get(0);
+	}
+
+	private long executeCountHQL(String countHql, Object[] values) {
+		List<Object> total = this.findHQL(countHql, values);
 		return total.get(0) instanceof Long ? ((Long) total.get(0)).intValue() : (Integer) total.get(0);
 	}
 
 	private int executeDelete(Class<? extends BusinessObject> entityClass, QueryFilter[] filters) {
+		int inIndex = HQLBuilder.indexOfLargeInFilter(filters, inChunkSize);
+		if (inIndex >= 0) {
+			int deleted = 0;
+			for (QueryFilter[] chunk : HQLBuilder.splitInFilter(filters, inIndex, inChunkSize)) {
+				deleted += executeDelete(entityClass, chunk);
+			}
+			return deleted;
+		}
 		if (filters == null || filters.length <= 0) {
 			return getHibernateTemplate().bulkUpdate(HQLBuilder.buildDeleteHQL(entityClass, filters));
 		}
-		getHibernateTemplate().bulkUpdate(HQLBuilder.buildDeleteHQL(entityClass, filters),
+		return getHibernateTemplate().bulkUpdate(HQLBuilder.buildDeleteHQL(entityClass, filters),
 				HQLBuilder.getParamterValues(null, filters));
-		return 1;
 	}
 
 	@SuppressWarnings("unchecked")
 	private <T extends BusinessObject, E> List<E> executeDiffFind(Class<T> entityClass, QueryFilter[] filters,
 			String[] attrNames, OrderBy[] orderbys, PageBy pageby) {
+		if (pageby == null && !CheckUtil.isValid(orderbys)) {
+			int inIndex = HQLBuilder.indexOfLargeInFilter(filters, inChunkSize);
+			if (inIndex >= 0) {
+				return this.executeChunkedFind(entityClass, filters, attrNames, inIndex);
+			}
+		} else if (exceedsMaxQueryParams(filters)) {
+			int inIndex = HQLBuilder.indexOfLargeInFilter(filters, inChunkSize);
+			if (inIndex >= 0) {
+				int firstResult = pageby == null ? 0 : (pageby.getPageNum() - 1) * pageby.getPageSize();
+				int maxResults = pageby == null ? 0 : pageby.getPageSize();
+				return this.executeChunkedLimitFind(entityClass, filters, attrNames, orderbys, inIndex, firstResult,
+						maxResults);
+			}
+		}
 		String findHQL = null;
 		if (attrNames == null) {
 			findHQL = HQLBuilder.buildFindSubHQL(entityClass, filters, orderbys);
@@ -350,7 +721,13 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 		}
 		Object[] values = CheckUtil.isValid(filters) ? HQLBuilder.getParamterValues(null, filters) : null;
 		List<E> result = null;
-		if (pageby == null) {
+		String cacheRegion = getQueryCacheRegion(entityClass);
+		if (cacheRegion != null) {
+			int firstResult = pageby == null ? 0 : (pageby.getPageNum() - 1) * pageby.getPageSize();
+			int maxResults = pageby == null ? 0 : pageby.getPageSize();
+			result = getHibernateTemplate().executeFind(
+					executeLimitQuery(findHQL, values, firstResult, maxResults, cacheRegion));
+		} else if (pageby == null) {
 			result = CheckUtil.isValid(values) ? getHibernateTemplate().find(findHQL, values) : getHibernateTemplate()
 					.find(findHQL);
 		} else {
@@ -359,6 +736,130 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 		return result != null ? result : new ArrayList<E>();
 	}
 
+	/**
+	 * 把大的IN条件拆分为多个子查询执行并合并结果. 配置了线程池时子查询在独立的只读Session中并行执行,
+	 * 此时返回的实体不在当前Session中.
+	 * @param entityClass
+	 * @param filters
+	 * @param attrNames
+	 * @param inIndex 要拆分的IN条件下标
+	 * @return
+	 */
+	private <T extends BusinessObject, E> List<E> executeChunkedFind(Class<T> entityClass, QueryFilter[] filters,
+			String[] attrNames, int inIndex) {
+		List<QueryFilter[]> chunks = HQLBuilder.splitInFilter(filters, inIndex, inChunkSize);
+		List<E> result = new ArrayList<E>();
+		ExecutorService executor = getInChunkExecutor();
+		if (executor == null || chunks.size() == 1) {
+			for (QueryFilter[] chunk : chunks) {
+				result.addAll(this.<T, E> executeDiffFind(entityClass, chunk, attrNames, null, null));
+			}
+			return result;
+		}
+		List<Future<List<E>>> futures = new ArrayList<Future<List<E>>>(chunks.size());
+		for (QueryFilter[] chunk : chunks) {
+			String findHQL = attrNames == null ? HQLBuilder.buildFindSubHQL(entityClass, chunk, null) : HQLBuilder
+					.buildRetAttrSubHQL(entityClass, attrNames, chunk, null);
+			futures.add(executor.submit(new ChunkQuery<E>(getSessionFactory(), findHQL, HQLBuilder
+					.getParamterValues(null, chunk))));
+		}
+		try {
+			for (Future<List<E>> future : futures) {
+				result.addAll(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DaoException("chunked query is interrupted.", e, this);
+		} catch (ExecutionException e) {
+			throw new DaoException(e.getCause().getMessage(), e.getCause(), this);
+		} finally {
+			for (Future<List<E>> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 参数总数超过{@link #getMaxQueryParams()}的分页或排序查询: 把大的IN条件拆分为多个子查询, 每个子查询按相同的排序
+	 * 只取前firstResult + maxResults条记录的主键和排序属性, 在内存中归并排序后截取本页的主键, 再按主键分批取回结果.
+	 * 内存中比较时null最小, 与SQL Server和MySQL升序时null在前的顺序一致
+	 * @param entityClass
+	 * @param filters
+	 * @param attrNames
+	 * @param orderbys
+	 * @param inIndex 要拆分的IN条件下标
+	 * @param firstResult 起始位置
+	 * @param maxResults 最大条数, 小于等于0时不限制
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private <T extends BusinessObject, E> List<E> executeChunkedLimitFind(Class<T> entityClass,
+			QueryFilter[] filters, String[] attrNames, final OrderBy[] orderbys, int inIndex, int firstResult,
+			int maxResults) {
+		String idName = getIdentifierName(entityClass);
+		int orderCount = orderbys == null ? 0 : orderbys.length;
+		String[] keyNames = new String[orderCount + 1];
+		keyNames[0] = idName;
+		for (int i = 0; i < orderCount; i++) {
+			keyNames[i + 1] = orderbys[i].getProperty();
+		}
+		int limit = maxResults > 0 ? firstResult + maxResults : 0;
+		List<Object[]> keys = new ArrayList<Object[]>();
+		for (QueryFilter[] chunk : HQLBuilder.splitInFilter(filters, inIndex, inChunkSize)) {
+			String keyHQL = HQLBuilder.buildRetAttrSubHQL(entityClass, keyNames, chunk, orderbys);
+			List<Object> rows = getHibernateTemplate().executeFind(
+					executeLimitQuery(keyHQL, HQLBuilder.getParamterValues(null, chunk), 0, limit));
+			for (Object row : rows) {
+				keys.add(row instanceof Object[] ? (Object[]) row : new Object[] { row });
+			}
+		}
+		if (orderCount > 0) {
+			Collections.sort(keys, new Comparator<Object[]>() {
+				@Override
+				public int compare(Object[] o1, Object[] o2) {
+					for (int i = 0; i < orderbys.length; i++) {
+						int c = compareValue(o1[i + 1], o2[i + 1]);
+						if (c != 0) {
+							return orderbys[i].getOrderType() == Order.DESC ? -c : c;
+						}
+					}
+					return 0;
+				}
+			});
+		}
+		List<E> result = new ArrayList<E>();
+		int toIndex = limit > 0 ? Math.min(limit, keys.size()) : keys.size();
+		if (firstResult >= toIndex) {
+			return result;
+		}
+		Object[] ids = new Object[toIndex - firstResult];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = keys.get(firstResult + i)[0];
+		}
+		// 主键已按排序截取, 每批按相同排序取回后顺序拼接即为全局顺序
+		int batch = Math.min(inChunkSize, getMaxQueryParams());
+		for (int from = 0; from < ids.length; from += batch) {
+			Object[] batchIds = Arrays.copyOfRange(ids, from, Math.min(from + batch, ids.length));
+			result.addAll(this.<T, E> executeDiffFind(entityClass, new QueryFilter[] { new QueryFilter(idName,
+					PMLO.IN, batchIds) }, attrNames, orderbys, null));
+		}
+		return result;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compareValue(Object v1, Object v2) {
+		if (v1 == null || v2 == null) {
+			return v1 == null ? (v2 == null ? 0 : -1) : 1;
+		}
+		return ((Comparable) v1).compareTo(v2);
+	}
+
+	private boolean exceedsMaxQueryParams(QueryFilter[] filters) {
+		int maxQueryParams = getMaxQueryParams();
+		return maxQueryParams > 0 && HQLBuilder.getParamterCount(filters) > maxQueryParams;
+	}
+
 	/**
 	 * 执行查询执行条件的实体集合
 	 * @param <T>
@@ -388,21 +889,75 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 	 * @param limitbys
 	 * @return
 	 */
+	@SuppressWarnings("unchecked")
 	private <T extends BusinessObject> Page<T> executeFindPage(Class<T> entityClass, QueryFilter[] filters,
 			Limitable... limitbys) {
 		OrderBy[] orderbys = getOrderBys(limitbys);
 		PageBy pageby = getPageby(limitbys);
 		Assert.notNull(pageby, " pageby can't be null !");
-		List<T> resultList = this.executeDiffFind(entityClass, filters, null, orderbys, pageby);
-		int recordCount = (int) this.count(entityClass, filters);
-		return createPage(pageby, resultList, recordCount);
+		if (pageby instanceof KeysetPageBy) {
+			return executeFindKeysetPage(entityClass, filters, (KeysetPageBy) pageby);
+		}
+		// 参数超限时count语句也要拆分, 只能精确计数
+		if (pageby.getCountMode() == CountMode.EXACT || exceedsMaxQueryParams(filters)) {
+			List<T> resultList = this.executeDiffFind(entityClass, filters, null, orderbys, pageby);
+			int recordCount = (int) this.count(entityClass, filters);
+			return createPage(pageby, resultList, recordCount);
+		}
+		String findHQL = HQLBuilder.buildFindSubHQL(entityClass, filters, orderbys);
+		Object[] values = CheckUtil.isValid(filters) ? HQLBuilder.getParamterValues(null, filters) : null;
+		List<T> resultList = getHibernateTemplate().executeFind(
+				executeLimitQuery(findHQL, values, (pageby.getPageNum() - 1) * pageby.getPageSize(),
+						pageby.getPageSize() + 1));
+		return createPage(pageby, resultList, buildCountHQL(entityClass, filters), values);
 	}
 
+	@SuppressWarnings("unchecked")
 	private <T extends BusinessObject> Page<T> executeFindPageByHQL(String hql, Object[] values, PageBy pageby) {
 		assert pageby != null : " pageby can't be null !";
-		List<T> resultList = this.executeFindHQL(hql, values, pageby);
-		int recordCount = (int) this.count(hql, values);
-		return createPage(pageby, resultList, recordCount);
+		if (pageby.getCountMode() == CountMode.EXACT) {
+			List<T> resultList = this.executeFindHQL(hql, values, pageby);
+			int recordCount = (int) this.count(hql, values);
+			return createPage(pageby, resultList, recordCount);
+		}
+		List<T> resultList = getHibernateTemplate().executeFind(
+				executeLimitQuery(hql, values, (pageby.getPageNum() - 1) * pageby.getPageSize(),
+						pageby.getPageSize() + 1));
+		return createPage(pageby, resultList, HQLBuilder.getCountQueryString(hql), values);
+	}
+
+	/**
+	 * 游标分页: 以上一页最后的属性值为起点, 只按游标属性排序, 不使用OFFSET
+	 * @param entityClass
+	 * @param filters
+	 * @param pageby
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private <T extends BusinessObject> Page<T> executeFindKeysetPage(Class<T> entityClass, QueryFilter[] filters,
+			KeysetPageBy pageby) {
+		Object lastKey = pageby.getLastKey();
+		PMLO seekOperate = pageby.getOrder() == Order.DESC ? PMLO.LT : PMLO.GT;
+		List<QueryFilter> seekFilters = new ArrayList<QueryFilter>();
+		if (filters != null) {
+			seekFilters.addAll(Arrays.asList(filters));
+		}
+		seekFilters.add(new QueryFilter(pageby.getProperty(), seekOperate, lastKey, lastKey != null));
+		QueryFilter[] seekFilterArray = seekFilters.toArray(new QueryFilter[] {});
+
+		String findHQL = HQLBuilder.buildFindSubHQL(entityClass, seekFilterArray,
+				new OrderBy[] { new OrderBy(pageby.getProperty(), pageby.getOrder()) });
+		List<T> resultList = getHibernateTemplate().executeFind(
+				executeLimitQuery(findHQL, HQLBuilder.getParamterValues(null, seekFilterArray), 0,
+						pageby.getPageSize() + 1));
+		Object[] countValues = CheckUtil.isValid(filters) ? HQLBuilder.getParamterValues(null, filters) : null;
+		Page<T> page = createPage(pageby, resultList, buildCountHQL(entityClass, filters), countValues);
+		if (page.isHasNextPage()) {
+			List<T> pageResult = page.getQueryResult();
+			page.setNextKey(getEntityMetadata(entityClass).getPropertyValue(pageResult.get(pageResult.size() - 1),
+					pageby.getProperty()));
+		}
+		return page;
 	}
 
 	/**
@@ -428,13 +983,49 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 	 */
 	private <T extends BusinessObject> HibernateCallback<List<T>> executePageletQuery(final String findHQL,
 			final Object[] values, final PageBy pageby) {
+		return executeLimitQuery(findHQL, values, (pageby.getPageNum() - 1) * pageby.getPageSize(),
+				pageby.getPageSize());
+	}
+
+	/**
+	 * 执行限定起始位置和最大条数的查询
+	 * @param findHQL 查询HQL
+	 * @param values 参数值数组
+	 * @param firstResult 起始位置
+	 * @param maxResults 最大条数
+	 * @return
+	 */
+	private <T extends BusinessObject> HibernateCallback<List<T>> executeLimitQuery(final String findHQL,
+			final Object[] values, final int firstResult, final int maxResults) {
+		return executeLimitQuery(findHQL, values, firstResult, maxResults, null);
+	}
+
+	/**
+	 * 执行限定起始位置和最大条数的查询, cacheRegion不为null时查询结果进入该查询缓存区域
+	 * @param findHQL 查询HQL
+	 * @param values 参数值数组
+	 * @param firstResult 起始位置
+	 * @param maxResults 最大条数, 小于等于0时不限制
+	 * @param cacheRegion 查询缓存区域
+	 * @return
+	 */
+	private <T> HibernateCallback<List<T>> executeLimitQuery(final String findHQL, final Object[] values,
+			final int firstResult, final int maxResults, final String cacheRegion) {
 		return new HibernateCallback<List<T>>() {
 			@SuppressWarnings("unchecked")
 			@Override
 			public List<T> doInHibernate(Session session) throws HibernateException, SQLException {
 				Query query = session.createQuery(findHQL);
-				query.setFirstResult((pageby.getPageNum() - 1) * pageby.getPageSize());
-				query.setMaxResults(pageby.getPageSize());
+				if (firstResult > 0) {
+					query.setFirstResult(firstResult);
+				}
+				if (maxResults > 0) {
+					query.setMaxResults(maxResults);
+				}
+				if (cacheRegion != null) {
+					query.setCacheable(true);
+					query.setCacheRegion(cacheRegion);
+				}
 				if (CheckUtil.isValid(values)) {
 					for (int i = 0; i < values.length; i++) {
 						query.setParameter(i, values[i]);
@@ -445,6 +1036,73 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 		};
 	}
 
+	/**
+	 * 以FORWARD_ONLY游标逐条回调查询结果, 结束或提前退出时关闭游标. fetch size为Integer.MIN_VALUE(MySQL)时,
+	 * 游标关闭前同一连接上不能执行其他语句, 回调中嵌套的stream调用直接抛出DaoException, 其他Dao调用由驱动报错
+	 * @param findHQL 查询HQL
+	 * @param values 参数值数组
+	 * @param pageby 分页, 可以为null
+	 * @param evict 处理完后是否从Session中移除该实体
+	 * @param callback 回调
+	 * @return 已处理的记录数量
+	 */
+	private <E> HibernateCallback<Integer> executeScroll(final String findHQL, final Object[] values,
+			final PageBy pageby, final boolean evict, final Each<? super E> callback) {
+		return new HibernateCallback<Integer>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Integer doInHibernate(Session session) throws HibernateException, SQLException {
+				int fetchSize = getStreamFetchSize();
+				boolean rowByRow = fetchSize == Integer.MIN_VALUE;
+				if (rowByRow && Boolean.TRUE.equals(rowStreaming.get())) {
+					throw new DaoException("Cannot stream inside a row-by-row stream callback on the same connection.",
+							null, DaoImpl.this);
+				}
+				Query query = session.createQuery(findHQL);
+				query.setReadOnly(true);
+				query.setFetchSize(fetchSize);
+				if (pageby != null) {
+					query.setFirstResult((pageby.getPageNum() - 1) * pageby.getPageSize());
+					query.setMaxResults(pageby.getPageSize());
+				}
+				if (CheckUtil.isValid(values)) {
+					for (int i = 0; i < values.length; i++) {
+						query.setParameter(i, values[i]);
+					}
+				}
+				ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+				int count = 0;
+				if (rowByRow) {
+					rowStreaming.set(Boolean.TRUE);
+				}
+				try {
+					while (results.next()) {
+						Object[] row = results.get();
+						Object elem = row.length == 1 ? row[0] : row;
+						try {
+							callback.loop(count, (E) elem, -1);
+							count++;
+						} catch (ExitLoop e) {
+							break;
+						} catch (LoopException e) {
+							throw new DaoException(e.getCause().getMessage(), e.getCause(), DaoImpl.this);
+						} finally {
+							if (evict && elem != null) {
+								session.evict(elem);
+							}
+						}
+					}
+				} finally {
+					if (rowByRow) {
+						rowStreaming.remove();
+					}
+					results.close();
+				}
+				return count;
+			}
+		};
+	}
+
 	/**
 	 * 更新指定类型和条件的实体的某些属性名的属性值
 	 * @param entityClass 实体类型
@@ -456,19 +1114,48 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 			QueryFilter[] filters) {
 		Assert.notNull(entityClass);
 		Assert.isTrue(attrNames.length == attrValues.length, "The count of parameters is not matched.");
+		int inIndex = HQLBuilder.indexOfLargeInFilter(filters, inChunkSize);
+		if (inIndex >= 0) {
+			for (QueryFilter[] chunk : HQLBuilder.splitInFilter(filters, inIndex, inChunkSize)) {
+				executeUpdate(entityClass, attrNames, attrValues, chunk);
+			}
+			return;
+		}
 		final String updateHql = HQLBuilder.buildUpdateHQL(entityClass, filters, attrNames, attrValues);
 		final Object[] paramValues = HQLBuilder.getParamterValues(attrValues, filters);
 		getHibernateTemplate().bulkUpdate(updateHql, paramValues);
 	}
 
-	private Object getIdentifierValue(BusinessObject entity) {
-		Object idValue = null;
-		try {
-			idValue = PropertyUtils.getProperty(entity, getIdentifierName(entity.getClass()));
-		} catch (Exception e) {
-			throw new DaoException("id property is not existed.");
+	/**
+	 * 返回实体的查询缓存区域, 实体未配置二级缓存或未开启hibernate.cache.use_query_cache时返回null
+	 */
+	protected String getQueryCacheRegion(Class<? extends BusinessObject> entityClass) {
+		EntityMetadata metadata = getEntityMetadata(entityClass);
+		if (!metadata.isCacheable()
+				|| !((SessionFactoryImplementor) getSessionFactory()).getSettings().isQueryCacheEnabled()) {
+			return null;
 		}
-		return idValue;
+		return metadata.getQueryCacheRegion();
+	}
+
+	/**
+	 * 返回实体类型的元数据, ID属性名和属性访问方法只解析一次
+	 */
+	protected EntityMetadata getEntityMetadata(Class<? extends BusinessObject> entityClass) {
+		return getMetadataRegistry().of(entityClass);
+	}
+
+	/**
+	 * 返回当前SessionFactory的实体元数据注册表, 更换SessionFactory后重新解析
+	 */
+	protected EntityMetadata.Registry getMetadataRegistry() {
+		SessionFactory sessionFactory = getSessionFactory();
+		EntityMetadata.Registry registry = metadataRegistry;
+		if (registry == null || registry.getSessionFactory() != sessionFactory) {
+			registry = new EntityMetadata.Registry(sessionFactory);
+			metadataRegistry = registry;
+		}
+		return registry;
 	}
 
 	private OrderBy[] getOrderBys(Limitable... limitbys) {
@@ -487,7 +1174,7 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 		PageBy pageby = null;
 		if (limitbys != null && limitbys.length > 0) {
 			for (Limitable limitby : limitbys) {
-				if (limitby.getClass() == PageBy.class) {
+				if (limitby instanceof PageBy) {
 					pageby = (PageBy) limitby;
 				}
 			}
@@ -495,32 +1182,6 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 		return pageby;
 	}
 
-	/**
-	 * Return specify entity object's properties values.
-	 * @param entity persist object
-	 * @param attrNames user input properties names
-	 */
-	private String getPropertyValue(BusinessObject entity, String attrName) {
-		try {
-			return BeanUtils.getProperty(entity, attrName);
-		} catch (Exception e) {
-			throw new DaoException(e.getMessage());
-		}
-	}
-
-	/**
-	 * Return specify entity object's properties values.
-	 * @param entity persist object
-	 * @param attrNames user input properties names
-	 */
-	private Object[] getPropertyValues(BusinessObject entity, String[] attrNames) {
-		List<Object> values = new ArrayList<Object>();
-		for (String propertyName : attrNames) {
-			values.add(getPropertyValue(entity, propertyName));
-		}
-		return values.toArray();
-	}
-
 	/**
 	 * Validate whether user use '.' expression in HQL statement.
 	 * @param entityClass
@@ -532,14 +1193,11 @@ public class DaoImpl extends AnnotationHibernateDaoSupport implements Dao {
 			return true;
 		}
 		String[] props = StringUtils.split(property, ".", 2);
-		try {
-			Class<?> relativeClass = entityClass.getDeclaredField(props[0]).getDeclaringClass();
-			return getIdentifierName((Class<? extends BusinessObject>) relativeClass).equalsIgnoreCase(props[1]);
-		} catch (SecurityException e) {
-			e.printStackTrace();
-		} catch (NoSuchFieldException e) {
-			e.printStackTrace();
-		}
-		return false;
+		Class<?> relativeClass = getEntityMetadata(entityClass).getPropertyType(props[0]);
+		if (relativeClass == null || !BusinessObject.class.isAssignableFrom(relativeClass)) {
+			return false;
+		}
+		String idName = getIdentifierName((Class<? extends BusinessObject>) relativeClass);
+		return idName != null && idName.equalsIgnoreCase(props[1]);
 	}
 }
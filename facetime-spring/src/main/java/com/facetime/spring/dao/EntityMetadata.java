@@ -0,0 +1,225 @@
+package com.facetime.spring.dao;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.cglib.reflect.FastClass;
+import net.sf.cglib.reflect.FastMethod;
+
+import org.apache.commons.beanutils.PropertyUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxyHelper;
+
+import com.facetime.core.bean.BusinessObject;
+
+/**
+ * 实体类型的元数据, 包括ID属性名和属性的读写方法. 每个实体类型在一个{@link Registry}中只解析一次,
+ * 属性访问使用cglib生成的FastClass调用, 不再每次经过commons-beanutils反射.
+ *
+ * @author YUFEI
+ */
+public final class EntityMetadata {
+
+	/**
+	 * 一个SessionFactory的实体元数据注册表, 由使用该SessionFactory的Dao持有.
+	 * 元数据(ID属性名, 是否缓存)取决于SessionFactory, 不同SessionFactory的同一实体类型分别解析,
+	 * Dao释放后注册表和其中的实体类型引用一起释放
+	 */
+	public static final class Registry {
+		private final SessionFactory sessionFactory;
+		private final ConcurrentMap<Class<?>, EntityMetadata> metadatas;
+
+		public Registry(SessionFactory sessionFactory) {
+			this.sessionFactory = sessionFactory;
+			this.metadatas = new ConcurrentHashMap<Class<?>, EntityMetadata>();
+		}
+
+		public SessionFactory getSessionFactory() {
+			return sessionFactory;
+		}
+
+		/**
+		 * 返回实体类型的元数据, 首次访问时解析并注册
+		 *
+		 * @param entityClass
+		 *            实体类型, 可以是Hibernate代理类
+		 */
+		public EntityMetadata of(Class<?> entityClass) {
+			EntityMetadata metadata = metadatas.get(entityClass);
+			if (metadata == null) {
+				metadata = new EntityMetadata(entityClass, resolveClassMetadata(entityClass, sessionFactory),
+						sessionFactory);
+				EntityMetadata existed = metadatas.putIfAbsent(entityClass, metadata);
+				if (existed != null) {
+					metadata = existed;
+				}
+			}
+			return metadata;
+		}
+
+		/**
+		 * 返回实体对象的元数据, Hibernate代理对象按被代理的实体类型解析
+		 */
+		public EntityMetadata of(BusinessObject entity) {
+			return of(HibernateProxyHelper.getClassWithoutInitializingProxy(entity));
+		}
+	}
+
+	private final Class<?> entityClass;
+	private final String identifierName;
+	private final Class<?> identifierType;
+	private final boolean cacheable;
+	private final FastMethod identifierGetter;
+	private final Map<String, FastMethod> getters;
+	private final Map<String, FastMethod> setters;
+	private final Map<String, Class<?>> propertyTypes;
+
+	private EntityMetadata(Class<?> entityClass, ClassMetadata classMetadata, SessionFactory sessionFactory) {
+		this.entityClass = entityClass;
+		if (classMetadata != null) {
+			this.identifierName = classMetadata.getIdentifierPropertyName();
+			this.identifierType = classMetadata.getIdentifierType().getReturnedClass();
+			this.cacheable = ((SessionFactoryImplementor) sessionFactory).getEntityPersister(
+					classMetadata.getEntityName()).hasCache();
+		} else {
+			this.identifierName = null;
+			this.identifierType = null;
+			this.cacheable = false;
+		}
+		Map<String, FastMethod> getterMap = new HashMap<String, FastMethod>();
+		Map<String, FastMethod> setterMap = new HashMap<String, FastMethod>();
+		Map<String, Class<?>> typeMap = new HashMap<String, Class<?>>();
+		FastClass fastClass = FastClass.create(entityClass);
+		try {
+			BeanInfo beanInfo = Introspector.getBeanInfo(entityClass, Object.class);
+			for (PropertyDescriptor descriptor : beanInfo.getPropertyDescriptors()) {
+				Method reader = descriptor.getReadMethod();
+				Method writer = descriptor.getWriteMethod();
+				if (reader != null) {
+					getterMap.put(descriptor.getName(), fastClass.getMethod(reader));
+				}
+				if (writer != null) {
+					setterMap.put(descriptor.getName(), fastClass.getMethod(writer));
+				}
+				if (descriptor.getPropertyType() != null) {
+					typeMap.put(descriptor.getName(), descriptor.getPropertyType());
+				}
+			}
+		} catch (IntrospectionException e) {
+			throw new DaoException("can't introspect entity " + entityClass.getName() + ": " + e.getMessage());
+		}
+		this.getters = Collections.unmodifiableMap(getterMap);
+		this.setters = Collections.unmodifiableMap(setterMap);
+		this.propertyTypes = Collections.unmodifiableMap(typeMap);
+		this.identifierGetter = identifierName == null ? null : getterMap.get(identifierName);
+	}
+
+	private static ClassMetadata resolveClassMetadata(Class<?> entityClass, SessionFactory sessionFactory) {
+		for (Class<?> clazz = entityClass; clazz != null && BusinessObject.class.isAssignableFrom(clazz); clazz = clazz
+				.getSuperclass()) {
+			ClassMetadata meta = sessionFactory.getClassMetadata(clazz.getName());
+			if (meta != null) {
+				return meta;
+			}
+		}
+		return null;
+	}
+
+	public Class<?> getEntityClass() {
+		return entityClass;
+	}
+
+	public String getIdentifierName() {
+		return identifierName;
+	}
+
+	/**
+	 * 返回ID属性的类型, 非Hibernate实体时返回<tt>null</tt>
+	 */
+	public Class<?> getIdentifierType() {
+		return identifierType;
+	}
+
+	public Object getIdentifierValue(Object entity) {
+		if (identifierGetter == null) {
+			throw new DaoException("id property is not existed in " + entityClass.getName());
+		}
+		return invoke(identifierGetter, entity, null);
+	}
+
+	/**
+	 * 返回属性值, 对于'a.b'形式的嵌套属性交由PropertyUtils处理
+	 */
+	public Object getPropertyValue(Object entity, String propertyName) {
+		FastMethod getter = getters.get(propertyName);
+		if (getter != null) {
+			return invoke(getter, entity, null);
+		}
+		try {
+			return PropertyUtils.getProperty(entity, propertyName);
+		} catch (Exception e) {
+			throw new DaoException("property " + propertyName + " is not readable in " + entityClass.getName());
+		}
+	}
+
+	public Object[] getPropertyValues(Object entity, String[] propertyNames) {
+		Object[] values = new Object[propertyNames.length];
+		for (int i = 0; i < propertyNames.length; i++) {
+			values[i] = getPropertyValue(entity, propertyNames[i]);
+		}
+		return values;
+	}
+
+	/**
+	 * 返回属性类型, 不存在时返回<tt>null</tt>
+	 */
+	public Class<?> getPropertyType(String propertyName) {
+		return propertyTypes.get(propertyName);
+	}
+
+	/**
+	 * 实体是否配置了二级缓存(entityCacheStrategies或@Cache), 配置了的实体按ID查询走二级缓存,
+	 * 条件查询的结果进入该实体的查询缓存区域
+	 */
+	public boolean isCacheable() {
+		return cacheable;
+	}
+
+	/**
+	 * 实体查询结果使用的查询缓存区域名, 在ehcache配置中可以为每个实体单独设置过期时间和容量
+	 */
+	public String getQueryCacheRegion() {
+		return "query." + entityClass.getName();
+	}
+
+	public boolean isWritable(String propertyName) {
+		return setters.containsKey(propertyName);
+	}
+
+	public void setPropertyValue(Object entity, String propertyName, Object value) {
+		FastMethod setter = setters.get(propertyName);
+		if (setter == null) {
+			throw new DaoException("property " + propertyName + " is not writable in " + entityClass.getName());
+		}
+		invoke(setter, entity, new Object[] { value });
+	}
+
+	private Object invoke(FastMethod method, Object entity, Object[] args) {
+		try {
+			return method.invoke(entity, args);
+		} catch (InvocationTargetException e) {
+			throw new DaoException(e.getTargetException().getMessage(), e.getTargetException(), null);
+		}
+	}
+}
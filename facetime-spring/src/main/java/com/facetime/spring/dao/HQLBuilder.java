@@ -2,10 +2,11 @@ package com.facetime.spring.dao;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 
-
 import com.facetime.core.bean.BusinessObject;
+import com.facetime.core.conf.ConfigUtils;
 import com.facetime.spring.support.PMLO;
 import com.facetime.spring.support.QueryFilter;
 import com.facetime.spring.support.Limitable.OrderBy;
@@ -30,6 +31,49 @@ public final class HQLBuilder {
 	 */
 	public static final int MAX_IN_NUMBERS = 255;
 
+	/**
+	 * 一条语句最多的绑定参数个数, 由max_query_params配置; 0(默认)表示按方言决定, 见DaoImpl.getMaxQueryParams
+	 */
+	public static final int MAX_QUERY_PARAMS = Integer.parseInt(ConfigUtils.getProperty("max_query_params", 0));
+
+	/** HQL缓存中最多保存的语句形状数量 */
+	public static final int MAX_CACHED_STATEMENTS = 2048;
+
+	private static final Integer FIND = 0;
+	private static final Integer RET_ATTR = 1;
+	private static final Integer DELETE = 2;
+	private static final Integer COUNT = 3;
+	private static final Integer UPDATE = 4;
+
+	private static final HQLCache HQL_CACHE = new HQLCache(MAX_CACHED_STATEMENTS);
+
+	/**
+	 * 构建COUNT HQL语句
+	 *
+	 * @param entityClass
+	 *            实体类型
+	 * @param idName
+	 *            实体ID属性名
+	 * @param filters
+	 * @return
+	 */
+	public static <T extends BusinessObject> String buildCountHQL(Class<T> entityClass, String idName,
+			QueryFilter[] filters) {
+		HQLCache.Shape shape = shapeOf(COUNT, entityClass, new String[] { idName }, filters, null);
+		String hql = HQL_CACHE.get(shape);
+		if (hql == null) {
+			StringBuilder builder = new StringBuilder();
+			builder.append("select count(obj.").append(idName).append(")");
+			builder.append(" from ").append(entityClass.getName()).append(" as obj ");
+			if (filters != null && filters.length > 0) {
+				builder.append(buildQueryFilterSubHQL(filters));
+			}
+			hql = builder.toString();
+			HQL_CACHE.put(shape, hql);
+		}
+		return hql;
+	}
+
 	/**
 	 * 构建DELETE HQL语句
 	 *
@@ -39,12 +83,18 @@ public final class HQLBuilder {
 	 * @return
 	 */
 	public static <T extends BusinessObject> String buildDeleteHQL(Class<T> entityClass, QueryFilter[] filters) {
-		StringBuilder hql = new StringBuilder();
-		hql.append(DELETE_MARK).append(entityClass.getName()).append(" as obj ");
-		if (filters != null) {
-			hql.append(buildQueryFilterSubHQL(filters));
+		HQLCache.Shape shape = shapeOf(DELETE, entityClass, null, filters, null);
+		String hql = HQL_CACHE.get(shape);
+		if (hql == null) {
+			StringBuilder builder = new StringBuilder();
+			builder.append(DELETE_MARK).append(entityClass.getName()).append(" as obj ");
+			if (filters != null) {
+				builder.append(buildQueryFilterSubHQL(filters));
+			}
+			hql = builder.toString();
+			HQL_CACHE.put(shape, hql);
 		}
-		return hql.toString();
+		return hql;
 	}
 
 	/**
@@ -59,6 +109,17 @@ public final class HQLBuilder {
 	 */
 	public static <T extends BusinessObject> String buildFindSubHQL(Class<T> entityClass, QueryFilter[] filters,
 			OrderBy[] orders) {
+		HQLCache.Shape shape = shapeOf(FIND, entityClass, null, filters, orders);
+		String hql = HQL_CACHE.get(shape);
+		if (hql == null) {
+			hql = doBuildFindSubHQL(entityClass, filters, orders);
+			HQL_CACHE.put(shape, hql);
+		}
+		return hql;
+	}
+
+	private static <T extends BusinessObject> String doBuildFindSubHQL(Class<T> entityClass, QueryFilter[] filters,
+			OrderBy[] orders) {
 		StringBuilder hql = new StringBuilder();
 		hql.append(FROM_MARK).append(entityClass.getName()).append(" as obj ");
 		if (filters != null) {
@@ -79,21 +140,94 @@ public final class HQLBuilder {
 	public static String buildQueryFilterSubHQL(QueryFilter[] filters) {
 		StringBuilder conditions = new StringBuilder();
 		for (QueryFilter filter : filters) {
-			if (!filter.isValid()) {
-				continue;
-			}
-			if (!filter.getOperate().isSingle() && filter.getValue() == null) {
+			if (!isEffective(filter)) {
 				continue;
 			}
-			if (filter.getValue() != null && filter.getValue().getClass() == String.class
-					&& ((String) filter.getValue()).trim().length() == 0) {
-				continue;
+			conditions.append(conditions.length() == 0 ? WHERE_MARK : AND_MARK);
+			int paramCount = getParamterCount(filter);
+			if (filter.getOperate() == PMLO.IN && paramCount > 1) {
+				appendInCondition(conditions, filter.getProperty(), paramCount);
+			} else {
+				conditions.append(OBJ_MARK).append(filter.getProperty()).append(filter.getTranslateOperate());
 			}
-			conditions.append(conditions.length() == 0 ? WHERE_MARK : AND_MARK).append(OBJ_MARK).append(filter.getProperty()).append(filter.getTranslateOperate());
 		}
 		return conditions.toString();
 	}
 
+	/**
+	 * 返回第一个参数个数超过chunkSize的IN条件的下标, 不存在时返回-1
+	 *
+	 * @param filters
+	 * @param chunkSize
+	 *            单个IN子句允许的最大参数个数
+	 */
+	public static int indexOfLargeInFilter(QueryFilter[] filters, int chunkSize) {
+		if (filters == null) {
+			return -1;
+		}
+		for (int i = 0; i < filters.length; i++) {
+			QueryFilter filter = filters[i];
+			if (filter.getOperate() == PMLO.IN && isEffective(filter) && getInValues(filter).length > chunkSize) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 把filters[index]的IN条件去掉重复值后按chunkSize拆分, 返回每个子查询使用的条件数组, 其余条件保持不变.
+	 * 各子查询的参数互不相同, 删除和计数的结果可以直接相加
+	 *
+	 * @param filters
+	 * @param index
+	 *            要拆分的IN条件下标
+	 * @param chunkSize
+	 *            每个子查询的最大IN参数个数
+	 */
+	public static List<QueryFilter[]> splitInFilter(QueryFilter[] filters, int index, int chunkSize) {
+		QueryFilter inFilter = filters[index];
+		Object[] inValues = new LinkedHashSet<Object>(Arrays.asList(getInValues(inFilter))).toArray();
+		List<QueryFilter[]> chunks = new ArrayList<QueryFilter[]>((inValues.length + chunkSize - 1) / chunkSize);
+		for (int from = 0; from < inValues.length; from += chunkSize) {
+			Object[] chunk = new Object[Math.min(chunkSize, inValues.length - from)];
+			System.arraycopy(inValues, from, chunk, 0, chunk.length);
+			QueryFilter[] chunkFilters = filters.clone();
+			chunkFilters[index] = new QueryFilter(inFilter.getProperty(), PMLO.IN, chunk);
+			chunks.add(chunkFilters);
+		}
+		return chunks;
+	}
+
+	/**
+	 * 返回IN条件的参数值数组
+	 */
+	public static Object[] getInValues(QueryFilter filter) {
+		if (filter.getValue() instanceof List) {
+			return ((List<?>) filter.getValue()).toArray();
+		}
+		return (Object[]) filter.getValue();
+	}
+
+	/**
+	 * 构建paramCount个占位符的IN条件, 超过MAX_IN_NUMBERS时拆分为多个OR连接的IN子句, 参数顺序不变.
+	 * 只解决单个IN列表的长度限制, 整条语句超过{@link #MAX_QUERY_PARAMS}时由DaoImpl拆成多条语句
+	 */
+	private static void appendInCondition(StringBuilder conditions, String property, int paramCount) {
+		conditions.append(LEFT_PARENTHES);
+		for (int from = 0; from < paramCount; from += MAX_IN_NUMBERS) {
+			if (from > 0) {
+				conditions.append(OR_MARK);
+			}
+			conditions.append(OBJ_MARK).append(property).append(" in (");
+			int to = Math.min(from + MAX_IN_NUMBERS, paramCount);
+			for (int i = from; i < to; i++) {
+				conditions.append(i == from ? "?" : ",?");
+			}
+			conditions.append(")");
+		}
+		conditions.append(RIGHT_PARENTHES);
+	}
+
 	/**
 	 * 构建返回属性的子语句
 	 *
@@ -110,6 +244,11 @@ public final class HQLBuilder {
 	 */
 	public static <T extends BusinessObject> String buildRetAttrSubHQL(Class<T> entityClass, String[] retAttrs,
 			QueryFilter[] filters, OrderBy[] orders) {
+		HQLCache.Shape shape = shapeOf(RET_ATTR, entityClass, retAttrs, filters, orders);
+		String cached = HQL_CACHE.get(shape);
+		if (cached != null) {
+			return cached;
+		}
 		StringBuilder hql = new StringBuilder();
 		if (retAttrs != null && retAttrs.length > 0) {
 			for (String retAttr : retAttrs) {
@@ -118,7 +257,8 @@ public final class HQLBuilder {
 			}
 			hql.append(" ");
 		}
-		hql.append(buildFindSubHQL(entityClass, filters, orders));
+		hql.append(doBuildFindSubHQL(entityClass, filters, orders));
+		HQL_CACHE.put(shape, hql.toString());
 		return hql.toString();
 	}
 
@@ -137,6 +277,19 @@ public final class HQLBuilder {
 	 */
 	public static <T extends BusinessObject> String buildUpdateHQL(Class<T> entityClass, QueryFilter[] filters,
 			String[] attrNames, Object[] attrValues) {
+		String[] setNames = null;
+		if (attrNames != null && attrValues != null) {
+			// 值为null的属性生成" = null ", 需要区分形状
+			setNames = new String[attrNames.length];
+			for (int i = 0; i < attrNames.length; i++) {
+				setNames[i] = attrValues[i] == null ? attrNames[i] + " = null" : attrNames[i];
+			}
+		}
+		HQLCache.Shape shape = shapeOf(UPDATE, entityClass, setNames, filters, null);
+		String cached = HQL_CACHE.get(shape);
+		if (cached != null) {
+			return cached;
+		}
 		StringBuilder hql = new StringBuilder();
 		hql.append(UPDATE_MARK).append(entityClass.getName()).append(" as obj ");
 		if (attrNames != null && attrValues != null) {
@@ -145,6 +298,7 @@ public final class HQLBuilder {
 		if (filters != null && filters.length > 0) {
 			hql.append(buildQueryFilterSubHQL(filters));
 		}
+		HQL_CACHE.put(shape, hql.toString());
 		return hql.toString();
 	}
 
@@ -221,35 +375,167 @@ public final class HQLBuilder {
 	 * @return
 	 */
 	public static Object[] getParamterValues(Object[] updateVals, QueryFilter[] filters) {
-		List<Object> values = new ArrayList<Object>();
+		int size = getParamterCount(filters);
 		if (updateVals != null) {
 			for (Object obj : updateVals) {
 				if (obj != null) {
-					values.add(obj);
+					size++;
+				}
+			}
+		}
+		Object[] values = new Object[size];
+		int index = 0;
+		if (updateVals != null) {
+			for (Object obj : updateVals) {
+				if (obj != null) {
+					values[index++] = obj;
 				}
 			}
 		}
 		if (filters == null) {
-			return values.toArray();
+			return values;
 		}
 		for (QueryFilter filter : filters) {
-			if (filter.getValue() == null || !filter.isValid()) {
+			if (!isEffective(filter) || filter.getOperate().isSingle()) {
 				continue;
 			}
-
-			// 对于PMLO是IN的情况, filter的值是Object[]
+			// 对于PMLO是IN的情况, filter的值是Object[]或List, 占位符多于值时重复最后一个值
 			if (filter.getOperate() == PMLO.IN) {
-				if (filter.getValue() instanceof ArrayList) {
-					values.addAll((ArrayList<?>) filter.getValue());
-				}
-				if (filter.getValue() instanceof Object[]) {
-					values.addAll(Arrays.asList((Object[]) filter.getValue()));
+				Object[] inValues = getInValues(filter);
+				int paramCount = getParamterCount(filter);
+				for (int i = 0; i < paramCount; i++) {
+					values[index++] = inValues[Math.min(i, inValues.length - 1)];
 				}
 			} else {
-				values.add(filter.getValue());
+				values[index++] = filter.getValue();
 			}
 		}
-		return values.toArray();
+		return values;
+	}
+
+	/**
+	 * 查询条件对应的绑定参数总数
+	 */
+	public static int getParamterCount(QueryFilter[] filters) {
+		int size = 0;
+		if (filters != null) {
+			for (QueryFilter filter : filters) {
+				if (isEffective(filter)) {
+					size += getParamterCount(filter);
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return HQL缓存命中次数
+	 */
+	public static long getCacheHits() {
+		return HQL_CACHE.getHits();
+	}
+
+	/**
+	 * @return HQL缓存未命中次数
+	 */
+	public static long getCacheMisses() {
+		return HQL_CACHE.getMisses();
+	}
+
+	/**
+	 * @return HQL缓存中的语句数量
+	 */
+	public static int getCacheSize() {
+		return HQL_CACHE.size();
+	}
+
+	public static void clearCache() {
+		HQL_CACHE.clear();
+	}
+
+	/**
+	 * 条件是否参与HQL构建, buildQueryFilterSubHQL和getParamterValues必须使用相同的规则
+	 */
+	private static boolean isEffective(QueryFilter filter) {
+		if (!filter.isValid()) {
+			return false;
+		}
+		if (!filter.getOperate().isSingle() && filter.getValue() == null) {
+			return false;
+		}
+		if (filter.getValue() != null && filter.getValue().getClass() == String.class
+				&& ((String) filter.getValue()).trim().length() == 0) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 条件对应的参数占位符个数
+	 */
+	private static int getParamterCount(QueryFilter filter) {
+		if (filter.getOperate().isSingle()) {
+			return 0;
+		}
+		if (filter.getOperate() == PMLO.IN) {
+			return getBoundInCount(getInValues(filter).length);
+		}
+		return 1;
+	}
+
+	/**
+	 * IN条件的占位符个数: 不超过MAX_IN_NUMBERS时向上取2的幂(最大MAX_IN_NUMBERS), 超过时向上取MAX_IN_NUMBERS的倍数.
+	 * 语句形状只随IN参数个数所在的区间变化, 多出的占位符由getParamterValues重复最后一个值填充
+	 */
+	private static int getBoundInCount(int count) {
+		if (count <= 1) {
+			return count;
+		}
+		if (count > MAX_IN_NUMBERS) {
+			return (count + MAX_IN_NUMBERS - 1) / MAX_IN_NUMBERS * MAX_IN_NUMBERS;
+		}
+		return Math.min(Integer.highestOneBit(count - 1) << 1, MAX_IN_NUMBERS);
+	}
+
+	/**
+	 * 构建语句形状: 类型, 实体, 属性名, 有效条件的属性/操作符/占位符个数, 排序
+	 */
+	private static HQLCache.Shape shapeOf(Integer kind, Class<?> entityClass, String[] names, QueryFilter[] filters,
+			OrderBy[] orders) {
+		int nameCount = names == null ? 0 : names.length;
+		int filterCount = 0;
+		if (filters != null) {
+			for (QueryFilter filter : filters) {
+				if (isEffective(filter)) {
+					filterCount++;
+				}
+			}
+		}
+		int orderCount = orders == null ? 0 : orders.length;
+		Object[] parts = new Object[5 + nameCount + filterCount * 3 + orderCount * 2];
+		int index = 0;
+		parts[index++] = kind;
+		parts[index++] = entityClass;
+		parts[index++] = nameCount;
+		for (int i = 0; i < nameCount; i++) {
+			parts[index++] = names[i];
+		}
+		parts[index++] = filterCount;
+		if (filters != null) {
+			for (QueryFilter filter : filters) {
+				if (isEffective(filter)) {
+					parts[index++] = filter.getProperty();
+					parts[index++] = filter.getOperate();
+					parts[index++] = getParamterCount(filter);
+				}
+			}
+		}
+		parts[index++] = orderCount;
+		for (int i = 0; i < orderCount; i++) {
+			parts[index++] = orders[i].getProperty();
+			parts[index++] = orders[i].getOrderType();
+		}
+		return new HQLCache.Shape(parts);
 	}
 
 	/**
@@ -0,0 +1,98 @@
+package com.facetime.spring.dao;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 生成的HQL语句缓存, 以语句的形状(实体类型/条件属性和操作符/排序/返回属性)为key.
+ * 同一形状的语句只构建一次, 参数值在每次执行时单独填充. 超过上限时淘汰最久未使用的语句.
+ *
+ * @author YUFEI
+ */
+final class HQLCache {
+
+	/**
+	 * HQL语句形状, 由实体类型, 条件属性, 操作符, IN占位符个数(按区间取整), 排序等组成
+	 */
+	static final class Shape {
+		private final Object[] parts;
+		private final int hash;
+
+		Shape(Object[] parts) {
+			this.parts = parts;
+			this.hash = Arrays.hashCode(parts);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Shape)) {
+				return false;
+			}
+			Shape other = (Shape) obj;
+			return hash == other.hash && Arrays.equals(parts, other.parts);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public String toString() {
+			return Arrays.toString(parts);
+		}
+	}
+
+	private final Map<Shape, String> statements;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	HQLCache(final int maxEntries) {
+		this.statements = new LinkedHashMap<Shape, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Shape, String> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	synchronized void clear() {
+		statements.clear();
+	}
+
+	String get(Shape shape) {
+		String hql;
+		synchronized (this) {
+			hql = statements.get(shape);
+		}
+		if (hql == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return hql;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	synchronized void put(Shape shape, String hql) {
+		statements.put(shape, hql);
+	}
+
+	synchronized int size() {
+		return statements.size();
+	}
+}
@@ -5,6 +5,9 @@ import java.util.Collection;
 import java.util.List;
 
 import com.facetime.core.bean.BusinessObject;
+import com.facetime.core.utils.Each;
+import com.facetime.spring.dao.BatchOperation;
+import com.facetime.spring.dao.BatchResult;
 import com.facetime.spring.support.Limitable;
 import com.facetime.spring.support.Limitable.PageBy;
 import com.facetime.spring.support.Page;
@@ -19,6 +22,13 @@ import com.facetime.spring.support.QueryFilter;
  */
 public class EmptyLogic implements Logic {
 
+	@Override
+	public <T extends BusinessObject> BatchResult batch(BatchOperation operation, Collection<T> entityList,
+			boolean stateless) {
+
+		return null;
+	}
+
 	@Override
 	public <T extends BusinessObject> long count(Class<T> entityClass) {
 
@@ -186,6 +196,20 @@ public class EmptyLogic implements Logic {
 		return null;
 	}
 
+	@Override
+	public <T extends BusinessObject> int stream(Class<T> entityClass, QueryFilter[] filters,
+			Each<? super T> callback, Limitable... limitbys) {
+
+		return 0;
+	}
+
+	@Override
+	public <T extends BusinessObject, E> int streamPart(Class<T> entityClass, QueryFilter[] filters,
+			String[] attrNames, Each<? super E> callback, Limitable... limitbys) {
+
+		return 0;
+	}
+
 	@Override
 	public String getIdentifierName(Class<? extends BusinessObject> entityClass) {
 
@@ -21,6 +21,18 @@ public interface Limitable {
 		}
 	}
 
+	/**
+	 * 分页查询时统计总记录数的方式
+	 */
+	public static enum CountMode {
+		/** 每次执行count查询, 总数精确 */
+		EXACT,
+		/** 按查询条件缓存count结果, 命中缓存时总数为估计值 */
+		CACHED,
+		/** 不执行count查询, 多取一条记录判断是否还有下一页, 总数未知 */
+		NONE
+	}
+
 	public static class OrderBy implements Limitable {
 
 		private final Order orderType;
@@ -62,6 +74,7 @@ public interface Limitable {
 
 		private int pageNum = 1;
 		private int pageSize = Page.DEFAULT_PAGE_SIZE;
+		private CountMode countMode = CountMode.EXACT;
 
 		public PageBy(int pageNum, int pageSize) {
 			super();
@@ -69,10 +82,23 @@ public interface Limitable {
 			this.pageSize = pageSize;
 		}
 
+		public PageBy(int pageNum, int pageSize, CountMode countMode) {
+			this(pageNum, pageSize);
+			this.countMode = countMode;
+		}
+
 		public static final PageBy of(int pageNum, int pageSize) {
 			return new PageBy(pageNum, pageSize);
 		}
 
+		public static final PageBy of(int pageNum, int pageSize, CountMode countMode) {
+			return new PageBy(pageNum, pageSize, countMode);
+		}
+
+		public CountMode getCountMode() {
+			return countMode;
+		}
+
 		public int getPageNum() {
 			return pageNum;
 		}
@@ -81,6 +107,10 @@ public interface Limitable {
 			return pageSize;
 		}
 
+		public void setCountMode(CountMode countMode) {
+			this.countMode = countMode;
+		}
+
 		public void setPageNum(int pageNum) {
 			this.pageNum = pageNum;
 		}
@@ -90,4 +120,47 @@ public interface Limitable {
 		}
 
 	}
+
+	/**
+	 * 基于有序唯一属性的游标(seek)分页, 以上一页最后一条记录的属性值作为起点, 不使用OFFSET.
+	 * 第一页时lastKey为<tt>null</tt>, 后续页使用{@link Page#getNextKey()}的返回值.
+	 */
+	public static class KeysetPageBy extends PageBy {
+
+		private final String property;
+		private final Order order;
+		private final Object lastKey;
+
+		public KeysetPageBy(String property, Order order, Object lastKey, int pageSize) {
+			this(property, order, lastKey, pageSize, CountMode.NONE);
+		}
+
+		public KeysetPageBy(String property, Order order, Object lastKey, int pageSize, CountMode countMode) {
+			super(1, pageSize, countMode);
+			this.property = property;
+			this.order = order;
+			this.lastKey = lastKey;
+		}
+
+		public static final KeysetPageBy asc(String property, Object lastKey, int pageSize) {
+			return new KeysetPageBy(property, Order.ASC, lastKey, pageSize);
+		}
+
+		public static final KeysetPageBy desc(String property, Object lastKey, int pageSize) {
+			return new KeysetPageBy(property, Order.DESC, lastKey, pageSize);
+		}
+
+		public Object getLastKey() {
+			return lastKey;
+		}
+
+		public Order getOrder() {
+			return order;
+		}
+
+		public String getProperty() {
+			return property;
+		}
+
+	}
 }
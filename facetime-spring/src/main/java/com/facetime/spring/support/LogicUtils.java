@@ -3,6 +3,8 @@ package com.facetime.spring.support;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.facetime.spring.support.Limitable.CountMode;
+import com.facetime.spring.support.Limitable.KeysetPageBy;
 import com.facetime.spring.support.Limitable.Order;
 import com.facetime.spring.support.Limitable.OrderBy;
 import com.facetime.spring.support.Limitable.PageBy;
@@ -60,6 +62,14 @@ public abstract class LogicUtils {
 		return new PageBy(pageNum, pageSize);
 	}
 
+	public static final PageBy pageby(int pageNum, int pageSize, CountMode countMode) {
+		return new PageBy(pageNum, pageSize, countMode);
+	}
+
+	public static final KeysetPageBy seekby(String property, Order orderType, Object lastKey, int pageSize) {
+		return new KeysetPageBy(property, orderType, lastKey, pageSize);
+	}
+
 	public static final QueryFilter[] toArray(List<QueryFilter> filters) {
 		return filters.toArray(new QueryFilter[] {});
 	}
@@ -5,6 +5,7 @@ import java.util.List;
 
 import com.facetime.core.conf.ConfigUtils;
 import com.facetime.core.utils.StringUtils;
+import com.facetime.spring.support.QueryInfo.RecordCountType;
 
 /**
  * 分页类
@@ -88,6 +89,10 @@ public class Page<T> {
 		return this.getPageSize() - this.getQueryResult().size();
 	}
 
+	public Object getNextKey() {
+		return this.queryInfo.getNextKey();
+	}
+
 	public long getNextPage() {
 		return this.queryInfo.getNextPage();
 	}
@@ -120,14 +125,26 @@ public class Page<T> {
 		return this.queryInfo.getRecordCount();
 	}
 
+	public RecordCountType getRecordCountType() {
+		return this.queryInfo.getRecordCountType();
+	}
+
 	public String getSql() {
 		return this.queryInfo.getSql();
 	}
 
+	public boolean isHasNextPage() {
+		return this.queryInfo.isHasNextPage();
+	}
+
 	public boolean isHasResult() {
 		return this.queryResult != null && this.queryResult.size() > 0;
 	}
 
+	public boolean isRecordCountExact() {
+		return this.queryInfo.getRecordCountType() == RecordCountType.EXACT;
+	}
+
 	public void setBeanName(String beanNameValue) {
 		this.queryInfo.setBeanName(beanNameValue);
 	}
@@ -136,10 +153,18 @@ public class Page<T> {
 		this.queryInfo.setCurrentPageNo(currentPageNo);
 	}
 
+	public void setHasNextPage(boolean hasNextPage) {
+		this.queryInfo.setHasNextPage(hasNextPage);
+	}
+
 	public void setKey(String keyValue) {
 		this.queryInfo.setKey(keyValue);
 	}
 
+	public void setNextKey(Object nextKey) {
+		this.queryInfo.setNextKey(nextKey);
+	}
+
 	public void setPageCount(int pageCount) {
 		this.queryInfo.setPageCount(pageCount);
 	}
@@ -164,6 +189,10 @@ public class Page<T> {
 		this.queryInfo.setRecordCount(count);
 	}
 
+	public void setRecordCountType(RecordCountType recordCountType) {
+		this.queryInfo.setRecordCountType(recordCountType);
+	}
+
 	public void setSql(String sql) {
 		this.queryInfo.setSql(sql);
 	}
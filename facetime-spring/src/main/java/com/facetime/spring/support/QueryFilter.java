@@ -105,7 +105,7 @@ public class QueryFilter {
 			if (values.length == 1) {
 				return this.translate(PMLO.EQ);
 			}
-			return this.translate(operate, (Object[]) value);
+			return this.translate(operate, values);
 		}
 		return this.translate(operate);
 	}
@@ -13,6 +13,18 @@ import com.facetime.core.bean.BusinessBean;
  */
 public class QueryInfo<T> implements BusinessBean {
 
+	/**
+	 * 总记录数的可信程度
+	 */
+	public static enum RecordCountType {
+		/** 精确值 */
+		EXACT,
+		/** 估计值, 例如来自缓存的count结果 */
+		ESTIMATED,
+		/** 未统计, 此时recordCount只是已知的下限 */
+		UNKNOWN
+	}
+
 	private static final long serialVersionUID = 1L;
 	private String beanName = null;
 	private int currentPageNo = 0;
@@ -22,6 +34,9 @@ public class QueryInfo<T> implements BusinessBean {
 	private List<T> params = null;
 	private String[] properties = null;
 	private int recordCount = 0;
+	private RecordCountType recordCountType = RecordCountType.EXACT;
+	private boolean hasNextPage = false;
+	private Object nextKey = null;
 	private String sql = null;
 
 	public String getBeanName() {
@@ -36,6 +51,10 @@ public class QueryInfo<T> implements BusinessBean {
 		return key;
 	}
 
+	public Object getNextKey() {
+		return nextKey;
+	}
+
 	public long getNextPage() {
 		if (currentPageNo == pageCount) {
 			return currentPageNo;
@@ -70,10 +89,18 @@ public class QueryInfo<T> implements BusinessBean {
 		return recordCount;
 	}
 
+	public RecordCountType getRecordCountType() {
+		return recordCountType;
+	}
+
 	public String getSql() {
 		return sql;
 	}
 
+	public boolean isHasNextPage() {
+		return hasNextPage;
+	}
+
 	public void setBeanName(String beanNameValue) {
 		beanName = beanNameValue;
 	}
@@ -82,10 +109,18 @@ public class QueryInfo<T> implements BusinessBean {
 		this.currentPageNo = currentPageNo;
 	}
 
+	public void setHasNextPage(boolean hasNextPage) {
+		this.hasNextPage = hasNextPage;
+	}
+
 	public void setKey(String keyValue) {
 		key = keyValue;
 	}
 
+	public void setNextKey(Object nextKey) {
+		this.nextKey = nextKey;
+	}
+
 	public void setPageCount(int pageCount) {
 		this.pageCount = pageCount;
 	}
@@ -106,6 +141,10 @@ public class QueryInfo<T> implements BusinessBean {
 		recordCount = pageCount;
 	}
 
+	public void setRecordCountType(RecordCountType recordCountType) {
+		this.recordCountType = recordCountType;
+	}
+
 	public void setSql(String sql) {
 		this.sql = sql;
 	}
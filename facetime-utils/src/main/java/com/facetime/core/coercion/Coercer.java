@@ -4,9 +4,9 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import com.facetime.core.collection.CollectionFactory;
 import com.facetime.core.logging.Log;
@@ -173,7 +173,7 @@ public class Coercer {
 
 		ResourceScanner locator = new DefaultResourceScanner(new ClasspathURLConverterImpl());
 
-		this.tuples = new HashMap<Class<?>, Map<Class<?>, CoercionTuple<?, ?>>>();
+		this.tuples = CollectionFactory.newConcurrentFastMap();
 		ArrayList<Class<?>> tupleClasses = new ArrayList<Class<?>>();
 		for (String path : paths) {
 			//加载基本转换器
@@ -212,10 +212,12 @@ public class Coercer {
 	 */
 	public void register(CoercionTuple<?, ?> tuple) {
 
-		Map<Class<?>, CoercionTuple<?, ?>> map2 = this.tuples.get(tuple.getFromType());
+		ConcurrentMap<Class<?>, CoercionTuple<?, ?>> map2 = this.tuples.get(tuple.getFromType());
 		if (map2 == null) {
-			map2 = new HashMap<Class<?>, CoercionTuple<?, ?>>();
-			this.tuples.put(tuple.getFromType(), map2);
+			map2 = CollectionFactory.newConcurrentFastMap();
+			ConcurrentMap<Class<?>, CoercionTuple<?, ?>> old = this.tuples.putIfAbsent(tuple.getFromType(), map2);
+			if (old != null)
+				map2 = old;
 		}
 		boolean b = map2.containsKey(tuple.getTargetType());
 		//有就不加
@@ -235,13 +237,15 @@ public class Coercer {
 		if (m != null) {
 			LE.invoke(setting, m, tuple);
 		}
-		map2.put(tuple.getTargetType(), tuple);
+		map2.putIfAbsent(tuple.getTargetType(), tuple);
 	}
 
 	/**
 	 * First index is "from" (source) The second index is "to" (target)
+	 * <p/>
+	 * 查找不加锁, 注册可以和转换并发
 	 */
-	private Map<Class<?>, Map<Class<?>, CoercionTuple<?, ?>>> tuples;
+	private volatile ConcurrentMap<Class<?>, ConcurrentMap<Class<?>, CoercionTuple<?, ?>>> tuples;
 
 	/**
 	 * 转换一个 Bean, 从一个指定的类型到另外的类型
@@ -497,6 +497,20 @@ public class ArrayEx<E> implements Iterable<E>, Stack<E>, List<E> {
 		ArraySorting.instance().sort(items, comparator, 0, size);
 	}
 
+	/**
+	 * 大数组分段并行排序, 元素必须实现 {@link Comparable}. 不使用 {@link ArraySorting#instance()}, 可以多线程同时调用
+	 */
+	public void parallelSort() {
+		ArraySorting.parallelSort(items, 0, size);
+	}
+
+	/**
+	 * 大数组分段并行排序, 见 {@link ArraySorting#parallelSort(Object[], Comparator, int, int)}
+	 */
+	public void parallelSort(Comparator<? super E> comparator) {
+		ArraySorting.parallelSort(items, comparator, 0, size);
+	}
+
 	@Override
 	public List<E> subList(int fromIndex, int toIndex) {
 		int len = toIndex - fromIndex + 1;
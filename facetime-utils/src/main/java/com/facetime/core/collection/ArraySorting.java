@@ -1,8 +1,18 @@
 package com.facetime.core.collection;
 
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 数组的排序类。<BR></>
@@ -13,6 +23,10 @@ import java.util.Comparator;
  * <br>
  * Note that sorting primitive arrays with the Arrays.sort methods does not allocate memory (unless sorting large arrays of char,
  * short, or byte).
+ * <p/>
+ * parallelSort: 超过阀值的数组切成若干段, 在共享的排序线程池里各自排序, 再分轮两两合并: 每轮的最后一对由调用线程合并,
+ * 其余在线程池中同时合并, 最后一轮的合并完全在调用线程中. 对象数组的合并用
+ * TimSort 的 gallop 合并, 保持稳定; int/long/double 数组不装箱. parallelSort 不使用 {@link #instance()}, 可以多线程同时调用.
  *
  * @author Nathan Sweet
  */
@@ -61,6 +75,258 @@ public class ArraySorting {
         return instance;
     }
 
+    /**
+     * 小于这个长度的数组(或每段小于这个长度)不再切分
+     */
+    private static volatile int parallelThreshold = 1 << 13;
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sortExecutor;
+
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * 设置并行排序的阀值, 最小为 {@link TimSort#MIN_MERGE}
+     */
+    public static void setParallelThreshold(int threshold) {
+        parallelThreshold = Math.max(threshold, TimSort.MIN_MERGE);
+    }
+
+    public static void parallelSort(Object[] a) {
+        parallelSort(a, 0, a.length);
+    }
+
+    public static void parallelSort(final Object[] a, int fromIndex, int toIndex) {
+        parallelSort(new Sorter() {
+            void sort(int lo, int hi) {
+                ComparableTimSort.sort(a, lo, hi);
+            }
+
+            void merge(int lo, int mid, int hi) {
+                ComparableTimSort.merge(a, lo, mid, hi);
+            }
+        }, a.length, fromIndex, toIndex);
+    }
+
+    public static <T> void parallelSort(T[] a, Comparator<? super T> c) {
+        parallelSort(a, c, 0, a.length);
+    }
+
+    public static <T> void parallelSort(final T[] a, final Comparator<? super T> c, int fromIndex, int toIndex) {
+        if (c == null) {
+            parallelSort(a, fromIndex, toIndex);
+            return;
+        }
+        parallelSort(new Sorter() {
+            void sort(int lo, int hi) {
+                TimSort.sort(a, lo, hi, c);
+            }
+
+            void merge(int lo, int mid, int hi) {
+                TimSort.merge(a, lo, mid, hi, c);
+            }
+        }, a.length, fromIndex, toIndex);
+    }
+
+    public static void parallelSort(int[] a) {
+        parallelSort(a, 0, a.length);
+    }
+
+    public static void parallelSort(final int[] a, final int fromIndex, int toIndex) {
+        parallelSort(new Sorter() {
+            int[] buf;
+
+            void sort(int lo, int hi) {
+                Arrays.sort(a, lo, hi);
+            }
+
+            void merge(int lo, int mid, int hi) {
+                if (a[mid - 1] <= a[mid]) return;
+                int[] buf = this.buf;
+                System.arraycopy(a, lo, buf, lo - fromIndex, mid - lo);
+                int i = lo - fromIndex, end = mid - fromIndex, j = mid, k = lo;
+                while (i < end && j < hi)
+                    a[k++] = a[j] < buf[i] ? a[j++] : buf[i++];
+                System.arraycopy(buf, i, a, k, end - i);
+            }
+
+            void prepareMerge(int length) {
+                buf = new int[length];
+            }
+        }, a.length, fromIndex, toIndex);
+    }
+
+    public static void parallelSort(long[] a) {
+        parallelSort(a, 0, a.length);
+    }
+
+    public static void parallelSort(final long[] a, final int fromIndex, int toIndex) {
+        parallelSort(new Sorter() {
+            long[] buf;
+
+            void sort(int lo, int hi) {
+                Arrays.sort(a, lo, hi);
+            }
+
+            void merge(int lo, int mid, int hi) {
+                if (a[mid - 1] <= a[mid]) return;
+                long[] buf = this.buf;
+                System.arraycopy(a, lo, buf, lo - fromIndex, mid - lo);
+                int i = lo - fromIndex, end = mid - fromIndex, j = mid, k = lo;
+                while (i < end && j < hi)
+                    a[k++] = a[j] < buf[i] ? a[j++] : buf[i++];
+                System.arraycopy(buf, i, a, k, end - i);
+            }
+
+            void prepareMerge(int length) {
+                buf = new long[length];
+            }
+        }, a.length, fromIndex, toIndex);
+    }
+
+    public static void parallelSort(double[] a) {
+        parallelSort(a, 0, a.length);
+    }
+
+    /**
+     * 和 {@link Arrays#sort(double[])} 的顺序一致: -0.0 在 0.0 之前, NaN 在最后
+     */
+    public static void parallelSort(final double[] a, final int fromIndex, int toIndex) {
+        parallelSort(new Sorter() {
+            double[] buf;
+
+            void sort(int lo, int hi) {
+                Arrays.sort(a, lo, hi);
+            }
+
+            void merge(int lo, int mid, int hi) {
+                if (Double.compare(a[mid - 1], a[mid]) <= 0) return;
+                double[] buf = this.buf;
+                System.arraycopy(a, lo, buf, lo - fromIndex, mid - lo);
+                int i = lo - fromIndex, end = mid - fromIndex, j = mid, k = lo;
+                while (i < end && j < hi)
+                    a[k++] = Double.compare(a[j], buf[i]) < 0 ? a[j++] : buf[i++];
+                System.arraycopy(buf, i, a, k, end - i);
+            }
+
+            void prepareMerge(int length) {
+                buf = new double[length];
+            }
+        }, a.length, fromIndex, toIndex);
+    }
+
+    /**
+     * 一种数组的分段排序和相邻两段的合并, 不同的段可以同时处理
+     */
+    private static abstract class Sorter {
+        abstract void sort(int lo, int hi);
+
+        abstract void merge(int lo, int mid, int hi);
+
+        /**
+         * 合并前调用一次, length 是整个排序范围的长度
+         */
+        void prepareMerge(int length) {
+        }
+    }
+
+    private static void parallelSort(final Sorter sorter, int arrayLength, int fromIndex, int toIndex) {
+        if (fromIndex > toIndex)
+            throw new IllegalArgumentException("fromIndex(" + fromIndex + ") > toIndex(" + toIndex + ")");
+        if (fromIndex < 0) throw new ArrayIndexOutOfBoundsException(fromIndex);
+        if (toIndex > arrayLength) throw new ArrayIndexOutOfBoundsException(toIndex);
+
+        int n = toIndex - fromIndex;
+        int threshold = parallelThreshold;
+        if (n <= threshold || PARALLELISM == 1) {
+            sorter.sort(fromIndex, toIndex);
+            return;
+        }
+
+        // 段数取2的幂, 不超过线程数的两倍, 每段不小于阀值
+        int chunks = 2;
+        while (chunks < PARALLELISM << 1 && n / (chunks << 1) >= threshold)
+            chunks <<= 1;
+        final int[] bounds = new int[chunks + 1];
+        for (int i = 0; i <= chunks; i++)
+            bounds[i] = fromIndex + (int) ((long) n * i / chunks);
+
+        ExecutorService executor = sortExecutor();
+        List<Future<?>> futures = new ArrayList<Future<?>>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final int lo = bounds[i], hi = bounds[i + 1];
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    sorter.sort(lo, hi);
+                }
+            }));
+        }
+        await(futures);
+
+        // 每轮把相邻的两段合并成一段, 最后一对由调用线程合并, 其余提交到线程池; 最后一轮只有一对, 完全在调用线程中合并
+        sorter.prepareMerge(n);
+        for (int width = 1; width < chunks; width <<= 1) {
+            int last = chunks - (width << 1);
+            for (int i = 0; i < last; i += width << 1) {
+                final int lo = bounds[i], mid = bounds[i + width], hi = bounds[i + (width << 1)];
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        sorter.merge(lo, mid, hi);
+                    }
+                }));
+            }
+            try {
+                sorter.merge(bounds[last], bounds[last + width], bounds[chunks]);
+            } finally {
+                await(futures);
+            }
+        }
+    }
+
+    private static void await(List<Future<?>> futures) {
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures)
+                future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while sorting", e);
+        } catch (ExecutionException e) {
+            for (Future<?> future : futures)
+                future.cancel(false);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            futures.clear();
+        }
+    }
+
+    /**
+     * 排序线程池, 只有调用线程提交和等待任务, 池内任务不会互相等待
+     */
+    private static synchronized ExecutorService sortExecutor() {
+        if (sortExecutor == null) {
+            final AtomicInteger threadIndex = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(PARALLELISM, PARALLELISM, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "array-sorting-" + threadIndex.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sortExecutor = executor;
+        }
+        return sortExecutor;
+    }
+
     /**
      * A stable, adaptive, iterative mergesort that requires far fewer than n lg(n) comparisons when running on partially sorted
      * arrays, while offering performance comparable to a traditional mergesort when run on random arrays. Like all proper mergesorts,
@@ -290,6 +556,17 @@ public class ArraySorting {
             if (DEBUG) assert ts.stackSize == 1;
         }
 
+        /**
+         * 合并两个相邻的有序段 [lo, mid) 和 [mid, hi), 用于并行排序
+         */
+        static <T> void merge(T[] a, int lo, int mid, int hi, Comparator<? super T> c) {
+            if (lo == mid || mid == hi) return;
+            TimSort<T> ts = new TimSort<T>(a, c);
+            ts.pushRun(lo, mid - lo);
+            ts.pushRun(mid, hi - mid);
+            ts.mergeAt(0);
+        }
+
         /**
          * Sorts the specified portion of the specified array using a binary insertion sort. This is the best method for sorting small
          * numbers of elements. It requires O(n log n) compares, but O(n^2) data movement (worst case).
@@ -1128,6 +1405,17 @@ public class ArraySorting {
             if (DEBUG) assert ts.stackSize == 1;
         }
 
+        /**
+         * 合并两个相邻的有序段 [lo, mid) 和 [mid, hi), 用于并行排序
+         */
+        static void merge(Object[] a, int lo, int mid, int hi) {
+            if (lo == mid || mid == hi) return;
+            ComparableTimSort ts = new ComparableTimSort(a);
+            ts.pushRun(lo, mid - lo);
+            ts.pushRun(mid, hi - mid);
+            ts.mergeAt(0);
+        }
+
         /**
          * Sorts the specified portion of the specified array using a binary insertion sort. This is the best method for sorting small
          * numbers of elements. It requires O(n log n) compares, but O(n^2) data movement (worst case).
@@ -0,0 +1,385 @@
+package com.facetime.core.collection;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.facetime.core.utils.MathUtils;
+
+/**
+ * 开放寻址的大小写不敏感Map, 插入O(1)<br></>
+ * 键的大小写原样保留, 比较和散列都忽略大小写, 散列时逐字符转换, 不生成 toLowerCase 的副本.
+ * <p/>
+ * 条目按插入顺序紧凑地存放在数组里, 另有一张线性探测的下标表指向条目. ordered 为true时遍历顺序就是插入顺序,
+ * 删除留下空位, 扩容时压缩; 为false时删除把最后一个条目移到空位, 不保证顺序.
+ * <p/>
+ * 和 {@link CaseInsensitiveMap} 一样允许null键, 非线程安全.
+ *
+ * @param <V> the type of symbol stored
+ */
+public class CaseInsensitiveHashMap<V> extends AbstractMap<String, V> implements Serializable {
+
+	private static final long serialVersionUID = -2719823406287154915L;
+
+	private static final int DEFAULT_SIZE = 16;
+
+	private static final int FREE = -1;
+
+	static final class Entry<V> implements Map.Entry<String, V>, Serializable {
+
+		private static final long serialVersionUID = 4173512436912870583L;
+
+		String key;
+		final int hash;
+		V value;
+
+		Entry(String key, int hash, V value) {
+			this.key = key;
+			this.hash = hash;
+			this.value = value;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		public V setValue(V value) {
+			V result = this.value;
+			this.value = value;
+			return result;
+		}
+
+		@SuppressWarnings({ "StringEquality" })
+		boolean matches(String key) {
+			return key == this.key || (key != null && key.equalsIgnoreCase(this.key));
+		}
+
+		boolean valueMatches(Object value) {
+			return value == this.value || (value != null && value.equals(this.value));
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	private final boolean ordered;
+
+	/**
+	 * 条目, [0, used) 之间按插入顺序存放, ordered 时可能有null空位
+	 */
+	private Entry<V>[] entries;
+	private int used;
+	private int size;
+
+	/**
+	 * 线性探测表, 存条目下标, 长度是 entries 的两倍
+	 */
+	private int[] slots;
+	private int mask;
+
+	private transient int modCount;
+
+	private transient Set<Map.Entry<String, V>> entrySet;
+
+	public CaseInsensitiveHashMap() {
+		this(DEFAULT_SIZE, true);
+	}
+
+	public CaseInsensitiveHashMap(int size) {
+		this(size, true);
+	}
+
+	/**
+	 * @param size    预计的条目数
+	 * @param ordered 是否按插入顺序遍历
+	 */
+	public CaseInsensitiveHashMap(int size, boolean ordered) {
+		if (size < 0)
+			throw new IllegalArgumentException("size must be >= 0: " + size);
+		this.ordered = ordered;
+		allocate(Math.max(4, MathUtils.nextPowerOfTwo(size)));
+	}
+
+	public CaseInsensitiveHashMap(Map<String, ? extends V> map) {
+		this(map.size(), true);
+		putAll(map);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return slotOf(key) >= 0;
+	}
+
+	@Override
+	public V get(Object key) {
+		int slot = slotOf(key);
+		return slot < 0 ? null : entries[slots[slot]].value;
+	}
+
+	@Override
+	public V put(String key, V value) {
+		int hash = caseInsensitiveHashCode(key);
+		int slot = find(key, hash);
+		if (slot >= 0) {
+			Entry<V> e = entries[slots[slot]];
+			V result = e.value;
+			// 保留最后一次put的大小写
+			e.key = key;
+			e.value = value;
+			return result;
+		}
+		if (used == entries.length) {
+			// 空位多就压缩, 否则扩容; 下标表重建后原来的探测位置作废
+			allocate(size + (size >> 1) < entries.length ? entries.length : entries.length << 1);
+			slot = find(key, hash);
+		}
+		slots[-(slot + 1)] = used;
+		entries[used++] = new Entry<V>(key, hash, value);
+		size++;
+		modCount++;
+		return null;
+	}
+
+	@Override
+	public V remove(Object key) {
+		int slot = slotOf(key);
+		if (slot < 0)
+			return null;
+		V result = entries[slots[slot]].value;
+		removeSlot(slot);
+		return result;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(entries, 0, used, null);
+		Arrays.fill(slots, FREE);
+		used = 0;
+		size = 0;
+		modCount++;
+	}
+
+	@Override
+	public Set<Map.Entry<String, V>> entrySet() {
+		if (entrySet == null)
+			entrySet = new EntrySet();
+		return entrySet;
+	}
+
+	/**
+	 * 和 {@link String#equalsIgnoreCase(String)} 一致的散列: 先转大写再转小写, ASCII直接换算
+	 */
+	static int caseInsensitiveHashCode(String input) {
+		if (input == null)
+			return 0;
+		int hash = 0;
+		for (int i = 0, length = input.length(); i < length; i++) {
+			int ch = input.charAt(i);
+			if (ch < 128) {
+				if (ch >= 'A' && ch <= 'Z')
+					ch += 'a' - 'A';
+			} else {
+				ch = Character.toLowerCase(Character.toUpperCase(ch));
+			}
+			hash = 31 * hash + ch;
+		}
+		return hash;
+	}
+
+	private int slotOf(Object key) {
+		if (key != null && !(key instanceof String))
+			return -1;
+		String keyString = (String) key;
+		return find(keyString, caseInsensitiveHashCode(keyString));
+	}
+
+	/**
+	 * @return 找到时返回下标表的位置, 否则返回 -(空位置 + 1)
+	 */
+	private int find(String key, int hash) {
+		int[] slots = this.slots;
+		int mask = this.mask;
+		for (int i = spread(hash) & mask;; i = (i + 1) & mask) {
+			int index = slots[i];
+			if (index == FREE)
+				return -(i + 1);
+			Entry<V> e = entries[index];
+			if (e.hash == hash && e.matches(key))
+				return i;
+		}
+	}
+
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private void removeSlot(int slot) {
+		int index = slots[slot];
+		deleteSlot(slot);
+		if (ordered) {
+			entries[index] = null;
+			if (index == used - 1)
+				used--;
+		} else {
+			int last = --used;
+			if (index != last) {
+				Entry<V> moved = entries[last];
+				for (int i = spread(moved.hash) & mask;; i = (i + 1) & mask) {
+					if (slots[i] == last) {
+						slots[i] = index;
+						break;
+					}
+				}
+				entries[index] = moved;
+			}
+			entries[last] = null;
+		}
+		size--;
+		modCount++;
+	}
+
+	/**
+	 * 线性探测的删除: 把后面探测链上的下标往回挪, 不留墓碑
+	 */
+	private void deleteSlot(int slot) {
+		int[] slots = this.slots;
+		int mask = this.mask;
+		int hole = slot;
+		for (int i = (hole + 1) & mask;; i = (i + 1) & mask) {
+			int index = slots[i];
+			if (index == FREE)
+				break;
+			int home = spread(entries[index].hash) & mask;
+			// home 不在 (hole, i] 之间的才能挪到 hole
+			if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i)) {
+				slots[hole] = index;
+				hole = i;
+			}
+		}
+		slots[hole] = FREE;
+	}
+
+	/**
+	 * 按新容量重建条目数组(去掉空位)和下标表
+	 */
+	private void allocate(int capacity) {
+		Entry<V>[] old = entries;
+		int oldUsed = used;
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Entry<V>[] table = new Entry[capacity];
+		entries = table;
+		slots = new int[capacity << 1];
+		Arrays.fill(slots, FREE);
+		mask = slots.length - 1;
+		used = 0;
+		for (int i = 0; i < oldUsed; i++) {
+			Entry<V> e = old[i];
+			if (e == null)
+				continue;
+			slots[-(find(e.key, e.hash) + 1)] = used;
+			entries[used++] = e;
+		}
+	}
+
+	private class EntrySetIterator implements Iterator<Map.Entry<String, V>> {
+
+		int expectedModCount = modCount;
+		int index;
+		int current = -1;
+
+		public boolean hasNext() {
+			while (index < used && entries[index] == null)
+				index++;
+			return index < used;
+		}
+
+		public Map.Entry<String, V> next() {
+			check();
+			if (!hasNext())
+				throw new NoSuchElementException();
+			current = index++;
+			return entries[current];
+		}
+
+		public void remove() {
+			check();
+			if (current < 0)
+				throw new IllegalStateException();
+			Entry<V> e = entries[current];
+			removeSlot(find(e.key, e.hash));
+			// 无序时最后一个条目被移到了当前位置, 需要再看一次
+			if (!ordered)
+				index = current;
+			current = -1;
+			expectedModCount = modCount;
+		}
+
+		private void check() {
+			if (expectedModCount != modCount)
+				throw new ConcurrentModificationException();
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Map.Entry<String, V>> {
+
+		@Override
+		public Iterator<Map.Entry<String, V>> iterator() {
+			return new EntrySetIterator();
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public void clear() {
+			CaseInsensitiveHashMap.this.clear();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			int slot = slotOf(e.getKey());
+			return slot >= 0 && entries[slots[slot]].valueMatches(e.getValue());
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			int slot = slotOf(e.getKey());
+			if (slot >= 0 && entries[slots[slot]].valueMatches(e.getValue())) {
+				removeSlot(slot);
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -37,12 +37,15 @@ public final class CollectionFactory {
         return new ArrayStack<T>(initialSize);
     }
 
+    /**
+     * 构建大小写不敏感的Map, 按插入顺序遍历, 见 {@link CaseInsensitiveHashMap}.
+     */
     public static <V> Map<String, V> newCaseInsensitiveMap() {
-        return new CaseInsensitiveMap<V>();
+        return new CaseInsensitiveHashMap<V>();
     }
 
     public static <V> Map<String, V> newCaseInsensitiveMap(Map<String, ? extends V> map) {
-        return new CaseInsensitiveMap<V>(map);
+        return new CaseInsensitiveHashMap<V>(map);
     }
 
     public static <K, V> MapList<K, V> newMapList() {
@@ -77,6 +80,72 @@ public final class CollectionFactory {
         return ret;
     }
 
+    /**
+     * 构建int键的 {@link IntObjectMap}, get/put时键不装箱.
+     */
+    public static <V> IntObjectMap<V> newIntObjectMap() {
+        return new IntObjectMap<V>();
+    }
+
+    public static <V> IntObjectMap<V> newIntObjectMap(int initialCapacity) {
+        return new IntObjectMap<V>(initialCapacity);
+    }
+
+    /**
+     * 构建long键的 {@link LongObjectMap}, get/put时键不装箱.
+     */
+    public static <V> LongObjectMap<V> newLongObjectMap() {
+        return new LongObjectMap<V>();
+    }
+
+    public static <V> LongObjectMap<V> newLongObjectMap(int initialCapacity) {
+        return new LongObjectMap<V>(initialCapacity);
+    }
+
+    /**
+     * 构建int值的 {@link ObjectIntMap}, 值不装箱.
+     */
+    public static <K> ObjectIntMap<K> newObjectIntMap() {
+        return new ObjectIntMap<K>();
+    }
+
+    public static <K> ObjectIntMap<K> newObjectIntMap(int initialCapacity) {
+        return new ObjectIntMap<K>(initialCapacity);
+    }
+
+    /**
+     * 构建int键int值的 {@link IntIntMap}.
+     */
+    public static IntIntMap newIntIntMap() {
+        return new IntIntMap();
+    }
+
+    public static IntIntMap newIntIntMap(int initialCapacity) {
+        return new IntIntMap(initialCapacity);
+    }
+
+    /**
+     * 构建int元素的 {@link IntSet}.
+     */
+    public static IntSet newIntSet() {
+        return new IntSet();
+    }
+
+    public static IntSet newIntSet(int initialCapacity) {
+        return new IntSet(initialCapacity);
+    }
+
+    /**
+     * 构建long元素的 {@link LongSet}.
+     */
+    public static LongSet newLongSet() {
+        return new LongSet();
+    }
+
+    public static LongSet newLongSet(int initialCapacity) {
+        return new LongSet(initialCapacity);
+    }
+
     /**
      * Constructs a new concurrent map, which is safe to access via multiple threads.
      */
@@ -84,6 +153,17 @@ public final class CollectionFactory {
         return new ConcurrentHashMap<K, V>();
     }
 
+    /**
+     * 构建读多写少的 {@link ConcurrentFastMap}, get不加锁.
+     */
+    public static <K, V> ConcurrentMap<K, V> newConcurrentFastMap() {
+        return new ConcurrentFastMap<K, V>();
+    }
+
+    public static <K, V> ConcurrentMap<K, V> newConcurrentFastMap(int initialCapacity) {
+        return new ConcurrentFastMap<K, V>(initialCapacity);
+    }
+
     /**
      * Contructs and returns a new generic {@link java.util.ArrayList} creating.
      */
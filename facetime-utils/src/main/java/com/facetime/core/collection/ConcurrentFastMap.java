@@ -0,0 +1,499 @@
+package com.facetime.core.collection;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.facetime.core.utils.MathUtils;
+
+/**
+ * {@link FastMap} 的线程安全版本, 适合读多写少的共享查找表(转换器表, 插件表, 缓存)<br></>
+ * 散列方式与 FastMap 一致: 3次散列 + 随机踢出 + 小的stash区.
+ * <p/>
+ * get/containsKey 不加锁: 读取volatile的表快照, 每个槽存放不可变的 {@link Node}, 键值总是成对可见.
+ * 写操作在一把锁内进行; 扩容时整张表复制后再发布, 旧表保持不变. 踢出已有节点时会短暂地移动节点,
+ * 这期间 version 为奇数, 没找到键的读操作发现 version 变化后会退回到加锁查找, 所以不会漏读已存在的键;
+ * 找到时返回的就是比较过键的那个节点, 不会拿到被移进同一槽的其他键的值.
+ * <p/>
+ * 键和值都不允许为null. 遍历基于加锁复制出的快照, 迭代器的 remove 会删除当前映射.
+ *
+ * @author dzb2k9
+ */
+public class ConcurrentFastMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+	private static final int PRIME2 = 0xb4b82e39;
+	private static final int PRIME3 = 0xced1c241;
+
+	private final float loadFactor;
+	private final Object lock = new Object();
+
+	private volatile Table<K, V> table;
+	/**
+	 * 写操作移动已有节点期间为奇数
+	 */
+	private volatile int version;
+	private volatile int size;
+
+	/**
+	 * 初始容量32, 负载因子0.8
+	 */
+	public ConcurrentFastMap() {
+		this(32, 0.8f);
+	}
+
+	public ConcurrentFastMap(int initialCapacity) {
+		this(initialCapacity, 0.8f);
+	}
+
+	public ConcurrentFastMap(int initialCapacity, float loadFactor) {
+		if (initialCapacity < 0)
+			throw new IllegalArgumentException("initialCapacity must be >= 0: " + initialCapacity);
+		if (initialCapacity > 1 << 30)
+			throw new IllegalArgumentException("initialCapacity is too large: " + initialCapacity);
+		if (loadFactor <= 0)
+			throw new IllegalArgumentException("loadFactor must be > 0: " + loadFactor);
+		this.loadFactor = loadFactor;
+		this.table = new Table<K, V>(MathUtils.nextPowerOfTwo(initialCapacity), loadFactor);
+	}
+
+	public ConcurrentFastMap(Map<? extends K, ? extends V> map) {
+		this(map.size());
+		putAll(map);
+	}
+
+	@Override
+	public V get(Object key) {
+		Node<K, V> node = find(key);
+		return node == null ? null : node.value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return find(key) != null;
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		if (value == null)
+			return false;
+		for (Node<K, V> node : snapshot())
+			if (value.equals(node.value))
+				return true;
+		return false;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		return put(key, value, false);
+	}
+
+	public V putIfAbsent(K key, V value) {
+		return put(key, value, true);
+	}
+
+	@Override
+	public V remove(Object key) {
+		if (key == null)
+			return null;
+		synchronized (lock) {
+			Table<K, V> t = table;
+			int index = t.indexOf(key, key.hashCode());
+			if (index < 0)
+				return null;
+			Node<K, V> old = t.nodes.get(index);
+			t.nodes.set(index, null);
+			size--;
+			return old.value;
+		}
+	}
+
+	public boolean remove(Object key, Object value) {
+		if (key == null || value == null)
+			return false;
+		synchronized (lock) {
+			Table<K, V> t = table;
+			int index = t.indexOf(key, key.hashCode());
+			if (index < 0 || !value.equals(t.nodes.get(index).value))
+				return false;
+			t.nodes.set(index, null);
+			size--;
+			return true;
+		}
+	}
+
+	public boolean replace(K key, V oldValue, V newValue) {
+		if (key == null || oldValue == null || newValue == null)
+			throw new NullPointerException();
+		synchronized (lock) {
+			Table<K, V> t = table;
+			int hash = key.hashCode();
+			int index = t.indexOf(key, hash);
+			if (index < 0 || !oldValue.equals(t.nodes.get(index).value))
+				return false;
+			t.nodes.set(index, new Node<K, V>(hash, key, newValue));
+			return true;
+		}
+	}
+
+	public V replace(K key, V value) {
+		if (key == null || value == null)
+			throw new NullPointerException();
+		synchronized (lock) {
+			Table<K, V> t = table;
+			int hash = key.hashCode();
+			int index = t.indexOf(key, hash);
+			if (index < 0)
+				return null;
+			V old = t.nodes.get(index).value;
+			t.nodes.set(index, new Node<K, V>(hash, key, value));
+			return old;
+		}
+	}
+
+	@Override
+	public void clear() {
+		synchronized (lock) {
+			table = new Table<K, V>(table.capacity, loadFactor);
+			size = 0;
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new EntrySet();
+	}
+
+	private Node<K, V> find(Object key) {
+		if (key == null)
+			return null;
+		int hash = key.hashCode();
+		int v = version;
+		Node<K, V> node = table.find(key, hash);
+		if (node != null)
+			return node;
+		if ((v & 1) == 0 && v == version)
+			return null;
+		// 查找期间有节点在移动, 加锁再找一次
+		synchronized (lock) {
+			return table.find(key, hash);
+		}
+	}
+
+	private V put(K key, V value, boolean onlyIfAbsent) {
+		if (key == null || value == null)
+			throw new NullPointerException();
+		int hash = key.hashCode();
+		Node<K, V> node = new Node<K, V>(hash, key, value);
+		synchronized (lock) {
+			Table<K, V> t = table;
+			int index = t.indexOf(key, hash);
+			if (index >= 0) {
+				V old = t.nodes.get(index).value;
+				if (!onlyIfAbsent)
+					t.nodes.set(index, node);
+				return old;
+			}
+			if (!t.putEmpty(node)) {
+				version++;
+				try {
+					Node<K, V> left = t.push(node);
+					if (left != null)
+						t = table = rebuild(t, t.capacity << 1, left);
+				} finally {
+					version++;
+				}
+			}
+			if (size++ >= t.threshold)
+				resize(t, t.capacity << 1);
+			return null;
+		}
+	}
+
+	private void resize(Table<K, V> old, int newCapacity) {
+		version++;
+		try {
+			table = rebuild(old, newCapacity, null);
+		} finally {
+			version++;
+		}
+	}
+
+	/**
+	 * 把旧表的节点和 extra 放进一张新表, 放不下就继续加倍. 旧表不会被修改
+	 */
+	private Table<K, V> rebuild(Table<K, V> old, int capacity, Node<K, V> extra) {
+		retry: while (true) {
+			Table<K, V> t = new Table<K, V>(capacity, loadFactor);
+			capacity <<= 1;
+			if (extra != null && !t.putEmpty(extra) && t.push(extra) != null)
+				continue;
+			for (int i = 0, n = old.nodes.length(); i < n; i++) {
+				Node<K, V> node = old.nodes.get(i);
+				if (node != null && !t.putEmpty(node) && t.push(node) != null)
+					continue retry;
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * 加锁复制当前所有节点
+	 */
+	private Node<K, V>[] snapshot() {
+		synchronized (lock) {
+			AtomicReferenceArray<Node<K, V>> nodes = table.nodes;
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			Node<K, V>[] copy = new Node[size];
+			int count = 0;
+			for (int i = 0, n = nodes.length(); i < n; i++) {
+				Node<K, V> node = nodes.get(i);
+				if (node != null)
+					copy[count++] = node;
+			}
+			return copy;
+		}
+	}
+
+	/**
+	 * 不可变的键值对, 更新值时替换整个节点
+	 */
+	static final class Node<K, V> implements Map.Entry<K, V> {
+		final int hash;
+		final K key;
+		final V value;
+
+		Node(int hash, K key, V value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		/**
+		 * 节点不可变, 请用 {@link ConcurrentFastMap#put(Object, Object)}
+		 */
+		public V setValue(V value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			return key.equals(e.getKey()) && value.equals(e.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode() ^ value.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	/**
+	 * 一张散列表, 前 capacity 个槽按3次散列存放, 之后是stash区. 扩容时整张替换
+	 */
+	static final class Table<K, V> {
+		final AtomicReferenceArray<Node<K, V>> nodes;
+		final int capacity, mask, hashShift, threshold;
+		final int stashCapacity, pushIterations;
+
+		Table(int capacity, float loadFactor) {
+			this.capacity = capacity;
+			threshold = (int) (capacity * loadFactor);
+			mask = capacity - 1;
+			hashShift = 31 - Integer.numberOfTrailingZeros(capacity);
+			stashCapacity = Math.max(3, (int) Math.ceil(Math.log(capacity)) + 1);
+			pushIterations = Math.max(Math.min(capacity, 32), (int) Math.sqrt(capacity) / 4);
+			nodes = new AtomicReferenceArray<Node<K, V>>(capacity + stashCapacity);
+		}
+
+		int hash2(long h) {
+			h *= PRIME2;
+			return (int) ((h ^ h >>> hashShift) & mask);
+		}
+
+		int hash3(long h) {
+			h *= PRIME3;
+			return (int) ((h ^ h >>> hashShift) & mask);
+		}
+
+		/**
+		 * 不加锁的查找: 每个槽只读一次, 返回比较过的那个节点. 比较完再按下标重读,
+		 * 读到的可能是 push 刚移进来的另一个键
+		 */
+		Node<K, V> find(Object key, int hash) {
+			Node<K, V> node = nodes.get(hash & mask);
+			if (matches(node, key, hash))
+				return node;
+			node = nodes.get(hash2(hash));
+			if (matches(node, key, hash))
+				return node;
+			node = nodes.get(hash3(hash));
+			if (matches(node, key, hash))
+				return node;
+			for (int i = capacity, n = capacity + stashCapacity; i < n; i++) {
+				node = nodes.get(i);
+				if (matches(node, key, hash))
+					return node;
+			}
+			return null;
+		}
+
+		/**
+		 * 只能在锁内调用, 写操作都持有锁, 返回的下标在锁释放前一直指向这个键
+		 */
+		int indexOf(Object key, int hash) {
+			int index = hash & mask;
+			if (matches(nodes.get(index), key, hash))
+				return index;
+			index = hash2(hash);
+			if (matches(nodes.get(index), key, hash))
+				return index;
+			index = hash3(hash);
+			if (matches(nodes.get(index), key, hash))
+				return index;
+			for (int i = capacity, n = capacity + stashCapacity; i < n; i++)
+				if (matches(nodes.get(i), key, hash))
+					return i;
+			return -1;
+		}
+
+		private static boolean matches(Node<?, ?> node, Object key, int hash) {
+			return node != null && node.hash == hash && key.equals(node.key);
+		}
+
+		/**
+		 * 3个散列位置有空槽就直接放入, 不移动其他节点
+		 */
+		boolean putEmpty(Node<K, V> node) {
+			int hash = node.hash;
+			return nodes.compareAndSet(hash & mask, null, node) || nodes.compareAndSet(hash2(hash), null, node)
+					|| nodes.compareAndSet(hash3(hash), null, node);
+		}
+
+		/**
+		 * 随机踢出已有节点直到找到空槽, 再放不下就放进stash. stash也满了返回手上多出的节点, 否则返回null
+		 */
+		Node<K, V> push(Node<K, V> node) {
+			Node<K, V> insert = node;
+			int hash = node.hash;
+			int index1 = hash & mask, index2 = hash2(hash), index3 = hash3(hash);
+			for (int i = 0; i < pushIterations; i++) {
+				int index;
+				switch (MathUtils.random(2)) {
+				case 0:
+					index = index1;
+					break;
+				case 1:
+					index = index2;
+					break;
+				default:
+					index = index3;
+					break;
+				}
+				Node<K, V> evicted = nodes.getAndSet(index, insert);
+				insert = evicted;
+				if (putEmpty(insert))
+					return null;
+				hash = insert.hash;
+				index1 = hash & mask;
+				index2 = hash2(hash);
+				index3 = hash3(hash);
+			}
+			for (int i = capacity, n = capacity + stashCapacity; i < n; i++)
+				if (nodes.compareAndSet(i, null, insert))
+					return null;
+			return insert;
+		}
+	}
+
+	private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			return new EntryIterator(snapshot());
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			Node<K, V> node = find(e.getKey());
+			return node != null && node.value.equals(e.getValue());
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			return ConcurrentFastMap.this.remove(e.getKey(), e.getValue());
+		}
+
+		@Override
+		public void clear() {
+			ConcurrentFastMap.this.clear();
+		}
+	}
+
+	private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+		private final Node<K, V>[] nodes;
+		private int index;
+		private Node<K, V> last;
+
+		EntryIterator(Node<K, V>[] nodes) {
+			this.nodes = nodes;
+		}
+
+		public boolean hasNext() {
+			return index < nodes.length;
+		}
+
+		public Map.Entry<K, V> next() {
+			if (index >= nodes.length)
+				throw new NoSuchElementException();
+			return last = nodes[index++];
+		}
+
+		public void remove() {
+			if (last == null)
+				throw new IllegalStateException();
+			ConcurrentFastMap.this.remove(last.key, last.value);
+			last = null;
+		}
+	}
+}
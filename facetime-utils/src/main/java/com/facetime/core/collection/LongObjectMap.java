@@ -0,0 +1,761 @@
+package com.facetime.core.collection;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.facetime.core.utils.MathUtils;
+
+/**
+ * long键的{@link FastMap}, get/put时键不装箱<p>
+ * 与FastMap相同: 3次散列的cuckoo hash, 随机踢出, 放不下的键进入一个小的stash, 除扩容外不分配对象.
+ * 0作为空槽标记, 键为0的值单独保存. 迭代器每次返回同一个实例, 嵌套或多线程迭代时自己创建迭代器.
+ *
+ * @author Nathan Sweet
+ */
+public class LongObjectMap<V> {
+
+	private static final int PRIME2 = 0xb4b82e39;
+	private static final int PRIME3 = 0xced1c241;
+	private static final int EMPTY = 0;
+
+	public int size;
+
+	long[] keyTable;
+	V[] valueTable;
+	int capacity, stashSize;
+	V zeroValue;
+	boolean hasZeroValue;
+
+	private float loadFactor;
+	private int hashShift, mask, threshold;
+	private int stashCapacity;
+	private int pushIterations;
+
+	private Entries<V> entries;
+	private Values<V> values;
+	private Keys keys;
+
+	/**
+	 * Creates a new map with an initial capacity of 32 and a load factor of 0.8. This map will hold 25 items before growing the
+	 * backing table.
+	 */
+	public LongObjectMap() {
+		this(32, 0.8f);
+	}
+
+	/**
+	 * Creates a new map with a load factor of 0.8. This map will hold initialCapacity * 0.8 items before growing the backing
+	 * table.
+	 */
+	public LongObjectMap(int initialCapacity) {
+		this(initialCapacity, 0.8f);
+	}
+
+	/**
+	 * Creates a new map with the specified initial capacity and load factor. This map will hold initialCapacity * loadFactor items
+	 * before growing the backing table.
+	 */
+	@SuppressWarnings("unchecked")
+	public LongObjectMap(int initialCapacity, float loadFactor) {
+		if (initialCapacity < 0)
+			throw new IllegalArgumentException("initialCapacity must be >= 0: " + initialCapacity);
+		if (initialCapacity > 1 << 30)
+			throw new IllegalArgumentException("initialCapacity is too large: " + initialCapacity);
+		capacity = MathUtils.nextPowerOfTwo(initialCapacity);
+
+		if (loadFactor <= 0)
+			throw new IllegalArgumentException("loadFactor must be > 0: " + loadFactor);
+		this.loadFactor = loadFactor;
+
+		threshold = (int) (capacity * loadFactor);
+		mask = capacity - 1;
+		hashShift = 31 - Integer.numberOfTrailingZeros(capacity);
+		stashCapacity = Math.max(3, (int) Math.ceil(Math.log(capacity)) + 1);
+		pushIterations = Math.max(Math.min(capacity, 32), (int) Math.sqrt(capacity) / 4);
+
+		keyTable = new long[capacity + stashCapacity];
+		valueTable = (V[]) new Object[keyTable.length];
+	}
+
+	public V put(long key, V value) {
+		if (key == 0) {
+			V oldValue = zeroValue;
+			zeroValue = value;
+			if (!hasZeroValue) {
+				hasZeroValue = true;
+				size++;
+			}
+			return oldValue;
+		}
+
+		long[] keyTable = this.keyTable;
+
+		// Check for existing keys.
+		int index1 = hash1(key);
+		long key1 = keyTable[index1];
+		if (key1 == key) {
+			V oldValue = valueTable[index1];
+			valueTable[index1] = value;
+			return oldValue;
+		}
+
+		int index2 = hash2(key);
+		long key2 = keyTable[index2];
+		if (key2 == key) {
+			V oldValue = valueTable[index2];
+			valueTable[index2] = value;
+			return oldValue;
+		}
+
+		int index3 = hash3(key);
+		long key3 = keyTable[index3];
+		if (key3 == key) {
+			V oldValue = valueTable[index3];
+			valueTable[index3] = value;
+			return oldValue;
+		}
+
+		// Update key in the stash.
+		for (int i = capacity, n = i + stashSize; i < n; i++)
+			if (keyTable[i] == key) {
+				V oldValue = valueTable[i];
+				valueTable[i] = value;
+				return oldValue;
+			}
+
+		// Check for empty buckets.
+		if (key1 == EMPTY) {
+			keyTable[index1] = key;
+			valueTable[index1] = value;
+			if (size++ >= threshold)
+				resize(capacity << 1);
+			return null;
+		}
+
+		if (key2 == EMPTY) {
+			keyTable[index2] = key;
+			valueTable[index2] = value;
+			if (size++ >= threshold)
+				resize(capacity << 1);
+			return null;
+		}
+
+		if (key3 == EMPTY) {
+			keyTable[index3] = key;
+			valueTable[index3] = value;
+			if (size++ >= threshold)
+				resize(capacity << 1);
+			return null;
+		}
+
+		push(key, value, index1, key1, index2, key2, index3, key3);
+		return null;
+	}
+
+	public void putAll(LongObjectMap<V> map) {
+		for (Entry<V> entry : map.entries())
+			put(entry.key, entry.value);
+	}
+
+	public V get(long key) {
+		return get(key, null);
+	}
+
+	public V get(long key, V defaultValue) {
+		if (key == 0) {
+			if (!hasZeroValue)
+				return defaultValue;
+			return zeroValue;
+		}
+		int index = hash1(key);
+		if (keyTable[index] != key) {
+			index = hash2(key);
+			if (keyTable[index] != key) {
+				index = hash3(key);
+				if (keyTable[index] != key)
+					return getStash(key, defaultValue);
+			}
+		}
+		return valueTable[index];
+	}
+
+	public V remove(long key) {
+		if (key == 0) {
+			if (!hasZeroValue)
+				return null;
+			V oldValue = zeroValue;
+			zeroValue = null;
+			hasZeroValue = false;
+			size--;
+			return oldValue;
+		}
+
+		int index = hash1(key);
+		if (keyTable[index] == key) {
+			keyTable[index] = EMPTY;
+			V oldValue = valueTable[index];
+			valueTable[index] = null;
+			size--;
+			return oldValue;
+		}
+
+		index = hash2(key);
+		if (keyTable[index] == key) {
+			keyTable[index] = EMPTY;
+			V oldValue = valueTable[index];
+			valueTable[index] = null;
+			size--;
+			return oldValue;
+		}
+
+		index = hash3(key);
+		if (keyTable[index] == key) {
+			keyTable[index] = EMPTY;
+			V oldValue = valueTable[index];
+			valueTable[index] = null;
+			size--;
+			return oldValue;
+		}
+
+		return removeStash(key);
+	}
+
+	public boolean containsKey(long key) {
+		if (key == 0)
+			return hasZeroValue;
+		int index = hash1(key);
+		if (keyTable[index] != key) {
+			index = hash2(key);
+			if (keyTable[index] != key) {
+				index = hash3(key);
+				if (keyTable[index] != key)
+					return containsKeyStash(key);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the specified value is in the map. Note this traverses the entire map and compares every value, which may be
+	 * an expensive operation.
+	 *
+	 * @param identity If true, uses == to compare the specified value with values in the map. If false, uses
+	 *           {@link #equals(Object)}.
+	 */
+	public boolean containsValue(Object value, boolean identity) {
+		if (hasZeroValue && equals(zeroValue, value, identity))
+			return true;
+		long[] keyTable = this.keyTable;
+		V[] valueTable = this.valueTable;
+		for (int i = capacity + stashSize; i-- > 0;)
+			if (keyTable[i] != EMPTY && equals(valueTable[i], value, identity))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns the key for the specified value, or notFound if it is not in the map. Note this traverses the entire map and compares
+	 * every value, which may be an expensive operation.
+	 */
+	public long findKey(Object value, boolean identity, long notFound) {
+		if (hasZeroValue && equals(zeroValue, value, identity))
+			return 0;
+		long[] keyTable = this.keyTable;
+		V[] valueTable = this.valueTable;
+		for (int i = capacity + stashSize; i-- > 0;)
+			if (keyTable[i] != EMPTY && equals(valueTable[i], value, identity))
+				return keyTable[i];
+		return notFound;
+	}
+
+	private static boolean equals(Object tableValue, Object value, boolean identity) {
+		if (identity || value == null)
+			return tableValue == value;
+		return value.equals(tableValue);
+	}
+
+	/**
+	 * Increases the size of the backing array to acommodate the specified number of additional items. Useful before adding many
+	 * items to avoid multiple backing array resizes.
+	 */
+	public void ensureCapacity(int additionalCapacity) {
+		int sizeNeeded = size + additionalCapacity;
+		if (sizeNeeded >= threshold)
+			resize(MathUtils.nextPowerOfTwo((int) (sizeNeeded / loadFactor)));
+	}
+
+	public void clear() {
+		long[] keyTable = this.keyTable;
+		V[] valueTable = this.valueTable;
+		for (int i = capacity + stashSize; i-- > 0;) {
+			keyTable[i] = EMPTY;
+			valueTable[i] = null;
+		}
+		size = 0;
+		stashSize = 0;
+		zeroValue = null;
+		hasZeroValue = false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns an iterator for the entries in the map. Remove is supported. Note that the same iterator instance is returned each
+	 * time this method is called. Use the {@link Entries} constructor for nested or multithreaded iteration.
+	 */
+	public Entries<V> entries() {
+		if (entries == null)
+			entries = new Entries<V>(this);
+		else
+			entries.reset();
+		return entries;
+	}
+
+	/**
+	 * Returns an iterator for the values in the map. Remove is supported. Note that the same iterator instance is returned each
+	 * time this method is called. Use the {@link Values} constructor for nested or multithreaded iteration.
+	 */
+	public Values<V> values() {
+		if (values == null)
+			values = new Values<V>(this);
+		else
+			values.reset();
+		return values;
+	}
+
+	/**
+	 * Returns an iterator for the keys in the map. Remove is supported. Note that the same iterator instance is returned each time
+	 * this method is called. Use the {@link Keys} constructor for nested or multithreaded iteration.
+	 */
+	public Keys keys() {
+		if (keys == null)
+			keys = new Keys(this);
+		else
+			keys.reset();
+		return keys;
+	}
+
+	@Override
+	public String toString() {
+		if (size == 0)
+			return "[]";
+		StringBuilder buffer = new StringBuilder(32);
+		buffer.append('[');
+		if (hasZeroValue) {
+			buffer.append("0=");
+			buffer.append(zeroValue);
+		}
+		long[] keyTable = this.keyTable;
+		V[] valueTable = this.valueTable;
+		for (int i = 0, n = capacity + stashSize; i < n; i++) {
+			long key = keyTable[i];
+			if (key == EMPTY)
+				continue;
+			if (buffer.length() > 1)
+				buffer.append(", ");
+			buffer.append(key);
+			buffer.append('=');
+			buffer.append(valueTable[i]);
+		}
+		buffer.append(']');
+		return buffer.toString();
+	}
+
+	private void push(long insertKey, V insertValue, int index1, long key1, int index2, long key2, int index3, long key3) {
+		long[] keyTable = this.keyTable;
+		V[] valueTable = this.valueTable;
+		int mask = this.mask;
+
+		// Push keys until an empty bucket is found.
+		long evictedKey;
+		V evictedValue;
+		int i = 0, pushIterations = this.pushIterations;
+		do {
+			// Replace the key and value for one of the hashes.
+			switch (MathUtils.random(2)) {
+			case 0:
+				evictedKey = key1;
+				evictedValue = valueTable[index1];
+				keyTable[index1] = insertKey;
+				valueTable[index1] = insertValue;
+				break;
+			case 1:
+				evictedKey = key2;
+				evictedValue = valueTable[index2];
+				keyTable[index2] = insertKey;
+				valueTable[index2] = insertValue;
+				break;
+			default:
+				evictedKey = key3;
+				evictedValue = valueTable[index3];
+				keyTable[index3] = insertKey;
+				valueTable[index3] = insertValue;
+				break;
+			}
+
+			// If the evicted key hashes to an empty bucket, put it there and stop.
+			index1 = hash1(evictedKey);
+			key1 = keyTable[index1];
+			if (key1 == EMPTY) {
+				keyTable[index1] = evictedKey;
+				valueTable[index1] = evictedValue;
+				if (size++ >= threshold)
+					resize(capacity << 1);
+				return;
+			}
+
+			index2 = hash2(evictedKey);
+			key2 = keyTable[index2];
+			if (key2 == EMPTY) {
+				keyTable[index2] = evictedKey;
+				valueTable[index2] = evictedValue;
+				if (size++ >= threshold)
+					resize(capacity << 1);
+				return;
+			}
+
+			index3 = hash3(evictedKey);
+			key3 = keyTable[index3];
+			if (key3 == EMPTY) {
+				keyTable[index3] = evictedKey;
+				valueTable[index3] = evictedValue;
+				if (size++ >= threshold)
+					resize(capacity << 1);
+				return;
+			}
+
+			if (++i == pushIterations)
+				break;
+
+			insertKey = evictedKey;
+			insertValue = evictedValue;
+		} while (true);
+
+		putStash(evictedKey, evictedValue);
+	}
+
+	/**
+	 * Skips checks for existing keys.
+	 */
+	private void putResize(long key, V value) {
+		// Check for empty buckets.
+		int index1 = hash1(key);
+		long key1 = keyTable[index1];
+		if (key1 == EMPTY) {
+			keyTable[index1] = key;
+			valueTable[index1] = value;
+			if (size++ >= threshold)
+				resize(capacity << 1);
+			return;
+		}
+
+		int index2 = hash2(key);
+		long key2 = keyTable[index2];
+		if (key2 == EMPTY) {
+			keyTable[index2] = key;
+			valueTable[index2] = value;
+			if (size++ >= threshold)
+				resize(capacity << 1);
+			return;
+		}
+
+		int index3 = hash3(key);
+		long key3 = keyTable[index3];
+		if (key3 == EMPTY) {
+			keyTable[index3] = key;
+			valueTable[index3] = value;
+			if (size++ >= threshold)
+				resize(capacity << 1);
+			return;
+		}
+
+		push(key, value, index1, key1, index2, key2, index3, key3);
+	}
+
+	private void putStash(long key, V value) {
+		if (stashSize == stashCapacity) {
+			// Too many pushes occurred and the stash is full, increase the table size.
+			resize(capacity << 1);
+			putResize(key, value);
+			return;
+		}
+		// Store key in the stash.
+		int index = capacity + stashSize;
+		keyTable[index] = key;
+		valueTable[index] = value;
+		stashSize++;
+		size++;
+	}
+
+	private V getStash(long key, V defaultValue) {
+		long[] keyTable = this.keyTable;
+		for (int i = capacity, n = i + stashSize; i < n; i++)
+			if (keyTable[i] == key)
+				return valueTable[i];
+		return defaultValue;
+	}
+
+	private boolean containsKeyStash(long key) {
+		long[] keyTable = this.keyTable;
+		for (int i = capacity, n = i + stashSize; i < n; i++)
+			if (keyTable[i] == key)
+				return true;
+		return false;
+	}
+
+	V removeStash(long key) {
+		long[] keyTable = this.keyTable;
+		for (int i = capacity, n = i + stashSize; i < n; i++)
+			if (keyTable[i] == key) {
+				V oldValue = valueTable[i];
+				removeStashIndex(i);
+				size--;
+				return oldValue;
+			}
+		return null;
+	}
+
+	void removeStashIndex(int index) {
+		// If the removed location was not last, move the last tuple to the removed location.
+		stashSize--;
+		int lastIndex = capacity + stashSize;
+		if (index < lastIndex) {
+			keyTable[index] = keyTable[lastIndex];
+			valueTable[index] = valueTable[lastIndex];
+		}
+		keyTable[lastIndex] = EMPTY;
+		valueTable[lastIndex] = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void resize(int newSize) {
+		int oldEndIndex = capacity + stashSize;
+
+		capacity = newSize;
+		threshold = (int) (newSize * loadFactor);
+		mask = newSize - 1;
+		hashShift = 31 - Integer.numberOfTrailingZeros(newSize);
+		stashCapacity = Math.max(3, (int) Math.ceil(Math.log(newSize)) + 1);
+		pushIterations = Math.max(Math.min(newSize, 32), (int) Math.sqrt(newSize) / 4);
+
+		long[] oldKeyTable = keyTable;
+		V[] oldValueTable = valueTable;
+
+		keyTable = new long[newSize + stashCapacity];
+		valueTable = (V[]) new Object[newSize + stashCapacity];
+
+		// 键为0的值不在表中, 不参与重新散列
+		size = hasZeroValue ? 1 : 0;
+		stashSize = 0;
+		for (int i = 0; i < oldEndIndex; i++) {
+			long key = oldKeyTable[i];
+			if (key != EMPTY)
+				putResize(key, oldValueTable[i]);
+		}
+	}
+
+	/**
+	 * 先把高32位折叠进来再做64位乘法散列. 只截低位时, 低位相同的键(如 k << 32)全部落在同一组槽位, 扩容也放不下
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 32;
+		h *= 0x9e3779b97f4a7c15L;
+		return h ^ h >>> 29;
+	}
+
+	private int hash1(long h) {
+		return (int) (mix(h) & mask);
+	}
+
+	private int hash2(long h) {
+		h = mix(h) * PRIME2;
+		return (int) ((h ^ h >>> hashShift) & mask);
+	}
+
+	private int hash3(long h) {
+		h = mix(h) * PRIME3;
+		return (int) ((h ^ h >>> hashShift) & mask);
+	}
+
+	public static class Entry<V> {
+		public long key;
+		public V value;
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	private static class MapIterator<V> {
+		static final int INDEX_ILLEGAL = -2;
+		static final int INDEX_ZERO = -1;
+
+		public boolean hasNext;
+
+		final LongObjectMap<V> map;
+		int nextIndex, currentIndex;
+
+		public MapIterator(LongObjectMap<V> map) {
+			this.map = map;
+			reset();
+		}
+
+		public void reset() {
+			currentIndex = INDEX_ILLEGAL;
+			nextIndex = INDEX_ZERO;
+			if (map.hasZeroValue)
+				hasNext = true;
+			else
+				findNextIndex();
+		}
+
+		void findNextIndex() {
+			hasNext = false;
+			long[] keyTable = map.keyTable;
+			for (int n = map.capacity + map.stashSize; ++nextIndex < n;) {
+				if (keyTable[nextIndex] != EMPTY) {
+					hasNext = true;
+					break;
+				}
+			}
+		}
+
+		public void remove() {
+			if (currentIndex == INDEX_ZERO && map.hasZeroValue) {
+				map.zeroValue = null;
+				map.hasZeroValue = false;
+			} else if (currentIndex < 0) {
+				throw new IllegalStateException("next must be called before remove.");
+			} else if (currentIndex >= map.capacity) {
+				map.removeStashIndex(currentIndex);
+				// stash中最后一个元素移到了当前位置, 需要重新检查
+				nextIndex = currentIndex - 1;
+				findNextIndex();
+			} else {
+				map.keyTable[currentIndex] = EMPTY;
+				map.valueTable[currentIndex] = null;
+			}
+			currentIndex = INDEX_ILLEGAL;
+			map.size--;
+		}
+	}
+
+	public static class Entries<V> extends MapIterator<V> implements Iterable<Entry<V>>, Iterator<Entry<V>> {
+		private Entry<V> entry = new Entry<V>();
+
+		public Entries(LongObjectMap<V> map) {
+			super(map);
+		}
+
+		/**
+		 * Note the same entry instance is returned each time this method is called.
+		 */
+		@Override
+		public Entry<V> next() {
+			if (!hasNext)
+				throw new NoSuchElementException();
+			if (nextIndex == INDEX_ZERO) {
+				entry.key = 0;
+				entry.value = map.zeroValue;
+			} else {
+				entry.key = map.keyTable[nextIndex];
+				entry.value = map.valueTable[nextIndex];
+			}
+			currentIndex = nextIndex;
+			findNextIndex();
+			return entry;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		@Override
+		public Iterator<Entry<V>> iterator() {
+			return this;
+		}
+	}
+
+	public static class Values<V> extends MapIterator<V> implements Iterable<V>, Iterator<V> {
+		public Values(LongObjectMap<V> map) {
+			super(map);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		@Override
+		public V next() {
+			if (!hasNext)
+				throw new NoSuchElementException();
+			V value;
+			if (nextIndex == INDEX_ZERO)
+				value = map.zeroValue;
+			else
+				value = map.valueTable[nextIndex];
+			currentIndex = nextIndex;
+			findNextIndex();
+			return value;
+		}
+
+		@Override
+		public Iterator<V> iterator() {
+			return this;
+		}
+
+		/**
+		 * Returns a new array containing the remaining values.
+		 */
+		public ArrayEx<V> toArray() {
+			ArrayEx<V> array = new ArrayEx<V>(map.size, true);
+			while (hasNext)
+				array.add(next());
+			return array;
+		}
+	}
+
+	/**
+	 * 键的迭代器, next()直接返回long, 不实现{@link Iterator}以免装箱
+	 */
+	public static class Keys extends MapIterator<Object> {
+		@SuppressWarnings("unchecked")
+		public Keys(LongObjectMap<?> map) {
+			super((LongObjectMap<Object>) map);
+		}
+
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		public long next() {
+			if (!hasNext)
+				throw new NoSuchElementException();
+			long key = nextIndex == INDEX_ZERO ? 0 : map.keyTable[nextIndex];
+			currentIndex = nextIndex;
+			findNextIndex();
+			return key;
+		}
+
+		/**
+		 * Returns a new array containing the remaining keys.
+		 */
+		public long[] toArray() {
+			long[] array = new long[map.size];
+			int i = 0;
+			while (hasNext)
+				array[i++] = next();
+			return i == array.length ? array : Arrays.copyOf(array, i);
+		}
+	}
+}
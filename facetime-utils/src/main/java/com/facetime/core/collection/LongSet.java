@@ -0,0 +1,529 @@
+package com.facetime.core.collection;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import com.facetime.core.utils.MathUtils;
+
+/**
+ * long元素的无序集合, 元素不装箱<p>
+ * 与{@link FastMap}相同: 3次散列的cuckoo hash, 随机踢出, 放不下的元素进入一个小的stash, 除扩容外不分配对象.
+ * 0作为空槽标记, 是否包含0单独记录.
+ *
+ * @author Nathan Sweet
+ */
+public class LongSet {
+
+	private static final int PRIME2 = 0xb4b82e39;
+	private static final int PRIME3 = 0xced1c241;
+	private static final int EMPTY = 0;
+
+	public int size;
+
+	long[] keyTable;
+	int capacity, stashSize;
+	boolean hasZeroValue;
+
+	private float loadFactor;
+	private int hashShift, mask, threshold;
+	private int stashCapacity;
+	private int pushIterations;
+
+	private LongSetIterator iterator;
+
+	/**
+	 * Creates a new set with an initial capacity of 32 and a load factor of 0.8. This set will hold 25 items before growing the
+	 * backing table.
+	 */
+	public LongSet() {
+		this(32, 0.8f);
+	}
+
+	/**
+	 * Creates a new set with a load factor of 0.8. This set will hold initialCapacity * 0.8 items before growing the backing
+	 * table.
+	 */
+	public LongSet(int initialCapacity) {
+		this(initialCapacity, 0.8f);
+	}
+
+	/**
+	 * Creates a new set with the specified initial capacity and load factor. This set will hold initialCapacity * loadFactor items
+	 * before growing the backing table.
+	 */
+	public LongSet(int initialCapacity, float loadFactor) {
+		if (initialCapacity < 0)
+			throw new IllegalArgumentException("initialCapacity must be >= 0: " + initialCapacity);
+		if (initialCapacity > 1 << 30)
+			throw new IllegalArgumentException("initialCapacity is too large: " + initialCapacity);
+		capacity = MathUtils.nextPowerOfTwo(initialCapacity);
+
+		if (loadFactor <= 0)
+			throw new IllegalArgumentException("loadFactor must be > 0: " + loadFactor);
+		this.loadFactor = loadFactor;
+
+		threshold = (int) (capacity * loadFactor);
+		mask = capacity - 1;
+		hashShift = 31 - Integer.numberOfTrailingZeros(capacity);
+		stashCapacity = Math.max(3, (int) Math.ceil(Math.log(capacity)) + 1);
+		pushIterations = Math.max(Math.min(capacity, 32), (int) Math.sqrt(capacity) / 4);
+
+		keyTable = new long[capacity + stashCapacity];
+	}
+
+	/**
+	 * Returns true if the key was not already in the set.
+	 */
+	public boolean add(long key) {
+		if (key == 0) {
+			if (hasZeroValue)
+				return false;
+			hasZeroValue = true;
+			size++;
+			return true;
+		}
+
+		long[] keyTable = this.keyTable;
+
+		// Check for existing keys.
+		int index1 = hash1(key);
+		long key1 = keyTable[index1];
+		if (key1 == key)
+			return false;
+
+		int index2 = hash2(key);
+		long key2 = keyTable[index2];
+		if (key2 == key)
+			return false;
+
+		int index3 = hash3(key);
+		long key3 = keyTable[index3];
+		if (key3 == key)
+			return false;
+
+		// Find key in the stash.
+		for (int i = capacity, n = i + stashSize; i < n; i++)
+			if (keyTable[i] == key)
+				return false;
+
+		// Check for empty buckets.
+		if (key1 == EMPTY) {
+			keyTable[index1] = key;
+			if (size++ >= threshold)
+				resize(capacity << 1);
+			return true;
+		}
+
+		if (key2 == EMPTY) {
+			keyTable[index2] = key;
+			if (size++ >= threshold)
+				resize(capacity << 1);
+			return true;
+		}
+
+		if (key3 == EMPTY) {
+			keyTable[index3] = key;
+			if (size++ >= threshold)
+				resize(capacity << 1);
+			return true;
+		}
+
+		push(key, index1, key1, index2, key2, index3, key3);
+		return true;
+	}
+
+	public void addAll(long... keys) {
+		ensureCapacity(keys.length);
+		for (int i = 0; i < keys.length; i++)
+			add(keys[i]);
+	}
+
+	public void addAll(LongSet set) {
+		ensureCapacity(set.size);
+		LongSetIterator iterator = set.iterator();
+		while (iterator.hasNext)
+			add(iterator.next());
+	}
+
+	/**
+	 * Returns true if the key was removed.
+	 */
+	public boolean remove(long key) {
+		if (key == 0) {
+			if (!hasZeroValue)
+				return false;
+			hasZeroValue = false;
+			size--;
+			return true;
+		}
+
+		int index = hash1(key);
+		if (keyTable[index] == key) {
+			keyTable[index] = EMPTY;
+			size--;
+			return true;
+		}
+
+		index = hash2(key);
+		if (keyTable[index] == key) {
+			keyTable[index] = EMPTY;
+			size--;
+			return true;
+		}
+
+		index = hash3(key);
+		if (keyTable[index] == key) {
+			keyTable[index] = EMPTY;
+			size--;
+			return true;
+		}
+
+		return removeStash(key);
+	}
+
+	public boolean contains(long key) {
+		if (key == 0)
+			return hasZeroValue;
+		int index = hash1(key);
+		if (keyTable[index] != key) {
+			index = hash2(key);
+			if (keyTable[index] != key) {
+				index = hash3(key);
+				if (keyTable[index] != key)
+					return containsKeyStash(key);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Increases the size of the backing array to acommodate the specified number of additional items. Useful before adding many
+	 * items to avoid multiple backing array resizes.
+	 */
+	public void ensureCapacity(int additionalCapacity) {
+		int sizeNeeded = size + additionalCapacity;
+		if (sizeNeeded >= threshold)
+			resize(MathUtils.nextPowerOfTwo((int) (sizeNeeded / loadFactor)));
+	}
+
+	public void clear() {
+		long[] keyTable = this.keyTable;
+		for (int i = capacity + stashSize; i-- > 0;)
+			keyTable[i] = EMPTY;
+		size = 0;
+		stashSize = 0;
+		hasZeroValue = false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns an iterator for the keys in the set. Remove is supported. Note that the same iterator instance is returned each time
+	 * this method is called. Use the {@link LongSetIterator} constructor for nested or multithreaded iteration.
+	 */
+	public LongSetIterator iterator() {
+		if (iterator == null)
+			iterator = new LongSetIterator(this);
+		else
+			iterator.reset();
+		return iterator;
+	}
+
+	/**
+	 * Returns a new array containing the keys of the set.
+	 */
+	public long[] toArray() {
+		return new LongSetIterator(this).toArray();
+	}
+
+	@Override
+	public String toString() {
+		if (size == 0)
+			return "[]";
+		StringBuilder buffer = new StringBuilder(32);
+		buffer.append('[');
+		if (hasZeroValue)
+			buffer.append('0');
+		long[] keyTable = this.keyTable;
+		for (int i = 0, n = capacity + stashSize; i < n; i++) {
+			long key = keyTable[i];
+			if (key == EMPTY)
+				continue;
+			if (buffer.length() > 1)
+				buffer.append(", ");
+			buffer.append(key);
+		}
+		buffer.append(']');
+		return buffer.toString();
+	}
+
+	private void push(long insertKey, int index1, long key1, int index2, long key2, int index3, long key3) {
+		long[] keyTable = this.keyTable;
+		int mask = this.mask;
+
+		// Push keys until an empty bucket is found.
+		long evictedKey;
+		int i = 0, pushIterations = this.pushIterations;
+		do {
+			// Replace the key for one of the hashes.
+			switch (MathUtils.random(2)) {
+			case 0:
+				evictedKey = key1;
+				keyTable[index1] = insertKey;
+				break;
+			case 1:
+				evictedKey = key2;
+				keyTable[index2] = insertKey;
+				break;
+			default:
+				evictedKey = key3;
+				keyTable[index3] = insertKey;
+				break;
+			}
+
+			// If the evicted key hashes to an empty bucket, put it there and stop.
+			index1 = hash1(evictedKey);
+			key1 = keyTable[index1];
+			if (key1 == EMPTY) {
+				keyTable[index1] = evictedKey;
+				if (size++ >= threshold)
+					resize(capacity << 1);
+				return;
+			}
+
+			index2 = hash2(evictedKey);
+			key2 = keyTable[index2];
+			if (key2 == EMPTY) {
+				keyTable[index2] = evictedKey;
+				if (size++ >= threshold)
+					resize(capacity << 1);
+				return;
+			}
+
+			index3 = hash3(evictedKey);
+			key3 = keyTable[index3];
+			if (key3 == EMPTY) {
+				keyTable[index3] = evictedKey;
+				if (size++ >= threshold)
+					resize(capacity << 1);
+				return;
+			}
+
+			if (++i == pushIterations)
+				break;
+
+			insertKey = evictedKey;
+		} while (true);
+
+		addStash(evictedKey);
+	}
+
+	/**
+	 * Skips checks for existing keys.
+	 */
+	private void addResize(long key) {
+		// Check for empty buckets.
+		int index1 = hash1(key);
+		long key1 = keyTable[index1];
+		if (key1 == EMPTY) {
+			keyTable[index1] = key;
+			if (size++ >= threshold)
+				resize(capacity << 1);
+			return;
+		}
+
+		int index2 = hash2(key);
+		long key2 = keyTable[index2];
+		if (key2 == EMPTY) {
+			keyTable[index2] = key;
+			if (size++ >= threshold)
+				resize(capacity << 1);
+			return;
+		}
+
+		int index3 = hash3(key);
+		long key3 = keyTable[index3];
+		if (key3 == EMPTY) {
+			keyTable[index3] = key;
+			if (size++ >= threshold)
+				resize(capacity << 1);
+			return;
+		}
+
+		push(key, index1, key1, index2, key2, index3, key3);
+	}
+
+	private void addStash(long key) {
+		if (stashSize == stashCapacity) {
+			// Too many pushes occurred and the stash is full, increase the table size.
+			resize(capacity << 1);
+			addResize(key);
+			return;
+		}
+		// Store key in the stash.
+		int index = capacity + stashSize;
+		keyTable[index] = key;
+		stashSize++;
+		size++;
+	}
+
+	private boolean containsKeyStash(long key) {
+		long[] keyTable = this.keyTable;
+		for (int i = capacity, n = i + stashSize; i < n; i++)
+			if (keyTable[i] == key)
+				return true;
+		return false;
+	}
+
+	boolean removeStash(long key) {
+		long[] keyTable = this.keyTable;
+		for (int i = capacity, n = i + stashSize; i < n; i++)
+			if (keyTable[i] == key) {
+				removeStashIndex(i);
+				size--;
+				return true;
+			}
+		return false;
+	}
+
+	void removeStashIndex(int index) {
+		// If the removed location was not last, move the last key to the removed location.
+		stashSize--;
+		int lastIndex = capacity + stashSize;
+		if (index < lastIndex)
+			keyTable[index] = keyTable[lastIndex];
+		keyTable[lastIndex] = EMPTY;
+	}
+
+	private void resize(int newSize) {
+		int oldEndIndex = capacity + stashSize;
+
+		capacity = newSize;
+		threshold = (int) (newSize * loadFactor);
+		mask = newSize - 1;
+		hashShift = 31 - Integer.numberOfTrailingZeros(newSize);
+		stashCapacity = Math.max(3, (int) Math.ceil(Math.log(newSize)) + 1);
+		pushIterations = Math.max(Math.min(newSize, 32), (int) Math.sqrt(newSize) / 4);
+
+		long[] oldKeyTable = keyTable;
+
+		keyTable = new long[newSize + stashCapacity];
+
+		// 0不在表中, 不参与重新散列
+		size = hasZeroValue ? 1 : 0;
+		stashSize = 0;
+		for (int i = 0; i < oldEndIndex; i++) {
+			long key = oldKeyTable[i];
+			if (key != EMPTY)
+				addResize(key);
+		}
+	}
+
+	/**
+	 * 先把高32位折叠进来再做64位乘法散列. 只截低位时, 低位相同的键(如 k << 32)全部落在同一组槽位, 扩容也放不下
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 32;
+		h *= 0x9e3779b97f4a7c15L;
+		return h ^ h >>> 29;
+	}
+
+	private int hash1(long h) {
+		return (int) (mix(h) & mask);
+	}
+
+	private int hash2(long h) {
+		h = mix(h) * PRIME2;
+		return (int) ((h ^ h >>> hashShift) & mask);
+	}
+
+	private int hash3(long h) {
+		h = mix(h) * PRIME3;
+		return (int) ((h ^ h >>> hashShift) & mask);
+	}
+
+	/**
+	 * 集合的迭代器, next()直接返回long, 不实现{@link java.util.Iterator}以免装箱
+	 */
+	public static class LongSetIterator {
+		static final int INDEX_ILLEGAL = -2;
+		static final int INDEX_ZERO = -1;
+
+		public boolean hasNext;
+
+		final LongSet set;
+		int nextIndex, currentIndex;
+
+		public LongSetIterator(LongSet set) {
+			this.set = set;
+			reset();
+		}
+
+		public void reset() {
+			currentIndex = INDEX_ILLEGAL;
+			nextIndex = INDEX_ZERO;
+			if (set.hasZeroValue)
+				hasNext = true;
+			else
+				findNextIndex();
+		}
+
+		void findNextIndex() {
+			hasNext = false;
+			long[] keyTable = set.keyTable;
+			for (int n = set.capacity + set.stashSize; ++nextIndex < n;) {
+				if (keyTable[nextIndex] != EMPTY) {
+					hasNext = true;
+					break;
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		public long next() {
+			if (!hasNext)
+				throw new NoSuchElementException();
+			long key = nextIndex == INDEX_ZERO ? 0 : set.keyTable[nextIndex];
+			currentIndex = nextIndex;
+			findNextIndex();
+			return key;
+		}
+
+		public void remove() {
+			if (currentIndex == INDEX_ZERO && set.hasZeroValue) {
+				set.hasZeroValue = false;
+			} else if (currentIndex < 0) {
+				throw new IllegalStateException("next must be called before remove.");
+			} else if (currentIndex >= set.capacity) {
+				set.removeStashIndex(currentIndex);
+				// stash中最后一个元素移到了当前位置, 需要重新检查
+				nextIndex = currentIndex - 1;
+				findNextIndex();
+			} else {
+				set.keyTable[currentIndex] = EMPTY;
+			}
+			currentIndex = INDEX_ILLEGAL;
+			set.size--;
+		}
+
+		/**
+		 * Returns a new array containing the remaining keys.
+		 */
+		public long[] toArray() {
+			long[] array = new long[set.size];
+			int i = 0;
+			while (hasNext)
+				array[i++] = next();
+			return i == array.length ? array : Arrays.copyOf(array, i);
+		}
+	}
+}
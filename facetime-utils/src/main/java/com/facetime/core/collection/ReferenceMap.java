@@ -32,7 +32,11 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.facetime.core.utils.StringPool;
 
@@ -40,6 +44,9 @@ import com.facetime.core.utils.StringPool;
  * Concurrent hash map that wraps keys and/or values in SOFT or WEAK references.
  * Does not support <code>null</code> keys or values. Uses identity equality for
  * weak and soft keys.
+ * <p/>
+ * 查找不分配对象: 弱/软键用每个线程一个的探针去比较. 每个map有自己的引用队列, 被回收的条目在写操作时分批清理,
+ * 也可以调用 {@link #cleanUp()}. soft值可以限制数量, 超过时按二次机会(最近读过的留一轮)淘汰.
  *
  * @author crazybob@google.com (Bob Lee)
  * @author fry@google.com (Charles Fry)
@@ -53,6 +60,36 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 	protected final ReferenceType keyReferenceType;
 	protected final ReferenceType valueReferenceType;
 
+	/**
+	 * 每次写操作最多清理的已回收引用数
+	 */
+	private static final int DRAIN_BATCH = 32;
+
+	private static final ThreadLocal<LookupKey> lookupKeys = new ThreadLocal<LookupKey>() {
+		@Override
+		protected LookupKey initialValue() {
+			return new LookupKey();
+		}
+	};
+
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	/**
+	 * soft值的数量上限, 0表示只靠GC回收
+	 */
+	private final int maxSoftValues;
+	private final ConcurrentLinkedQueue<SoftValueReference> softValues = new ConcurrentLinkedQueue<SoftValueReference>();
+	/**
+	 * softValues队列的长度, 包括已被替换, 删除或回收但还没出队的引用. 存活的值个数取delegate.size()
+	 */
+	private final AtomicInteger queuedSoftValues = new AtomicInteger();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong reclaimCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
 	private volatile Set<Map.Entry<K, V>> entrySet;
 
 	// ---------------------------------------------------------------- map implementations
@@ -65,13 +102,27 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 	 * @param valueReferenceType symbol reference type
 	 */
 	public ReferenceMap(ReferenceType keyReferenceType, ReferenceType valueReferenceType) {
+		this(keyReferenceType, valueReferenceType, 0);
+	}
+
+	/**
+	 * 值为SOFT时, 最多保留 maxSoftValues 个值, 超过的不等内存紧张就淘汰.
+	 *
+	 * @param keyReferenceType   key reference type
+	 * @param valueReferenceType symbol reference type
+	 * @param maxSoftValues      soft值的上限, 0表示不限制
+	 */
+	public ReferenceMap(ReferenceType keyReferenceType, ReferenceType valueReferenceType, int maxSoftValues) {
 		if (keyReferenceType == null || valueReferenceType == null)
 			throw new IllegalArgumentException("References types can not be null.");
 		if (keyReferenceType == ReferenceType.PHANTOM || valueReferenceType == ReferenceType.PHANTOM)
 			throw new IllegalArgumentException("Phantom references not supported.");
+		if (maxSoftValues < 0 || maxSoftValues > 0 && valueReferenceType != ReferenceType.SOFT)
+			throw new IllegalArgumentException("maxSoftValues only applies to soft values: " + maxSoftValues);
 		this.delegate = new ConcurrentHashMap<Object, Object>();
 		this.keyReferenceType = keyReferenceType;
 		this.valueReferenceType = valueReferenceType;
+		this.maxSoftValues = maxSoftValues;
 	}
 
 	/**
@@ -103,18 +154,21 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 			Object referent = ((Reference) o).get(); // do they reference identical values? used in conditional puts.
 			return referent != null && referent == r.get();
 		}
+		if (o instanceof LookupKey)
+			return ((LookupKey) o).key == r.get();
 		return ((ReferenceAwareWrapper) o).unwrap() == r.get(); // is the wrapped object identical to the referent? used in lookups.
 	}
 
 	@Override
 	public void clear() {
 		delegate.clear();
+		softValues.clear();
+		queuedSoftValues.set(0);
 	}
 
 	@Override
 	public boolean containsKey(Object key) {
-		Object referenceAwareKey = makeKeyReferenceAware(key);
-		return delegate.containsKey(referenceAwareKey);
+		return dereferenceValue(lookup(key)) != null;
 	}
 
 	@Override
@@ -134,8 +188,19 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 
 	@Override
 	public V get(final Object key) {
-		Object valueReference = delegate.get(makeKeyReferenceAware(key));
-		return dereferenceValue(valueReference);
+		Object valueReference = lookup(key);
+		V value = dereferenceValue(valueReference);
+		if (value == null) {
+			missCount.incrementAndGet();
+		} else {
+			hitCount.incrementAndGet();
+			if (valueReference instanceof ReferenceMap.SoftValueReference) {
+				SoftValueReference reference = (SoftValueReference) valueReference;
+				if (!reference.accessed)
+					reference.accessed = true;
+			}
+		}
+		return value;
 	}
 
 	@Override
@@ -161,14 +226,33 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 
 	@Override
 	public V remove(Object key) {
-		Object referenceAwareKey = makeKeyReferenceAware(key);
-		Object valueReference = delegate.remove(referenceAwareKey);
+		drainQueue();
+		Object valueReference;
+		if (keyReferenceType == ReferenceType.STRONG) {
+			valueReference = delegate.remove(key);
+		} else {
+			LookupKey lookupKey = LookupKey.acquire(key);
+			try {
+				valueReference = delegate.remove(lookupKey);
+			} finally {
+				lookupKey.release();
+			}
+		}
 		return dereferenceValue(valueReference);
 	}
 
 	@Override
 	public boolean remove(Object key, Object value) {
-		return delegate.remove(makeKeyReferenceAware(key), makeValueReferenceAware(value));
+		drainQueue();
+		Object referenceAwareValue = makeValueReferenceAware(value);
+		if (keyReferenceType == ReferenceType.STRONG)
+			return delegate.remove(key, referenceAwareValue);
+		LookupKey lookupKey = LookupKey.acquire(key);
+		try {
+			return delegate.remove(lookupKey, referenceAwareValue);
+		} finally {
+			lookupKey.release();
+		}
 	}
 
 	// ---------------------------------------------------------------- conversions
@@ -180,6 +264,7 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 
 	@Override
 	public boolean replace(K key, V oldValue, V newValue) {
+		drainQueue();
 		Object keyReference = referenceKey(key);
 		Object referenceAwareOldValue = makeValueReferenceAware(oldValue);
 		return delegate.replace(keyReference, referenceAwareOldValue, referenceValue(keyReference, newValue));
@@ -190,6 +275,43 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 		return delegate.size();
 	}
 
+	/**
+	 * 清理所有已被GC回收的条目. 写操作每次只清理一批, 长时间只读的map可以定时调用
+	 */
+	public void cleanUp() {
+		Reference<?> reference;
+		while ((reference = queue.poll()) != null)
+			reclaim((InternalReference) reference);
+	}
+
+	/**
+	 * @return get命中次数
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return get未命中次数, 包括值已被回收的
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return 因键或值被GC回收而清理掉的条目数
+	 */
+	public long getReclaimCount() {
+		return reclaimCount.get();
+	}
+
+	/**
+	 * @return 因超过soft值上限而淘汰的条目数
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
 	/**
 	 * Dereferences an entry. Returns <code>null</code> if the key or symbol has been gc'ed.
 	 */
@@ -216,7 +338,7 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 		if (o instanceof InternalReference) {
 			InternalReference reference = (InternalReference) o;
 			if (value == null)
-				reference.finalizeReferent(); // old symbol was garbage collected
+				reclaim(reference); // old symbol was garbage collected
 		}
 		return (V) value;
 	}
@@ -263,15 +385,85 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 	}
 
 	private V execute(Strategy strategy, K key, V value) {
+		drainQueue();
 		Object keyReference = referenceKey(key);
-		return (V) strategy.execute(this, keyReference, referenceValue(keyReference, value));
+		Object valueReference = referenceValue(keyReference, value);
+		V existing = (V) strategy.execute(this, keyReference, valueReference);
+		if (maxSoftValues > 0 && delegate.get(keyReference) == valueReference) {
+			softValues.offer((SoftValueReference) valueReference);
+			queuedSoftValues.incrementAndGet();
+			if (isOverSoftCapacity())
+				evictSoftValues();
+		}
+		return existing;
+	}
+
+	/**
+	 * 不分配对象地找到 key 对应的值引用
+	 */
+	private Object lookup(Object key) {
+		if (keyReferenceType == ReferenceType.STRONG)
+			return delegate.get(key);
+		LookupKey lookupKey = LookupKey.acquire(key);
+		try {
+			return delegate.get(lookupKey);
+		} finally {
+			lookupKey.release();
+		}
+	}
+
+	/**
+	 * 清理一批已被GC回收的引用, 已经有线程在清理时直接返回
+	 */
+	private void drainQueue() {
+		if (!draining.compareAndSet(false, true))
+			return;
+		try {
+			Reference<?> reference;
+			for (int i = 0; i < DRAIN_BATCH && (reference = queue.poll()) != null; i++)
+				reclaim((InternalReference) reference);
+		} finally {
+			draining.set(false);
+		}
+	}
+
+	private void reclaim(InternalReference reference) {
+		if (reference.finalizeReferent())
+			reclaimCount.incrementAndGet();
+	}
+
+	/**
+	 * 存活的soft值超过上限, 或者队列中已失效的引用太多
+	 */
+	private boolean isOverSoftCapacity() {
+		return delegate.size() > maxSoftValues || queuedSoftValues.get() > maxSoftValues * 2;
 	}
 
 	/**
-	 * Wraps key so it can be compared to a referenced key for equality.
+	 * 按放入顺序淘汰soft值, 被读过的清掉标记放回队尾. 已被替换, 删除或回收的引用直接出队, 不算淘汰
 	 */
-	private Object makeKeyReferenceAware(Object o) {
-		return keyReferenceType == ReferenceType.STRONG ? o : new KeyReferenceAwareWrapper(o);
+	private void evictSoftValues() {
+		int secondChances = queuedSoftValues.get();
+		for (int budget = secondChances * 2 + 1; budget > 0 && isOverSoftCapacity(); budget--) {
+			SoftValueReference reference = softValues.poll();
+			if (reference == null)
+				return;
+			queuedSoftValues.decrementAndGet();
+			if (delegate.get(reference.keyReference) != reference)
+				continue;
+			boolean keep = delegate.size() <= maxSoftValues;
+			if (!keep && reference.accessed && secondChances-- > 0) {
+				reference.accessed = false;
+				keep = true;
+			}
+			if (keep) {
+				softValues.offer(reference);
+				queuedSoftValues.incrementAndGet();
+				continue;
+			}
+			if (delegate.remove(reference.keyReference, reference))
+				evictionCount.incrementAndGet();
+		}
 	}
 
 	/**
@@ -330,76 +522,47 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 		}
 	}
 
-	static class FinalizableReferenceQueue extends ReferenceQueue<Object> {
-
-		static final ReferenceQueue<Object> instance = createAndStart();
-
-		private FinalizableReferenceQueue() {
-		}
-
-		/**
-		 * Gets creating.
-		 */
-		public static ReferenceQueue<Object> getInstance() {
-			return instance;
-		}
-
-		static FinalizableReferenceQueue createAndStart() {
-			FinalizableReferenceQueue queue = new FinalizableReferenceQueue();
-			queue.start();
-			return queue;
-		}
-
-		void cleanUp(Reference reference) {
-			try {
-				((InternalReference) reference).finalizeReferent();
-			} catch (Throwable t) {
-				throw new IllegalStateException("Unable to clean up after reference.", t);
-			}
-		}
-
-		void start() {
-			Thread thread = new Thread("FinalizableReferenceQueue") {
-				@Override
-				@SuppressWarnings({ "InfiniteLoopStatement" })
-				public void run() {
-					while (true)
-						try {
-							cleanUp(remove());
-						} catch (InterruptedException iex) { /* ignore */
-						}
-				}
-			};
-			thread.setDaemon(true);
-			thread.start();
-		}
-	}
-
 	/**
 	 * Marker interface to differentiate external and internal references. Also
 	 * duplicates FinalizableReference and Reference.get for internal use.
 	 */
 	interface InternalReference {
 		/**
-		 * Invoked on a background thread after the referent has been garbage
-		 * collected.
+		 * Invoked during a write, or on lookup, after the referent has been
+		 * garbage collected.
+		 *
+		 * @return <code>true</code> if the entry was removed from the map
 		 */
-		void finalizeReferent();
+		boolean finalizeReferent();
 
 		Object get();
 	}
 
 	/**
-	 * Used for keys. Overrides hash code to use identity hash code.
+	 * Used for key lookups. Reused per thread so get/containsKey/remove do not
+	 * allocate; compares by identity like the key references.
 	 */
-	static class KeyReferenceAwareWrapper extends ReferenceAwareWrapper {
-		KeyReferenceAwareWrapper(Object wrapped) {
-			super(wrapped);
+	static final class LookupKey {
+		Object key;
+
+		static LookupKey acquire(Object key) {
+			LookupKey lookupKey = lookupKeys.get();
+			lookupKey.key = key;
+			return lookupKey;
+		}
+
+		void release() {
+			key = null;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof InternalReference && ((InternalReference) obj).get() == key;
 		}
 
 		@Override
 		public int hashCode() {
-			return System.identityHashCode(wrapped);
+			return System.identityHashCode(key);
 		}
 	}
 
@@ -416,7 +579,7 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 
 		@Override
 		public boolean equals(Object obj) {
-			return this.equals(obj);
+			return obj instanceof InternalReference && ((InternalReference) obj).get() == wrapped;
 		}
 
 		@Override
@@ -435,7 +598,7 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 		final int hashCode;
 
 		SoftKeyReference(Object key) {
-			super(key, FinalizableReferenceQueue.getInstance());
+			super(key, queue);
 			this.hashCode = System.identityHashCode(key);
 		}
 
@@ -445,8 +608,8 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 		}
 
 		@Override
-		public void finalizeReferent() {
-			delegate.remove(this);
+		public boolean finalizeReferent() {
+			return delegate.remove(this) != null;
 		}
 
 		@Override
@@ -457,9 +620,13 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 
 	class SoftValueReference extends SoftReference<Object> implements InternalReference {
 		final Object keyReference;
+		/**
+		 * 上次淘汰检查后被读过
+		 */
+		volatile boolean accessed;
 
 		SoftValueReference(Object keyReference, Object value) {
-			super(value, FinalizableReferenceQueue.getInstance());
+			super(value, queue);
 			this.keyReference = keyReference;
 		}
 
@@ -469,8 +636,8 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 		}
 
 		@Override
-		public void finalizeReferent() {
-			delegate.remove(keyReference, this);
+		public boolean finalizeReferent() {
+			return delegate.remove(keyReference, this);
 		}
 	}
 
@@ -480,7 +647,7 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 		final int hashCode;
 
 		WeakKeyReference(Object key) {
-			super(key, FinalizableReferenceQueue.getInstance());
+			super(key, queue);
 			this.hashCode = System.identityHashCode(key);
 		}
 
@@ -490,8 +657,8 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 		}
 
 		@Override
-		public void finalizeReferent() {
-			delegate.remove(this);
+		public boolean finalizeReferent() {
+			return delegate.remove(this) != null;
 		}
 
 		@Override
@@ -504,7 +671,7 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 		final Object keyReference;
 
 		WeakValueReference(Object keyReference, Object value) {
-			super(value, FinalizableReferenceQueue.getInstance());
+			super(value, queue);
 			this.keyReference = keyReference;
 		}
 
@@ -514,8 +681,8 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 		}
 
 		@Override
-		public void finalizeReferent() {
-			delegate.remove(keyReference, this);
+		public boolean finalizeReferent() {
+			return delegate.remove(keyReference, this);
 		}
 	}
 
@@ -523,7 +690,7 @@ public class ReferenceMap<K, V> extends AbstractMap<K, V> implements ConcurrentM
 
 		@Override
 		public void clear() {
-			delegate.clear();
+			ReferenceMap.this.clear();
 		}
 
 		@Override
@@ -1,11 +1,17 @@
 package com.facetime.core.collection;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.facetime.core.utils.RandomGenerator;
 import com.facetime.core.utils.StopWatch;
@@ -51,6 +57,324 @@ public class TestPorformence {
 
 	}
 
+	/**
+	 * int键: HashMap和FastMap每次put/get都要装箱, IntObjectMap和IntIntMap不装箱
+	 */
+	public static void testIntMap(int num) {
+		Random r = new Random(1000);
+		int[] keys = new int[num];
+		for (int i = 0; i < num; i++) {
+			keys[i] = r.nextInt();
+		}
+		String value = "v";
+		int found = 0;
+
+		StopWatch sw = new StopWatch();
+		Map<Integer, String> map1 = new HashMap<Integer, String>();
+		sw.start("hash");
+		for (int key : keys) {
+			map1.put(key, value);
+		}
+		for (int key : keys) {
+			if (map1.get(key) != null) {
+				found++;
+			}
+		}
+		sw.stop();
+
+		Map<Integer, String> map2 = new FastMap<Integer, String>();
+		sw.start("fast");
+		for (int key : keys) {
+			map2.put(key, value);
+		}
+		for (int key : keys) {
+			if (map2.get(key) != null) {
+				found++;
+			}
+		}
+		sw.stop();
+
+		IntObjectMap<String> map3 = new IntObjectMap<String>();
+		sw.start("int-object");
+		for (int key : keys) {
+			map3.put(key, value);
+		}
+		for (int key : keys) {
+			if (map3.get(key) != null) {
+				found++;
+			}
+		}
+		sw.stop();
+
+		// 计数: 装箱的HashMap每次都要新建Integer
+		Map<Integer, Integer> counts1 = new HashMap<Integer, Integer>();
+		sw.start("hash-count");
+		for (int key : keys) {
+			Integer count = counts1.get(key & 1023);
+			counts1.put(key & 1023, count == null ? 1 : count + 1);
+		}
+		sw.stop();
+
+		IntIntMap counts2 = new IntIntMap();
+		sw.start("int-int-count");
+		for (int key : keys) {
+			counts2.getAndIncrement(key & 1023, 0, 1);
+		}
+		sw.stop();
+
+		System.out.println("Map " + num + " int put->get, found " + found);
+		System.out.println(sw.prettyPrint());
+	}
+
+	/**
+	 * long键, 如用户id: LongObjectMap和LongSet对比装箱的HashMap, FastMap和HashSet
+	 */
+	public static void testLongMap(int num) {
+		Random r = new Random(1000);
+		long[] keys = new long[num];
+		for (int i = 0; i < num; i++) {
+			keys[i] = r.nextLong();
+		}
+		String value = "v";
+		int found = 0;
+
+		StopWatch sw = new StopWatch();
+		Map<Long, String> map1 = new HashMap<Long, String>();
+		sw.start("hash");
+		for (long key : keys) {
+			map1.put(key, value);
+		}
+		for (long key : keys) {
+			if (map1.get(key) != null) {
+				found++;
+			}
+		}
+		sw.stop();
+
+		Map<Long, String> map2 = new FastMap<Long, String>();
+		sw.start("fast");
+		for (long key : keys) {
+			map2.put(key, value);
+		}
+		for (long key : keys) {
+			if (map2.get(key) != null) {
+				found++;
+			}
+		}
+		sw.stop();
+
+		LongObjectMap<String> map3 = new LongObjectMap<String>();
+		sw.start("long-object");
+		for (long key : keys) {
+			map3.put(key, value);
+		}
+		for (long key : keys) {
+			if (map3.get(key) != null) {
+				found++;
+			}
+		}
+		sw.stop();
+
+		Set<Long> set1 = new HashSet<Long>();
+		sw.start("hash-set");
+		for (long key : keys) {
+			set1.add(key);
+		}
+		for (long key : keys) {
+			if (set1.contains(key)) {
+				found++;
+			}
+		}
+		sw.stop();
+
+		LongSet set2 = new LongSet();
+		sw.start("long-set");
+		for (long key : keys) {
+			set2.add(key);
+		}
+		for (long key : keys) {
+			if (set2.contains(key)) {
+				found++;
+			}
+		}
+		sw.stop();
+
+		// 只有高32位不同的键, 散列不折叠高位时put会一直扩容直到内存溢出
+		LongObjectMap<String> map4 = new LongObjectMap<String>();
+		LongSet set3 = new LongSet();
+		int highFound = 0;
+		sw.start("high-bits");
+		for (long k = 1; k <= num; k++) {
+			map4.put(k << 32, value);
+			set3.add(k << 32);
+		}
+		for (long k = 1; k <= num; k++) {
+			if (map4.get(k << 32) != null && set3.contains(k << 32)) {
+				highFound++;
+			}
+		}
+		sw.stop();
+
+		System.out.println("Map " + num + " long put->get, found " + found);
+		System.out.println("Map " + num + " high-bit long put->get, found " + highFound + ", size " + map4.size
+				+ "/" + set3.size);
+		System.out.println(sw.prettyPrint());
+	}
+
+	/**
+	 * 多线程读多写少: 每个线程做 num 次操作, 其中1/16是put. 预先放入的键不会被删除, 值就是键本身,
+	 * 读到null(漏读)或别的键的值(读错)都记在 misses 里, 应该总是0
+	 */
+	public static void testConcurrentMap(final int num, int... threadCounts) {
+		final String[] keys = new String[4096];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = RandomGenerator.getRandomStr(8);
+		}
+		for (int threads : threadCounts) {
+			StopWatch sw = new StopWatch();
+			Map<String, String> map1 = new ConcurrentHashMap<String, String>();
+			sw.start("concurrent-hash");
+			long misses1 = runConcurrent(map1, keys, num, threads);
+			sw.stop();
+			Map<String, String> map2 = new ConcurrentFastMap<String, String>();
+			sw.start("concurrent-fast");
+			long misses2 = runConcurrent(map2, keys, num, threads);
+			sw.stop();
+			System.out.println("Map " + threads + " threads x " + num + " get/put, misses " + misses1 + "/" + misses2);
+			System.out.println(sw.prettyPrint());
+		}
+	}
+
+	private static long runConcurrent(final Map<String, String> map, final String[] keys, final int num, int threads) {
+		for (String key : keys) {
+			map.put(key, key);
+		}
+		final AtomicLong misses = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < num; i++) {
+						String key = keys[r.nextInt(keys.length)];
+						if ((i & 15) == 0) {
+							//新键会撑大表, 触发踢出和扩容
+							map.put(key + seed + "-" + i, key);
+							map.put(key, key);
+						} else if (!key.equals(map.get(key))) {
+							misses.incrementAndGet();
+						}
+					}
+				}
+			};
+			workers[t].start();
+		}
+		start.countDown();
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return misses.get();
+	}
+
+	/**
+	 * 大小写不敏感Map: 有序数组版每次插入都要挪动, 开放寻址版插入O(1). 查找用大写的键
+	 */
+	public static void testCaseInsensitiveMap(int num) {
+		String[] keys = new String[num];
+		String[] upperKeys = new String[num];
+		for (int i = 0; i < num; i++) {
+			keys[i] = "message.key." + RandomGenerator.getRandomStr(8) + i;
+			upperKeys[i] = keys[i].toUpperCase();
+		}
+		int found = 0;
+
+		StopWatch sw = new StopWatch();
+		Map<String, String> map1 = new CaseInsensitiveMap<String>();
+		sw.start("sorted-array");
+		for (String key : keys) {
+			map1.put(key, key);
+		}
+		for (String key : upperKeys) {
+			if (map1.get(key) != null) {
+				found++;
+			}
+		}
+		sw.stop();
+
+		Map<String, String> map2 = new CaseInsensitiveHashMap<String>();
+		sw.start("open-addressing");
+		for (String key : keys) {
+			map2.put(key, key);
+		}
+		for (String key : upperKeys) {
+			if (map2.get(key) != null) {
+				found++;
+			}
+		}
+		sw.stop();
+
+		System.out.println("CaseInsensitiveMap " + num + " put->get, found " + found);
+		System.out.println(sw.prettyPrint());
+	}
+
+	/**
+	 * 排序: 随机, 已排好, 大量重复三种输入, 单线程和 parallelSort 对比
+	 */
+	public static void testSort(int num) {
+		Random r = new Random(1000);
+		String[] kinds = { "random", "presorted", "duplicates" };
+		for (String kind : kinds) {
+			int[] ints = new int[num];
+			for (int i = 0; i < num; i++) {
+				if ("random".equals(kind)) {
+					ints[i] = r.nextInt();
+				} else if ("presorted".equals(kind)) {
+					ints[i] = i;
+				} else {
+					ints[i] = r.nextInt(16);
+				}
+			}
+			Integer[] boxed = new Integer[num];
+			for (int i = 0; i < num; i++) {
+				boxed[i] = ints[i];
+			}
+
+			StopWatch sw = new StopWatch();
+			int[] a1 = ints.clone();
+			sw.start("int-sort");
+			Arrays.sort(a1);
+			sw.stop();
+			int[] a2 = ints.clone();
+			sw.start("int-parallel");
+			ArraySorting.parallelSort(a2);
+			sw.stop();
+			Integer[] o1 = boxed.clone();
+			sw.start("object-sort");
+			ArraySorting.instance().sort(o1);
+			sw.stop();
+			Integer[] o2 = boxed.clone();
+			sw.start("object-parallel");
+			ArraySorting.parallelSort(o2);
+			sw.stop();
+
+			boolean same = Arrays.equals(a1, a2) && Arrays.equals(o1, o2);
+			System.out.println("Sort " + num + " " + kind + ", same " + same);
+			System.out.println(sw.prettyPrint());
+		}
+	}
+
 	//一个个押进去在一个个取出来 然后再押回去
 	public static void runStack(Stack<String> stack, int n) {
 		for (int i = 0; i < n; i++) {
@@ -131,6 +455,11 @@ public class TestPorformence {
 	public static void main(String[] args) {
 		//        testStack(100);
 		//        testMap(10000);
+		//        testIntMap(1000000);
+		//        testLongMap(1000000);
+		//        testConcurrentMap(1000000, 1, 4, 16, 64);
+		//        testCaseInsensitiveMap(100000);
+		//        testSort(1000000);
 
 		testList(10000);
 	}
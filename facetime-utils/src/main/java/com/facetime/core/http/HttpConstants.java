@@ -5,4 +5,5 @@ public interface HttpConstants {
 	String UserTokenkey = "uk";
 	String QUER_KEY_CLIENT_ID = "clientId";
 	String checkToken = "/pub/checkToken";
+	String getOnlineBuddyAndColleague = "/pub/getOnlineBuddyAndColleague";
 }
@@ -2,25 +2,169 @@ package com.facetime.core.http;
 
 import static com.facetime.core.conf.SysLogger.facetimeLogger;
 
+import com.facetime.core.conf.ConfigUtils;
+
 import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
 import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 
 public class HttpSender {
 
+	/**
+	 * 异步请求的回调, 在请求线程中调用
+	 */
+	public interface Callback {
+		/**
+		 * @param result
+		 *            响应内容
+		 */
+		void completed(String result);
+
+		/**
+		 * 重试耗尽, 熔断, 并发已满或队列已满时调用
+		 */
+		void failed(Exception ex);
+	}
+
+	/**
+	 * 每次重试都重新创建请求
+	 */
+	private interface RequestFactory {
+		HttpUriRequest create() throws IOException;
+	}
+
+	/** 不是绝对地址的请求统一记在这个路由下 */
+	public static final String INVALID_ROUTE = "invalid";
+
+	private static final int ASYNC_THREADS = Integer.parseInt(ConfigUtils.getProperty("http_async_threads", 16));
+	private static final int ASYNC_QUEUE_SIZE = Integer.parseInt(ConfigUtils.getProperty("http_async_queue_size", 1000));
+	/** 每个目标地址同时进行的异步请求数上限 */
+	private static final int ASYNC_MAX_PER_ROUTE = Integer.parseInt(ConfigUtils.getProperty("http_async_max_per_route",
+			50));
+	private static final int CONNECT_TIMEOUT = Integer.parseInt(ConfigUtils.getProperty("http_connect_timeout", 5000));
+	private static final int SOCKET_TIMEOUT = Integer.parseInt(ConfigUtils.getProperty("http_socket_timeout", 10000));
+	private static final int ASYNC_RETRIES = Integer.parseInt(ConfigUtils.getProperty("http_async_retries", 2));
+	private static final long RETRY_BACKOFF_MILLIS = 200;
+	/** 异步请求从提交到最后一次重试结束的总时间上限, 包括排队时间 */
+	private static final long ASYNC_TOTAL_TIMEOUT = Long.parseLong(ConfigUtils.getProperty("http_async_total_timeout",
+			30000));
+	/** 连续失败多少次后熔断 */
+	private static final int CIRCUIT_FAILURES = Integer.parseInt(ConfigUtils.getProperty("http_circuit_failures", 5));
+	private static final long CIRCUIT_OPEN_MILLIS = Long.parseLong(ConfigUtils.getProperty("http_circuit_open_millis",
+			10000));
+
+	/**
+	 * 异步请求占用的路由并发名额. 开始执行的请求由执行线程在结束时归还, cancel(true)只是中断, 请求仍在执行时不归还;
+	 * 没有开始执行就结束(取消或被拒绝)的请求由AsyncTask归还
+	 */
+	private static class RoutePermit {
+		private static final int FREE = 0;
+		private static final int HELD = 1;
+		private static final int RUNNING = 2;
+
+		private final RouteStats stats;
+		private final AtomicInteger state = new AtomicInteger(FREE);
+
+		RoutePermit(RouteStats stats) {
+			this.stats = stats;
+		}
+
+		boolean tryAcquire() {
+			if (!stats.tryAcquire()) {
+				return false;
+			}
+			state.set(HELD);
+			return true;
+		}
+
+		/**
+		 * 执行线程开始请求, 返回<tt>false</tt>表示任务已经结束, 名额已归还
+		 */
+		boolean start() {
+			return state.compareAndSet(HELD, RUNNING);
+		}
+
+		void finish() {
+			if (state.compareAndSet(RUNNING, FREE)) {
+				stats.release();
+			}
+		}
+
+		void releaseIfNotStarted() {
+			if (state.compareAndSet(HELD, FREE)) {
+				stats.release();
+			}
+		}
+	}
+
+	/**
+	 * 异步请求任务, 结束时调用回调
+	 */
+	private static class AsyncTask extends FutureTask<String> {
+		private final RoutePermit permit;
+		private final Callback callback;
+
+		AsyncTask(Callable<String> callable, RoutePermit permit, Callback callback) {
+			super(callable);
+			this.permit = permit;
+			this.callback = callback;
+		}
+
+		void fail(Exception ex) {
+			setException(ex);
+		}
+
+		@Override
+		protected void done() {
+			permit.releaseIfNotStarted();
+			if (callback == null || isCancelled()) {
+				return;
+			}
+			try {
+				callback.completed(get());
+			} catch (ExecutionException e) {
+				callback.failed(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				facetimeLogger.warn("http callback failed", e);
+			}
+		}
+	}
+
 	/**
 	 * 连接监控，关闭过期连接
 	 * 
@@ -84,6 +228,9 @@ public class HttpSender {
 
 	private HttpClient httpClient;
 
+	private final ThreadPoolExecutor asyncExecutor;
+	private final ConcurrentMap<String, RouteStats> routeStats = new ConcurrentHashMap<String, RouteStats>();
+
 	private static HttpSender instance = new HttpSender();
 
 	private HttpSender() {
@@ -96,6 +243,184 @@ public class HttpSender {
 		new IdleConnectionEvictor(cm).start();
 
 		httpClient = new DefaultHttpClient(cm);
+
+		final AtomicInteger threadIndex = new AtomicInteger();
+		asyncExecutor = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(ASYNC_QUEUE_SIZE), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "http-async-" + threadIndex.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		asyncExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * 异步get, 不阻塞调用线程
+	 *
+	 * @param callback
+	 *            可以为<tt>null</tt>
+	 * @return 响应内容, 失败时{@link Future#get()}抛出{@link ExecutionException}
+	 */
+	public Future<String> getAsync(final String token, final String resturl, final String parameters,
+			Callback callback) {
+		final String getURL = parameters != null && !parameters.isEmpty() ? resturl + "?" + parameters : resturl;
+		return executeAsync(getURL, new RequestFactory() {
+			@Override
+			public HttpUriRequest create() throws IOException {
+				HttpGet httpGet = new HttpGet(getURL);
+				httpGet.setHeader(HttpConstants.KEY_USER_TOKEN, token != null ? token : "");
+				httpGet.setHeader("Content-Type", "text/plain; charset=UTF-8");
+				return httpGet;
+			}
+		}, callback);
+	}
+
+	/**
+	 * 异步post, 与{@link #postToUrl(String, String, String)}发送相同的请求
+	 *
+	 * @param callback
+	 *            可以为<tt>null</tt>
+	 * @return 响应内容, 失败时{@link Future#get()}抛出{@link ExecutionException}
+	 */
+	public Future<String> postAsync(final String token, final String resturl, final String postData,
+			Callback callback) {
+		return executeAsync(resturl, new RequestFactory() {
+			@Override
+			public HttpUriRequest create() throws IOException {
+				HttpPost httpPost = new HttpPost(resturl);
+				for (Map.Entry<String, String> header : setRequestHead(token).entrySet()) {
+					httpPost.setHeader(header.getKey(), header.getValue());
+				}
+				httpPost.setEntity(new StringEntity(postData, "UTF-8"));
+				return httpPost;
+			}
+		}, callback);
+	}
+
+	private Future<String> executeAsync(final String url, final RequestFactory factory, Callback callback) {
+		final RouteStats stats = getRouteStats(url);
+		final RoutePermit permit = new RoutePermit(stats);
+		final long deadline = System.currentTimeMillis() + ASYNC_TOTAL_TIMEOUT;
+		AsyncTask task = new AsyncTask(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				if (!permit.start()) {
+					throw new CancellationException();
+				}
+				try {
+					return executeWithRetry(url, stats, factory, deadline);
+				} finally {
+					permit.finish();
+				}
+			}
+		}, permit, callback);
+		if (!permit.tryAcquire()) {
+			task.fail(new RejectedExecutionException((stats.isOpen() ? "circuit open: " : "too many requests: ")
+					+ stats.getRoute()));
+			return task;
+		}
+		try {
+			asyncExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.fail(e);
+		}
+		return task;
+	}
+
+	/**
+	 * 执行请求, IO失败时退避重试. 每次尝试的超时不超过到deadline的剩余时间, 剩余时间不够再退避一次时不再重试
+	 */
+	private String executeWithRetry(String url, RouteStats stats, RequestFactory factory, long deadline)
+			throws Exception {
+		for (int attempt = 0;; attempt++) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new TimeoutException("async request timeout after " + attempt + " attempt(s): " + url);
+			}
+			HttpUriRequest request = factory.create();
+			HttpConnectionParams.setConnectionTimeout(request.getParams(), (int) Math.min(CONNECT_TIMEOUT, remaining));
+			HttpConnectionParams.setSoTimeout(request.getParams(), (int) Math.min(SOCKET_TIMEOUT, remaining));
+			// 从连接池取连接的等待时间
+			request.getParams().setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, Math.min(CONNECT_TIMEOUT, remaining));
+			long start = System.currentTimeMillis();
+			try {
+				HttpResponse response = httpClient.execute(request);
+				HttpEntity entity = response.getEntity();
+				String result = entity != null ? EntityUtils.toString(entity, "UTF-8") : ErrorType.ERR_404;
+				int status = response.getStatusLine().getStatusCode();
+				if (status >= 500) {
+					throw new IOException("HTTP " + status + " from " + url);
+				}
+				stats.recordSuccess(System.currentTimeMillis() - start);
+				return result;
+			} catch (IOException ex) {
+				request.abort();
+				stats.recordFailure(System.currentTimeMillis() - start);
+				if (attempt >= ASYNC_RETRIES || stats.isOpen()
+						|| System.currentTimeMillis() + (RETRY_BACKOFF_MILLIS << attempt) >= deadline) {
+					facetimeLogger.warn("async request failed after " + (attempt + 1) + " attempt(s): " + url, ex);
+					throw ex;
+				}
+			}
+			stats.recordRetry();
+			Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+		}
+	}
+
+	/**
+	 * 统计用的路由: scheme://host[:port]. 不是绝对地址的url都归到同一个路由, 免得统计表无限增长
+	 */
+	public static String routeOf(String url) {
+		try {
+			URI uri = URI.create(url);
+			if (uri.getScheme() != null && uri.getHost() != null) {
+				return uri.getScheme() + "://" + uri.getHost() + (uri.getPort() != -1 ? ":" + uri.getPort() : "");
+			}
+		} catch (IllegalArgumentException e) {
+			// 按无效地址统计
+		}
+		return INVALID_ROUTE;
+	}
+
+	private RouteStats getRouteStats(String url) {
+		String route = routeOf(url);
+		RouteStats stats = routeStats.get(route);
+		if (stats == null) {
+			RouteStats created = new RouteStats(route, ASYNC_MAX_PER_ROUTE, CIRCUIT_FAILURES, CIRCUIT_OPEN_MILLIS);
+			stats = routeStats.putIfAbsent(route, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * 每个目标地址的异步请求统计
+	 */
+	public Collection<RouteStats> getRouteStats() {
+		return Collections.unmodifiableCollection(routeStats.values());
+	}
+
+	/**
+	 * 连接池使用情况: 已借出, 空闲, 等待连接的请求数和上限
+	 */
+	public PoolStats getPoolStats() {
+		return cm.getTotalStats();
+	}
+
+	/**
+	 * 等待执行的异步请求数
+	 */
+	public int getAsyncQueueDepth() {
+		return asyncExecutor.getQueue().size();
+	}
+
+	public int getAsyncActiveCount() {
+		return asyncExecutor.getActiveCount();
 	}
 
 	/**
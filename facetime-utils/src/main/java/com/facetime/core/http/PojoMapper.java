@@ -3,13 +3,16 @@ package com.facetime.core.http;
 import static com.facetime.core.conf.SysLogger.facetimeLogger;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Date;
 
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.SerializableString;
 import org.codehaus.jackson.Version;
+import org.codehaus.jackson.io.CharacterEscapes;
 import org.codehaus.jackson.map.DeserializationContext;
 import org.codehaus.jackson.map.JsonDeserializer;
 import org.codehaus.jackson.map.JsonSerializer;
@@ -25,6 +28,7 @@ public class PojoMapper {
 
 	private static final Logger logger = facetimeLogger;
 	private static ObjectMapper mapper = new ObjectMapper();
+	private static final CharacterEscapes XML_SAFE_ESCAPES = new XmlSafeEscapes();
 
 	static {
 		/**
@@ -67,6 +71,44 @@ public class PojoMapper {
 		return null;
 	}
 
+	/**
+	 * 串行化时把 &lt; &gt; &amp; 写成JSON的unicode转义, 结果可以不经XML转义直接放进XML元素内容, 解析后与toJson相同
+	 */
+	public static String toXmlSafeJson(Object pojo) {
+		try {
+			StringWriter out = new StringWriter();
+			JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out);
+			generator.setCharacterEscapes(XML_SAFE_ESCAPES);
+			mapper.writeValue(generator, pojo);
+			return out.toString();
+		} catch (IOException ex) {
+			logger.error(ex);
+		}
+
+		return null;
+	}
+
+	private static class XmlSafeEscapes extends CharacterEscapes {
+		private final int[] asciiEscapes;
+
+		XmlSafeEscapes() {
+			asciiEscapes = standardAsciiEscapesForJSON();
+			asciiEscapes['<'] = ESCAPE_STANDARD;
+			asciiEscapes['>'] = ESCAPE_STANDARD;
+			asciiEscapes['&'] = ESCAPE_STANDARD;
+		}
+
+		@Override
+		public int[] getEscapeCodesForAscii() {
+			return asciiEscapes;
+		}
+
+		@Override
+		public SerializableString getEscapeSequence(int ch) {
+			return null;
+		}
+	}
+
 	private static class DateDeserializer extends JsonDeserializer<Date> {
 
 		@Override
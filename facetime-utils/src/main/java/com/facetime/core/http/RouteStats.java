@@ -0,0 +1,140 @@
+package com.facetime.core.http;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 一个目标地址(scheme://host:port)的异步请求状态: 并发上限, 熔断状态和延迟分布.
+ * <p>
+ * 连续失败达到阈值后熔断, 熔断期间的请求直接失败; 熔断时间过后放行请求, 成功一次即恢复.
+ *
+ * @author yang
+ */
+public class RouteStats {
+
+	/** 延迟分布的桶上限(ms), 最后一个桶统计超过最大上限的请求 */
+	public static final long[] LATENCY_BUCKETS = { 10, 50, 100, 250, 500, 1000, 2500, 5000 };
+
+	private final String route;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+	private final int failureThreshold;
+	private final long openMillis;
+
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private volatile long openUntil;
+
+	private final AtomicLongArray histogram = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+	private final AtomicLong succeeded = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong totalMillis = new AtomicLong();
+
+	RouteStats(String route, int maxInFlight, int failureThreshold, long openMillis) {
+		this.route = route;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * 占用一个并发名额, 熔断中或已达上限时返回false
+	 */
+	boolean tryAcquire() {
+		if (isOpen() || !inFlight.tryAcquire()) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	void release() {
+		inFlight.release();
+	}
+
+	void recordSuccess(long millis) {
+		consecutiveFailures.set(0);
+		openUntil = 0;
+		succeeded.incrementAndGet();
+		record(millis);
+	}
+
+	void recordFailure(long millis) {
+		failed.incrementAndGet();
+		record(millis);
+		if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+			openUntil = System.currentTimeMillis() + openMillis;
+		}
+	}
+
+	void recordRetry() {
+		retried.incrementAndGet();
+	}
+
+	private void record(long millis) {
+		totalMillis.addAndGet(millis);
+		int bucket = 0;
+		while (bucket < LATENCY_BUCKETS.length && millis > LATENCY_BUCKETS[bucket]) {
+			bucket++;
+		}
+		histogram.incrementAndGet(bucket);
+	}
+
+	public String getRoute() {
+		return route;
+	}
+
+	/**
+	 * 是否处于熔断状态
+	 */
+	public boolean isOpen() {
+		return openUntil > System.currentTimeMillis();
+	}
+
+	public int getInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * 各延迟桶的请求数, 与{@link #LATENCY_BUCKETS}对应, 最后一个元素为超过最大上限的请求数
+	 */
+	public long[] getHistogram() {
+		long[] result = new long[histogram.length()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = histogram.get(i);
+		}
+		return result;
+	}
+
+	public long getSucceededCount() {
+		return succeeded.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * 因熔断或并发已满被拒绝的请求数
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public long getRetriedCount() {
+		return retried.get();
+	}
+
+	public double getAverageMillis() {
+		long count = succeeded.get() + failed.get();
+		return count == 0 ? 0 : (double) totalMillis.get() / count;
+	}
+}
@@ -3,7 +3,7 @@ package com.facetime.core.i18n.impl;
 import java.util.Locale;
 import java.util.Map;
 
-import com.facetime.core.collection.CaseInsensitiveMap;
+import com.facetime.core.collection.CaseInsensitiveHashMap;
 import com.facetime.core.i18n.MessageBundle;
 import com.facetime.core.lock.RWLockBarrier;
 import com.facetime.core.utils.Invokable;
@@ -20,7 +20,7 @@ public abstract class AbstractMessageBundle implements MessageBundle {
 	/**
 	 * String key to MF creating.
 	 */
-	private final Map<String, MessageFormatter> cache = new CaseInsensitiveMap<MessageFormatter>();
+	private final Map<String, MessageFormatter> cache = new CaseInsensitiveHashMap<MessageFormatter>();
 
 	private final Locale locale;
 
@@ -5,7 +5,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
 
-import com.facetime.core.collection.CaseInsensitiveMap;
+import com.facetime.core.collection.CaseInsensitiveHashMap;
 import com.facetime.core.i18n.MessageBundle;
 
 /**
@@ -15,7 +15,7 @@ import com.facetime.core.i18n.MessageBundle;
  */
 public class MessageBundleImpl extends AbstractMessageBundle {
 	
-    private final Map<String, String> properties = new CaseInsensitiveMap<String>();
+    private final Map<String, String> properties = new CaseInsensitiveHashMap<String>();
 
     public MessageBundleImpl(Locale locale, ResourceBundle bundle) {
         super(locale);
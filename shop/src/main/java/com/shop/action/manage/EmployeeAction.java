@@ -27,6 +27,7 @@ import com.shop.domain.privilege.Department;
 import com.shop.domain.privilege.EmployeePrivilegeGrp;
 import com.shop.domain.privilege.PrivilegeGroup;
 import com.shop.logic.bean.BaseBean;
+import com.shop.logic.privilege.PrivilegeLogic;
 import com.shop.util.SiteUrl;
 import com.shop.util.UploadUtil;
 
@@ -78,6 +79,7 @@ public class EmployeeAction extends BaseAction implements ServletContextAware {
 	@Permission(module = "employee", privilege = "leave")
 	public String leave(@RequestParam("username") String username, HttpServletRequest request) throws Exception {
 		defaultLogic.deleteById(SysUser.class, username);
+		this.locate(PrivilegeLogic.class).invalidate(username);
 		request.setAttribute("message", "成功删除员工信息!");
 		request.setAttribute("urladdress", SiteUrl.readUrl("control.employee.list"));
 		return "share/message";
@@ -109,6 +111,7 @@ public class EmployeeAction extends BaseAction implements ServletContextAware {
 			this.getDefaultLogic().save(grpList);
 		}
 		loginManager.update(employee);
+		this.locate(PrivilegeLogic.class).invalidate(bean.getUsername());
 		model.addAttribute("message", "设置权限组成功");
 		model.addAttribute("urladdress", SiteUrl.readUrl("control.employee.list"));
 		return "share/message";
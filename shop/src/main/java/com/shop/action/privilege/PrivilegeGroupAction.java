@@ -18,6 +18,7 @@ import com.shop.domain.privilege.PrivilegeGroup;
 import com.shop.domain.privilege.SystemPrivilege;
 import com.shop.domain.privilege.SystemPrivilegeGroup;
 import com.shop.logic.bean.PrivilegeGroupBean;
+import com.shop.logic.privilege.PrivilegeLogic;
 import com.shop.util.SiteUrl;
 
 @Controller
@@ -54,6 +55,7 @@ public class PrivilegeGroupAction extends BaseAction {
 		defaultLogic.delete(SystemPrivilegeGroup.class, new QueryFilter(
 				"groupId", group.getGroupid()));
 		defaultLogic.deleteById(PrivilegeGroup.class, bean.getGroupid());
+		this.locate(PrivilegeLogic.class).invalidateAll();
 		model.addAttribute("message", "成功删除权限组!");
 		model.addAttribute("urladdress",
 				SiteUrl.readUrl("control.privilegegroup.list"));
@@ -70,6 +72,7 @@ public class PrivilegeGroupAction extends BaseAction {
 				"groupId", group.getGroupid()));
 		setGroupPrivileges(group, bean.getPrivilegeIds());
 		this.getDefaultLogic().update(group);
+		this.locate(PrivilegeLogic.class).invalidateAll();
 		model.addAttribute("message", "成功修改权限组!");
 		model.addAttribute("urladdress",
 				SiteUrl.readUrl("control.privilegegroup.list"));
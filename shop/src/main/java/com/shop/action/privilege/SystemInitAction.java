@@ -21,6 +21,7 @@ import com.shop.domain.privilege.EmployeePrivilegeGrp;
 import com.shop.domain.privilege.PrivilegeGroup;
 import com.shop.domain.privilege.SystemPrivilege;
 import com.shop.domain.privilege.SystemPrivilegeGroup;
+import com.shop.logic.privilege.PrivilegeLogic;
 import com.shop.util.SiteUrl;
 
 /**
@@ -35,6 +36,7 @@ public class SystemInitAction extends BaseAction {
 		initSystemPrivilege();
 		initPrivilegeGroup();
 		initAdmin();
+		this.locate(PrivilegeLogic.class).invalidateAll();
 
 		request.setAttribute("message", "初始化完成");
 		request.setAttribute("urladdress", SiteUrl.readUrl("employee.login.ui"));
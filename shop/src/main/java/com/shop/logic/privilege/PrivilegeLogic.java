@@ -0,0 +1,33 @@
+package com.shop.logic.privilege;
+
+import com.facetime.spring.logic.Logic;
+
+import java.util.Set;
+
+import com.shop.domain.privilege.SystemPrivilegePK;
+
+/**
+ * 员工权限索引, 每个员工的权限集合只在首次校验时查询一次, 权限分配变化时需要使对应的缓存失效
+ */
+public interface PrivilegeLogic extends Logic {
+
+	/**
+	 * 返回员工拥有的全部权限
+	 */
+	Set<SystemPrivilegePK> getPermissions(String employeeId);
+
+	/**
+	 * 员工是否拥有指定的权限
+	 */
+	boolean hasPermission(String employeeId, SystemPrivilegePK permission);
+
+	/**
+	 * 员工的权限组变化后调用, 下次校验时重新加载该员工的权限
+	 */
+	void invalidate(String employeeId);
+
+	/**
+	 * 权限组的权限变化后调用, 所有员工的权限都需要重新加载
+	 */
+	void invalidateAll();
+}
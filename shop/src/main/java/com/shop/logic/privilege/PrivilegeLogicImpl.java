@@ -0,0 +1,77 @@
+package com.shop.logic.privilege;
+
+import com.facetime.spring.logic.LogicImpl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.shop.domain.privilege.SystemPrivilegePK;
+
+@Service
+@Transactional
+public class PrivilegeLogicImpl extends LogicImpl implements PrivilegeLogic {
+
+	/** 员工 -> 权限集合, 一条关联查询取出员工所有权限组的权限 */
+	private static final String PERMISSION_HQL = "select sp.permission from SystemPrivilege sp, SystemPrivilegeGroup spg, "
+			+ "EmployeePrivilegeGrp epg where epg.employeeId = ? and spg.groupId = epg.privilegeGrpId "
+			+ "and sp.id = spg.privilegeId";
+
+	private final ConcurrentMap<String, Set<SystemPrivilegePK>> permissionIndex = new ConcurrentHashMap<String, Set<SystemPrivilegePK>>();
+
+	/** 保护generation, 以及按generation写回和失效索引的操作 */
+	private final Object indexLock = new Object();
+
+	/** 每次失效时递增, 防止失效前开始的加载把旧数据写回索引 */
+	private int generation;
+
+	@Override
+	@Transactional(readOnly = true)
+	public Set<SystemPrivilegePK> getPermissions(String employeeId) {
+		Set<SystemPrivilegePK> permissions = permissionIndex.get(employeeId);
+		if (permissions != null) {
+			return permissions;
+		}
+		int loadGeneration;
+		synchronized (indexLock) {
+			loadGeneration = generation;
+		}
+		List<SystemPrivilegePK> permissionList = this.findHQL(PERMISSION_HQL, new Object[] { employeeId });
+		permissions = Collections.unmodifiableSet(new HashSet<SystemPrivilegePK>(permissionList));
+		// 检查和写回在同一把锁内, 不会插在invalidate的递增和删除之后
+		synchronized (indexLock) {
+			if (loadGeneration == generation) {
+				permissionIndex.put(employeeId, permissions);
+			}
+		}
+		return permissions;
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public boolean hasPermission(String employeeId, SystemPrivilegePK permission) {
+		return getPermissions(employeeId).contains(permission);
+	}
+
+	@Override
+	public void invalidate(String employeeId) {
+		synchronized (indexLock) {
+			generation++;
+			permissionIndex.remove(employeeId);
+		}
+	}
+
+	@Override
+	public void invalidateAll() {
+		synchronized (indexLock) {
+			generation++;
+			permissionIndex.clear();
+		}
+	}
+}
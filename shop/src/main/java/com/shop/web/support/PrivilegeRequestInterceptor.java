@@ -1,37 +1,58 @@
 package com.shop.web.support;
 
 import com.facetime.mgr.bean.UserModel;
-import com.facetime.spring.logic.Logic;
-import com.facetime.spring.support.QueryFilter;
 import com.facetime.spring.support.SpringContextUtils;
 
 import java.lang.reflect.Method;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.ClassUtils;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
 
 import com.shop.action.privilege.Permission;
-import com.shop.domain.privilege.EmployeePrivilegeGrp;
-import com.shop.domain.privilege.PrivilegeGroup;
-import com.shop.domain.privilege.SystemPrivilege;
-import com.shop.domain.privilege.SystemPrivilegeGroup;
 import com.shop.domain.privilege.SystemPrivilegePK;
+import com.shop.logic.privilege.PrivilegeLogic;
 import com.shop.util.SiteUrl;
 import com.shop.util.WebUtil;
 
-public class PrivilegeRequestInterceptor extends HandlerInterceptorAdapter {
+public class PrivilegeRequestInterceptor extends HandlerInterceptorAdapter implements ApplicationContextAware {
 
 	private static final Logger log = Logger.getLogger(PrivilegeRequestInterceptor.class);
 
+	/** 'action类名#请求映射' -> 处理方法, 启动时扫描所有@Controller建立, 之后只补充找到的映射 */
+	private final ConcurrentMap<String, Method> handlerMethods = new ConcurrentHashMap<String, Method>();
+
+	/**
+	 * 启动时扫描所有action的@RequestMapping方法, 请求时不再反射查找
+	 */
+	@Override
+	public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
+		Map<String, Object> controllers = applicationContext.getBeansWithAnnotation(Controller.class);
+		for (Object controller : controllers.values()) {
+			Class<?> handlerClass = ClassUtils.getUserClass(controller);
+			for (Method method : handlerClass.getDeclaredMethods()) {
+				RequestMapping mapping = method.getAnnotation(RequestMapping.class);
+				if (mapping != null && mapping.value().length > 0)
+					handlerMethods.putIfAbsent(handlerKey(handlerClass, mapping.value()[0]), method);
+			}
+		}
+		log.debug("indexed " + handlerMethods.size() + " request mappings");
+	}
+
 	@Override
 	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex)
 			throws Exception {
@@ -96,19 +117,30 @@ public class PrivilegeRequestInterceptor extends HandlerInterceptorAdapter {
 		return param.toString();
 	}
 
+	private String handlerKey(Class<?> handlerClass, String reqMapping) {
+		return handlerClass.getName() + "#" + reqMapping;
+	}
+
 	private Method getTargetMethod(Object handler, String reqMapping) {
-		Method[] methods = handler.getClass().getDeclaredMethods();
-		for (Method method : methods) {
-			boolean isAnnoted = method.isAnnotationPresent(RequestMapping.class);
-			RequestMapping mappingAnnoted = method.getAnnotation(RequestMapping.class);
-			if (isAnnoted && reqMapping.equals(mappingAnnoted.value()[0]))
-				return method;
+		Class<?> handlerClass = ClassUtils.getUserClass(handler);
+		String key = handlerKey(handlerClass, reqMapping);
+		Method target = handlerMethods.get(key);
+		if (target == null) {// 启动时未扫描到的handler, 只记录找到的方法, 不缓存未映射的请求以免被任意URI撑大
+			for (Method method : handlerClass.getDeclaredMethods()) {
+				RequestMapping mappingAnnoted = method.getAnnotation(RequestMapping.class);
+				if (mappingAnnoted != null && mappingAnnoted.value().length > 0
+						&& reqMapping.equals(mappingAnnoted.value()[0])) {
+					target = method;
+					handlerMethods.putIfAbsent(key, target);
+					break;
+				}
+			}
 		}
-		return null;
+		return target;
 	}
 
 	/**
-	 * 权限校验
+	 * 权限校验, 员工的权限集合由PrivilegeLogic缓存, 每个员工只查询一次数据库
 	 *
 	 * @return
 	 */
@@ -119,19 +151,6 @@ public class PrivilegeRequestInterceptor extends HandlerInterceptorAdapter {
 		// 下面是得到执行方法需要的权限
 		SystemPrivilegePK targetPrivilege = new SystemPrivilegePK(permission.module(), permission.privilege());
 		UserModel employee = WebUtil.getEmployee(request);
-		Logic logic = SpringContextUtils.locate(Logic.class, "defaultLogic");
-		List<String> groupIds = logic.findPart(EmployeePrivilegeGrp.class,
-				new QueryFilter("employeeId", employee.getUsername()), new String[] { "privilegeGrpId" });
-		List<PrivilegeGroup> groupList = logic.findByIds(PrivilegeGroup.class, groupIds.toArray(new String[] {}));
-		for (PrivilegeGroup group : groupList) {
-			List<String> idArray = logic.findPart(SystemPrivilegeGroup.class,
-					new QueryFilter("groupId", group.getGroupid()), new String[] { "privilegeId" });
-			List<SystemPrivilege> privilegeList = logic.findByIds(SystemPrivilege.class,
-					idArray.toArray(new String[] {}));
-			for (SystemPrivilege privilege : privilegeList)
-				if (privilege.getPermission().equals(targetPrivilege))
-					return true;
-		}
-		return false;
+		return SpringContextUtils.locate(PrivilegeLogic.class).hasPermission(employee.getUsername(), targetPrivilege);
 	}
 }